@@ -0,0 +1,268 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.cms.cm.service;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+import com.oneops.cms.cm.domain.CmsCI;
+import com.oneops.cms.cm.domain.CmsCIAttribute;
+
+/**
+ * Bounded read-through cache of cis with their attributes.
+ *
+ * Every ci id maps to a version stripe. A loader takes the stripe version before
+ * it reads the db and the ci is only cached if the version did not move in the meantime.
+ * Cached entries carry the version they were loaded with, a read of an entry whose
+ * version does not match the stripe anymore falls back to the db.
+ * Invalidations come from the local writes of the CmsCmProcessor and from the
+ * cm_ci and namespace events published by the transmitter.
+ *
+ * The versions are local to this jvm. A ci updated by another jvm stays cached
+ * until its CMS.ALL event is received, if the event is lost it is served stale
+ * for up to the ttl (30 seconds by default). Callers get their own copies of the
+ * cached cis, made field by field.
+ */
+public class CmsCiCache {
+
+	private static Logger logger = Logger.getLogger(CmsCiCache.class);
+
+	private static final int STRIPES = 1024;
+
+	private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+	private final Map<Long, Entry> cis;
+	private final int maxSize;
+	private long ttlMs = 30000;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private static class Entry {
+		private final CmsCI ci;
+		private final long version;
+		private final long loaded;
+
+		private Entry(CmsCI ci, long version, long loaded) {
+			this.ci = ci;
+			this.version = version;
+			this.loaded = loaded;
+		}
+	}
+
+	public CmsCiCache() {
+		this(10000);
+	}
+
+	public CmsCiCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.cis = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+				return size() > CmsCiCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Sets the time to live of the cached cis, 0 keeps them until invalidated or evicted.
+	 *
+	 * @param ttlMs the ttl in ms
+	 */
+	public void setTtlMs(long ttlMs) {
+		this.ttlMs = ttlMs;
+	}
+
+	private static int stripe(long ciId) {
+		return (int) ((ciId ^ (ciId >>> 32)) & (STRIPES - 1));
+	}
+
+	/**
+	 * Gets the current version of the ci, has to be taken before the ci is read from the db.
+	 *
+	 * @param ciId the ci id
+	 * @return the version
+	 */
+	public long version(long ciId) {
+		return versions.get(stripe(ciId));
+	}
+
+	/**
+	 * Gets a copy of the cached ci.
+	 *
+	 * @param ciId the ci id
+	 * @return the ci or null if it has to be read from the db
+	 */
+	public CmsCI get(long ciId) {
+		Entry entry;
+		synchronized (cis) {
+			entry = cis.get(ciId);
+			if (entry != null && (entry.version != version(ciId) || isExpired(entry))) {
+				cis.remove(ciId);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return copy(entry.ci);
+	}
+
+	private boolean isExpired(Entry entry) {
+		return ttlMs > 0 && System.currentTimeMillis() - entry.loaded > ttlMs;
+	}
+
+	/**
+	 * Caches a copy of the ci read from the db, ignored if the ci was invalidated since the version was taken.
+	 *
+	 * @param ci the ci with the attributes populated
+	 * @param version the version taken before the read
+	 */
+	public void put(CmsCI ci, long version) {
+		if (ci == null || version(ci.getCiId()) != version) {
+			return;
+		}
+		Entry entry = new Entry(copy(ci), version, System.currentTimeMillis());
+		synchronized (cis) {
+			cis.put(ci.getCiId(), entry);
+		}
+	}
+
+	/**
+	 * Copies the ci with its attributes, cheaper than a serialization round trip.
+	 *
+	 * @param ci the ci
+	 * @return the copy
+	 */
+	static CmsCI copy(CmsCI ci) {
+		CmsCI copy = new CmsCI();
+		copy.setCiId(ci.getCiId());
+		copy.setCiName(ci.getCiName());
+		copy.setCiClassName(ci.getCiClassName());
+		copy.setCiClassId(ci.getCiClassId());
+		copy.setImpl(ci.getImpl());
+		copy.setNsPath(ci.getNsPath());
+		copy.setNsId(ci.getNsId());
+		copy.setCiGoid(ci.getCiGoid());
+		copy.setComments(ci.getComments());
+		copy.setCiState(ci.getCiState());
+		copy.setCiStateId(ci.getCiStateId());
+		copy.setLastAppliedRfcId(ci.getLastAppliedRfcId());
+		copy.setCreatedBy(ci.getCreatedBy());
+		copy.setUpdatedBy(ci.getUpdatedBy());
+		copy.setCreated(copy(ci.getCreated()));
+		copy.setUpdated(copy(ci.getUpdated()));
+		if (ci.getAttributes() == null) {
+			copy.setAttributes(null);
+			return copy;
+		}
+		for (Map.Entry<String, CmsCIAttribute> attr : ci.getAttributes().entrySet()) {
+			copy.getAttributes().put(attr.getKey(), copy(attr.getValue()));
+		}
+		return copy;
+	}
+
+	private static CmsCIAttribute copy(CmsCIAttribute attr) {
+		if (attr == null) {
+			return null;
+		}
+		CmsCIAttribute copy = new CmsCIAttribute();
+		copy.setCiAttributeId(attr.getCiAttributeId());
+		copy.setCiId(attr.getCiId());
+		copy.setAttributeId(attr.getAttributeId());
+		copy.setAttributeName(attr.getAttributeName());
+		copy.setDfValue(attr.getDfValue());
+		copy.setDjValue(attr.getDjValue());
+		copy.setComments(attr.getComments());
+		copy.setOwner(attr.getOwner());
+		copy.setCreated(copy(attr.getCreated()));
+		copy.setUpdated(copy(attr.getUpdated()));
+		return copy;
+	}
+
+	private static Date copy(Date date) {
+		return date == null ? null : new Date(date.getTime());
+	}
+
+	/**
+	 * Invalidates the ci.
+	 *
+	 * @param ciId the ci id
+	 */
+	public void invalidate(long ciId) {
+		versions.incrementAndGet(stripe(ciId));
+		synchronized (cis) {
+			cis.remove(ciId);
+		}
+	}
+
+	/**
+	 * Invalidates all the cis.
+	 */
+	public void invalidateAll() {
+		for (int i = 0; i < STRIPES; i++) {
+			versions.incrementAndGet(i);
+		}
+		synchronized (cis) {
+			cis.clear();
+		}
+	}
+
+	/**
+	 * Applies a cms event published by the transmitter.
+	 *
+	 * @param source the source header
+	 * @param action the action header
+	 * @param sourceId the sourceId header
+	 */
+	public void onCmsEvent(String source, String action, String sourceId) {
+		if ("cm_ci".equals(source) || "cm_ci_new".equals(source)) {
+			try {
+				invalidate(Long.parseLong(sourceId));
+			} catch (NumberFormatException e) {
+				logger.warn("Bad sourceId " + sourceId + " for " + source + " " + action + " event, clearing the ci cache");
+				invalidateAll();
+			}
+		} else if ("namespace".equals(source)) {
+			// the ns path is part of the cached ci
+			invalidateAll();
+		}
+	}
+
+	public int size() {
+		synchronized (cis) {
+			return cis.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+}
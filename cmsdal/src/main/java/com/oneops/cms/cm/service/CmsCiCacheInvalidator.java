@@ -0,0 +1,74 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.cms.cm.service;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.TextMessage;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Listener of the CMS.ALL topic that invalidates the ci cache on the ci and namespace events.
+ */
+public class CmsCiCacheInvalidator implements MessageListener {
+
+	private static Logger logger = Logger.getLogger(CmsCiCacheInvalidator.class);
+
+	private CmsCiCache ciCache;
+
+	public void setCiCache(CmsCiCache ciCache) {
+		this.ciCache = ciCache;
+	}
+
+	@Override
+	public void onMessage(Message message) {
+		try {
+			String source = message.getStringProperty("source");
+			String sourceId = message.getStringProperty("sourceId");
+			if (sourceId == null && "cm_ci_new".equals(source) && message instanceof TextMessage) {
+				sourceId = getCiId(((TextMessage) message).getText());
+			}
+			ciCache.onCmsEvent(source, message.getStringProperty("action"), sourceId);
+		} catch (JMSException e) {
+			logger.error("Can not read the cms event, clearing the ci cache", e);
+			ciCache.invalidateAll();
+		}
+	}
+
+	private String getCiId(String payload) {
+		if (payload == null) {
+			return null;
+		}
+		try {
+			JsonElement ci = new JsonParser().parse(payload);
+			if (ci.isJsonObject()) {
+				JsonElement ciId = ((JsonObject) ci).get("ciId");
+				return ciId == null ? null : ciId.getAsString();
+			}
+		} catch (RuntimeException e) {
+			logger.warn("Can not parse the ci event payload", e);
+		}
+		return null;
+	}
+}
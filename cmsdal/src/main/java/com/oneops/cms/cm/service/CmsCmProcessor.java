@@ -25,6 +25,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -34,6 +35,8 @@ import com.oneops.cms.ns.service.CmsNsProcessor;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import com.oneops.cms.cm.dal.CIMapper;
 import com.oneops.cms.exceptions.CIValidationException;
@@ -70,6 +73,7 @@ public class CmsCmProcessor {
 	private CmsCmValidator cmValidator;
 	private CmsNsProcessor cmsNsProcessor;
 	private CmsMdProcessor mdProcessor;
+	private CmsCiCache ciCache;
 	private QueryConditionMapper qcm = new QueryConditionMapper();
 	private Set<String> bomRelations = new HashSet<>();
 
@@ -108,6 +112,15 @@ public class CmsCmProcessor {
 	public void setCiMapper(CIMapper ciMapper) {
 		this.ciMapper = ciMapper;
 	}
+
+	/**
+	 * Sets the ci cache, the cis are always read from the db if not set.
+	 *
+	 * @param ciCache the ci cache
+	 */
+	public void setCiCache(CmsCiCache ciCache) {
+		this.ciCache = ciCache;
+	}
 	
 	/**
 	 * 
@@ -175,6 +188,7 @@ public class CmsCmProcessor {
 			cmsNsProcessor.createNs(ns);
 		}
 
+		invalidateCi(ci.getCiId());
 		return getCiById(ci.getCiId());
 	}
 	
@@ -224,24 +238,7 @@ public class CmsCmProcessor {
 
 	private void populateAttrs(CmsCI ci) {
 		if (ci != null) {
-			CmsClazz clazz = mdProcessor.getClazz(ci.getCiClassId());
-			Map<Integer, CmsClazzAttribute> clazzAttrs = getClazzAttrsMap(clazz.getMdAttributes()); 
-			//first lets populate the attr names for ci attrs
-			for (CmsCIAttribute attr : ciMapper.getCIAttrsNaked(ci.getCiId())) {
-				attr.setAttributeName(clazzAttrs.get(attr.getAttributeId()).getAttributeName());
-				ci.addAttribute(attr);
-				clazzAttrs.remove(attr.getAttributeId());
-			}
-			// now populate default values from missing attrs
-			for (CmsClazzAttribute clazzAttr : clazzAttrs.values()) {
-				CmsCIAttribute attr = new CmsCIAttribute();
-				attr.setAttributeId(clazzAttr.getAttributeId());
-				attr.setAttributeName(clazzAttr.getAttributeName());
-				attr.setCiId(ci.getCiId());
-				attr.setDfValue(clazzAttr.getDefaultValue());
-				attr.setDjValue(clazzAttr.getDefaultValue());
-				ci.addAttribute(attr);
-			}
+			populateAttrsSimple(Collections.singletonList(ci));
 		}
 	}
 
@@ -293,20 +290,19 @@ public class CmsCmProcessor {
 	
 	
     private void populateAttrs(List<CmsCI> cis) {
-		int fromIndex = 0;
-		int toIndex = cis.size() > (fromIndex + CHUNK_SIZE) ? fromIndex + CHUNK_SIZE : cis.size();
-		List<CmsCI> subList = cis.subList(fromIndex, toIndex);
-		while (subList.size() == CHUNK_SIZE) {
-			populateAttrsSimple(subList);
-			fromIndex += CHUNK_SIZE;
-			toIndex = cis.size() > (fromIndex + CHUNK_SIZE) ? fromIndex + CHUNK_SIZE : cis.size();
-			subList = cis.subList(fromIndex, toIndex);
-		}
-		if (subList.size() >0) {
-			populateAttrsSimple(subList);
-		}
+		forEachChunk(cis, this::populateAttrsSimple);
     }
 
+	/**
+	 * Runs the action on the CHUNK_SIZE sublists of the list, the attribute and ci id list
+	 * queries are bound by the chunk so every chunk costs one statement per query.
+	 */
+	private static <T> void forEachChunk(List<T> list, Consumer<List<T>> action) {
+		for (int fromIndex = 0; fromIndex < list.size(); fromIndex += CHUNK_SIZE) {
+			action.accept(list.subList(fromIndex, Math.min(fromIndex + CHUNK_SIZE, list.size())));
+		}
+	}
+
 	
 	private Map<Integer, CmsClazzAttribute> getClazzAttrsMap(List<CmsClazzAttribute> attrs) {
 		Map<Integer, CmsClazzAttribute> clazzAttrsMap = new HashMap<Integer, CmsClazzAttribute>();
@@ -318,25 +314,7 @@ public class CmsCmProcessor {
 
 	private void populateRelAttrs(CmsCIRelation rel) {
 		if (rel != null) {
-			CmsRelation mdRel = mdProcessor.getRelation(rel.getRelationId());
-
-			Map<Integer, CmsRelationAttribute> relAttrs = getRelAttrsMap(mdRel.getMdAttributes()); 
-			//first lets populate the attr names for ci attrs
-			for (CmsCIRelationAttribute attr : ciMapper.getCIRelationAttrsNaked(rel.getCiRelationId())) {
-				attr.setAttributeName(relAttrs.get(attr.getAttributeId()).getAttributeName());
-				rel.addAttribute(attr);
-				relAttrs.remove(attr.getAttributeId());
-			}
-			// now populate default values from missing attrs
-			for (CmsRelationAttribute mdAttr : relAttrs.values()) {
-				CmsCIRelationAttribute attr = new CmsCIRelationAttribute();
-				attr.setAttributeId(mdAttr.getAttributeId());
-				attr.setAttributeName(mdAttr.getAttributeName());
-				attr.setCiRelationId(rel.getCiRelationId());
-				attr.setDfValue(mdAttr.getDefaultValue());
-				attr.setDjValue(mdAttr.getDefaultValue());
-				rel.addAttribute(attr);
-			}
+			populateRelAttrsSimple(Collections.singletonList(rel));
 		}
 	}
 	
@@ -391,18 +369,7 @@ public class CmsCmProcessor {
 	}
 	
     private void populateRelAttrs(List<CmsCIRelation> rels) {
-		int fromIndex = 0;
-		int toIndex = rels.size() > (fromIndex + CHUNK_SIZE) ? fromIndex + CHUNK_SIZE : rels.size();
-		List<CmsCIRelation> subList = rels.subList(fromIndex, toIndex);
-		while (subList.size() == CHUNK_SIZE) {
-			populateRelAttrsSimple(subList);
-			fromIndex += CHUNK_SIZE;
-			toIndex = rels.size() > (fromIndex + CHUNK_SIZE) ? fromIndex + CHUNK_SIZE : rels.size();
-			subList = rels.subList(fromIndex, toIndex);
-		}
-		if (subList.size() >0) {
-			populateRelAttrsSimple(subList);
-		}
+		forEachChunk(rels, this::populateRelAttrsSimple);
     }
 
 	
@@ -647,31 +614,46 @@ public class CmsCmProcessor {
 		if (ids == null || ids.size() ==0) {
 			return cis;
 		}
-		
-		int fromIndex = 0;
-		int toIndex = ids.size() > (fromIndex + CHUNK_SIZE) ? fromIndex + CHUNK_SIZE : ids.size();
-		List<Long> subList = ids.subList(fromIndex, toIndex);
-		while (subList.size() == CHUNK_SIZE) {
+
+		if (populateAttrs && ciCache != null) {
+			return getCiByIdListCached(ids);
+		}
+
+		forEachChunk(ids, subList -> {
 			List<CmsCI> ciChank = ciMapper.getCIByIdList(subList);
 			if (populateAttrs) {
 				populateAttrsSimple(ciChank);
 			}
 			cis.addAll(ciChank);
-			fromIndex += CHUNK_SIZE;
-			toIndex = ids.size() > (fromIndex + CHUNK_SIZE) ? fromIndex + CHUNK_SIZE : ids.size();
-			subList = ids.subList(fromIndex, toIndex);
+		});
+		return cis;
+	}
+	
+	
+	private List<CmsCI> getCiByIdListCached(List<Long> ids) {
+		List<CmsCI> cis = new ArrayList<CmsCI>();
+		List<Long> missing = new ArrayList<Long>();
+		Map<Long, Long> versions = new HashMap<Long, Long>();
+		for (Long id : ids) {
+			CmsCI ci = ciCache.get(id);
+			if (ci != null) {
+				cis.add(ci);
+			} else {
+				missing.add(id);
+				versions.put(id, ciCache.version(id));
+			}
 		}
-		if (subList.size()>0) {
+		forEachChunk(missing, subList -> {
 			List<CmsCI> ciChank = ciMapper.getCIByIdList(subList);
-			if (populateAttrs) {
-				populateAttrsSimple(ciChank);
+			populateAttrsSimple(ciChank);
+			for (CmsCI ci : ciChank) {
+				ciCache.put(ci, versions.get(ci.getCiId()));
 			}
 			cis.addAll(ciChank);
-		}
+		});
 		return cis;
 	}
-	
-	
+
 	/**
 	 * Gets the ci by id list.
 	 *
@@ -688,11 +670,37 @@ public class CmsCmProcessor {
 	 * @return the ci by id
 	 */
 	public CmsCI getCiById(long id) {
-		CmsCI ci = ciMapper.getCIById(id);
-		populateAttrs(ci);
+		if (ciCache == null) {
+			CmsCI ci = ciMapper.getCIById(id);
+			populateAttrs(ci);
+			return ci;
+		}
+		CmsCI ci = ciCache.get(id);
+		if (ci == null) {
+			long version = ciCache.version(id);
+			ci = ciMapper.getCIById(id);
+			populateAttrs(ci);
+			ciCache.put(ci, version);
+		}
 		return ci;
 	}
 
+	private void invalidateCi(long ciId) {
+		if (ciCache == null) {
+			return;
+		}
+		ciCache.invalidate(ciId);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			// reads done before the commit could have cached the uncommitted ci
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					ciCache.invalidate(ciId);
+				}
+			});
+		}
+	}
+
 	/**
 	 * Gets the ci by id naked.
 	 *
@@ -757,6 +765,7 @@ public class CmsCmProcessor {
 		if (ciChanged) {
 			ciMapper.updateCI(ci);
 		}
+		invalidateCi(ci.getCiId());
 		return getCiById(ci.getCiId());
 	}
 	
@@ -782,6 +791,7 @@ public class CmsCmProcessor {
 		existingCi.setCiStateId(ciStateId);
 		existingCi.setUpdatedBy(user);
 		ciMapper.updateCI(existingCi);
+		invalidateCi(ciId);
 
 		return existingCi;
 	}
@@ -806,6 +816,7 @@ public class CmsCmProcessor {
 	 */
 	public void deleteCI(long ciId, boolean delete4real, String userId) {
 		ciMapper.deleteCI(ciId, delete4real, userId);
+		invalidateCi(ciId);
 	}
 	
 
@@ -2092,6 +2103,9 @@ public class CmsCmProcessor {
 		String nsLike = CmsUtil.likefyNsPath(nsPath);
 		ciMapper.resetDeletionsByNsLike(nsPath, nsLike);	
 		ciMapper.resetRelDeletionsByNsLike(nsPath, nsLike);
+		if (ciCache != null) {
+			ciCache.invalidateAll();
+		}
 	}
 		
 	/**
@@ -19,6 +19,8 @@ package com.oneops.cms.crypto;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * The Interface CmsCrypto.
@@ -44,5 +46,30 @@ public interface CmsCrypto {
 		return instr.startsWith(checkStr);
 	}
 
+	/**
+	 * Decrypts the encrypted and var encrypted values of an attribute map.
+	 *
+	 * @param values the attribute values by attribute name
+	 * @return the decrypted values of the encrypted attributes by attribute name
+	 * @throws GeneralSecurityException if one of the values can not be decrypted
+	 */
+	default Map<String, String> decryptAll(Map<String, String> values) throws GeneralSecurityException {
+		Map<String, String> result = new HashMap<>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			String val = entry.getValue();
+			if (val == null) continue;
+			try {
+				if (val.startsWith(ENC_PREFIX)) {
+					result.put(entry.getKey(), decrypt(val));
+				} else if (val.contains(ENC_VAR_PREFIX)) {
+					result.put(entry.getKey(), decryptVars(val));
+				}
+			} catch (GeneralSecurityException e) {
+				throw new GeneralSecurityException("Error decrypting attribute " + entry.getKey(), e);
+			}
+		}
+		return result;
+	}
+
 
 }
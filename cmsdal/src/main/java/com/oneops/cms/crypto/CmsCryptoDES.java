@@ -20,12 +20,8 @@ package com.oneops.cms.crypto;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.bouncycastle.crypto.KeyGenerationParameters;
-import org.bouncycastle.crypto.engines.DESedeEngine;
 import org.bouncycastle.crypto.generators.DESedeKeyGenerator;
-import org.bouncycastle.crypto.modes.CBCBlockCipher;
-import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
 import org.bouncycastle.crypto.params.DESedeParameters;
-import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.util.encoders.Hex;
 
@@ -33,16 +29,29 @@ import java.io.*;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.Security;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Class CmsCryptoDES.
+ *
+ * Values are encrypted with the DESede key from CMS_DES_PEM unless another registered key is selected
+ * with CMS_CRYPTO_ENCRYPT_KEY. Values of registered keys carry the key id and the algorithm:
+ * ::ENCRYPTED::v2:keyId:algorithm:hex, the legacy values are plain hex and stay readable.
+ * Additional keys are listed in CMS_CRYPTO_KEYS as keyId:algorithm:keyFile,...
  */
 public class CmsCryptoDES implements CmsCrypto {
 
+    public static final String LEGACY_KEY_ID = "";
+    private static final String V2_PREFIX = "v2:";
+
     private String secretKeyFile;
     private static Logger logger = Logger.getLogger(CmsCryptoDES.class);
     private static final int MIN_DES_FILE_LENGTH = 10;
-    private KeyParameter keyParameter = null;
+    private static final int AES_KEY_LENGTH = 32;
+    private final Map<String, CmsCryptoKey> keys = new ConcurrentHashMap<>();
+    private volatile String encryptKeyId = LEGACY_KEY_ID;
 
 
     /**
@@ -55,23 +64,14 @@ public class CmsCryptoDES implements CmsCrypto {
     @Override
     public String encrypt(String instr) throws GeneralSecurityException {
         long t1 = System.currentTimeMillis();
-        byte[] in = instr.getBytes();
-        PaddedBufferedBlockCipher encryptor = new PaddedBufferedBlockCipher(
-                new CBCBlockCipher(new DESedeEngine()));
-        encryptor.init(true, keyParameter);
-        byte[] cipherText = new byte[encryptor.getOutputSize(in.length)];
-        int outputLen = encryptor.processBytes(in, 0, in.length, cipherText, 0);
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        try {
-            encryptor.doFinal(cipherText, outputLen);
-            Hex.encode(cipherText, os);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new GeneralSecurityException(e);
-        }
+        CmsCryptoKey key = getKey(encryptKeyId);
+        String hex = new String(Hex.encode(key.encrypt(instr.getBytes())));
         long t2 = System.currentTimeMillis();
         logger.debug("Time taken to encrypt(millis) :" + (t2 - t1));
-        return ENC_PREFIX + os.toString();
+        if (LEGACY_KEY_ID.equals(key.getKeyId())) {
+            return ENC_PREFIX + hex;
+        }
+        return ENC_PREFIX + V2_PREFIX + key.getKeyId() + ":" + key.getAlgorithm() + ":" + hex;
     }
 
     /**
@@ -83,10 +83,14 @@ public class CmsCryptoDES implements CmsCrypto {
      */
     @Override
     public String decrypt(String instr) throws GeneralSecurityException {
+        return decrypt(instr, null);
+    }
+
+    private String decrypt(String instr, Map<String, String> decrypted) throws GeneralSecurityException {
         if (instr.startsWith(ENC_PREFIX)) {
             instr = instr.substring(ENC_PREFIX.length());
         }
-        return decryptStr(instr);
+        return decryptStr(instr, decrypted);
     }
     
     /**
@@ -99,45 +103,138 @@ public class CmsCryptoDES implements CmsCrypto {
 
     @Override
 	public String decryptVars(String instr) throws GeneralSecurityException {
-    	StringBuffer sb = new StringBuffer();
+        return decryptVars(instr, null);
+    }
+
+    private String decryptVars(String instr, Map<String, String> decrypted) throws GeneralSecurityException {
+    	StringBuilder sb = new StringBuilder();
     	int startingPoint = 0;
-    	while (instr.contains(ENC_VAR_PREFIX)) {
-    		sb.append(instr.substring(startingPoint, instr.indexOf(ENC_VAR_PREFIX)));
-    		String strToDecrypt = instr.substring(instr.indexOf(ENC_VAR_PREFIX) + ENC_VAR_PREFIX.length(),instr.indexOf(ENC_VAR_SUFFIX));
-    		sb.append(decryptStr(strToDecrypt));
-    		instr = instr.substring(instr.indexOf(ENC_VAR_SUFFIX) + ENC_VAR_SUFFIX.length());
+    	int prefixIndex;
+    	while ((prefixIndex = instr.indexOf(ENC_VAR_PREFIX, startingPoint)) >= 0) {
+    		int suffixIndex = instr.indexOf(ENC_VAR_SUFFIX, prefixIndex);
+    		if (suffixIndex < 0) {
+    			throw new GeneralSecurityException("Missing " + ENC_VAR_SUFFIX + " for an encrypted var");
+    		}
+    		sb.append(instr, startingPoint, prefixIndex);
+    		sb.append(decryptStr(instr.substring(prefixIndex + ENC_VAR_PREFIX.length(), suffixIndex), decrypted));
+    		startingPoint = suffixIndex + ENC_VAR_SUFFIX.length();
     	}
-		sb.append(instr);
+		sb.append(instr, startingPoint, instr.length());
     	return sb.toString();
 	}
 
+    /**
+     * Decrypts all the encrypted values of an attribute map, a value repeated in the map
+     * (the same secured variable in several attributes) is decrypted once.
+     *
+     * @param values the attribute values by attribute name
+     * @return the decrypted values of the encrypted attributes by attribute name
+     * @throws java.security.GeneralSecurityException if one of the values can not be decrypted
+     */
+    @Override
+    public Map<String, String> decryptAll(Map<String, String> values) throws GeneralSecurityException {
+        Map<String, String> result = new HashMap<>();
+        Map<String, String> decrypted = new HashMap<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String val = entry.getValue();
+            if (val == null) {
+                continue;
+            }
+            try {
+                if (val.startsWith(ENC_PREFIX)) {
+                    result.put(entry.getKey(), decrypt(val, decrypted));
+                } else if (val.contains(ENC_VAR_PREFIX)) {
+                    result.put(entry.getKey(), decryptVars(val, decrypted));
+                }
+            } catch (GeneralSecurityException e) {
+                throw new GeneralSecurityException("Error decrypting attribute " + entry.getKey(), e);
+            }
+        }
+        return result;
+    }
+
 
-    private String decryptStr(String instr) throws GeneralSecurityException {
+    private String decryptStr(String instr, Map<String, String> decrypted) throws GeneralSecurityException {
         if(StringUtils.isEmpty(instr)){
             return instr;
         }
-        long t1 = System.currentTimeMillis();
-        PaddedBufferedBlockCipher decryptor = new PaddedBufferedBlockCipher(
-                new CBCBlockCipher(new DESedeEngine()));
-        decryptor.init(false, keyParameter);
-        byte[] in = null;
-        byte[] cipherText = null;
+        String result = decrypted == null ? null : decrypted.get(instr);
+        if (result == null) {
+            result = decryptStr(instr);
+            if (decrypted != null) {
+                decrypted.put(instr, result);
+            }
+        }
+        return result;
+    }
 
+    private String decryptStr(String instr) throws GeneralSecurityException {
+        long t1 = System.currentTimeMillis();
+        CmsCryptoKey key;
+        String hex;
+        if (instr.startsWith(V2_PREFIX)) {
+            String[] parts = instr.split(":", 4);
+            if (parts.length < 4) {
+                throw new GeneralSecurityException("Malformed encrypted value");
+            }
+            key = getKey(parts[1]);
+            if (!key.getAlgorithm().equals(parts[2])) {
+                throw new GeneralSecurityException("Key " + parts[1] + " is a " + key.getAlgorithm() + " key, the value is " + parts[2]);
+            }
+            hex = parts[3];
+        } else {
+            key = getKey(LEGACY_KEY_ID);
+            hex = instr;
+        }
+        byte[] plain;
         try {
-        	in = Hex.decode(instr);
-        	cipherText = new byte[decryptor.getOutputSize(in.length)];
-
-	        int outputLen = decryptor.processBytes(in, 0, in.length, cipherText, 0);
-            decryptor.doFinal(cipherText, outputLen);
+            plain = key.decrypt(Hex.decode(hex));
+        } catch (GeneralSecurityException e) {
+            throw e;
         } catch (Exception e) {
             throw new GeneralSecurityException(e);
         }
         long t2 = System.currentTimeMillis();
         logger.debug("Time taken to decrypt(millis) : " + (t2 - t1));
-        return (new String(cipherText)).replaceAll("\\u0000+$", "");
+        // trailing nulls are dropped as the values always were
+        int len = plain.length;
+        while (len > 0 && plain[len - 1] == 0) {
+            len--;
+        }
+        return new String(plain, 0, len);
     }
 
+    private CmsCryptoKey getKey(String keyId) throws GeneralSecurityException {
+        CmsCryptoKey key = keys.get(keyId);
+        if (key == null) {
+            throw new GeneralSecurityException(LEGACY_KEY_ID.equals(keyId) ? "No DES key is loaded" : "Unknown key id " + keyId);
+        }
+        return key;
+    }
 
+    /**
+     * Registers a key to decrypt the values written with it, replacing a key with the same id.
+     *
+     * @param key the key
+     */
+    public void addKey(CmsCryptoKey key) {
+        if (key.getKeyId().contains(":")) {
+            throw new IllegalArgumentException("Key id can not contain ':' " + key.getKeyId());
+        }
+        keys.put(key.getKeyId(), key);
+    }
+
+    /**
+     * Sets the id of the registered key new values are encrypted with, the legacy DES key is "".
+     *
+     * @param encryptKeyId the key id
+     */
+    public void setEncryptKeyId(String encryptKeyId) {
+        if (!keys.containsKey(encryptKeyId)) {
+            throw new IllegalArgumentException("Unknown key id " + encryptKeyId);
+        }
+        this.encryptKeyId = encryptKeyId;
+    }
 
     /**
      * Inits the.
@@ -162,13 +259,34 @@ public class CmsCryptoDES implements CmsCrypto {
 
     private void initEncryptorDecryptor() throws GeneralSecurityException, IOException {
         if (this.secretKeyFile != null) {
-            this.keyParameter = getSecretKeyFromFile();
+            addKey(new CmsCryptoKey(LEGACY_KEY_ID, CmsCryptoKey.DESEDE, getSecretKeyFromFile(secretKeyFile)));
             logger.info(">>>>>>>>>>>>>Successfully read the key file.");
         }
+        String keyList = System.getenv("CMS_CRYPTO_KEYS");
+        if (keyList == null) {
+            keyList = System.getProperty("com.kloopz.crypto.cms_keys");
+        }
+        if (StringUtils.isNotBlank(keyList)) {
+            for (String keyDef : keyList.split(",")) {
+                String[] parts = keyDef.trim().split(":", 3);
+                if (parts.length < 3) {
+                    throw new GeneralSecurityException("Bad key definition " + keyDef + ", expected keyId:algorithm:keyFile");
+                }
+                addKey(new CmsCryptoKey(parts[0], parts[1], getSecretKeyFromFile(parts[2])));
+                logger.info(">>>>>>>>>>>>>Successfully read the key file for key " + parts[0]);
+            }
+        }
+        String encryptKey = System.getenv("CMS_CRYPTO_ENCRYPT_KEY");
+        if (encryptKey == null) {
+            encryptKey = System.getProperty("com.kloopz.crypto.cms_encrypt_key");
+        }
+        if (encryptKey != null) {
+            setEncryptKeyId(encryptKey);
+        }
     }
 
 
-    private KeyParameter getSecretKeyFromFile() throws IOException, GeneralSecurityException {
+    private static byte[] getSecretKeyFromFile(String secretKeyFile) throws IOException, GeneralSecurityException {
         BufferedInputStream keystream =
                 new BufferedInputStream(new FileInputStream(secretKeyFile));
         int len = keystream.available();
@@ -179,7 +297,7 @@ public class CmsCryptoDES implements CmsCrypto {
         byte[] keyhex = new byte[len];
         keystream.read(keyhex, 0, len);
         keystream.close();
-        return new KeyParameter(Hex.decode(keyhex));
+        return Hex.decode(keyhex);
     }
 
     /**
@@ -203,6 +321,20 @@ public class CmsCryptoDES implements CmsCrypto {
         keystream.close();
     }
 
+    /**
+     * Generate an AES key for an aesgcm key of CMS_CRYPTO_KEYS.
+     *
+     * @param file the file
+     * @throws java.io.IOException Signals that an I/O exception has occurred.
+     */
+    public static void generateAESKey(String file) throws IOException {
+        byte[] key = new byte[AES_KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        try (BufferedOutputStream keystream = new BufferedOutputStream(new FileOutputStream(file))) {
+            keystream.write(Hex.encode(key));
+        }
+    }
+
     /**
      * The main method.
      *
@@ -210,16 +342,21 @@ public class CmsCryptoDES implements CmsCrypto {
      */
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.err.println("Usage: java " + CmsCryptoDES.class.getName() + " keyfile");
+            System.err.println("Usage: java " + CmsCryptoDES.class.getName() + " keyfile [desede|aesgcm]");
             System.exit(1);
         }
+        boolean aes = args.length > 1 && CmsCryptoKey.AES_GCM.equals(args[1]);
 
-        System.out.println("Generate DES key file");
+        System.out.println(aes ? "Generate AES key file" : "Generate DES key file");
 
         Security.addProvider(new BouncyCastleProvider());
         try {
-            CmsCryptoDES.generateDESKey(args[0]);
-            System.out.println("DES key generated successfully.");
+            if (aes) {
+                CmsCryptoDES.generateAESKey(args[0]);
+            } else {
+                CmsCryptoDES.generateDESKey(args[0]);
+            }
+            System.out.println((aes ? "AES" : "DES") + " key generated successfully.");
         } catch (Exception e) {
             e.printStackTrace();
         }
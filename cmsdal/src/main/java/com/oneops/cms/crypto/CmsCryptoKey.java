@@ -0,0 +1,150 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.cms.crypto;
+
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * A cms encryption key with the ciphers of the threads using it.
+ * The DESede ciphers are initialized once per thread and reused, doFinal resets them for the next value.
+ */
+public class CmsCryptoKey {
+
+    public static final String DESEDE = "desede";
+    public static final String AES_GCM = "aesgcm";
+
+    private static final int GCM_NONCE_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String keyId;
+    private final String algorithm;
+    private final KeyParameter keyParameter;
+
+    private final ThreadLocal<BufferedBlockCipher> encryptors;
+    private final ThreadLocal<BufferedBlockCipher> decryptors;
+    private final ThreadLocal<GCMBlockCipher> gcmCiphers = ThreadLocal.withInitial(() -> new GCMBlockCipher(new AESFastEngine()));
+
+    /**
+     * Instantiates a new key.
+     *
+     * @param keyId the key id, written with the values encrypted with a registered key
+     * @param algorithm desede or aesgcm
+     * @param key the key bytes
+     */
+    public CmsCryptoKey(String keyId, String algorithm, byte[] key) {
+        if (!DESEDE.equals(algorithm) && !AES_GCM.equals(algorithm)) {
+            throw new IllegalArgumentException("Unsupported algorithm " + algorithm + " for key " + keyId);
+        }
+        this.keyId = keyId;
+        this.algorithm = algorithm;
+        this.keyParameter = new KeyParameter(key);
+        this.encryptors = ThreadLocal.withInitial(() -> newDESedeCipher(true));
+        this.decryptors = ThreadLocal.withInitial(() -> newDESedeCipher(false));
+    }
+
+    private BufferedBlockCipher newDESedeCipher(boolean forEncryption) {
+        PaddedBufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new DESedeEngine()));
+        cipher.init(forEncryption, keyParameter);
+        return cipher;
+    }
+
+    public String getKeyId() {
+        return keyId;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Encrypts the bytes, an aesgcm result starts with the random nonce.
+     *
+     * @param in the plain bytes
+     * @return the encrypted bytes
+     * @throws GeneralSecurityException the general security exception
+     */
+    public byte[] encrypt(byte[] in) throws GeneralSecurityException {
+        if (AES_GCM.equals(algorithm)) {
+            byte[] nonce = new byte[GCM_NONCE_LENGTH];
+            random.nextBytes(nonce);
+            GCMBlockCipher cipher = gcmCiphers.get();
+            cipher.init(true, new AEADParameters(keyParameter, GCM_TAG_BITS, nonce, null));
+            byte[] out = new byte[GCM_NONCE_LENGTH + cipher.getOutputSize(in.length)];
+            System.arraycopy(nonce, 0, out, 0, GCM_NONCE_LENGTH);
+            return process(cipher, in, 0, in.length, out, GCM_NONCE_LENGTH);
+        }
+        BufferedBlockCipher cipher = encryptors.get();
+        return process(cipher, in, 0, in.length, new byte[cipher.getOutputSize(in.length)], 0);
+    }
+
+    /**
+     * Decrypts the bytes.
+     *
+     * @param in the encrypted bytes
+     * @return the plain bytes
+     * @throws GeneralSecurityException if the value can not be decrypted with this key
+     */
+    public byte[] decrypt(byte[] in) throws GeneralSecurityException {
+        if (AES_GCM.equals(algorithm)) {
+            if (in.length < GCM_NONCE_LENGTH) {
+                throw new GeneralSecurityException("Value too short for " + algorithm + " key " + keyId);
+            }
+            GCMBlockCipher cipher = gcmCiphers.get();
+            cipher.init(false, new AEADParameters(keyParameter, GCM_TAG_BITS, Arrays.copyOf(in, GCM_NONCE_LENGTH), null));
+            int len = in.length - GCM_NONCE_LENGTH;
+            return process(cipher, in, GCM_NONCE_LENGTH, len, new byte[cipher.getOutputSize(len)], 0);
+        }
+        BufferedBlockCipher cipher = decryptors.get();
+        return process(cipher, in, 0, in.length, new byte[cipher.getOutputSize(in.length)], 0);
+    }
+
+    private static byte[] process(BufferedBlockCipher cipher, byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        try {
+            int outputLen = outOff + cipher.processBytes(in, inOff, len, out, outOff);
+            outputLen += cipher.doFinal(out, outputLen);
+            return outputLen == out.length ? out : Arrays.copyOf(out, outputLen);
+        } catch (Exception e) {
+            // a failed value leaves the cipher half way, the next one has to start clean
+            cipher.reset();
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    private static byte[] process(GCMBlockCipher cipher, byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        try {
+            int outputLen = outOff + cipher.processBytes(in, inOff, len, out, outOff);
+            outputLen += cipher.doFinal(out, outputLen);
+            return outputLen == out.length ? out : Arrays.copyOf(out, outputLen);
+        } catch (Exception e) {
+            cipher.reset();
+            throw new GeneralSecurityException(e);
+        }
+    }
+}
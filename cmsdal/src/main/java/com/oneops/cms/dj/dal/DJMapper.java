@@ -80,6 +80,8 @@ public interface DJMapper {
 
   CmsRfcCI getRfcCIById(long rfcId);
 
+  List<CmsRfcCI> getRfcCIByIdList(@Param("rfcIds") List<Long> rfcIds);
+
   CmsRfcCI getOpenRfcCIByCiId(long ciId);
   CmsRfcCI getOpenRfcCIByCiIdNoAttrs(long ciId);
 
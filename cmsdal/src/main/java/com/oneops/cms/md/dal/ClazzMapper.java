@@ -43,11 +43,13 @@ public interface ClazzMapper {
     void deleteClazzAction(int actId);
 
 	List<CmsClazz> getClazzes();
+	List<CmsClazz> getAllClazzes();
 	List<CmsClazz> getClazzesByPackage(String packagePrefix);
 	CmsClazz getClazz(String clazzName);
 	CmsClazz getClazzById(int clazzId);
 	List<CmsClazzAttribute> getClazzAttrs(int clazzId);
 	List<CmsClazzAttribute> getInheritableClazzAttrs(int clazzId);
+	List<CmsClazzAttribute> getAllClazzAttrs();
 	List<CmsClazzRelation> getFromClazzRelations(int classId);
 	List<CmsClazzRelation> getToClazzRelations(int classId);
 	List<String> getSubClazzes(String clsName);
@@ -58,6 +58,8 @@ public interface RelationMapper {
 
     List<CmsRelationAttribute> getRelationAttrs(int relationId);
 
+    List<CmsRelationAttribute> getAllRelationAttrs();
+
     List<CmsClazzRelation> getTargets(int relationId);
 
     List<CmsClazzRelation> getAllTargets();
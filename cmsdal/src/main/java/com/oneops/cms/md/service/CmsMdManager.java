@@ -52,4 +52,5 @@ public interface CmsMdManager {
 	List<CmsRelation> getAllRelations();
 	List<String> getSubClazzes(String clsName);
 	void invalidateCache();
+	void refreshCache();
 }
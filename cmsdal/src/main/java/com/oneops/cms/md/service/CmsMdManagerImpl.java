@@ -289,4 +289,9 @@ public class CmsMdManagerImpl implements CmsMdManager {
 		mdProcessor.invalidateCache();
 	}
 
+	@Override
+	public void refreshCache() {
+		mdProcessor.refreshCache();
+	}
+
 }
@@ -31,7 +31,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 import javax.annotation.PostConstruct;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toMap;
@@ -50,11 +53,16 @@ public class CmsMdProcessor {
 
     static final Logger logger = Logger.getLogger(CmsMdProcessor.class);
     private final AttrComparator attrComparator = new AttrComparator();
-    final private Map<String, CmsClazz> mdClazzCache = new ConcurrentHashMap<>();
-    final private Map<Integer, CmsClazz> mdClazzCacheById = new ConcurrentHashMap<>();
-    final private Map<String, CmsRelation> mdRelationCache = new ConcurrentHashMap<>();
-    final private Map<Long, CmsRelation> mdRelationCacheById = new ConcurrentHashMap<>();
-    final private Map<Integer, List<CmsClazzRelation>> clazzRelCache = new ConcurrentHashMap<>();
+    // readers keep the snapshot they got while a new one is built, it is swapped in as a whole
+    final private AtomicReference<CmsMdSnapshot> snapshot = new AtomicReference<>();
+    final private AtomicLong reloadRequests = new AtomicLong();
+    // the latest reload request covered by the current snapshot, guarded by this
+    private long loadedRequest;
+    final private ExecutorService reloader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "md-snapshot-reloader");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     static {
         logger.warn(">>> Initializing CmsMdProcessor");
@@ -66,11 +74,38 @@ public class CmsMdProcessor {
     @PostConstruct
     public void initCache() {
         if (cacheEnabled) {
-            logger.info("Populating class relation target cache...");
-            clazzRelCache.putAll(getAllTargets());
+            logger.info("Loading md snapshot...");
+            try {
+                reloadSnapshot();
+            } catch (RuntimeException e) {
+                logger.error("Could not load the md snapshot, reading md from the db until it is reloaded", e);
+            }
         }
     }
 
+    /**
+     * Loads a new md snapshot and swaps it in.
+     *
+     * @return the new snapshot
+     */
+    public synchronized CmsMdSnapshot reloadSnapshot() {
+        long start = System.currentTimeMillis();
+        CmsMdSnapshot newSnapshot = CmsMdSnapshot.load(clazzMapper, relationMapper);
+        snapshot.set(newSnapshot);
+        logger.info("Loaded md snapshot with " + newSnapshot.getClazzCount() + " classes and " + newSnapshot.getRelationCount()
+                + " relations in " + (System.currentTimeMillis() - start) + " ms");
+        return newSnapshot;
+    }
+
+    /**
+     * Gets the current md snapshot.
+     *
+     * @return the snapshot, null if the cache is disabled or the snapshot could not be loaded yet
+     */
+    public CmsMdSnapshot getSnapshot() {
+        return cacheEnabled ? snapshot.get() : null;
+    }
+
     public boolean isCacheEnabled() {
         return cacheEnabled;
     }
@@ -190,8 +225,9 @@ public class CmsMdProcessor {
      */
     public CmsClazz getClazz(int clazzId, boolean includeActions) {
         CmsClazz clazz;
-        if (cacheEnabled && !includeActions) {
-            clazz = mdClazzCacheById.get(clazzId);
+        CmsMdSnapshot md = getSnapshot();
+        if (md != null && !includeActions) {
+            clazz = md.getClazz(clazzId);
             if (clazz != null) {
                 return clazz;
             }
@@ -206,11 +242,6 @@ public class CmsMdProcessor {
         clazz.setToRelations(clazzMapper.getToClazzRelations(clazz.getClassId()));
         if (includeActions) {
             clazz.setActions(getAllClazzActions(clazz, false));
-        } else {
-            if (cacheEnabled) {
-                mdClazzCacheById.put(clazz.getClassId(), clazz);
-                mdClazzCache.put(clazz.getClassName(), clazz);
-            }
         }
         return clazz;
     }
@@ -225,8 +256,9 @@ public class CmsMdProcessor {
      */
     public CmsClazz getClazz(String clazzName, boolean includeActions) {
         CmsClazz clazz;
-        if (cacheEnabled && !includeActions) {
-            clazz = mdClazzCache.get(clazzName);
+        CmsMdSnapshot md = getSnapshot();
+        if (md != null && !includeActions) {
+            clazz = md.getClazz(clazzName);
             if (clazz != null) {
                 return clazz;
             }
@@ -244,11 +276,6 @@ public class CmsMdProcessor {
         clazz.setToRelations(clazzMapper.getToClazzRelations(clazz.getClassId()));
         if (includeActions) {
             clazz.setActions(getAllClazzActions(clazz, false));
-        } else {
-            if (cacheEnabled) {
-                mdClazzCache.put(clazzName, clazz);
-                mdClazzCacheById.put(clazz.getClassId(), clazz);
-            }
         }
 
         return clazz;
@@ -363,7 +390,12 @@ public class CmsMdProcessor {
      * @return the relation with targets
      */
     public CmsRelation getRelationWithTargets(String relationName) {
-        CmsRelation relation = relationMapper.getRelation(relationName);
+        CmsMdSnapshot md = getSnapshot();
+        CmsRelation relation = md == null ? null : md.getRelationWithTargets(relationName);
+        if (relation != null) {
+            return relation;
+        }
+        relation = relationMapper.getRelation(relationName);
         if (relation != null) {
             relation.setMdAttributes(relationMapper.getRelationAttrs(relation.getRelationId()));
             relation.setTargets(relationMapper.getTargets(relation.getRelationId()));
@@ -380,7 +412,12 @@ public class CmsMdProcessor {
      * @return the relation with targets
      */
     public CmsRelation getRelationWithTargets(String relationName, int fromClassId, int toClassId) {
-        CmsRelation relation = relationMapper.getRelation(relationName);
+        CmsMdSnapshot md = getSnapshot();
+        CmsRelation relation = md == null ? null : md.getRelationWithTargets(relationName, fromClassId, toClassId);
+        if (relation != null) {
+            return relation;
+        }
+        relation = relationMapper.getRelation(relationName);
         if (relation != null) {
             relation.setMdAttributes(relationMapper.getRelationAttrs(relation.getRelationId()));
             relation.setTargets(relationMapper.getTargetsStrict(relation.getRelationId(), fromClassId, toClassId));
@@ -397,22 +434,17 @@ public class CmsMdProcessor {
      */
     public CmsRelation getRelation(String relationName) {
         CmsRelation relation;
-        if (cacheEnabled) {
-            relation = mdRelationCache.get(relationName);
+        CmsMdSnapshot md = getSnapshot();
+        if (md != null) {
+            relation = md.getRelation(relationName);
             if (relation != null) {
                 return relation;
             }
         }
 
         relation = relationMapper.getRelation(relationName);
-        // Skip cache if relation is null.
         if (relation != null) {
             relation.setMdAttributes(relationMapper.getRelationAttrs(relation.getRelationId()));
-            if (cacheEnabled) {
-                mdRelationCache.put(relationName, relation);
-                Integer relId = relation.getRelationId();
-                mdRelationCacheById.put(relId.longValue(), relation);
-            }
         }
         return relation;
     }
@@ -425,22 +457,17 @@ public class CmsMdProcessor {
      */
     public CmsRelation getRelation(long relationId) {
         CmsRelation relation;
-        if (cacheEnabled) {
-            relation = mdRelationCacheById.get(relationId);
+        CmsMdSnapshot md = getSnapshot();
+        if (md != null) {
+            relation = md.getRelation(relationId);
             if (relation != null) {
                 return relation;
             }
         }
 
         relation = relationMapper.getRelationById(relationId);
-        // Skip cache if relation is null.
         if (relation != null) {
             relation.setMdAttributes(relationMapper.getRelationAttrs(relation.getRelationId()));
-            if (cacheEnabled) {
-                Integer relId = relation.getRelationId();
-                mdRelationCacheById.put(relId.longValue(), relation);
-                mdRelationCache.put(relation.getRelationName(), relation);
-            }
         }
         return relation;
     }
@@ -453,9 +480,9 @@ public class CmsMdProcessor {
      * @return the targets
      */
     public List<CmsClazzRelation> getTargets(int relationId) {
-        if (cacheEnabled) {
-            // Fallback to relationMapper if not exists in cache.
-            return clazzRelCache.computeIfAbsent(relationId, (r) -> relationMapper.getTargets(r));
+        CmsMdSnapshot md = getSnapshot();
+        if (md != null && md.getRelation(relationId) != null) {
+            return md.getTargets(relationId);
         }
         return relationMapper.getTargets(relationId);
     }
@@ -559,7 +586,8 @@ public class CmsMdProcessor {
         }
         clazzMapper.updateClazz(clazz);
 
-        List<CmsClazzAttribute> existingAttributes = existingClazz.getMdAttributes();
+        // the existing clazz can come from the md snapshot, work on copies
+        List<CmsClazzAttribute> existingAttributes = new ArrayList<>(existingClazz.getMdAttributes());
         for (CmsClazzAttribute updAttr : clazz.getMdAttributes()) {
             updAttr.setClassId((existingClazz.getClassId()));
             CmsClazzAttribute existingAttr = getAttribute(updAttr, existingAttributes);
@@ -585,7 +613,7 @@ public class CmsMdProcessor {
             }
         }
 
-        List<CmsClazzAction> existingActions = existingClazz.getActions();
+        List<CmsClazzAction> existingActions = new ArrayList<>(existingClazz.getActions());
         for (CmsClazzAction updAct : clazz.getActions()) {
             updAct.setClassId((existingClazz.getClassId()));
             CmsClazzAction existingAct = getAction(updAct, existingActions);
@@ -749,7 +777,8 @@ public class CmsMdProcessor {
         }
         relationMapper.updateRelation(relation);
 
-        List<CmsRelationAttribute> existingAttributes = existingRelation.getMdAttributes();
+        // the existing relation can come from the md snapshot, work on a copy
+        List<CmsRelationAttribute> existingAttributes = new ArrayList<>(existingRelation.getMdAttributes());
         for (CmsRelationAttribute updAttr : relation.getMdAttributes()) {
             updAttr.setRelationId((existingRelation.getRelationId()));
             CmsRelationAttribute existingAttr = getAttribute(updAttr, existingAttributes);
@@ -862,14 +891,45 @@ public class CmsMdProcessor {
         return classes;
     }
 
+    /**
+     * Reloads the md snapshot before returning, for explicit flushes and md updates that have to be seen by the
+     * caller. Callers that come in while a reload is running wait for it and reload again if it started before them.
+     *
+     * @throws RuntimeException if the snapshot could not be reloaded, the current one is kept
+     */
     public void invalidateCache() {
-        this.mdClazzCache.clear();
-        this.mdClazzCacheById.clear();
-        this.mdRelationCache.clear();
-        this.mdRelationCacheById.clear();
-        // Clear and init cache.
-        this.clazzRelCache.clear();
-        initCache();
+        if (!cacheEnabled) {
+            return;
+        }
+        reload(reloadRequests.incrementAndGet());
+    }
+
+    /**
+     * Reloads the md snapshot in the background, the current one is used until the new one is loaded.
+     * Requests that come in while a reload is queued are served by the queued reload.
+     */
+    public void refreshCache() {
+        if (!cacheEnabled) {
+            return;
+        }
+        long request = reloadRequests.incrementAndGet();
+        reloader.execute(() -> {
+            try {
+                reload(request);
+            } catch (RuntimeException e) {
+                logger.error("Could not reload the md snapshot, keeping the current one", e);
+            }
+        });
+    }
+
+    private synchronized void reload(long request) {
+        if (request <= loadedRequest) {
+            // a reload that started after this request already loaded the md
+            return;
+        }
+        long latest = reloadRequests.get();
+        reloadSnapshot();
+        loadedRequest = latest;
     }
 
 }
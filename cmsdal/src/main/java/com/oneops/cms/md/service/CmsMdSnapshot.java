@@ -0,0 +1,299 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.cms.md.service;
+
+import com.oneops.cms.md.dal.ClazzMapper;
+import com.oneops.cms.md.dal.RelationMapper;
+import com.oneops.cms.md.domain.*;
+import org.apache.commons.lang3.SerializationUtils;
+
+import java.util.*;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Immutable copy of the metadata: the classes with their resolved attributes and class relations,
+ * the relations with their attributes and targets, the inheritance chains and the allowed relation
+ * targets, indexed for the lookups of the CmsMdProcessor.
+ * It is loaded with a fixed number of queries and replaced as a whole, the objects it hands out are
+ * shared between the readers and have to be treated as read only.
+ */
+public final class CmsMdSnapshot {
+
+    // md class the relation targets use as a wildcard
+    private static final int ANY_CLASS_ID = 200;
+
+    private final long loaded = System.currentTimeMillis();
+    private final Map<Integer, CmsClazz> clazzById = new HashMap<>();
+    private final Map<String, CmsClazz> clazzByName = new HashMap<>();
+    private final Map<Integer, List<Integer>> superClassIds = new HashMap<>();
+    private final Map<Integer, CmsRelation> relationById = new HashMap<>();
+    private final Map<String, CmsRelation> relationByName = new HashMap<>();
+    private final Map<Integer, List<CmsClazzRelation>> targetsByRelation = new HashMap<>();
+    private final Map<Integer, Map<Long, List<CmsClazzRelation>>> targetsByLink = new HashMap<>();
+
+    CmsMdSnapshot(List<CmsClazz> clazzes, List<CmsClazzAttribute> clazzAttrs, List<CmsRelation> relations,
+                  List<CmsRelationAttribute> relationAttrs, List<CmsClazzRelation> targets) {
+        indexTargets(targets);
+        indexRelations(relations, relationAttrs);
+        indexClazzes(clazzes, clazzAttrs, targets);
+    }
+
+    /**
+     * Loads the snapshot, five queries whatever the size of the metadata.
+     *
+     * @param clazzMapper    the clazz mapper
+     * @param relationMapper the relation mapper
+     * @return the snapshot
+     */
+    public static CmsMdSnapshot load(ClazzMapper clazzMapper, RelationMapper relationMapper) {
+        return new CmsMdSnapshot(clazzMapper.getAllClazzes(), clazzMapper.getAllClazzAttrs(),
+                relationMapper.getAllRelations(), relationMapper.getAllRelationAttrs(), relationMapper.getAllTargets());
+    }
+
+    private static long link(int fromClassId, int toClassId) {
+        return ((long) fromClassId << 32) | (toClassId & 0xffffffffL);
+    }
+
+    private void indexTargets(List<CmsClazzRelation> targets) {
+        for (CmsClazzRelation target : targets) {
+            targetsByRelation.computeIfAbsent(target.getRelationId(), k -> new ArrayList<>()).add(target);
+            targetsByLink.computeIfAbsent(target.getRelationId(), k -> new HashMap<>())
+                    .computeIfAbsent(link(target.getFromClassId(), target.getToClassId()), k -> new ArrayList<>())
+                    .add(target);
+        }
+        targetsByRelation.replaceAll((relationId, list) -> unmodifiableList(list));
+    }
+
+    private void indexRelations(List<CmsRelation> relations, List<CmsRelationAttribute> relationAttrs) {
+        Map<Integer, List<CmsRelationAttribute>> attrs = new HashMap<>();
+        for (CmsRelationAttribute attr : relationAttrs) {
+            attrs.computeIfAbsent(attr.getRelationId(), k -> new ArrayList<>()).add(attr);
+        }
+        for (CmsRelation relation : relations) {
+            List<CmsRelationAttribute> relAttrs = attrs.get(relation.getRelationId());
+            relation.setMdAttributes(relAttrs == null ? emptyList() : unmodifiableList(relAttrs));
+            relation.setTargets(emptyList());
+            relationById.put(relation.getRelationId(), relation);
+            relationByName.put(relation.getRelationName(), relation);
+        }
+    }
+
+    private void indexClazzes(List<CmsClazz> clazzes, List<CmsClazzAttribute> clazzAttrs, List<CmsClazzRelation> targets) {
+        for (CmsClazz clazz : clazzes) {
+            clazzById.put(clazz.getClassId(), clazz);
+        }
+
+        Map<Integer, List<CmsClazzAttribute>> attrs = new HashMap<>();
+        for (CmsClazzAttribute attr : clazzAttrs) {
+            attrs.computeIfAbsent(attr.getClassId(), k -> new ArrayList<>()).add(attr);
+        }
+        Map<Integer, List<CmsClazzRelation>> fromRelations = new HashMap<>();
+        Map<Integer, List<CmsClazzRelation>> toRelations = new HashMap<>();
+        for (CmsClazzRelation target : targets) {
+            fromRelations.computeIfAbsent(target.getFromClassId(), k -> new ArrayList<>()).add(target);
+            toRelations.computeIfAbsent(target.getToClassId(), k -> new ArrayList<>()).add(target);
+        }
+
+        Map<Integer, Map<String, CmsClazzAttribute>> inheritable = new HashMap<>();
+        for (CmsClazz clazz : clazzes) {
+            List<Integer> chain = new ArrayList<>();
+            for (CmsClazz superClazz = superClazz(clazz); superClazz != null && !chain.contains(superClazz.getClassId())
+                    && superClazz.getClassId() != clazz.getClassId(); superClazz = superClazz(superClazz)) {
+                chain.add(superClazz.getClassId());
+            }
+            superClassIds.put(clazz.getClassId(), unmodifiableList(chain));
+            if (!chain.isEmpty() && clazz.getSuperClassName() == null) {
+                clazz.setSuperClassName(clazzById.get(chain.get(0)).getClassName());
+            }
+
+            Map<String, CmsClazzAttribute> clazzAttrMap = new HashMap<>();
+            for (CmsClazzAttribute attr : attrs.getOrDefault(clazz.getClassId(), emptyList())) {
+                attr.setInherited(false);
+                clazzAttrMap.put(attr.getAttributeName(), attr);
+            }
+            if (!chain.isEmpty()) {
+                for (CmsClazzAttribute attr : inheritableAttrs(chain, 0, attrs, inheritable).values()) {
+                    clazzAttrMap.putIfAbsent(attr.getAttributeName(), attr);
+                }
+            }
+            List<CmsClazzAttribute> mdAttributes = new ArrayList<>(clazzAttrMap.values());
+            mdAttributes.sort((a1, a2) -> a1.getAttributeName().compareToIgnoreCase(a2.getAttributeName()));
+            clazz.setMdAttributes(unmodifiableList(mdAttributes));
+            clazz.setFromRelations(unmodifiableList(fromRelations.getOrDefault(clazz.getClassId(), new ArrayList<>())));
+            clazz.setToRelations(unmodifiableList(toRelations.getOrDefault(clazz.getClassId(), new ArrayList<>())));
+            clazz.setActions(emptyList());
+            clazzByName.put(clazz.getClassName(), clazz);
+        }
+    }
+
+    private CmsClazz superClazz(CmsClazz clazz) {
+        return clazz.getSuperClassId() > 0 ? clazzById.get(clazz.getSuperClassId()) : null;
+    }
+
+    /**
+     * The inheritable attributes a class gets from chain[index] and its super classes, the closest class wins.
+     */
+    private Map<String, CmsClazzAttribute> inheritableAttrs(List<Integer> chain, int index,
+                                                            Map<Integer, List<CmsClazzAttribute>> attrs,
+                                                            Map<Integer, Map<String, CmsClazzAttribute>> inheritable) {
+        int classId = chain.get(index);
+        Map<String, CmsClazzAttribute> result = inheritable.get(classId);
+        if (result != null) {
+            return result;
+        }
+        result = new HashMap<>();
+        String className = clazzById.get(classId).getClassName();
+        for (CmsClazzAttribute attr : attrs.getOrDefault(classId, emptyList())) {
+            if (attr.getIsInheritable()) {
+                CmsClazzAttribute inherited = SerializationUtils.clone(attr);
+                inherited.setInherited(true);
+                inherited.setInheritedFrom(className);
+                result.put(inherited.getAttributeName(), inherited);
+            }
+        }
+        if (index + 1 < chain.size()) {
+            for (CmsClazzAttribute attr : inheritableAttrs(chain, index + 1, attrs, inheritable).values()) {
+                result.putIfAbsent(attr.getAttributeName(), attr);
+            }
+        }
+        inheritable.put(classId, result);
+        return result;
+    }
+
+    public long getLoaded() {
+        return loaded;
+    }
+
+    public int getClazzCount() {
+        return clazzById.size();
+    }
+
+    public int getRelationCount() {
+        return relationById.size();
+    }
+
+    public CmsClazz getClazz(int clazzId) {
+        return clazzById.get(clazzId);
+    }
+
+    public CmsClazz getClazz(String clazzName) {
+        return clazzByName.get(clazzName);
+    }
+
+    /**
+     * Gets the super class ids of the class, the direct super class first.
+     *
+     * @param clazzId the clazz id
+     * @return the super class ids, null if the class is not in the snapshot
+     */
+    public List<Integer> getSuperClassIds(int clazzId) {
+        return superClassIds.get(clazzId);
+    }
+
+    public CmsRelation getRelation(long relationId) {
+        return relationId > Integer.MAX_VALUE ? null : relationById.get((int) relationId);
+    }
+
+    public CmsRelation getRelation(String relationName) {
+        return relationByName.get(relationName);
+    }
+
+    /**
+     * Gets the targets of the relation.
+     *
+     * @param relationId the relation id
+     * @return the targets
+     */
+    public List<CmsClazzRelation> getTargets(int relationId) {
+        return targetsByRelation.getOrDefault(relationId, emptyList());
+    }
+
+    /**
+     * Gets the relation with all its targets.
+     *
+     * @param relationName the relation name
+     * @return a copy of the relation with the targets or null if the relation is not in the snapshot
+     */
+    public CmsRelation getRelationWithTargets(String relationName) {
+        CmsRelation relation = relationByName.get(relationName);
+        return relation == null ? null : copy(relation, new ArrayList<>(getTargets(relation.getRelationId())));
+    }
+
+    /**
+     * Gets the relation with the targets allowed between the classes, the targets to or from
+     * the wildcard class count too. The target class names are the ones of the given classes.
+     *
+     * @param relationName the relation name
+     * @param fromClassId  the from class id
+     * @param toClassId    the to class id
+     * @return a copy of the relation with the targets or null if the relation is not in the snapshot
+     */
+    public CmsRelation getRelationWithTargets(String relationName, int fromClassId, int toClassId) {
+        CmsRelation relation = relationByName.get(relationName);
+        if (relation == null) {
+            return null;
+        }
+        List<CmsClazzRelation> result = new ArrayList<>();
+        CmsClazz fromClazz = clazzById.get(fromClassId);
+        CmsClazz toClazz = clazzById.get(toClassId);
+        Map<Long, List<CmsClazzRelation>> links = targetsByLink.get(relation.getRelationId());
+        if (fromClazz != null && toClazz != null && links != null) {
+            Set<Long> keys = new LinkedHashSet<>(Arrays.asList(link(fromClassId, toClassId), link(fromClassId, ANY_CLASS_ID),
+                    link(ANY_CLASS_ID, toClassId), link(ANY_CLASS_ID, ANY_CLASS_ID)));
+            for (Long key : keys) {
+                for (CmsClazzRelation target : links.getOrDefault(key, emptyList())) {
+                    CmsClazzRelation strict = copy(target);
+                    strict.setFromClassName(fromClazz.getClassName());
+                    strict.setToClassName(toClazz.getClassName());
+                    result.add(strict);
+                }
+            }
+        }
+        return copy(relation, result);
+    }
+
+    private static CmsRelation copy(CmsRelation relation, List<CmsClazzRelation> targets) {
+        CmsRelation copy = new CmsRelation();
+        copy.setRelationId(relation.getRelationId());
+        copy.setRelationName(relation.getRelationName());
+        copy.setShortRelationName(relation.getShortRelationName());
+        copy.setDescription(relation.getDescription());
+        copy.setCreated(relation.getCreated());
+        copy.setMdAttributes(new ArrayList<>(relation.getMdAttributes()));
+        copy.setTargets(targets);
+        return copy;
+    }
+
+    private static CmsClazzRelation copy(CmsClazzRelation target) {
+        CmsClazzRelation copy = new CmsClazzRelation();
+        copy.setLinkId(target.getLinkId());
+        copy.setFromClassId(target.getFromClassId());
+        copy.setFromClassName(target.getFromClassName());
+        copy.setRelationId(target.getRelationId());
+        copy.setRelationName(target.getRelationName());
+        copy.setToClassId(target.getToClassId());
+        copy.setToClassName(target.getToClassName());
+        copy.setIsStrong(target.getIsStrong());
+        copy.setLinkType(target.getLinkType());
+        copy.setDescription(target.getDescription());
+        copy.setCreated(target.getCreated());
+        return copy;
+    }
+}
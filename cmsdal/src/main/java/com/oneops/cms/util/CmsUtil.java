@@ -54,6 +54,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.lang3.StringUtils;
@@ -99,6 +100,12 @@ public class CmsUtil {
 
 
     private int countOfErrorsToReport = Integer.valueOf(System.getProperty("cms.countOfErrorsToReport", "10"));
+    private boolean varTemplates = Boolean.valueOf(System.getProperty("cms.varTemplates", "true"));
+    private int varTemplateCacheSize = Integer.valueOf(System.getProperty("cms.varTemplateCacheSize", "10000"));
+    //compiled attribute values, the decrypted values of the secured attributes are never cached
+    private final Map<String, VarTemplate> varTemplateCache = new ConcurrentHashMap<>();
+    //the regexes of the variable references, still used for the vars referenced from the var values
+    private final Map<String, Pattern> varPatternCache = new ConcurrentHashMap<>();
 
     public static String likefyNsPath(String queryParam) {
 		if (queryParam.endsWith("/")) {
@@ -1151,10 +1158,16 @@ public class CmsUtil {
             ec.invokeChecked(() ->
             {
                 vContext.setAttrName(manifestAttr.getAttributeName());
-                vContext.setUnresolvedAttrValue(manifestAttr.getDjValue());
+                String djValue = manifestAttr.getDjValue();
+                vContext.setUnresolvedAttrValue(djValue);
                 manifestAttr.setDjValue(processAllVarsForString(vContext));
-                vContext.setUnresolvedAttrValue(manifestAttr.getDfValue());
-                manifestAttr.setDfValue(processAllVarsForString(vContext));
+                //mostly the same value, no need to decrypt and resolve it twice
+                if (djValue != null && djValue.equals(manifestAttr.getDfValue())) {
+                    manifestAttr.setDfValue(manifestAttr.getDjValue());
+                } else {
+                    vContext.setUnresolvedAttrValue(manifestAttr.getDfValue());
+                    manifestAttr.setDfValue(processAllVarsForString(vContext));
+                }
             });
         }
         ec.rethrowExceptionIfNeeded();
@@ -1189,15 +1202,7 @@ public class CmsUtil {
         }
 
         if (attrValue != null) {
-            if (isCloudVar(attrValue)) {
-                attrValue = resolve(variableContext, attrValue, CLOUDVARPFX, CLOUDVARRPL);
-            }
-            if (isGlobalVar(attrValue)) {
-                attrValue = resolve(variableContext, attrValue, GLOBALVARPFX, GLOBALVARRPL);
-            }
-            if (isLocalVar(attrValue)) {
-                attrValue = resolve(variableContext, attrValue, LOCALVARPFX, LOCALVARRPL);
-            }
+            attrValue = resolveAllVars(variableContext, attrValue, !isEncrypted);
             if (isEncrypted) {
                 //is resolved value encrypted , dont encrypt again  .
                 if (!cmsCrypto.isVarEncrypted(attrValue)) {
@@ -1220,6 +1225,117 @@ public class CmsUtil {
         return attrValue;
     }
 
+    private String resolveAllVars(VariableContext variableContext, String attrValue, boolean cacheTemplate) {
+        if (!isCloudVar(attrValue) && !isGlobalVar(attrValue) && !isLocalVar(attrValue)) {
+            return attrValue;
+        }
+        if (varTemplates) {
+            VarTemplate template = getVarTemplate(attrValue, cacheTemplate);
+            if (template != null) {
+                String resolvedValue = resolveTemplate(variableContext, template);
+                if (resolvedValue != null) {
+                    return resolvedValue;
+                }
+            }
+        }
+        //the regex replaces, also for the values the template could not resolve so they fail the same way
+        if (isCloudVar(attrValue)) {
+            attrValue = resolve(variableContext, attrValue, CLOUDVARPFX, CLOUDVARRPL);
+        }
+        if (isGlobalVar(attrValue)) {
+            attrValue = resolve(variableContext, attrValue, GLOBALVARPFX, GLOBALVARRPL);
+        }
+        if (isLocalVar(attrValue)) {
+            attrValue = resolve(variableContext, attrValue, LOCALVARPFX, LOCALVARRPL);
+        }
+        return attrValue;
+    }
+
+    private VarTemplate getVarTemplate(String attrValue, boolean cacheTemplate) {
+        if (!cacheTemplate) {
+            return VarTemplate.compile(attrValue);
+        }
+        VarTemplate template = varTemplateCache.get(attrValue);
+        if (template == null) {
+            template = VarTemplate.compile(attrValue);
+            if (template != null) {
+                if (varTemplateCache.size() >= varTemplateCacheSize) {
+                    varTemplateCache.clear();
+                }
+                varTemplateCache.put(attrValue, template);
+            }
+        }
+        return template;
+    }
+
+    private Pattern getVarPattern(String regex) {
+        if (!varTemplates) {
+            return Pattern.compile(regex);
+        }
+        Pattern pattern = varPatternCache.get(regex);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex);
+            if (varPatternCache.size() >= varTemplateCacheSize) {
+                varPatternCache.clear();
+            }
+            varPatternCache.put(regex, pattern);
+        }
+        return pattern;
+    }
+
+    /**
+     * Resolves the variable references of the template in one pass.
+     *
+     * @return the resolved value or null if a variable is missing or does not resolve cleanly
+     */
+    private String resolveTemplate(VariableContext variableContext, VarTemplate template) {
+        String[] values = new String[template.getVarCount()];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = resolveVar(variableContext, template.getName(i), template.getPrefix(i));
+                if (values[i] == null) {
+                    return null;
+                }
+            }
+        } catch (CIValidationException e) {
+            return null;
+        }
+        String resolvedValue = template.render(values);
+        if (isCloudVar(resolvedValue) || isGlobalVar(resolvedValue) || isLocalVar(resolvedValue)) {
+            return null;
+        }
+        return resolvedValue;
+    }
+
+    private String resolveVar(VariableContext variableContext, String varName, String prefix) {
+        String resolvedValue = variableContext.getResolved(varName, prefix);
+        if (resolvedValue == null) {
+            resolvedValue = variableContext.get(varName, prefix);
+            if (resolvedValue == null) {
+                return null;
+            }
+            resolvedValue = resolveNestedVars(variableContext, resolvedValue);
+            if (isLocalVar(resolvedValue) || isGlobalVar(resolvedValue)) {
+                return null;
+            }
+            variableContext.putResolved(varName, prefix, resolvedValue);
+        }
+        return resolvedValue;
+    }
+
+    private String resolveNestedVars(VariableContext variableContext, String resolvedValue) {
+        while (isCloudVar(resolvedValue)) {// ez lookup in Cloud Map
+            resolvedValue = performCloudResolution(variableContext, resolvedValue);
+        }
+        while (isGlobalVar(resolvedValue)) {
+            resolvedValue = performGlobalResolution(variableContext, resolvedValue);
+        }
+        while (isLocalVar(resolvedValue)) {
+            resolvedValue = performLocalResolution(variableContext, resolvedValue);
+        }
+        return resolvedValue;
+    }
+
     private String resolve(VariableContext variableContext, String attrValue, String localvarpfx, String localvarrpl) {
         String resolvedValue;
         String variableToResolve;
@@ -1240,15 +1356,7 @@ public class CmsUtil {
                 check4ValidVariable(variableContext, null, variableToResolve, localvarrpl);
             }
             if (resolvedValue != null) {
-                while (isCloudVar(resolvedValue)) {// ez lookup in Cloud Map
-                    resolvedValue = performCloudResolution(variableContext, resolvedValue);
-                }
-                while (isGlobalVar(resolvedValue)) {
-                    resolvedValue = performGlobalResolution(variableContext, resolvedValue);
-                }
-                while (isLocalVar(resolvedValue)) {
-                    resolvedValue = performLocalResolution(variableContext, resolvedValue);
-                }
+                resolvedValue = resolveNestedVars(variableContext, resolvedValue);
                 attrValue = subVarValue(variableContext, attrValue, resolvedValue, variableToResolve, localvarrpl);
             } else {
                 check4ValidVariable(variableContext, null, variableToResolve, localvarrpl);
@@ -1338,7 +1446,7 @@ public class CmsUtil {
         if (varValue == null) {
             check4ValidVariable(variableContext, varValue, varName, regex);
         }
-        resolvedValue = resolvedValue.replaceAll(regex + varName + "}", Matcher.quoteReplacement(varValue));
+        resolvedValue = getVarPattern(regex + varName + "}").matcher(resolvedValue).replaceAll(Matcher.quoteReplacement(varValue));
         return resolvedValue;
     }
 
@@ -1358,10 +1466,15 @@ public class CmsUtil {
 
         for (CmsRfcAttribute rfcAttr : ci.getAttributes().values()) {
             vContext.setAttrName(rfcAttr.getAttributeName());
-            vContext.setUnresolvedAttrValue(rfcAttr.getNewValue());
+            String newValue = rfcAttr.getNewValue();
+            vContext.setUnresolvedAttrValue(newValue);
             rfcAttr.setNewValue(processAllVarsForString(vContext));
-            vContext.setUnresolvedAttrValue(rfcAttr.getOldValue());
-            rfcAttr.setOldValue(processAllVarsForString(vContext));
+            if (newValue != null && newValue.equals(rfcAttr.getOldValue())) {
+                rfcAttr.setOldValue(rfcAttr.getNewValue());
+            } else {
+                vContext.setUnresolvedAttrValue(rfcAttr.getOldValue());
+                rfcAttr.setOldValue(processAllVarsForString(vContext));
+            }
         }
         if (logger.isDebugEnabled()) {
             StringBuilder sb = new StringBuilder("Processing vars complete for RfcCi [")
@@ -1412,7 +1525,7 @@ public class CmsUtil {
 
         //prefix.$OO_LOCAL{x}.suffix in Dj to-> prefix.RR.suffix
         StringBuilder pattToReplace = new StringBuilder(replPrefix).append(varName).append("\\}");
-        String resAfter = attrValue.replaceAll(pattToReplace.toString(), Matcher.quoteReplacement(resolvedValue));
+        String resAfter = getVarPattern(pattToReplace.toString()).matcher(attrValue).replaceAll(Matcher.quoteReplacement(resolvedValue));
         if (logger.isDebugEnabled()) {
             logger.debug("Resolved value set to :" + resAfter + " in Ci " + ciName);
         }
@@ -1672,6 +1785,14 @@ public class CmsUtil {
             varCi.getAttribute("value").setDfValue(value);
         }
     }
+    public void setVarTemplates(boolean varTemplates) {
+        this.varTemplates = varTemplates;
+    }
+
+    public void setVarTemplateCacheSize(int varTemplateCacheSize) {
+        this.varTemplateCacheSize = varTemplateCacheSize;
+    }
+
     public int getCountOfErrorsToReport() {
         return countOfErrorsToReport;
     }
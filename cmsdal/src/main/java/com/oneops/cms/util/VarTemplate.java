@@ -0,0 +1,116 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.cms.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+import static com.oneops.cms.util.CmsUtil.CLOUDVARPFX;
+import static com.oneops.cms.util.CmsUtil.GLOBALVARPFX;
+import static com.oneops.cms.util.CmsUtil.LOCALVARPFX;
+
+/**
+ * An attribute value split once into literal segments and $OO_CLOUD, $OO_GLOBAL and $OO_LOCAL variable references,
+ * so it can be resolved in one pass instead of a regex replace per variable.
+ * Values that the one pass could resolve differently than the regex replaces do not compile,
+ * a reference without the closing brace or a variable name with a regex or reference character in it.
+ */
+class VarTemplate {
+
+    private static final String[] PREFIXES = {CLOUDVARPFX, GLOBALVARPFX, LOCALVARPFX};
+    private static final String NAME_SPECIAL_CHARS = "$\\.[]{}()*+?^|";
+
+    private final String[] literals;
+    private final String[] prefixes;
+    private final String[] names;
+
+    private VarTemplate(List<String> literals, List<String> prefixes, List<String> names) {
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.prefixes = prefixes.toArray(new String[prefixes.size()]);
+        this.names = names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Compiles the attribute value.
+     *
+     * @param value the attribute value
+     * @return the template or null if the value has to be resolved with the regex replaces
+     */
+    static VarTemplate compile(String value) {
+        List<String> literals = new ArrayList<>();
+        List<String> prefixes = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        int pos = 0;
+        while (true) {
+            int loc = -1;
+            String prefix = null;
+            for (String pfx : PREFIXES) {
+                int i = value.indexOf(pfx, pos);
+                if (i > -1 && (loc == -1 || i < loc)) {
+                    loc = i;
+                    prefix = pfx;
+                }
+            }
+            if (loc == -1) {
+                literals.add(value.substring(pos));
+                return new VarTemplate(literals, prefixes, names);
+            }
+            int nameStart = loc + prefix.length();
+            int end = value.indexOf('}', nameStart);
+            if (end == -1) {
+                return null;
+            }
+            String name = value.substring(nameStart, end);
+            if (StringUtils.containsAny(name, NAME_SPECIAL_CHARS)) {
+                return null;
+            }
+            literals.add(value.substring(pos, loc));
+            prefixes.add(prefix);
+            names.add(name);
+            pos = end + 1;
+        }
+    }
+
+    int getVarCount() {
+        return names.length;
+    }
+
+    String getPrefix(int i) {
+        return prefixes[i];
+    }
+
+    String getName(int i) {
+        return names[i];
+    }
+
+    /**
+     * Puts the literals and the resolved variable values together.
+     *
+     * @param values the resolved values in the order of the references
+     * @return the resolved attribute value
+     */
+    String render(String[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            sb.append(literals[i]).append(values[i]);
+        }
+        return sb.append(literals[names.length]).toString();
+    }
+}
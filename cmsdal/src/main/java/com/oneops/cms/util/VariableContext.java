@@ -19,6 +19,7 @@ package com.oneops.cms.util;
 
 import org.apache.log4j.Logger;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import static com.oneops.cms.util.CmsUtil.*;
@@ -35,6 +36,8 @@ public class VariableContext {
     private final Map<String, String> cloudVars;
     private final Map<String, String> globalVars;
     private final Map<String, String> localVars;
+    //fully resolved variable values by prefix and name, the vars do not change for the life of the context
+    private final Map<String, String> resolvedVars = new HashMap<>();
 
     private static final Logger logger = Logger.getLogger(VariableContext.class);
 
@@ -111,6 +114,14 @@ public class VariableContext {
         this.unresolvedAttrValue = unresolvedAttrValue;
     }
 
+    public String getResolved(String varName, String prefix) {
+        return resolvedVars.get(prefix + varName);
+    }
+
+    public void putResolved(String varName, String prefix, String resolvedValue) {
+        resolvedVars.put(prefix + varName, resolvedValue);
+    }
+
     public String get(String varName, String prefix) {
         String varValue = null;
         if (prefix!=null){
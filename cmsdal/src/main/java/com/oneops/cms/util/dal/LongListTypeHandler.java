@@ -0,0 +1,67 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.cms.util.dal;
+
+import java.sql.Array;
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.ibatis.type.BaseTypeHandler;
+import org.apache.ibatis.type.JdbcType;
+
+/**
+ * Binds a list of ids as a single bigint[] parameter, so an id list query can use
+ * "= ANY(#{ids})" and keep the same statement text whatever the number of ids.
+ */
+public class LongListTypeHandler extends BaseTypeHandler<List<Long>> {
+
+	@Override
+	public void setNonNullParameter(PreparedStatement ps, int i, List<Long> ids, JdbcType jdbcType) throws SQLException {
+		ps.setArray(i, ps.getConnection().createArrayOf("bigint", ids.toArray()));
+	}
+
+	@Override
+	public List<Long> getNullableResult(ResultSet rs, String columnName) throws SQLException {
+		return toList(rs.getArray(columnName));
+	}
+
+	@Override
+	public List<Long> getNullableResult(ResultSet rs, int columnIndex) throws SQLException {
+		return toList(rs.getArray(columnIndex));
+	}
+
+	@Override
+	public List<Long> getNullableResult(CallableStatement cs, int columnIndex) throws SQLException {
+		return toList(cs.getArray(columnIndex));
+	}
+
+	private List<Long> toList(Array array) throws SQLException {
+		if (array == null) {
+			return null;
+		}
+		List<Long> ids = new ArrayList<Long>();
+		for (Object id : (Object[]) array.getArray()) {
+			ids.add(((Number) id).longValue());
+		}
+		return ids;
+	}
+}
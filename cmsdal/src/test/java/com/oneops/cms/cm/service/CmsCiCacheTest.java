@@ -0,0 +1,367 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.cms.cm.service;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.TextMessage;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.gson.Gson;
+import com.oneops.cms.cm.dal.CIMapper;
+import com.oneops.cms.cm.domain.CmsCI;
+import com.oneops.cms.cm.domain.CmsCIAttribute;
+import com.oneops.cms.md.domain.CmsClazz;
+import com.oneops.cms.md.domain.CmsClazzAttribute;
+import com.oneops.cms.md.service.CmsMdProcessor;
+import com.oneops.cms.util.CIValidationResult;
+import com.oneops.cms.util.CmsCmValidator;
+
+/**
+ * Reads and writes go through a CIMapper backed by an in-memory H2 db,
+ * the db is also updated directly the way a deployment would.
+ */
+public class CmsCiCacheTest {
+
+	private static final Logger logger = Logger.getLogger(CmsCiCacheTest.class);
+
+	private static final int CLASS_ID = 1000;
+	private static final int ATTR_SIZE = 1001;
+
+	private Connection conn;
+	private CmsCmProcessor cmProcessor;
+	private CmsCiCache ciCache;
+	private AtomicInteger dbReads = new AtomicInteger();
+
+	@BeforeClass
+	public void setUp() throws SQLException {
+		conn = DriverManager.getConnection("jdbc:h2:mem:cicache;DB_CLOSE_DELAY=-1");
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute("create table cm_ci (ci_id bigint primary key, ci_name varchar(200), ns_path varchar(200), ci_state_id int, comments varchar(200))");
+			stmt.execute("create table cm_ci_attributes (ci_attribute_id bigint primary key, ci_id bigint, attribute_id int, df_attribute_value varchar(200), dj_attribute_value varchar(200))");
+		}
+
+		CIMapper ciMapper = mock(CIMapper.class);
+		when(ciMapper.getCIById(anyLong())).thenAnswer(i -> {
+			List<CmsCI> cis = selectCis(Collections.singletonList((Long) i.getArguments()[0]));
+			return cis.isEmpty() ? null : cis.get(0);
+		});
+		when(ciMapper.getCIByIdList(anyListOf(Long.class))).thenAnswer(i -> selectCis((List<Long>) i.getArguments()[0]));
+		when(ciMapper.getCIAttrsNaked(anyLong())).thenAnswer(i -> selectAttrs(Collections.singletonList((Long) i.getArguments()[0])));
+		when(ciMapper.getCIAttrsNakedByCiIdList(anyListOf(Long.class))).thenAnswer(i -> selectAttrs((List<Long>) i.getArguments()[0]));
+		when(ciMapper.getCiStateId(anyString())).thenReturn(100);
+		doAnswer(i -> {
+			CmsCI ci = (CmsCI) i.getArguments()[0];
+			update("update cm_ci set comments = ?, ci_state_id = ? where ci_id = ?", ci.getComments(), ci.getCiStateId(), ci.getCiId());
+			return null;
+		}).when(ciMapper).updateCI(any(CmsCI.class));
+		doAnswer(i -> {
+			CmsCIAttribute attr = (CmsCIAttribute) i.getArguments()[0];
+			update("update cm_ci_attributes set df_attribute_value = ?, dj_attribute_value = ? where ci_attribute_id = ?", attr.getDfValue(), attr.getDjValue(), attr.getCiAttributeId());
+			return null;
+		}).when(ciMapper).updateCIAttribute(any(CmsCIAttribute.class));
+		doAnswer(i -> {
+			update("delete from cm_ci where ci_id = ?", i.getArguments()[0]);
+			return null;
+		}).when(ciMapper).deleteCI(anyLong(), anyBoolean(), anyString());
+
+		CmsClazzAttribute sizeAttr = new CmsClazzAttribute();
+		sizeAttr.setAttributeId(ATTR_SIZE);
+		sizeAttr.setAttributeName("size");
+		CmsClazz clazz = new CmsClazz();
+		clazz.setClassId(CLASS_ID);
+		clazz.setMdAttributes(Collections.singletonList(sizeAttr));
+		CmsMdProcessor mdProcessor = mock(CmsMdProcessor.class);
+		when(mdProcessor.getClazz(CLASS_ID)).thenReturn(clazz);
+
+		CIValidationResult validated = new CIValidationResult();
+		validated.setValidated(true);
+		CmsCmValidator cmValidator = mock(CmsCmValidator.class);
+		when(cmValidator.validateUpdateCI(any(CmsCI.class))).thenReturn(validated);
+
+		cmProcessor = new CmsCmProcessor();
+		cmProcessor.setCiMapper(ciMapper);
+		cmProcessor.setMdProcessor(mdProcessor);
+		cmProcessor.setCmValidator(cmValidator);
+	}
+
+	@BeforeMethod
+	public void resetDb() throws SQLException {
+		update("delete from cm_ci_attributes");
+		update("delete from cm_ci");
+		for (long ciId = 1; ciId <= 5; ciId++) {
+			update("insert into cm_ci values (?, ?, '/org/assembly', 100, 'initial')", ciId, "ci-" + ciId);
+			update("insert into cm_ci_attributes values (?, ?, ?, 'S', 'S')", ciId * 10, ciId, ATTR_SIZE);
+		}
+		ciCache = new CmsCiCache(3);
+		cmProcessor.setCiCache(ciCache);
+		dbReads.set(0);
+	}
+
+	@AfterClass
+	public void tearDown() throws SQLException {
+		conn.close();
+	}
+
+	@Test
+	public void repeatedReadsHitTheCache() {
+		Assert.assertEquals(cmProcessor.getCiById(1).getAttribute("size").getDfValue(), "S");
+		Assert.assertEquals(dbReads.get(), 1);
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals(cmProcessor.getCiById(1).getAttribute("size").getDfValue(), "S");
+		}
+		Assert.assertEquals(dbReads.get(), 1);
+		Assert.assertEquals(ciCache.getHits(), 10);
+	}
+
+	@Test
+	public void cachedCiIsACopy() {
+		cmProcessor.getCiById(1).getAttribute("size").setDfValue("changed by the caller");
+		Assert.assertEquals(cmProcessor.getCiById(1).getAttribute("size").getDfValue(), "S");
+	}
+
+	@Test
+	public void copyKeepsEveryField() throws Exception {
+		CmsCI ci = new CmsCI();
+		fill(ci);
+		CmsCIAttribute attr = new CmsCIAttribute();
+		fill(attr);
+		ci.addAttribute(attr);
+
+		CmsCI copy = CmsCiCache.copy(ci);
+		Gson gson = new Gson();
+		Assert.assertEquals(gson.toJsonTree(copy), gson.toJsonTree(ci));
+		Assert.assertNotSame(copy.getAttribute(attr.getAttributeName()), attr);
+		Assert.assertNotSame(copy.getUpdated(), ci.getUpdated());
+		Assert.assertNotSame(copy.getAttribute(attr.getAttributeName()).getUpdated(), attr.getUpdated());
+	}
+
+	@Test
+	public void copyCost() {
+		CmsCI ci = cmProcessor.getCiById(1);
+		for (int i = 0; i < 20; i++) {
+			CmsCIAttribute attr = new CmsCIAttribute();
+			attr.setAttributeName("attr" + i);
+			attr.setDfValue("value" + i);
+			attr.setDjValue("value" + i);
+			ci.addAttribute(attr);
+		}
+		int iterations = 20000;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			SerializationUtils.clone(ci);
+		}
+		long cloneNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			CmsCiCache.copy(ci);
+		}
+		long copyNanos = System.nanoTime() - start;
+		logger.info("ci with 21 attributes: serialization clone " + cloneNanos / iterations + " ns, copy " + copyNanos / iterations + " ns");
+		Assert.assertTrue(copyNanos < cloneNanos);
+	}
+
+	@Test
+	public void noStaleReadAfterLocalUpdate() throws SQLException {
+		cmProcessor.getCiById(2);
+		CmsCI update = new CmsCI();
+		update.setCiId(2);
+		update.setComments("updated");
+		CmsCIAttribute size = new CmsCIAttribute();
+		size.setAttributeName("size");
+		size.setDfValue("XL");
+		size.setDjValue("XL");
+		update.addAttribute(size);
+
+		CmsCI updated = cmProcessor.updateCI(update);
+		Assert.assertEquals(updated.getAttribute("size").getDfValue(), "XL");
+		Assert.assertEquals(cmProcessor.getCiById(2).getAttribute("size").getDfValue(), "XL");
+		Assert.assertEquals(cmProcessor.getCiByIdList(Arrays.asList(2L)).get(0).getComments(), "updated");
+
+		cmProcessor.updateCiState(2, "pending_deletion", "test");
+		cmProcessor.deleteCI(2, "test");
+		Assert.assertNull(cmProcessor.getCiById(2));
+	}
+
+	@Test
+	public void noStaleReadAfterCmsEvent() throws Exception {
+		cmProcessor.getCiById(3);
+		cmProcessor.getCiByIdList(Arrays.asList(4L, 5L));
+		// a deployment updates the db without going through the processor
+		update("update cm_ci_attributes set df_attribute_value = 'M' where ci_id in (3, 4)");
+
+		ciCache.onCmsEvent("cm_ci_new", "update", "3");
+		Assert.assertEquals(cmProcessor.getCiById(3).getAttribute("size").getDfValue(), "M");
+
+		// older transmitters do not set the sourceId of the cm_ci_new events
+		TextMessage message = mock(TextMessage.class);
+		when(message.getStringProperty("source")).thenReturn("cm_ci_new");
+		when(message.getStringProperty("action")).thenReturn("update");
+		when(message.getText()).thenReturn("{\"ciId\":4,\"ciName\":\"ci-4\"}");
+		CmsCiCacheInvalidator invalidator = new CmsCiCacheInvalidator();
+		invalidator.setCiCache(ciCache);
+		invalidator.onMessage(message);
+
+		List<CmsCI> cis = cmProcessor.getCiByIdList(Arrays.asList(4L, 5L));
+		Assert.assertEquals(cis.size(), 2);
+		for (CmsCI ci : cis) {
+			Assert.assertEquals(ci.getAttribute("size").getDfValue(), ci.getCiId() == 4 ? "M" : "S");
+		}
+	}
+
+	@Test
+	public void namespaceEventClearsTheCache() {
+		cmProcessor.getCiByIdList(Arrays.asList(1L, 2L, 3L));
+		Assert.assertEquals(ciCache.size(), 3);
+		ciCache.onCmsEvent("cm_ci_rel", "update", "77");
+		Assert.assertEquals(ciCache.size(), 3);
+		ciCache.onCmsEvent("namespace", "update", "12");
+		Assert.assertEquals(ciCache.size(), 0);
+	}
+
+	@Test
+	public void versionMismatchFallsBackToTheDb() throws SQLException {
+		// a loader read the ci before an invalidation and caches it afterwards
+		long version = ciCache.version(1);
+		CmsCI stale = cmProcessor.getCiById(1);
+		ciCache.invalidate(1);
+		update("update cm_ci_attributes set df_attribute_value = 'L' where ci_id = 1");
+		ciCache.put(stale, version);
+		Assert.assertEquals(cmProcessor.getCiById(1).getAttribute("size").getDfValue(), "L");
+
+		// an invalidation lands between the version check and the put
+		version = ciCache.version(1);
+		ciCache.put(stale, version);
+		ciCache.invalidate(1);
+		dbReads.set(0);
+		Assert.assertEquals(cmProcessor.getCiById(1).getAttribute("size").getDfValue(), "L");
+		Assert.assertEquals(dbReads.get(), 1);
+	}
+
+	@Test
+	public void cacheIsBounded() {
+		cmProcessor.getCiByIdList(Arrays.asList(1L, 2L, 3L, 4L, 5L));
+		Assert.assertEquals(ciCache.size(), 3);
+		dbReads.set(0);
+		Assert.assertEquals(cmProcessor.getCiByIdList(Arrays.asList(1L, 2L, 3L, 4L, 5L)).size(), 5);
+		Assert.assertEquals(dbReads.get(), 1);
+	}
+
+	/**
+	 * Sets every field of the object to a value of its own.
+	 */
+	private static void fill(Object object) throws IllegalAccessException {
+		int value = 1;
+		for (Class<?> clazz = object.getClass(); clazz != Object.class; clazz = clazz.getSuperclass()) {
+			for (Field field : clazz.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || field.getType() == Map.class) {
+					continue;
+				}
+				field.setAccessible(true);
+				value++;
+				if (field.getType() == long.class) {
+					field.setLong(object, value);
+				} else if (field.getType() == int.class) {
+					field.setInt(object, value);
+				} else if (field.getType() == String.class) {
+					field.set(object, field.getName() + value);
+				} else if (field.getType() == Date.class) {
+					field.set(object, new Date(value * 1000L));
+				} else {
+					Assert.fail("no test value for " + field);
+				}
+			}
+		}
+	}
+
+	private List<CmsCI> selectCis(List<Long> ciIds) throws SQLException {
+		dbReads.incrementAndGet();
+		List<CmsCI> cis = new ArrayList<>();
+		try (Statement stmt = conn.createStatement();
+			 ResultSet rs = stmt.executeQuery("select * from cm_ci where ci_id in (" + StringUtils.join(ciIds, ',') + ")")) {
+			while (rs.next()) {
+				CmsCI ci = new CmsCI();
+				ci.setCiId(rs.getLong("ci_id"));
+				ci.setCiName(rs.getString("ci_name"));
+				ci.setNsPath(rs.getString("ns_path"));
+				ci.setCiStateId(rs.getInt("ci_state_id"));
+				ci.setComments(rs.getString("comments"));
+				ci.setCiClassId(CLASS_ID);
+				cis.add(ci);
+			}
+		}
+		return cis;
+	}
+
+	private List<CmsCIAttribute> selectAttrs(List<Long> ciIds) throws SQLException {
+		List<CmsCIAttribute> attrs = new ArrayList<>();
+		try (Statement stmt = conn.createStatement();
+			 ResultSet rs = stmt.executeQuery("select * from cm_ci_attributes where ci_id in (" + StringUtils.join(ciIds, ',') + ")")) {
+			while (rs.next()) {
+				CmsCIAttribute attr = new CmsCIAttribute();
+				attr.setCiAttributeId(rs.getLong("ci_attribute_id"));
+				attr.setCiId(rs.getLong("ci_id"));
+				attr.setAttributeId(rs.getInt("attribute_id"));
+				attr.setDfValue(rs.getString("df_attribute_value"));
+				attr.setDjValue(rs.getString("dj_attribute_value"));
+				attrs.add(attr);
+			}
+		}
+		return attrs;
+	}
+
+	private void update(String sql, Object... params) throws SQLException {
+		try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+			for (int i = 0; i < params.length; i++) {
+				stmt.setObject(i + 1, params[i]);
+			}
+			stmt.executeUpdate();
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.cms.cm.service;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.oneops.cms.cm.dal.CIMapper;
+import com.oneops.cms.cm.domain.CmsCI;
+import com.oneops.cms.cm.domain.CmsCIAttribute;
+import com.oneops.cms.cm.domain.CmsCIRelation;
+import com.oneops.cms.cm.domain.CmsCIRelationAttribute;
+import com.oneops.cms.md.domain.CmsClazz;
+import com.oneops.cms.md.domain.CmsClazzAttribute;
+import com.oneops.cms.md.domain.CmsRelation;
+import com.oneops.cms.md.domain.CmsRelationAttribute;
+import com.oneops.cms.md.service.CmsMdProcessor;
+import com.oneops.cms.util.StatementCounter;
+
+/**
+ * Every relation query variant has to hydrate the relations and cis per chunk,
+ * the number of statements must not grow with the number of relations.
+ */
+public class CmsCmProcessorStatementCountTest {
+
+	private static final int RELATIONS = 250;
+	private static final int CHUNK_SIZE = 100;
+	// relation query, relation attrs per chunk of relations, cis and ci attrs per chunk of from and to cis
+	private static final int MAX_STATEMENTS = 1 + chunks(RELATIONS) + 2 * chunks(2 * RELATIONS);
+
+	private CmsCmProcessor cmProcessor;
+	private StatementCounter counter = new StatementCounter();
+
+	private static int chunks(int size) {
+		return (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	@BeforeClass
+	public void setUp() {
+		CmsClazzAttribute clazzAttr = new CmsClazzAttribute();
+		clazzAttr.setAttributeId(1);
+		clazzAttr.setAttributeName("size");
+		CmsClazz clazz = new CmsClazz();
+		clazz.setClassId(1);
+		clazz.setMdAttributes(Collections.singletonList(clazzAttr));
+		CmsRelationAttribute relAttr = new CmsRelationAttribute();
+		relAttr.setAttributeId(1);
+		relAttr.setAttributeName("flex");
+		CmsRelation relation = new CmsRelation();
+		relation.setRelationId(1);
+		relation.setMdAttributes(Collections.singletonList(relAttr));
+		CmsMdProcessor mdProcessor = mock(CmsMdProcessor.class);
+		when(mdProcessor.getClazz(anyInt())).thenReturn(clazz);
+		when(mdProcessor.getRelation(anyInt())).thenReturn(relation);
+
+		cmProcessor = new CmsCmProcessor();
+		cmProcessor.setCiMapper(counter.wrap(CIMapper.class, mock(CIMapper.class, (Answer<Object>) this::answer)));
+		cmProcessor.setMdProcessor(mdProcessor);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object answer(InvocationOnMock invocation) throws Throwable {
+		Method method = invocation.getMethod();
+		String name = method.getName();
+		Object[] args = invocation.getArguments();
+		switch (name) {
+		case "getCIById":
+			return ci((Long) args[0]);
+		case "getCIRelation":
+			return relation((Long) args[0]);
+		case "getCIByIdList":
+			List<CmsCI> cis = new ArrayList<>();
+			for (Long ciId : (List<Long>) args[0]) {
+				cis.add(ci(ciId));
+			}
+			return cis;
+		case "getCIAttrsNakedByCiIdList":
+			List<CmsCIAttribute> attrs = new ArrayList<>();
+			for (Long ciId : (List<Long>) args[0]) {
+				CmsCIAttribute attr = new CmsCIAttribute();
+				attr.setCiId(ciId);
+				attr.setAttributeId(1);
+				attrs.add(attr);
+			}
+			return attrs;
+		case "getCIRelationAttrsNakedByRelIdList":
+			List<CmsCIRelationAttribute> relAttrs = new ArrayList<>();
+			for (Long relId : (List<Long>) args[0]) {
+				CmsCIRelationAttribute attr = new CmsCIRelationAttribute();
+				attr.setCiRelationId(relId);
+				attr.setAttributeId(1);
+				relAttrs.add(attr);
+			}
+			return relAttrs;
+		default:
+			if (List.class.equals(method.getReturnType()) && name.contains("Relation")) {
+				List<CmsCIRelation> rels = new ArrayList<>();
+				for (long i = 1; i <= RELATIONS; i++) {
+					rels.add(relation(i));
+				}
+				return rels;
+			}
+			return RETURNS_DEFAULTS.answer(invocation);
+		}
+	}
+
+	private static CmsCI ci(long ciId) {
+		CmsCI ci = new CmsCI();
+		ci.setCiId(ciId);
+		ci.setCiClassId(1);
+		return ci;
+	}
+
+	private static CmsCIRelation relation(long relId) {
+		CmsCIRelation rel = new CmsCIRelation();
+		rel.setCiRelationId(relId);
+		rel.setRelationId(1);
+		rel.setRelationName("base.Requires");
+		rel.setFromCiId(1000 + relId);
+		rel.setToCiId(2000 + relId);
+		return rel;
+	}
+
+	@Test
+	public void relationQueriesAreBatched() throws Exception {
+		int variants = 0;
+		for (Method method : CmsCmProcessor.class.getDeclaredMethods()) {
+			if (!Modifier.isPublic(method.getModifiers())
+					|| !method.getName().matches("get(From|To|FromTo)?CIRelations.*|get(From|To)CIs")) {
+				continue;
+			}
+			Object[] args = defaultArgs(method);
+			counter.assertAtMost(MAX_STATEMENTS, method.toGenericString(), () -> {
+				try {
+					method.invoke(cmProcessor, args);
+				} catch (ReflectiveOperationException e) {
+					throw new IllegalStateException(method.getName(), e);
+				}
+			});
+			variants++;
+		}
+		Assert.assertTrue(variants > 30, "only " + variants + " relation query variants found");
+	}
+
+	@Test
+	public void relationsAreHydrated() {
+		List<CmsCIRelation> rels = cmProcessor.getCIRelations("/org/assembly", "base.Requires", null, null, null);
+		Assert.assertEquals(rels.size(), RELATIONS);
+		for (CmsCIRelation rel : rels) {
+			Assert.assertNotNull(rel.getAttribute("flex"));
+			Assert.assertEquals(rel.getFromCi().getCiId(), rel.getFromCiId());
+			Assert.assertNotNull(rel.getFromCi().getAttribute("size"));
+			Assert.assertEquals(rel.getToCi().getCiId(), rel.getToCiId());
+			Assert.assertNotNull(rel.getToCi().getAttribute("size"));
+		}
+	}
+
+	@Test
+	public void singleLookups() {
+		counter.assertAtMost(2, "getCiById", () -> Assert.assertNotNull(cmProcessor.getCiById(1).getAttribute("size")));
+		counter.assertAtMost(2, "getRelationById", () -> Assert.assertNotNull(cmProcessor.getRelationById(1).getAttribute("flex")));
+	}
+
+	private static Object[] defaultArgs(Method method) {
+		Class<?>[] types = method.getParameterTypes();
+		Object[] args = new Object[types.length];
+		for (int i = 0; i < types.length; i++) {
+			if (types[i] == long.class) {
+				args[i] = 1L;
+			} else if (types[i] == int.class) {
+				args[i] = 1;
+			} else if (types[i] == boolean.class) {
+				args[i] = true;
+			} else if (types[i] == String.class) {
+				args[i] = "/org/assembly";
+			} else if (List.class.isAssignableFrom(types[i])) {
+				args[i] = new ArrayList<>();
+			}
+		}
+		return args;
+	}
+}
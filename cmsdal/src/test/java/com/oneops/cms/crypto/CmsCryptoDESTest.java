@@ -20,13 +20,25 @@ package com.oneops.cms.crypto;
 import com.oneops.cms.exceptions.CmsException;
 
 import org.apache.commons.lang3.StringUtils;
+import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.encoders.Hex;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
 
 
@@ -36,12 +48,15 @@ public class CmsCryptoDESTest {
     private CmsCryptoDES crypto;
     private String rawString = UUID.randomUUID().toString();
     private String encryptedString;
+    private CmsCryptoDES keyCrypto;
 
     @BeforeClass
-    public void init() throws GeneralSecurityException, IOException {
+    public void init() throws Exception {
         crypto = new CmsCryptoDES();
         crypto.init(getClass().getResource("/oo.key").getFile());
         encryptedString = crypto.encrypt(rawString);
+        keyCrypto = newCrypto();
+        keyCrypto.setEncryptKeyId("k2");
     }
 
     @Test(expectedExceptions = CmsException.class)
@@ -83,6 +98,172 @@ public class CmsCryptoDESTest {
         Assert.assertTrue(StringUtils.EMPTY.equals(decryptedText));
     }
 
-}
+    @Test
+    public void testLegacyCompatibility() throws Exception {
+        KeyParameter keyParameter = new KeyParameter(Hex.decode(Files.readAllBytes(Paths.get(getClass().getResource("/oo.key").getFile()))));
+        Random random = new Random(16);
+        for (int i = 0; i < 500; i++) {
+            char[] chars = new char[random.nextInt(64)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) (' ' + random.nextInt(95));
+            }
+            String value = new String(chars);
+            String encrypted = crypto.encrypt(value);
+            Assert.assertEquals(encrypted, legacyEncrypt(keyParameter, value));
+            Assert.assertEquals(crypto.decrypt(encrypted), legacyDecrypt(keyParameter, encrypted));
+            Assert.assertEquals(crypto.decrypt(encrypted), value);
+        }
+    }
+
+    @Test
+    public void testKeyVersions() throws Exception {
+        CmsCryptoDES crypto1 = newCrypto();
+        String legacy = crypto1.encrypt(rawString);
+
+        crypto1.setEncryptKeyId("k2");
+        String aes = crypto1.encrypt(rawString);
+        Assert.assertTrue(aes.startsWith(CmsCrypto.ENC_PREFIX + "v2:k2:aesgcm:"));
+        Assert.assertNotEquals(crypto1.encrypt(rawString), aes, "nonce is not random");
+
+        crypto1.setEncryptKeyId("k1");
+        String des = crypto1.encrypt(rawString);
+        Assert.assertTrue(des.startsWith(CmsCrypto.ENC_PREFIX + "v2:k1:desede:"));
+
+        for (String encrypted : new String[]{legacy, aes, des, encryptedString}) {
+            Assert.assertEquals(crypto1.decrypt(encrypted), rawString);
+            Assert.assertEquals(crypto1.decryptVars("a " + toVar(encrypted) + " b " + toVar(legacy) + "c"), "a " + rawString + " b " + rawString + "c");
+        }
+        Assert.assertEquals(crypto1.decrypt(crypto1.encrypt("")), "");
+    }
+
+    @Test(expectedExceptions = GeneralSecurityException.class)
+    public void testUnknownKey() throws Exception {
+        CmsCryptoDES crypto1 = newCrypto();
+        crypto1.setEncryptKeyId("k2");
+        String aes = crypto1.encrypt(rawString);
+        crypto.decrypt(aes);
+    }
+
+    @Test(expectedExceptions = GeneralSecurityException.class)
+    public void testAlgorithmMismatch() throws Exception {
+        CmsCryptoDES crypto1 = newCrypto();
+        crypto1.setEncryptKeyId("k1");
+        crypto1.decrypt(crypto1.encrypt(rawString).replace(":desede:", ":aesgcm:"));
+    }
+
+    @Test
+    public void testTamperedValue() throws Exception {
+        CmsCryptoDES crypto1 = newCrypto();
+        crypto1.setEncryptKeyId("k2");
+        String aes = crypto1.encrypt(rawString);
+        char last = aes.charAt(aes.length() - 1);
+        String tampered = aes.substring(0, aes.length() - 1) + (last == '0' ? '1' : '0');
+        try {
+            crypto1.decrypt(tampered);
+            Assert.fail("tampered value decrypted");
+        } catch (GeneralSecurityException e) {
+            // the cipher of the thread has to be usable after a failure
+        }
+        Assert.assertEquals(crypto1.decrypt(aes), rawString);
+    }
+
+    @Test
+    public void testDecryptAll() throws Exception {
+        CmsCryptoDES crypto1 = newCrypto();
+        crypto1.setEncryptKeyId("k2");
+        String aes = crypto1.encrypt("secret");
+        Map<String, String> values = new HashMap<>();
+        values.put("plain", "value");
+        values.put("empty", null);
+        values.put("legacy", encryptedString);
+        values.put("aes", aes);
+        values.put("vars", "x=" + toVar(aes) + ",y=" + toVar(aes) + ",z=" + toVar(encryptedString));
+        Map<String, String> decrypted = crypto1.decryptAll(values);
+        Assert.assertEquals(decrypted.size(), 3);
+        Assert.assertEquals(decrypted.get("legacy"), rawString);
+        Assert.assertEquals(decrypted.get("aes"), "secret");
+        Assert.assertEquals(decrypted.get("vars"), "x=secret,y=secret,z=" + rawString);
+        Assert.assertEquals(values.get("aes"), aes);
 
+        values.put("bad", CmsCrypto.ENC_PREFIX + "v2:k3:aesgcm:00");
+        try {
+            crypto1.decryptAll(values);
+            Assert.fail("unknown key decrypted");
+        } catch (GeneralSecurityException e) {
+            Assert.assertEquals(e.getMessage(), "Error decrypting attribute bad");
+        }
+    }
 
+    @Test(threadPoolSize = 10, invocationCount = 20, timeOut = 10000)
+    public void testKeyVersionsThreads() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            String uuid = UUID.randomUUID().toString();
+            Assert.assertEquals(keyCrypto.decrypt(keyCrypto.encrypt(uuid)), uuid);
+            Assert.assertEquals(keyCrypto.decrypt(crypto.encrypt(uuid)), uuid);
+        }
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        KeyParameter keyParameter = new KeyParameter(Hex.decode(Files.readAllBytes(Paths.get(getClass().getResource("/oo.key").getFile()))));
+        int count = 20000;
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = crypto.encrypt(UUID.randomUUID().toString());
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            long t1 = System.nanoTime();
+            for (String value : values) {
+                legacyDecrypt(keyParameter, value);
+            }
+            long t2 = System.nanoTime();
+            for (String value : values) {
+                crypto.decrypt(value);
+            }
+            long t3 = System.nanoTime();
+            if (pass > 0) {
+                System.out.println("decrypt with a new cipher per value: " + (count * 1000000000L / (t2 - t1)) + "/s, with a pooled cipher: " + (count * 1000000000L / (t3 - t2)) + "/s");
+            }
+        }
+    }
+
+    private CmsCryptoDES newCrypto() throws Exception {
+        CmsCryptoDES crypto1 = new CmsCryptoDES();
+        crypto1.init(getClass().getResource("/oo.key").getFile());
+        File aesKey = File.createTempFile("aes", ".key");
+        aesKey.deleteOnExit();
+        CmsCryptoDES.generateAESKey(aesKey.getPath());
+        File desKey = File.createTempFile("des", ".key");
+        desKey.deleteOnExit();
+        CmsCryptoDES.generateDESKey(desKey.getPath());
+        crypto1.addKey(new CmsCryptoKey("k1", CmsCryptoKey.DESEDE, Hex.decode(Files.readAllBytes(desKey.toPath()))));
+        crypto1.addKey(new CmsCryptoKey("k2", CmsCryptoKey.AES_GCM, Hex.decode(Files.readAllBytes(aesKey.toPath()))));
+        return crypto1;
+    }
+
+    private static String toVar(String encrypted) {
+        return CmsCrypto.ENC_VAR_PREFIX + encrypted.substring(CmsCrypto.ENC_PREFIX.length()) + CmsCrypto.ENC_VAR_SUFFIX;
+    }
+
+    private static String legacyEncrypt(KeyParameter keyParameter, String instr) throws Exception {
+        byte[] in = instr.getBytes();
+        PaddedBufferedBlockCipher encryptor = new PaddedBufferedBlockCipher(new CBCBlockCipher(new DESedeEngine()));
+        encryptor.init(true, keyParameter);
+        byte[] cipherText = new byte[encryptor.getOutputSize(in.length)];
+        int outputLen = encryptor.processBytes(in, 0, in.length, cipherText, 0);
+        encryptor.doFinal(cipherText, outputLen);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Hex.encode(cipherText, os);
+        return CmsCrypto.ENC_PREFIX + os.toString();
+    }
+
+    private static String legacyDecrypt(KeyParameter keyParameter, String instr) throws Exception {
+        byte[] in = Hex.decode(instr.substring(CmsCrypto.ENC_PREFIX.length()));
+        PaddedBufferedBlockCipher decryptor = new PaddedBufferedBlockCipher(new CBCBlockCipher(new DESedeEngine()));
+        decryptor.init(false, keyParameter);
+        byte[] cipherText = new byte[decryptor.getOutputSize(in.length)];
+        int outputLen = decryptor.processBytes(in, 0, in.length, cipherText, 0);
+        decryptor.doFinal(cipherText, outputLen);
+        return (new String(cipherText)).replaceAll("\\u0000+$", "");
+    }
+}
@@ -0,0 +1,407 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.cms.md.service;
+
+import com.oneops.cms.md.dal.ClazzMapper;
+import com.oneops.cms.md.dal.RelationMapper;
+import com.oneops.cms.md.domain.*;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The md is served by mocked mappers, every read returns new objects built from the current generation.
+ */
+public class CmsMdSnapshotTest {
+
+    private static final String COMPUTE = "bom.Compute";
+    private static final String DEPENDS_ON = "base.DependsOn";
+
+    private volatile int generation;
+    // the generation the snapshot being loaded reads, the way a snapshot load would see one db state
+    private volatile int loadGeneration;
+    private volatile CountDownLatch loadGate;
+    private volatile boolean stop;
+    private final AtomicInteger snapshotLoads = new AtomicInteger();
+    private final AtomicInteger dbReads = new AtomicInteger();
+    private ClazzMapper clazzMapper;
+    private RelationMapper relationMapper;
+
+    @BeforeMethod
+    public void setUp() {
+        generation = 1;
+        loadGate = null;
+        snapshotLoads.set(0);
+        dbReads.set(0);
+
+        clazzMapper = mock(ClazzMapper.class);
+        when(clazzMapper.getAllClazzes()).thenAnswer(i -> {
+            snapshotLoads.incrementAndGet();
+            CountDownLatch gate = loadGate;
+            if (gate != null) {
+                gate.await(10, TimeUnit.SECONDS);
+            }
+            loadGeneration = generation;
+            return clazzes(loadGeneration);
+        });
+        when(clazzMapper.getAllClazzAttrs()).thenAnswer(i -> clazzAttrs());
+        when(clazzMapper.getClazzById(anyInt())).thenAnswer(i -> {
+            dbReads.incrementAndGet();
+            int classId = (Integer) i.getArguments()[0];
+            return clazzes(generation).stream().filter(c -> c.getClassId() == classId).findFirst().orElse(null);
+        });
+        when(clazzMapper.getClazz(anyString())).thenAnswer(i -> {
+            dbReads.incrementAndGet();
+            String className = (String) i.getArguments()[0];
+            return clazzes(generation).stream().filter(c -> c.getClassName().equals(className)).findFirst().orElse(null);
+        });
+        when(clazzMapper.getClazzAttrs(anyInt())).thenAnswer(i -> attrsOf((Integer) i.getArguments()[0], false));
+        when(clazzMapper.getInheritableClazzAttrs(anyInt())).thenAnswer(i -> attrsOf((Integer) i.getArguments()[0], true));
+        when(clazzMapper.getFromClazzRelations(anyInt())).thenAnswer(i -> targets().stream()
+                .filter(t -> t.getFromClassId() == (Integer) i.getArguments()[0]).collect(Collectors.toList()));
+        when(clazzMapper.getToClazzRelations(anyInt())).thenAnswer(i -> targets().stream()
+                .filter(t -> t.getToClassId() == (Integer) i.getArguments()[0]).collect(Collectors.toList()));
+
+        relationMapper = mock(RelationMapper.class);
+        when(relationMapper.getAllRelations()).thenAnswer(i -> Arrays.asList(relation(loadGeneration)));
+        when(relationMapper.getAllRelationAttrs()).thenAnswer(i -> Arrays.asList(relationAttr()));
+        when(relationMapper.getAllTargets()).thenAnswer(i -> targets());
+        when(relationMapper.getRelation(anyString())).thenAnswer(i -> {
+            dbReads.incrementAndGet();
+            return DEPENDS_ON.equals(i.getArguments()[0]) ? relation(generation) : null;
+        });
+        when(relationMapper.getRelationById(anyLong())).thenAnswer(i -> {
+            dbReads.incrementAndGet();
+            return (Long) i.getArguments()[0] == 5001 ? relation(generation) : null;
+        });
+        when(relationMapper.getRelationAttrs(anyInt())).thenAnswer(i -> new ArrayList<>(Arrays.asList(relationAttr())));
+    }
+
+    private List<CmsClazz> clazzes(int generation) {
+        return Arrays.asList(clazz(100, "Base", 0, generation), clazz(200, "Component", 100, generation),
+                clazz(1001, "base.Compute", 100, generation), clazz(1002, COMPUTE, 1001, generation));
+    }
+
+    private CmsClazz clazz(int classId, String className, int superClassId, int generation) {
+        CmsClazz clazz = new CmsClazz();
+        clazz.setClassId(classId);
+        clazz.setClassName(className);
+        clazz.setSuperClassId(superClassId);
+        clazz.setDescription("gen-" + generation);
+        return clazz;
+    }
+
+    private List<CmsClazzAttribute> clazzAttrs() {
+        return new ArrayList<>(Arrays.asList(clazzAttr(100, "description", true), clazzAttr(1001, "description", true),
+                clazzAttr(1001, "size", true), clazzAttr(1001, "Name", false), clazzAttr(1002, "zone", false)));
+    }
+
+    private List<CmsClazzAttribute> attrsOf(int classId, boolean inheritableOnly) {
+        return clazzAttrs().stream().filter(a -> a.getClassId() == classId && (!inheritableOnly || a.getIsInheritable()))
+                .collect(Collectors.toList());
+    }
+
+    private CmsClazzAttribute clazzAttr(int classId, String name, boolean inheritable) {
+        CmsClazzAttribute attr = new CmsClazzAttribute();
+        attr.setAttributeId(classId * 10 + name.length());
+        attr.setClassId(classId);
+        attr.setAttributeName(name);
+        attr.setIsInheritable(inheritable);
+        attr.setDefaultValue(name + "-" + classId);
+        return attr;
+    }
+
+    private CmsRelation relation(int generation) {
+        CmsRelation relation = new CmsRelation();
+        relation.setRelationId(5001);
+        relation.setRelationName(DEPENDS_ON);
+        relation.setDescription("gen-" + generation);
+        return relation;
+    }
+
+    private CmsRelationAttribute relationAttr() {
+        CmsRelationAttribute attr = new CmsRelationAttribute();
+        attr.setAttributeId(6001);
+        attr.setRelationId(5001);
+        attr.setAttributeName("flex");
+        return attr;
+    }
+
+    private List<CmsClazzRelation> targets() {
+        return new ArrayList<>(Arrays.asList(target(1, 1001, "base.Compute", 1002, COMPUTE),
+                target(2, 200, "Component", 1002, COMPUTE), target(3, 1002, COMPUTE, 1001, "base.Compute")));
+    }
+
+    private CmsClazzRelation target(int linkId, int fromClassId, String fromClassName, int toClassId, String toClassName) {
+        CmsClazzRelation target = new CmsClazzRelation();
+        target.setLinkId(linkId);
+        target.setRelationId(5001);
+        target.setRelationName(DEPENDS_ON);
+        target.setFromClassId(fromClassId);
+        target.setFromClassName(fromClassName);
+        target.setToClassId(toClassId);
+        target.setToClassName(toClassName);
+        return target;
+    }
+
+    private CmsMdProcessor processor(boolean cacheEnabled) {
+        CmsMdProcessor mdProcessor = new CmsMdProcessor();
+        mdProcessor.setClazzMapper(clazzMapper);
+        mdProcessor.setRelationMapper(relationMapper);
+        mdProcessor.setCacheEnabled(cacheEnabled);
+        mdProcessor.initCache();
+        return mdProcessor;
+    }
+
+    private static int generationOf(String description) {
+        return Integer.parseInt(description.substring("gen-".length()));
+    }
+
+    @Test
+    public void snapshotResolvesInheritance() {
+        CmsMdSnapshot snapshot = CmsMdSnapshot.load(clazzMapper, relationMapper);
+        CmsClazz compute = snapshot.getClazz(COMPUTE);
+        Assert.assertSame(snapshot.getClazz(1002), compute);
+        Assert.assertEquals(compute.getSuperClassName(), "base.Compute");
+        Assert.assertEquals(snapshot.getSuperClassIds(1002), Arrays.asList(1001, 100));
+
+        List<CmsClazzAttribute> attrs = compute.getMdAttributes();
+        Assert.assertEquals(attrs.stream().map(CmsClazzAttribute::getAttributeName).collect(Collectors.toList()),
+                Arrays.asList("description", "size", "zone"));
+        Assert.assertEquals(attrs.get(0).getInheritedFrom(), "base.Compute");
+        Assert.assertEquals(attrs.get(0).getDefaultValue(), "description-1001");
+        Assert.assertTrue(attrs.get(1).isInherited());
+        Assert.assertFalse(attrs.get(2).isInherited());
+
+        // the snapshot resolves the attributes the way the db path does
+        CmsClazz fromDb = processor(false).getClazz(COMPUTE);
+        Assert.assertEquals(fromDb.getMdAttributes().stream().map(a -> a.getAttributeName() + ":" + a.isInherited() + ":" + a.getInheritedFrom())
+                        .collect(Collectors.toList()),
+                attrs.stream().map(a -> a.getAttributeName() + ":" + a.isInherited() + ":" + a.getInheritedFrom())
+                        .collect(Collectors.toList()));
+
+        Assert.assertEquals(compute.getFromRelations().size(), 1);
+        Assert.assertEquals(compute.getToRelations().size(), 2);
+    }
+
+    @Test
+    public void snapshotResolvesTargets() {
+        CmsMdSnapshot snapshot = CmsMdSnapshot.load(clazzMapper, relationMapper);
+        Assert.assertEquals(snapshot.getRelation(5001).getMdAttributes().size(), 1);
+        Assert.assertEquals(snapshot.getTargets(5001).size(), 3);
+        Assert.assertTrue(snapshot.getTargets(5002).isEmpty());
+
+        CmsRelation strict = snapshot.getRelationWithTargets(DEPENDS_ON, 1001, 1002);
+        Assert.assertEquals(strict.getTargets().stream().map(CmsClazzRelation::getLinkId).sorted().collect(Collectors.toList()),
+                Arrays.asList(1, 2));
+        strict.getTargets().forEach(t -> Assert.assertEquals(t.getFromClassName(), "base.Compute"));
+        Assert.assertEquals(snapshot.getRelationWithTargets(DEPENDS_ON, 1002, 1001).getTargets().size(), 1);
+        Assert.assertTrue(snapshot.getRelationWithTargets(DEPENDS_ON, 1001, 1001).getTargets().isEmpty());
+        // the shared targets keep their own class names
+        Assert.assertEquals(snapshot.getTargets(5001).get(1).getFromClassName(), "Component");
+    }
+
+    @Test
+    public void lookupsAreServedFromTheSnapshot() {
+        CmsMdProcessor mdProcessor = processor(true);
+        Assert.assertEquals(snapshotLoads.get(), 1);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNotNull(mdProcessor.getClazz(COMPUTE));
+            Assert.assertNotNull(mdProcessor.getClazz(1001));
+            Assert.assertNotNull(mdProcessor.getRelation(DEPENDS_ON));
+            Assert.assertNotNull(mdProcessor.getRelation(5001L));
+            Assert.assertEquals(mdProcessor.getTargets(5001).size(), 3);
+        }
+        Assert.assertEquals(dbReads.get(), 0);
+
+        // misses fall back to the db
+        Assert.assertNull(mdProcessor.getClazz("missing.Clazz"));
+        Assert.assertEquals(dbReads.get(), 1);
+    }
+
+    @Test
+    public void backgroundReloadsAreCoalesced() throws Exception {
+        CmsMdProcessor mdProcessor = processor(true);
+        CmsMdSnapshot initial = mdProcessor.getSnapshot();
+        loadGate = new CountDownLatch(1);
+        generation = 2;
+        mdProcessor.refreshCache();
+        waitFor(() -> snapshotLoads.get() == 2);
+        for (int i = 0; i < 20; i++) {
+            mdProcessor.refreshCache();
+        }
+        // readers are not blocked by the reload
+        Assert.assertSame(mdProcessor.getSnapshot(), initial);
+        Assert.assertEquals(mdProcessor.getClazz(COMPUTE).getDescription(), "gen-1");
+        loadGate.countDown();
+
+        waitFor(() -> mdProcessor.getSnapshot() != initial && snapshotLoads.get() == 3);
+        Thread.sleep(200);
+        Assert.assertEquals(snapshotLoads.get(), 3);
+        Assert.assertEquals(mdProcessor.getClazz(COMPUTE).getDescription(), "gen-2");
+    }
+
+    @Test
+    public void invalidateReloadsBeforeReturning() throws Exception {
+        CmsMdProcessor mdProcessor = processor(true);
+        generation = 2;
+        mdProcessor.invalidateCache();
+        Assert.assertEquals(mdProcessor.getClazz(COMPUTE).getDescription(), "gen-2");
+        Assert.assertEquals(snapshotLoads.get(), 2);
+
+        // a flush waits for a running background reload, which may have read the md before it changed, and loads again
+        loadGate = new CountDownLatch(1);
+        generation = 3;
+        mdProcessor.refreshCache();
+        waitFor(() -> snapshotLoads.get() == 3);
+        generation = 4;
+        Thread flush = new Thread(mdProcessor::invalidateCache);
+        flush.start();
+        Thread.sleep(100);
+        Assert.assertTrue(flush.isAlive());
+        loadGate.countDown();
+        flush.join(10000);
+        Assert.assertEquals(mdProcessor.getClazz(COMPUTE).getDescription(), "gen-4");
+        Assert.assertEquals(snapshotLoads.get(), 4);
+    }
+
+    @Test
+    public void failedInvalidateIsThrown() {
+        CmsMdProcessor mdProcessor = processor(true);
+        CmsMdSnapshot loaded = mdProcessor.getSnapshot();
+        when(relationMapper.getAllRelations()).thenThrow(new RuntimeException("db down"));
+        generation = 2;
+        try {
+            mdProcessor.invalidateCache();
+            Assert.fail("the failed reload was not thrown");
+        } catch (RuntimeException e) {
+            Assert.assertEquals(e.getMessage(), "db down");
+        }
+        Assert.assertSame(mdProcessor.getSnapshot(), loaded);
+        Assert.assertEquals(mdProcessor.getClazz(COMPUTE).getDescription(), "gen-1");
+    }
+
+    @Test
+    public void readersSeeConsistentSnapshotsDuringSwaps() throws Exception {
+        CmsMdProcessor mdProcessor = processor(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger lookups = new AtomicInteger();
+        stop = false;
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread reader = new Thread(() -> {
+                int lastSeen = 0;
+                try {
+                    while (!stop) {
+                        CmsMdSnapshot snapshot = mdProcessor.getSnapshot();
+                        CmsClazz clazz = snapshot.getClazz(COMPUTE);
+                        CmsRelation relation = snapshot.getRelation(DEPENDS_ON);
+                        Assert.assertEquals(clazz.getMdAttributes().size(), 3);
+                        Assert.assertEquals(snapshot.getTargets(relation.getRelationId()).size(), 3);
+                        int seen = generationOf(clazz.getDescription());
+                        // one snapshot holds one generation
+                        Assert.assertEquals(generationOf(relation.getDescription()), seen);
+                        Assert.assertEquals(generationOf(snapshot.getClazz(1001).getDescription()), seen);
+                        // swaps never go back
+                        Assert.assertTrue(seen >= lastSeen, seen + " after " + lastSeen);
+                        lastSeen = seen;
+
+                        Assert.assertNotNull(mdProcessor.getClazz(1002));
+                        Assert.assertNotNull(mdProcessor.getRelation(5001L));
+                        lookups.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        for (int i = 2; i <= 50; i++) {
+            generation = i;
+            mdProcessor.refreshCache();
+            Thread.sleep(2);
+        }
+        waitFor(() -> mdProcessor.getClazz(COMPUTE).getDescription().equals("gen-50"));
+        stop = true;
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("reader failed", failure.get());
+        }
+        Assert.assertTrue(lookups.get() > 0);
+        Assert.assertEquals(dbReads.get(), 0);
+    }
+
+    @Test
+    public void lookupThroughput() {
+        CmsMdProcessor cached = processor(true);
+        CmsMdProcessor uncached = processor(false);
+        int iterations = 20000;
+        long snapshotNanos = lookups(cached, iterations);
+        Assert.assertEquals(dbReads.get(), 0);
+        long dbNanos = lookups(uncached, iterations);
+        Assert.assertTrue(dbReads.get() > 0);
+        System.out.println(String.format("getClazz/getRelation lookups: snapshot %d/s, mapper %d/s",
+                iterations * 1000000000L / Math.max(snapshotNanos, 1), iterations * 1000000000L / Math.max(dbNanos, 1)));
+    }
+
+    private long lookups(CmsMdProcessor mdProcessor, int iterations) {
+        // warm up
+        for (int i = 0; i < iterations / 10; i++) {
+            mdProcessor.getClazz(COMPUTE);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if ((i & 1) == 0) {
+                Assert.assertNotNull(mdProcessor.getClazz(i % 4 == 0 ? COMPUTE : "base.Compute"));
+            } else {
+                Assert.assertNotNull(mdProcessor.getRelation(DEPENDS_ON));
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail("timed out");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
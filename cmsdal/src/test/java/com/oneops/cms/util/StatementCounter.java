@@ -0,0 +1,84 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.cms.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+
+/**
+ * Counts the statements issued through mybatis mapper interfaces, every mapper
+ * method call is one sql statement.
+ */
+public class StatementCounter {
+
+	private final List<String> statements = new ArrayList<>();
+
+	/**
+	 * Wraps the mapper so its calls are counted.
+	 *
+	 * @param type the mapper interface
+	 * @param mapper the mapper
+	 * @return the counting mapper
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T wrap(Class<T> type, T mapper) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+			if (method.getDeclaringClass() != Object.class) {
+				synchronized (statements) {
+					statements.add(type.getSimpleName() + "." + method.getName());
+				}
+			}
+			try {
+				return method.invoke(mapper, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		});
+	}
+
+	public int count() {
+		synchronized (statements) {
+			return statements.size();
+		}
+	}
+
+	public void reset() {
+		synchronized (statements) {
+			statements.clear();
+		}
+	}
+
+	/**
+	 * Fails if the call issues more than max statements.
+	 *
+	 * @param max the max number of statements
+	 * @param name the call name used in the failure message
+	 * @param call the call
+	 */
+	public void assertAtMost(int max, String name, Runnable call) {
+		reset();
+		call.run();
+		synchronized (statements) {
+			Assert.assertTrue(statements.size() <= max, name + " issued " + statements.size() + " statements, max " + max + ": " + statements);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.cms.util;
+
+import com.oneops.cms.cm.domain.CmsCI;
+import com.oneops.cms.cm.domain.CmsCIAttribute;
+import com.oneops.cms.crypto.CmsCrypto;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class VarTemplateTest {
+
+    private static final String[] LITERALS = {"", "abc", "/opt/", " ", "$", "{", "}", "$OO_", "a.b", "\\", "$1", "OO_CLOUD{x}", "::VAR-ENCRYPTED::ab12::VAR-END::"};
+    private static final String[] PREFIXES = {"$OO_CLOUD{", "$OO_GLOBAL{", "$OO_LOCAL{"};
+
+    // nothing is encrypted in the corpus, a plain stub keeps the mock overhead out of the throughput numbers
+    private final CmsCrypto crypto = new CmsCrypto() {
+        @Override
+        public String encrypt(String instr) {
+            return instr;
+        }
+
+        @Override
+        public String decrypt(String instr) {
+            return instr;
+        }
+
+        @Override
+        public String decryptVars(String instr) {
+            return instr;
+        }
+    };
+
+    private final Map<String, String> cloudVars = new HashMap<>();
+    private final Map<String, String> globalVars = new HashMap<>();
+    private final Map<String, String> localVars = new HashMap<>();
+
+    public VarTemplateTest() {
+        cloudVars.put("cloud_name", "dal1");
+        cloudVars.put("region", "us-$OO_CLOUD{zone}");
+        cloudVars.put("zone", "1a");
+        cloudVars.put("secret", "::VAR-ENCRYPTED::c0ffee::VAR-END::");
+        cloudVars.put("a.b", "dotted");
+        cloudVars.put("axb", "not dotted");
+        cloudVars.put("cyc1", "$OO_CLOUD{cyc2}");
+        cloudVars.put("cyc2", "x$OO_CLOUD{cyc1}");
+        cloudVars.put("repl", "$1\\$2");
+        cloudVars.put("empty", "");
+
+        globalVars.put("env_name", "prod");
+        globalVars.put("domain", "$OO_GLOBAL{env_name}.$OO_CLOUD{region}.example.com");
+        globalVars.put("url", "https://$OO_GLOBAL{domain}/$OO_CLOUD{secret}");
+        globalVars.put("bad", "$OO_LOCAL{platform_name}");
+        globalVars.put("missing", "$OO_GLOBAL{nope}");
+        globalVars.put("broken", "$OO_GLOBAL{env_name");
+        globalVars.put("cloud_name", "global-cloud-name");
+
+        localVars.put("platform_name", "web");
+        localVars.put("fqdn", "$OO_LOCAL{platform_name}.$OO_GLOBAL{domain}");
+        localVars.put("path", "/opt/$OO_LOCAL{platform_name}/$OO_GLOBAL{env_name}");
+        localVars.put("mixed", "$OO_CLOUD{cloud_name}:$OO_GLOBAL{url}:$OO_LOCAL{path}");
+        localVars.put("cyc", "$OO_LOCAL{cyc}");
+        localVars.put("braces", "{}{$}");
+    }
+
+    private CmsUtil util(boolean varTemplates) {
+        CmsUtil util = new CmsUtil();
+        util.setCmsCrypto(crypto);
+        util.setVarTemplates(varTemplates);
+        return util;
+    }
+
+    private List<String> names() {
+        List<String> names = new ArrayList<>();
+        names.addAll(cloudVars.keySet());
+        names.addAll(globalVars.keySet());
+        names.addAll(localVars.keySet());
+        names.add("nope");
+        names.add("");
+        return names;
+    }
+
+    private String randomValue(Random random, List<String> names) {
+        StringBuilder sb = new StringBuilder();
+        int parts = random.nextInt(6);
+        for (int i = 0; i < parts; i++) {
+            int kind = random.nextInt(10);
+            if (kind < 4) {
+                sb.append(LITERALS[random.nextInt(LITERALS.length)]);
+            } else {
+                sb.append(PREFIXES[random.nextInt(PREFIXES.length)]).append(names.get(random.nextInt(names.size())));
+                // a reference without the closing brace once in a while
+                if (kind > 4) {
+                    sb.append('}');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private String process(CmsUtil util, String djValue, String dfValue) {
+        CmsCI ci = new CmsCI();
+        ci.setCiId(1);
+        ci.setCiName("ci");
+        ci.setNsPath("/org/assembly/env/manifest/platform/1");
+        CmsCIAttribute attr = new CmsCIAttribute();
+        attr.setAttributeName("attr");
+        attr.setDjValue(djValue);
+        attr.setDfValue(dfValue);
+        ci.addAttribute(attr);
+        try {
+            util.processAllVars(ci, cloudVars, globalVars, localVars);
+            return "dj=" + attr.getDjValue() + " df=" + attr.getDfValue();
+        } catch (RuntimeException e) {
+            return e.getClass().getName() + ": " + e.getMessage();
+        }
+    }
+
+    @Test
+    public void compilesLiteralsAndReferences() {
+        VarTemplate template = VarTemplate.compile("jdbc:$OO_CLOUD{host}:$OO_LOCAL{port}/$OO_GLOBAL{db}");
+        Assert.assertNotNull(template);
+        Assert.assertEquals(template.getVarCount(), 3);
+        Assert.assertEquals(template.getPrefix(0), CmsUtil.CLOUDVARPFX);
+        Assert.assertEquals(template.getName(1), "port");
+        Assert.assertEquals(template.getPrefix(2), CmsUtil.GLOBALVARPFX);
+        Assert.assertEquals(template.render(new String[]{"h", "5432", "$1"}), "jdbc:h:5432/$1");
+
+        Assert.assertNull(VarTemplate.compile("$OO_CLOUD{host"));
+        Assert.assertNull(VarTemplate.compile("$OO_CLOUD{a.b}"));
+        Assert.assertNull(VarTemplate.compile("$OO_LOCAL{x$OO_CLOUD{y}}"));
+        Assert.assertEquals(VarTemplate.compile("no vars").render(new String[0]), "no vars");
+    }
+
+    @Test
+    public void resolvesLikeTheRegexReplaces() {
+        CmsUtil regex = util(false);
+        CmsUtil templates = util(true);
+        List<String> names = names();
+        Random random = new Random(42);
+        int resolved = 0;
+        for (int i = 0; i < 20000; i++) {
+            String djValue = randomValue(random, names);
+            String dfValue = random.nextBoolean() ? djValue : randomValue(random, names);
+            String expected = process(regex, djValue, dfValue);
+            Assert.assertEquals(process(templates, djValue, dfValue), expected, "dj: " + djValue + " df: " + dfValue);
+            if (expected.startsWith("dj=")) {
+                resolved++;
+            }
+        }
+        // the corpus has to exercise the successful resolutions, not only the errors
+        Assert.assertTrue(resolved > 3000, "resolved " + resolved);
+    }
+
+    @Test
+    public void templateThroughput() {
+        Map<String, String> attrs = new LinkedHashMap<>();
+        for (int i = 0; i < 40; i++) {
+            cloudVars.put("cvar" + i, "cloud-value-" + i);
+            globalVars.put("gvar" + i, "$OO_CLOUD{cvar" + i + "}-global");
+            localVars.put("lvar" + i, "$OO_GLOBAL{gvar" + i + "}-local");
+        }
+        for (int i = 0; i < 30; i++) {
+            attrs.put("attr" + i, "prefix $OO_LOCAL{lvar" + i + "} $OO_GLOBAL{gvar" + (i + 1) + "} $OO_CLOUD{cvar" + (i + 2) + "} suffix");
+        }
+        int iterations = 2000;
+        long regexNanos = resolveAll(util(false), attrs, iterations);
+        long templateNanos = resolveAll(util(true), attrs, iterations);
+        System.out.println(String.format("processAllVars of a %d attribute ci: regex replaces %d/s, templates %d/s",
+                attrs.size(), iterations * 1000000000L / Math.max(regexNanos, 1), iterations * 1000000000L / Math.max(templateNanos, 1)));
+    }
+
+    private long resolveAll(CmsUtil util, Map<String, String> attrs, int iterations) {
+        String expected = null;
+        long start = 0;
+        // the first half warms up
+        for (int i = -iterations; i < iterations; i++) {
+            if (i == 0) {
+                start = System.nanoTime();
+            }
+            CmsCI ci = new CmsCI();
+            ci.setCiName("ci");
+            for (Map.Entry<String, String> e : attrs.entrySet()) {
+                CmsCIAttribute attr = new CmsCIAttribute();
+                attr.setAttributeName(e.getKey());
+                attr.setDjValue(e.getValue());
+                attr.setDfValue(e.getValue());
+                ci.addAttribute(attr);
+            }
+            util.processAllVars(ci, cloudVars, globalVars, localVars);
+            if (expected == null) {
+                expected = ci.getAttribute("attr3").getDjValue();
+                Assert.assertEquals(expected, "prefix cloud-value-3-global-local cloud-value-4-global cloud-value-5 suffix");
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
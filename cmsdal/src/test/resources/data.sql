@@ -10,5 +10,7 @@ INSERT INTO md_class_attributes(
             '{"help":"Assembly description","category":"1.Configuration","order":1}', 'testAttrbitue', '2016-09-02 16:18:23.652701',  '2016-09-02 16:18:23.652701');
 
 insert into ns_namespaces values (1, 'test',  '2016-09-02');
+insert into ns_namespace_paths values (1, '/', 1);
+insert into ns_namespace_paths values (1, 'test', 0);
 insert into dj_rfc_ci (rfc_id, release_id, ns_id, ci_id, class_id, ci_name, action_id) values (1,0, 1, 1, 1, 'test',1)
 
@@ -52,6 +52,13 @@ CREATE TABLE ns_namespaces (
                 CONSTRAINT ns_namespaces_pk PRIMARY KEY (ns_id)
 );
 
+CREATE TABLE ns_namespace_paths (
+                ns_id BIGINT NOT NULL,
+                ancestor_path VARCHAR(200) NOT NULL,
+                depth INTEGER NOT NULL,
+                CONSTRAINT ns_namespace_paths_pk PRIMARY KEY (ancestor_path, ns_id)
+);
+
 
 CREATE TABLE dj_rfc_ci (
                 rfc_id BIGINT NOT NULL,
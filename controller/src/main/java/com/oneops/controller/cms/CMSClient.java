@@ -231,6 +231,26 @@ public class CMSClient {
         }
     }
 
+    /**
+     * Prefetches the cms data of the work orders of a step, the work orders are assembled one by one if it fails.
+     *
+     * @param dpmt      the deployment
+     * @param execOrder the step
+     * @return the assembly context for the work orders of the step
+     */
+    public WoAssemblyContext getWoAssemblyContext(CmsDeployment dpmt, int execOrder) {
+        long startTime = System.currentTimeMillis();
+        try {
+            WoAssemblyContext context = cmsWoProvider.getAssemblyContext(dpmt.getDeploymentId(), execOrder);
+            logger.info(dpmt.getDeploymentId() + "-" + execOrder + " Prefetched the work orders of the step, took "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+            return context;
+        } catch (Exception e) {
+            logger.error(dpmt.getDeploymentId() + "-" + execOrder + " Can not prefetch the work orders of the step", e);
+            return new WoAssemblyContext();
+        }
+    }
+
     private void handleWoError(CmsDeployment dpmt, int execOrder, CmsBaseException e) {
         String descr = dpmt.getDescription();
         if (descr == null) {
@@ -312,7 +332,8 @@ public class CMSClient {
         long startTime = System.currentTimeMillis();
         try {
 
-            CmsWorkOrderSimple wo  = cmsWoProvider.getWorkOrderSimple(dpmtRec.getDpmtRecordId(), null, execOrder);
+            WoAssemblyContext assemblyContext = woContext.getAssemblyContext() != null ? woContext.getAssemblyContext() : new WoAssemblyContext();
+            CmsWorkOrderSimple wo  = cmsWoProvider.getWorkOrderSimple(dpmtRec.getDpmtRecordId(), null, execOrder, assemblyContext);
             final long woCreationtime = System.currentTimeMillis() - startTime;
             wo.getSearchTags().put("woCrtTime",String.valueOf(woCreationtime));
             wo.getSearchTags().put(CmsConstants.DEPLOYMENT_MODEL, CmsConstants.DEPLOYMENT_MODEL_DEPLOYER);
@@ -868,67 +889,42 @@ public class CMSClient {
     }
 
     private void decryptCI(CmsCISimple ci) throws GeneralSecurityException {
-        for (String attrName : ci.getCiAttributes().keySet()) {
-            String val = ci.getCiAttributes().get(attrName);
-            if (val != null) {
-                try {
-                    if (val.startsWith(CmsCrypto.ENC_PREFIX)) {
-                        ci.getCiAttributes().put(attrName, cmsCrypto.decrypt(val));
-                        ci.addAttrProps(CmsConstants.SECURED_ATTRIBUTE, attrName, "true");
-                    } else if (val.contains(CmsCrypto.ENC_VAR_PREFIX)) {
-                        ci.getCiAttributes().put(attrName, cmsCrypto.decryptVars(val));
-                        ci.addAttrProps(CmsConstants.SECURED_ATTRIBUTE, attrName, "true");
-                    }
-                } catch (GeneralSecurityException ce) {
-                    logger.error("Error decrypting attribute " + attrName + "; value - " + val + "\n"
-                            + "ci:" + gson.toJson(ci));
-                    throw ce;
-                }
-            }
+        Map<String, String> decrypted;
+        try {
+            decrypted = cmsCrypto.decryptAll(ci.getCiAttributes());
+        } catch (GeneralSecurityException ce) {
+            logger.error(ce.getMessage() + "\n" + "ci:" + gson.toJson(ci));
+            throw ce;
+        }
+        for (Map.Entry<String, String> entry : decrypted.entrySet()) {
+            ci.getCiAttributes().put(entry.getKey(), entry.getValue());
+            ci.addAttrProps(CmsConstants.SECURED_ATTRIBUTE, entry.getKey(), "true");
         }
     }
 
     private void decryptRfc(CmsRfcCISimple rfc, boolean keepEncVarsValues) throws GeneralSecurityException {
-        for (String attrName : rfc.getCiAttributes().keySet()) {
-            String val = rfc.getCiAttributes().get(attrName);
-            if (val != null) {
-                try {
-                    if (val.startsWith(CmsCrypto.ENC_PREFIX)) {
-                        rfc.getCiAttributes().put(attrName, cmsCrypto.decrypt(val));
-                        rfc.addCiAttrProp(CmsConstants.SECURED_ATTRIBUTE, attrName, "true");
-                    } else if (val.contains(CmsCrypto.ENC_VAR_PREFIX)) {
-                        rfc.getCiAttributes().put(attrName, cmsCrypto.decryptVars(val));
-                        rfc.addCiAttrProp(CmsConstants.SECURED_ATTRIBUTE, attrName, "true");
-                        if (keepEncVarsValues) {
-                            rfc.addCiAttrProp(CmsConstants.ENCRYPTED_ATTR_VALUE, attrName, val);
-                        }
-                    }
-                } catch (GeneralSecurityException ce) {
-                    logger.error("Error decrypting attribute " + attrName + "; value - " + val + "\n"
-                            + "rfc:" + gson.toJson(rfc));
-                    throw ce;
-                }
-            }
+        Map<String, String> decrypted;
+        Map<String, String> decryptedBase;
+        try {
+            decrypted = cmsCrypto.decryptAll(rfc.getCiAttributes());
+            //Now decrypt ciBaseAttributes
+            decryptedBase = cmsCrypto.decryptAll(rfc.getCiBaseAttributes());
+        } catch (GeneralSecurityException ce) {
+            logger.error(ce.getMessage() + "\n" + "rfc:" + gson.toJson(rfc));
+            throw ce;
         }
-        //Now decrypt ciBaseAttributes
-        for (String attrName : rfc.getCiBaseAttributes().keySet()) {
-            String val = rfc.getCiBaseAttributes().get(attrName);
-            if (val != null) {
-                try {
-                    if (val.startsWith(CmsCrypto.ENC_PREFIX)) {
-                        rfc.getCiBaseAttributes().put(attrName, cmsCrypto.decrypt(val));
-			rfc.addCiAttrProp(CmsConstants.SECURED_ATTRIBUTE, attrName, "true");
-                    } else if (val.contains(CmsCrypto.ENC_VAR_PREFIX)) {
-                        rfc.getCiBaseAttributes().put(attrName, cmsCrypto.decryptVars(val));
-			rfc.addCiAttrProp(CmsConstants.SECURED_ATTRIBUTE, attrName, "true");
-                    }
-                } catch (GeneralSecurityException ce) {
-                    logger.error("Error decrypting ciBaseAttribute " + attrName + "; value - " + val + "\n"
-                            + "rfc:" + gson.toJson(rfc));
-                    throw ce;
-                }
+        for (Map.Entry<String, String> entry : decrypted.entrySet()) {
+            String attrName = entry.getKey();
+            String val = rfc.getCiAttributes().put(attrName, entry.getValue());
+            rfc.addCiAttrProp(CmsConstants.SECURED_ATTRIBUTE, attrName, "true");
+            if (keepEncVarsValues && !val.startsWith(CmsCrypto.ENC_PREFIX)) {
+                rfc.addCiAttrProp(CmsConstants.ENCRYPTED_ATTR_VALUE, attrName, val);
             }
         }
+        for (Map.Entry<String, String> entry : decryptedBase.entrySet()) {
+            rfc.getCiBaseAttributes().put(entry.getKey(), entry.getValue());
+            rfc.addCiAttrProp(CmsConstants.SECURED_ATTRIBUTE, entry.getKey(), "true");
+        }
     }
 
 
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.controller.cms;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.ParseException;
+import org.springframework.expression.ParserContext;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+
+/**
+ * Keeps the parsed expressions by their text, the compliance filters and offering criteria are the same few
+ * expressions evaluated for every work order. Parsed SpEL expressions are thread safe. Expressions that do
+ * not parse are not cached, every use fails the same way.
+ */
+public class CachingExpressionParser implements ExpressionParser {
+
+    private final ExpressionParser parser;
+    private final Cache<String, Expression> expressions;
+
+    public CachingExpressionParser() {
+        this(new SpelExpressionParser(), 1000);
+    }
+
+    public CachingExpressionParser(ExpressionParser parser, int maxSize) {
+        this.parser = parser;
+        this.expressions = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    }
+
+    @Override
+    public Expression parseExpression(String expressionString) throws ParseException {
+        Expression expression = expressions.getIfPresent(expressionString);
+        if (expression == null) {
+            expression = parser.parseExpression(expressionString);
+            expressions.put(expressionString, expression);
+        }
+        return expression;
+    }
+
+    @Override
+    public Expression parseExpression(String expressionString, ParserContext context) throws ParseException {
+        return parser.parseExpression(expressionString, context);
+    }
+
+    long size() {
+        return expressions.size();
+    }
+}
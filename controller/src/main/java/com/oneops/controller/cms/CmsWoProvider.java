@@ -66,12 +66,16 @@ import com.oneops.cms.util.domain.CmsVar;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.SerializationUtils;
 import org.apache.log4j.Logger;
 
 
@@ -87,6 +91,7 @@ public class CmsWoProvider {
     private static final String IS_PLATFORM_ENABLED_REL_ATTR = "enabled";
     private static final String EXTRA_RUNLIST_PAYLOAD_NAME = "ExtraRunList";
     private static final boolean OFFERING_ENABLED = "true".equals(System.getProperty("controller.offerings.on", "true"));
+    private static final int CHUNK_SIZE = 100;
     private DJDpmtMapper dpmtMapper;
     private OpsMapper opsMapper;
     private CmsCmRfcMrgProcessor cmrfcProcessor;
@@ -386,9 +391,73 @@ public class CmsWoProvider {
         return workOrders;
     }
 
+    /**
+     * Creates the assembly context for the work orders of a deployment step. The dpmt records and the rfcs of the step,
+     * the manifest cis they realize and the platforms of these are fetched in bulk.
+     *
+     * @param deploymentId the deployment id
+     * @param execOrder    the exec order of the step
+     * @return the assembly context
+     */
+    public WoAssemblyContext getAssemblyContext(long deploymentId, int execOrder) {
+        WoAssemblyContext context = new WoAssemblyContext();
+        List<CmsWorkOrder> workOrders = dpmtMapper.getWorkOrders(deploymentId, null, execOrder);
+        workOrders.forEach(context::putWorkOrder);
+
+        Map<Long, Long> rfcIds = new HashMap<>();
+        forEachChunk(workOrders.stream().map(CmsWorkOrder::getRfcId).collect(Collectors.toList()), chunk -> {
+            for (CmsRfcCI rfc : djMapper.getRfcCIByIdList(chunk)) {
+                rfcIds.put(rfc.getCiId(), rfc.getRfcId());
+            }
+        });
+        List<Long> ciIds = new ArrayList<>(rfcIds.keySet());
+        for (CmsRfcCI rfcCi : cmrfcProcessor.getCiByIdList(ciIds, "df")) {
+            context.putRfcCi(rfcIds.get(rfcCi.getCiId()), rfcCi);
+        }
+
+        // the cis added by the deployment are not realized yet, their manifest side is looked up with the rfcs later
+        Set<Long> manifestCiIds = new HashSet<>();
+        forEachChunk(ciIds, chunk -> {
+            for (CmsCIRelation realizedAs : cmProcessor.getCIRelationsByToCiIdsNakedNoAttrs("base.RealizedAs", null, chunk)) {
+                context.put("manifestCiId:" + realizedAs.getToCiId(), realizedAs.getFromCiId());
+                context.put("realizedAs:" + realizedAs.getToCiId(), realizedAs.getFromCiId());
+                manifestCiIds.add(realizedAs.getFromCiId());
+            }
+        });
+        Set<Long> platformIds = new HashSet<>();
+        forEachChunk(new ArrayList<>(manifestCiIds), chunk -> {
+            for (CmsCIRelation requires : cmProcessor.getCIRelationsByToCiIdsNakedNoAttrs("manifest.Requires", null, chunk)) {
+                platformIds.add(requires.getFromCiId());
+            }
+        });
+        for (CmsCI platform : cmProcessor.getCiByIdList(new ArrayList<>(platformIds))) {
+            getEnvAndPopulatePlatEnable(platform, context);
+            for (CmsCIRelation requires : cmProcessor.getFromCIRelationsNaked(platform.getCiId(), "manifest.Requires", null)) {
+                if (manifestCiIds.contains(requires.getToCiId())) {
+                    context.put("requires:" + requires.getToCiId(), Collections.singletonList(requires));
+                    context.put("box:" + requires.getToCiId(), platform);
+                }
+            }
+        }
+        for (CmsCI manifestCi : cmProcessor.getCiByIdList(new ArrayList<>(manifestCiIds))) {
+            context.put("manifest:" + manifestCi.getCiId(), manifestCi);
+        }
+        return context;
+    }
+
+    private static <T> void forEachChunk(List<T> list, Consumer<List<T>> action) {
+        for (int fromIndex = 0; fromIndex < list.size(); fromIndex += CHUNK_SIZE) {
+            action.accept(list.subList(fromIndex, Math.min(fromIndex + CHUNK_SIZE, list.size())));
+        }
+    }
+
     public CmsWorkOrderSimple getWorkOrderSimple(long dpmtRecordId, String state, Integer execOrder) {
+        return getWorkOrderSimple(dpmtRecordId, state, execOrder, new WoAssemblyContext());
+    }
+
+    public CmsWorkOrderSimple getWorkOrderSimple(long dpmtRecordId, String state, Integer execOrder, WoAssemblyContext context) {
         checkControllerCache();
-        CmsWorkOrder wo = getWorkOrder(dpmtRecordId, state, execOrder);
+        CmsWorkOrder wo = getWorkOrder(dpmtRecordId, state, execOrder, context);
         CmsWorkOrderSimple returnObj = null;
         if (wo != null) {
             return cmsUtil.custWorkOrder2Simple(wo);
@@ -404,58 +473,85 @@ public class CmsWoProvider {
 	}
 
     public CmsWorkOrder getWorkOrder(long dpmtRecordId, String state, Integer execOrder) {
+        return getWorkOrder(dpmtRecordId, state, execOrder, new WoAssemblyContext());
+    }
 
-        CmsWorkOrder workOrder = dpmtMapper.getWorkOrder(dpmtRecordId, state, execOrder);
+    /**
+     * Gets the dpmt record and assembles its work order, looking up the data shared with the other work orders
+     * of the step in the context.
+     *
+     * @param dpmtRecordId the dpmt record id
+     * @param state        the state of the record, null for any
+     * @param execOrder    the exec order
+     * @param context      the assembly context of the step
+     * @return the work order, null if there is no such record
+     */
+    public CmsWorkOrder getWorkOrder(long dpmtRecordId, String state, Integer execOrder, WoAssemblyContext context) {
+
+        CmsWorkOrder workOrder = context.takeWorkOrder(dpmtRecordId);
+        if (workOrder == null || (state != null && !state.equals(workOrder.getDpmtRecordState()))) {
+            workOrder = dpmtMapper.getWorkOrder(dpmtRecordId, state, execOrder);
+        }
 
         if (workOrder == null) {
             return null;
         }
 
-        CmsRfcCI rfcNaked = djMapper.getRfcCIById(workOrder.getRfcId());
-        CmsRfcCI rfcCimerged = cmrfcProcessor.getCiById(rfcNaked.getCiId(), "df");
+        CmsRfcCI rfcCimerged = context.takeRfcCi(workOrder.getRfcId());
+        if (rfcCimerged == null) {
+            CmsRfcCI rfcNaked = djMapper.getRfcCIById(workOrder.getRfcId());
+            rfcCimerged = cmrfcProcessor.getCiById(rfcNaked.getCiId(), "df");
+        }
 
         workOrder.setRfcCi(rfcCimerged);
-        populateWoBase(workOrder);
+        populateWoBase(workOrder, context);
 
 
         Map<Long, CmsCI> manifestToTemplateMap = new HashMap<>();
 
-        CmsCI env = getEnvAndPopulatePlatEnable(workOrder.getBox());
+        CmsCI env = getEnv(workOrder.getBox(), context);
+        CmsCI cloud = workOrder.getCloud();
+        CmsCI box = workOrder.getBox();
 
-        Map<String, String> globalVars = cmsUtil.getGlobalVars(env);
-        Map<String, String> cloudVars = cmsUtil.getCloudVars(workOrder.getCloud());
-        Map<String, String> localVars = cmsUtil.getLocalVars(workOrder.getBox());
+        Map<String, String> globalVars = context.get("globalVars:" + env.getCiId(), () -> cmsUtil.getGlobalVars(env));
+        Map<String, String> cloudVars = context.get("cloudVars:" + cloud.getCiId(), () -> cmsUtil.getCloudVars(cloud));
+        Map<String, String> localVars = context.get("localVars:" + box.getCiId(), () -> cmsUtil.getLocalVars(box));
 
-        workOrder.putPayLoadEntry(CmsUtil.CLOUD_VARS_PAYLOAD_NAME, cmsUtil.getCloudVarsRfcs(workOrder.getCloud()));
-        workOrder.putPayLoadEntry(CmsUtil.GLOBAL_VARS_PAYLOAD_NAME, cmsUtil.getGlobalVarsRfcs(env));
-        workOrder.putPayLoadEntry(CmsUtil.LOCAL_VARS_PAYLOAD_NAME, cmsUtil.getLocalVarsRfcs(workOrder.getBox()));
+        workOrder.putPayLoadEntry(CmsUtil.CLOUD_VARS_PAYLOAD_NAME, context.getCopies("cloudVarsRfcs:" + cloud.getCiId(), () -> cmsUtil.getCloudVarsRfcs(cloud)));
+        workOrder.putPayLoadEntry(CmsUtil.GLOBAL_VARS_PAYLOAD_NAME, context.getCopies("globalVarsRfcs:" + env.getCiId(), () -> cmsUtil.getGlobalVarsRfcs(env)));
+        workOrder.putPayLoadEntry(CmsUtil.LOCAL_VARS_PAYLOAD_NAME, context.getCopies("localVarsRfcs:" + box.getCiId(), () -> cmsUtil.getLocalVarsRfcs(box)));
 
         //basic staff
         //put realized as
         workOrder.putPayLoadEntry("RealizedAs", getRfcCIRelatives(workOrder.getRfcCi(), "base.RealizedAs", "to", null, "df"));
 
         //put env
-        List<CmsRfcCI> envs = getRfcCIRelatives(workOrder.getBox().getCiId(), "manifest.ComposedOf", "to", null, "df");
+        List<CmsRfcCI> envs = context.getCopies("Environment:" + box.getCiId(), () -> getRfcCIRelatives(box.getCiId(), "manifest.ComposedOf", "to", null, "df"));
         workOrder.putPayLoadEntry("Environment", envs);
 
         //put assembly
-        List<CmsRfcCI> assemblys = getRfcCIRelatives(workOrder.getPayLoad().get("Environment").get(0), "base.RealizedIn", "to", null, "df");
+        List<CmsRfcCI> assemblys = context.getCopies("Assembly:" + envs.get(0).getCiId(), () -> getRfcCIRelatives(envs.get(0), "base.RealizedIn", "to", null, "df"));
         workOrder.putPayLoadEntry("Assembly", assemblys);
 
         //put Organization
-        List<CmsRfcCI> orgs = getRfcCIRelatives(workOrder.getPayLoad().get("Assembly").get(0), "base.Manages", "to", null, "df");
+        List<CmsRfcCI> orgs = context.getCopies("Organization:" + assemblys.get(0).getCiId(), () -> getRfcCIRelatives(assemblys.get(0), "base.Manages", "to", null, "df"));
         workOrder.putPayLoadEntry("Organization", orgs);
 
         //put watchedBy and loggedBy
         if (workOrder.getPayLoad().get("RealizedAs").size() > 0) {
-            workOrder.putPayLoadEntry("WatchedBy", getWatchedByBy(workOrder.getPayLoad().get("RealizedAs").get(0), cloudVars, globalVars, localVars));
-            workOrder.putPayLoadEntry("LoggedBy", getLoggedBy(workOrder.getPayLoad().get("RealizedAs").get(0)));
-            workOrder.putPayLoadEntry("EscortedBy", getEscortedBy(workOrder.getPayLoad().get("RealizedAs").get(0), workOrder.getRfcCi().getRfcAction(), cloudVars, globalVars, localVars));
+            // the variables are resolved for the cloud, the platform and the env come with the manifest ci
+            CmsRfcCI realizedAs = workOrder.getPayLoad().get("RealizedAs").get(0);
+            String action = workOrder.getRfcCi().getRfcAction();
+            workOrder.putPayLoadEntry("WatchedBy", context.getCopies("WatchedBy:" + realizedAs.getCiId() + ":" + cloud.getCiId(),
+                    () -> getWatchedByBy(realizedAs, cloudVars, globalVars, localVars)));
+            workOrder.putPayLoadEntry("LoggedBy", context.getCopies("LoggedBy:" + realizedAs.getCiId(), () -> getLoggedBy(realizedAs)));
+            workOrder.putPayLoadEntry("EscortedBy", context.getCopies("EscortedBy:" + realizedAs.getCiId() + ":" + cloud.getCiId() + ":" + action,
+                    () -> getEscortedBy(realizedAs, action, cloudVars, globalVars, localVars)));
         }
 
         // now lets process the custom payloads and this will override the default ones as well
 
-        processCustomPayloads(workOrder, manifestToTemplateMap, env, globalVars, localVars, cloudVars);
+        processCustomPayloads(workOrder, manifestToTemplateMap, env, globalVars, localVars, cloudVars, context);
         //from here all payloads are default ones unless overriden by the custom payload definitions
         //put depends on
         if (!workOrder.getPayLoad().containsKey(DEPENDS_ON)) {
@@ -472,15 +568,15 @@ public class CmsWoProvider {
         }
         //put serviecedBy
         if (!workOrder.getPayLoad().containsKey(SERVICED_BY)) {
-            workOrder.putPayLoadEntry(SERVICED_BY, getServicedBy(workOrder.getRfcCi()));
+            workOrder.putPayLoadEntry(SERVICED_BY, context.getCopies("ServicedBy:" + box.getCiId(), () -> getServicedBy(box)));
         }
         //put RequiresComputes
         if (!workOrder.getPayLoad().containsKey(REQUIRES_COMPUTES_PAYLOAD_NAME)) {
-            workOrder.putPayLoadEntry(REQUIRES_COMPUTES_PAYLOAD_NAME, getRequiresComputes(workOrder.getRfcCi()));
+            workOrder.putPayLoadEntry(REQUIRES_COMPUTES_PAYLOAD_NAME, context.getCopies("RequiresComputes:" + box.getCiId(), () -> getRequiresComputes(box)));
         }
 
         //add the managed-via ci's compute cloud service and then read env_vars of that cloud-service. set those env_vars to wo.config
-        setEnvVars(workOrder, workOrder.getPayLoad().get(MANAGED_VIA));
+        setEnvVars(workOrder, workOrder.getPayLoad().get(MANAGED_VIA), context);
 	
         //fetch and update offerings
         List<CmsRfcCI> offerings = new ArrayList<>();
@@ -495,23 +591,33 @@ public class CmsWoProvider {
         workOrder.putPayLoadEntry(OFFERING, offerings);
 
         //add matching compliance objects
-        workOrder.putPayLoadEntry(EXTRA_RUNLIST_PAYLOAD_NAME, getMatchingCloudCompliance(workOrder));
+        workOrder.putPayLoadEntry(EXTRA_RUNLIST_PAYLOAD_NAME, getMatchingCloudCompliance(workOrder, context));
 
-        addVarsForConfig(workOrder);
+        addVarsForConfig(workOrder, context);
         return workOrder;
     }
 
     protected void processCustomPayloads(CmsWorkOrder workOrder, Map<Long, CmsCI> manifestToTemplateMap, CmsCI env,
                                          Map<String, String> globalVars, Map<String, String> localVars, Map<String, String> cloudVars) {
+        processCustomPayloads(workOrder, manifestToTemplateMap, env, globalVars, localVars, cloudVars, new WoAssemblyContext());
+    }
+
+    private void processCustomPayloads(CmsWorkOrder workOrder, Map<Long, CmsCI> manifestToTemplateMap, CmsCI env,
+                                       Map<String, String> globalVars, Map<String, String> localVars, Map<String, String> cloudVars,
+                                       WoAssemblyContext context) {
         //lets get the payload def from the template
         long manifestCiId = workOrder.getPayLoad().get("RealizedAs").get(0).getCiId();
         if (!manifestToTemplateMap.containsKey(manifestCiId)) {
-            CmsCI manifestCi = cmProcessor.getCiById(manifestCiId);
-            CmsCI templObj = cmProcessor.getTemplateObjForManifestObj(manifestCi, env);
-            if (templObj == null) {
-                logger.error("Can not find manifest template object for manifest ci id = " + manifestCi.getCiId() + " ciName" + manifestCi.getCiName());
-            } else {
-                manifestToTemplateMap.put(manifestCi.getCiId(), templObj);
+            CmsCI templObj = context.get("template:" + manifestCiId, () -> {
+                CmsCI manifestCi = context.get("manifest:" + manifestCiId, () -> cmProcessor.getCiById(manifestCiId));
+                CmsCI template = cmProcessor.getTemplateObjForManifestObj(manifestCi, env);
+                if (template == null) {
+                    logger.error("Can not find manifest template object for manifest ci id = " + manifestCi.getCiId() + " ciName" + manifestCi.getCiName());
+                }
+                return template;
+            });
+            if (templObj != null) {
+                manifestToTemplateMap.put(manifestCiId, templObj);
             }
         }
 
@@ -531,16 +637,17 @@ public class CmsWoProvider {
                 CmsRfcCI managedViaEntity = managedVia.get(0);
                 managedViaBomCid = managedViaEntity.getCiId();
                 CmsCI managedViaManifestCi = new CmsCI();
-                long managedViaManifestCiId = getRealizedAs(managedViaEntity.getCiId());
+                long managedViaManifestCiId = context.get("realizedAs:" + managedViaBomCid, () -> getRealizedAs(managedViaEntity.getCiId()));
                 managedViaManifestCi.setCiId(managedViaManifestCiId);
                 managedViaManifestCi.setCiClassName(managedViaEntity.getCiClassName().replace("bom.", "manifest."));
 
-                managedViaTemplateCi = cmProcessor.getTemplateObjForManifestObj(managedViaManifestCi, env);
+                managedViaTemplateCi = context.get("template:" + managedViaManifestCiId,
+                        () -> cmProcessor.getTemplateObjForManifestObj(managedViaManifestCi, env));
                 if (managedViaTemplateCi == null) {
                     logger.warn("template ci not found for ci id: " +  managedViaManifestCi.getCiId());
                 }
             }
-            processPayLoadDef(workOrder, manifestToTemplateMap.get(manifestCiId), managedViaTemplateCi, managedViaBomCid, cloudVars, globalVars, localVars);
+            processPayLoadDef(workOrder, manifestToTemplateMap.get(manifestCiId), managedViaTemplateCi, managedViaBomCid, cloudVars, globalVars, localVars, context);
         }
 
         //put proxy
@@ -549,11 +656,11 @@ public class CmsWoProvider {
         }
     }
 
-    private void setEnvVars(CmsWorkOrder workOrder, List<CmsRfcCI> managedVia) {
+    private void setEnvVars(CmsWorkOrder workOrder, List<CmsRfcCI> managedVia, WoAssemblyContext context) {
         if (managedVia != null && managedVia.size() > 0) {
             long managedViaCiId = managedVia.get(0).getCiId();
             if (managedViaCiId > 0) {
-                Map<String, Map<String, CmsCI>> cloudServices = getServices(managedViaCiId, workOrder.getCloud());
+                Map<String, Map<String, CmsCI>> cloudServices = getServices(managedViaCiId, workOrder.getCloud(), context);
                 Map<String, CmsCI> cloudService = cloudServices.get("compute");
                 if (cloudService != null) {
                     CmsCI cloudServiceCi = cloudService.get(workOrder.getCloud().getCiName());
@@ -573,9 +680,10 @@ public class CmsWoProvider {
         }
     }
 
-    private void addVarsForConfig(CmsWorkOrder workOrder) {
+    private void addVarsForConfig(CmsWorkOrder workOrder, WoAssemblyContext context) {
         String clazz = cmsUtil.getShortClazzName(workOrder.getRfcCi().getCiClassName());
-        List<CmsVar> vars = cmProcessor.getCmVarByLongestMatchingCriteria(clazz + ".%", workOrder.getRfcCi().getNsPath());
+        String nsPath = workOrder.getRfcCi().getNsPath();
+        List<CmsVar> vars = context.get("config:" + clazz + ":" + nsPath, () -> cmProcessor.getCmVarByLongestMatchingCriteria(clazz + ".%", nsPath));
         if (vars != null && !vars.isEmpty()) {
             Map<String, String> varMap = vars.stream().collect(Collectors.toMap(var -> {
                     return StringUtils.substringAfter(var.getName(), clazz + ".");
@@ -620,13 +728,18 @@ public class CmsWoProvider {
     }
 
     List<CmsRfcCI> getMatchingCloudCompliance(CmsWorkOrder wo) {
+        return getMatchingCloudCompliance(wo, new WoAssemblyContext());
+    }
+
+    private List<CmsRfcCI> getMatchingCloudCompliance(CmsWorkOrder wo, WoAssemblyContext context) {
         CmsCI platformCi = wo.getBox();
         CmsCIAttribute autoComplyAttr = platformCi.getAttribute(ATTR_NAME_AUTO_COMPLY);
         if (!Boolean.valueOf(autoComplyAttr.getDfValue())) {
             return Collections.emptyList();
         }
 
-        List<CmsCIRelation> complianceRelations = getComplianceRelations(wo);
+        List<CmsCIRelation> complianceRelations = context.get("compliance:" + wo.getCloud().getCiId(),
+                () -> getComplianceRelations(wo.getCloud().getCiId()));
         List<CmsRfcCI> list = complianceRelations.stream()
                 .map(complianceRel -> complianceRel.getToCi())
                 .filter(complianceCi -> (isComplianceEnabled(complianceCi)) && expressionEvaluator.isExpressionMatching(complianceCi, wo))
@@ -636,7 +749,7 @@ public class CmsWoProvider {
     }
 
     List<CmsCI> getMatchingCloudCompliance(CmsActionOrder ao) {
-        List<CmsCIRelation> complianceRelations = getComplianceRelations(ao);
+        List<CmsCIRelation> complianceRelations = getComplianceRelations(ao.getCloud().getCiId());
         List<CmsCI> list = complianceRelations.stream()
                 .map(complianceRel -> complianceRel.getToCi())
                 .filter(complianceCi -> expressionEvaluator.isExpressionMatching(complianceCi, ao))
@@ -645,8 +758,8 @@ public class CmsWoProvider {
         return list;
     }
 
-    private List<CmsCIRelation> getComplianceRelations(CmsWorkOrderBase wo) {
-        List<CmsCIRelation> relations = cmProcessor.getFromCIRelations(wo.getCloud().getCiId(), BASE_COMPLIES_WITH, null);
+    private List<CmsCIRelation> getComplianceRelations(long cloudId) {
+        List<CmsCIRelation> relations = cmProcessor.getFromCIRelations(cloudId, BASE_COMPLIES_WITH, null);
         return relations;
     }
 
@@ -657,9 +770,14 @@ public class CmsWoProvider {
 
     private void processPayLoadDef(CmsWorkOrderBase wo, CmsCI templateCi, CmsCI managedViaTemplateCi,
                                    long managedViaBomCid, Map<String, String> cloudVars, Map<String, String> globalVars, Map<String, String> localVars) {
+        processPayLoadDef(wo, templateCi, managedViaTemplateCi, managedViaBomCid, cloudVars, globalVars, localVars, new WoAssemblyContext());
+    }
+
+    private void processPayLoadDef(CmsWorkOrderBase wo, CmsCI templateCi, CmsCI managedViaTemplateCi,
+                                   long managedViaBomCid, Map<String, String> cloudVars, Map<String, String> globalVars, Map<String, String> localVars,
+                                   WoAssemblyContext context) {
 
-        List<CmsCIRelation> payloadRels = cmProcessor.getFromCIRelations(templateCi.getCiId(),
-                "mgmt.manifest.Payload", "mgmt.manifest.Qpath");
+        List<CmsCIRelation> payloadRels = getPayloadDefinitions(templateCi, context);
         long anchorId = 0;
         if (wo instanceof CmsWorkOrder) {
             anchorId = ((CmsWorkOrder) wo).getRfcCi().getCiId();
@@ -669,14 +787,18 @@ public class CmsWoProvider {
         populatePayloads(wo, payloadRels, anchorId, cloudVars, globalVars, localVars, true);
 
         if (managedViaTemplateCi != null) {
-            List<CmsCIRelation> managedViasPayloadRels = cmProcessor.getFromCIRelations(managedViaTemplateCi.getCiId(),
-                    "mgmt.manifest.Payload", "mgmt.manifest.Qpath");
+            List<CmsCIRelation> managedViasPayloadRels = getPayloadDefinitions(managedViaTemplateCi, context);
             populatePayloads(wo, managedViasPayloadRels, managedViaBomCid, cloudVars, globalVars, localVars, false);
         } else {
             logger.info("managedViaTemplateCi null for : " + templateCi.getCiClassName());
         }
     }
 
+    private List<CmsCIRelation> getPayloadDefinitions(CmsCI templateCi, WoAssemblyContext context) {
+        return context.get("payloads:" + templateCi.getCiId(),
+                () -> cmProcessor.getFromCIRelations(templateCi.getCiId(), "mgmt.manifest.Payload", "mgmt.manifest.Qpath"));
+    }
+
     private void populatePayloads(CmsWorkOrderBase wo, List<CmsCIRelation> payloadRels, long anchorId, Map<String, String> cloudVars,
                                   Map<String, String> globalVars, Map<String, String> localVars, boolean overwrite) {
         logger.info("total # of payloads: " + payloadRels.size());
@@ -738,11 +860,11 @@ public class CmsWoProvider {
 
     private void populateWoBase(List<? extends CmsWorkOrderBase> wos) {
         for (CmsWorkOrderBase wo : wos) {
-            populateWoBase(wo);
+            populateWoBase(wo, new WoAssemblyContext());
         }
     }
 
-    private void populateWoBase(CmsWorkOrderBase wo) {
+    private void populateWoBase(CmsWorkOrderBase wo, WoAssemblyContext context) {
         long anchorCiId = 0;
         String targetClassName = null;
         if (wo instanceof CmsWorkOrder) {
@@ -758,22 +880,22 @@ public class CmsWoProvider {
         if (targetClassName != null && targetClassName.startsWith(CLOUDSERVICEPREFIX)) {
             wo.setCloud(getCloudForCloudService(anchorCiId));
         } else {
-            wo.setBox(getBox(anchorCiId));
-            wo.setCloud(getCloud(anchorCiId,wo.getBox()));
-            wo.setServices(getServices(anchorCiId, wo.getCloud()));
+            wo.setBox(getBox(anchorCiId, context));
+            wo.setCloud(getCloud(anchorCiId, wo.getBox(), context));
+            wo.setServices(getServices(anchorCiId, wo.getCloud(), context));
         }
     }
 
 
-    private Map<String, Map<String, CmsCI>> getServices(long ciId, CmsCI cloud) {
+    private Map<String, Map<String, CmsCI>> getServices(long ciId, CmsCI cloud, WoAssemblyContext context) {
 
         Map<String, Map<String, CmsCI>> services = new HashMap<>();
-        List<CmsRfcRelation> realizedAsRels = cmrfcProcessor.getToCIRelationsNaked(ciId, "base.RealizedAs", null, null);
-        List<CmsCI> zones = cmProcessor.getCiBy3NsLike(getCloudNsPath(cloud), ZONE_CLASS, null);
+        Long manifestCiId = getManifestCiId(ciId, context);
+        List<CmsCI> zones = context.get("zones:" + cloud.getCiId(), () -> cmProcessor.getCiBy3NsLike(getCloudNsPath(cloud), ZONE_CLASS, null));
 
-        if (realizedAsRels.size() > 0) {
-            CmsRfcRelation realizedRel = realizedAsRels.get(0);
-            List<CmsCIRelation> requiresList = cmProcessor.getToCIRelationsNaked(realizedRel.getFromCiId(), "manifest.Requires", null);
+        if (manifestCiId != null) {
+            List<CmsCIRelation> requiresList = context.get("requires:" + manifestCiId,
+                    () -> cmProcessor.getToCIRelationsNaked(manifestCiId, "manifest.Requires", null));
             if (requiresList.size() > 0) {
                 CmsCIRelation requiresRel = requiresList.get(0);
                 CmsCIRelationAttribute servicesAttr = requiresRel.getAttribute("services");
@@ -795,19 +917,21 @@ public class CmsWoProvider {
                         attrsQuery.add(attrCondition);
 
                         //get cloud level service
-                        List<CmsCIRelation> cloudServiceRels = getServiceRelations(cloud, attrsQuery);
+                        List<CmsCIRelation> cloudServiceRels = context.get("service:" + cloud.getCiId() + ":" + requredService,
+                                () -> getServiceRelations(cloud, attrsQuery));
                         addToServices(services, requredService, cloud.getCiName(), cloudServiceRels);
 
                         //get zone level service
                         for (CmsCI zone : zones) {
-                            List<CmsCIRelation> zoneServiceRels = getServiceRelations(zone, attrsQuery);
+                            List<CmsCIRelation> zoneServiceRels = context.get("service:" + zone.getCiId() + ":" + requredService,
+                                    () -> getServiceRelations(zone, attrsQuery));
                             addToServices(services, requredService, cloud.getCiName() + "/" + zone.getCiName(), zoneServiceRels);
                         }
                     }
                 }
             } else {
                 throw new CmsException(CmsError.CMS_CANT_FIND_REQUIRES_FOR_CI_ERROR,
-                        "can't find Requires for manifest ci with ciId=" + realizedRel.getFromCiId());
+                        "can't find Requires for manifest ci with ciId=" + manifestCiId);
             }
         } else {
             throw new CmsException(CmsError.CMS_CANT_FIND_REALIZEDAS_FOR_BOMC_ERROR,
@@ -828,7 +952,8 @@ public class CmsWoProvider {
 
     private void addToServices(Map<String, Map<String, CmsCI>> services, String requredService, String ciName, List<CmsCIRelation> serviceRels) {
         if (serviceRels.size() > 0) {
-            CmsCI serviceCi = serviceRels.get(0).getToCi();
+            // the service relations are shared by the work orders of the step
+            CmsCI serviceCi = SerializationUtils.clone(serviceRels.get(0).getToCi());
             if (!services.containsKey(requredService)) {
                 services.put(requredService, new LinkedHashMap<>());
             }
@@ -836,24 +961,35 @@ public class CmsWoProvider {
         }
     }
 
-    private CmsCI getBox(long ciId) {
-
-        CmsCI box = null;
-        List<CmsRfcRelation> realizedAsRels = cmrfcProcessor.getToCIRelationsNakedNoAttrs(ciId, "base.RealizedAs", null, null);
-        if (realizedAsRels.size() > 0) {
-            List<CmsCIRelation> boxList = cmProcessor.getToCIRelations(realizedAsRels.get(0).getFromCiId(), "manifest.Requires", null);
+    private CmsCI getBox(long ciId, WoAssemblyContext context) {
+        Long manifestCiId = getManifestCiId(ciId, context);
+        if (manifestCiId == null) {
+            return null;
+        }
+        return context.getCopy("box:" + manifestCiId, () -> {
+            List<CmsCIRelation> boxList = cmProcessor.getToCIRelations(manifestCiId, "manifest.Requires", null);
             if (boxList.size() > 0) {
-                box = boxList.get(0).getFromCi();
+                CmsCI box = boxList.get(0).getFromCi();
+                getEnvAndPopulatePlatEnable(box, context);
+                return box;
             }
-        }
+            return null;
+        });
+    }
 
-        return box;
+    /**
+     * Gets the manifest ci id of a bom ci, the RealizedAs of a bom ci added by the deployment is still an rfc.
+     */
+    private Long getManifestCiId(long ciId, WoAssemblyContext context) {
+        return context.get("manifestCiId:" + ciId, () -> {
+            List<CmsRfcRelation> realizedAsRels = cmrfcProcessor.getToCIRelationsNakedNoAttrs(ciId, "base.RealizedAs", null, null);
+            return realizedAsRels.size() > 0 ? realizedAsRels.get(0).getFromCiId() : null;
+        });
     }
 
-    private List<CmsRfcCI> getRequiresComputes(CmsRfcCI rfc) {
+    private List<CmsRfcCI> getRequiresComputes(CmsCI platform) {
 
         List<CmsRfcCI> computes = new ArrayList<>();
-        CmsCI platform = getBox(rfc.getCiId());
 
         List<CmsCIRelation> manifestComputeList = cmProcessor.getFromCIRelationsNakedNoAttrs(platform.getCiId(), "manifest.Requires", null, "Compute");
 
@@ -867,12 +1003,10 @@ public class CmsWoProvider {
     }
 
 
-    private List<CmsRfcCI> getServicedBy(CmsRfcCI rfc) {
+    private List<CmsRfcCI> getServicedBy(CmsCI box) {
 
         List<CmsRfcCI> iaases = new ArrayList<>();
 
-        CmsCI box = getBox(rfc.getCiId());
-
         List<CmsCIRelation> iaasList = cmProcessor.getFromCIRelations(box.getCiId(), "manifest.ServicedBy", "manifest.Iaas");
         for (CmsCIRelation rel : iaasList) {
             CmsRfcCI iaas = rfcUtil.mergeRfcAndCi(null, rel.getToCi(), "dj");
@@ -961,23 +1095,42 @@ public class CmsWoProvider {
     }
 
     private CmsCI getEnvAndPopulatePlatEnable(CmsCI box) {
-        if (box != null) {
-            List<CmsCIRelation> envRels = cmProcessor.getToCIRelations(box.getCiId(), "manifest.ComposedOf", "manifest.Environment");
-            if (envRels.size() > 0) {
-                CmsCIRelation composedOf = envRels.get(0);
-                if (composedOf.getAttribute(IS_PLATFORM_ENABLED_REL_ATTR) != null) {
-                    CmsCIAttribute platEnabledAttr = new CmsCIAttribute();
-                    platEnabledAttr.setAttributeName(IS_PLATFORM_ENABLED_ATTR);
-                    platEnabledAttr.setDfValue(composedOf.getAttribute(IS_PLATFORM_ENABLED_REL_ATTR).getDfValue());
-                    platEnabledAttr.setDjValue(composedOf.getAttribute(IS_PLATFORM_ENABLED_REL_ATTR).getDfValue());
-                    box.addAttribute(platEnabledAttr);
-                }
-                return composedOf.getFromCi();
+        return getEnvAndPopulatePlatEnable(box, new WoAssemblyContext());
+    }
+
+    private CmsCI getEnvAndPopulatePlatEnable(CmsCI box, WoAssemblyContext context) {
+        CmsCIRelation composedOf = getComposedOf(box, context);
+        if (composedOf != null) {
+            if (composedOf.getAttribute(IS_PLATFORM_ENABLED_REL_ATTR) != null) {
+                CmsCIAttribute platEnabledAttr = new CmsCIAttribute();
+                platEnabledAttr.setAttributeName(IS_PLATFORM_ENABLED_ATTR);
+                platEnabledAttr.setDfValue(composedOf.getAttribute(IS_PLATFORM_ENABLED_REL_ATTR).getDfValue());
+                platEnabledAttr.setDjValue(composedOf.getAttribute(IS_PLATFORM_ENABLED_REL_ATTR).getDfValue());
+                box.addAttribute(platEnabledAttr);
             }
+            return composedOf.getFromCi();
         }
         return null;
     }
 
+    /**
+     * Gets the env of a platform shared through the context, the platform is populated when it is loaded.
+     */
+    private CmsCI getEnv(CmsCI box, WoAssemblyContext context) {
+        CmsCIRelation composedOf = getComposedOf(box, context);
+        return composedOf != null ? composedOf.getFromCi() : null;
+    }
+
+    private CmsCIRelation getComposedOf(CmsCI box, WoAssemblyContext context) {
+        if (box == null) {
+            return null;
+        }
+        return context.get("ComposedOf:" + box.getCiId(), () -> {
+            List<CmsCIRelation> envRels = cmProcessor.getToCIRelations(box.getCiId(), "manifest.ComposedOf", "manifest.Environment");
+            return envRels.size() > 0 ? envRels.get(0) : null;
+        });
+    }
+
     private List<CmsRfcCI> getRfcCIRelatives(CmsRfcCI rfc, String relName, String direction, String className, String attrValue) {
         return getRfcCIRelatives(rfc.getCiId(), relName, direction, className, attrValue);
     }
@@ -1016,14 +1169,15 @@ public class CmsWoProvider {
     }
 
 
-    private CmsCI getCloud(long ciId, CmsCI box) {
+    private CmsCI getCloud(long ciId, CmsCI box, WoAssemblyContext context) {
         List<CmsRfcRelation> cloudRels = cmrfcProcessor.getFromCIRelationsNakedNoAttrs(ciId, "base.DeployedTo", null, "account.Cloud");
         //Add other attributes as CI attributes for work order, viz deploymentOrder, percentage
 
         if (cloudRels.size() > 0) {
             CmsCI cloud = cmProcessor.getCiById(cloudRels.get(0).getToCiId());
             //Get Clouds from
-          List<CmsCIRelation> platformCloudRels = cmProcessor.getFromCIRelationsByToCiIds(box.getCiId(), "base.Consumes", null,Collections.singletonList(cloud.getCiId()));
+          List<CmsCIRelation> platformCloudRels = context.get("Consumes:" + box.getCiId() + ":" + cloud.getCiId(),
+              () -> cmProcessor.getFromCIRelationsByToCiIds(box.getCiId(), "base.Consumes", null, Collections.singletonList(cloud.getCiId())));
           List<CmsRfcRelation> realizedAsRels = cmrfcProcessor.getToCIRelationsNaked(ciId, "base.RealizedAs", null, null);
             if (realizedAsRels.size() > 0 && realizedAsRels.get(0).getAttribute("priority") != null) {
                 String priority = realizedAsRels.get(0).getAttribute("priority").getNewValue();
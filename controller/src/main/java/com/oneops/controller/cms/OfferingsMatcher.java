@@ -10,8 +10,12 @@ import org.springframework.expression.ExpressionParser;
 import org.springframework.expression.spel.support.StandardEvaluationContext;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * File created by oleg on 9/28/16.
@@ -20,6 +24,7 @@ public class OfferingsMatcher {
     private static Logger logger = Logger.getLogger(OfferingsMatcher.class);
     private CmsCmProcessor cmsCmProcessor;
     private ExpressionParser exprParser;
+    private final Map<String, Offerings> offeringsByNs = new ConcurrentHashMap<>();
 
     public static String convert(String elasticExp) {
         return elasticExp.replace(":", "=='").replace("*.[1 TO *]", "[a-zA-Z0-9.]*").replace(".size", "['size']").replaceFirst("ciClassName==", "ciClassName matches ").replace(".Compute", ".Compute'").replace(".*Compute", ".*Compute'")+"'";
@@ -39,7 +44,30 @@ public class OfferingsMatcher {
 
     List<CmsCI> getEligbleOfferings(CmsRfcCISimple cmsRfcCISimple, String offeringNS) {
         List<CmsCI> offerings = new ArrayList<>(); 
+        StandardEvaluationContext context = new StandardEvaluationContext();
+        context.setRootObject(cmsRfcCISimple);
+        for (Offering offering : getOfferings(offeringNS)) {
+            boolean match = (boolean) offering.criteria.getValue(context, Boolean.class);
+            if (match){
+                offerings.add(offering.ci);
+            }
+        }
+        return offerings;
+    }
+
+    /**
+     * Gets the offerings of the namespace with their parsed criteria. The offering cis are checked without their
+     * attributes on every call, updating an attribute updates the ci too, so the offerings are loaded again only
+     * when one of them was added, updated or removed.
+     */
+    private List<Offering> getOfferings(String offeringNS) {
+        String version = getVersion(cmsCmProcessor.getCiBy3Naked(offeringNS, "cloud.Offering", null));
+        Offerings cached = offeringsByNs.get(offeringNS);
+        if (cached != null && cached.version.equals(version)) {
+            return cached.offerings;
+        }
         List<CmsCI> list = cmsCmProcessor.getCiBy3(offeringNS, "cloud.Offering", null);
+        List<Offering> offerings = new ArrayList<>();
         for (CmsCI ci: list){
             CmsCIAttribute criteriaAttribute = ci.getAttribute("criteria");
             String criteria = criteriaAttribute.getDfValue();
@@ -49,17 +77,39 @@ public class OfferingsMatcher {
                 criteria = convert(criteria);
                 logger.info("Converted SPEL criteria:"+criteria);
             }
-            Expression expression = exprParser.parseExpression(criteria);
-            StandardEvaluationContext context = new StandardEvaluationContext();
-            context.setRootObject(cmsRfcCISimple);
-            boolean match = (boolean) expression.getValue(context, Boolean.class);
-            if (match){
-                offerings.add(ci);
-            }
+            offerings.add(new Offering(ci, exprParser.parseExpression(criteria)));
         }
+        offeringsByNs.put(offeringNS, new Offerings(getVersion(list), offerings));
         return offerings;
     }
 
+    private static String getVersion(List<CmsCI> offerings) {
+        return offerings.stream()
+                .sorted(Comparator.comparingLong(CmsCI::getCiId))
+                .map(ci -> ci.getCiId() + ":" + (ci.getUpdated() == null ? 0 : ci.getUpdated().getTime()))
+                .collect(Collectors.joining(","));
+    }
+
+    private static class Offering {
+        private final CmsCI ci;
+        private final Expression criteria;
+
+        private Offering(CmsCI ci, Expression criteria) {
+            this.ci = ci;
+            this.criteria = criteria;
+        }
+    }
+
+    private static class Offerings {
+        private final String version;
+        private final List<Offering> offerings;
+
+        private Offerings(String version, List<Offering> offerings) {
+            this.version = version;
+            this.offerings = offerings;
+        }
+    }
+
     public static void main(String[] args) {
         String elasticExp= "(ciClassName:bom.*.[1 TO *].Compute OR ciClassName:bom.Compute) AND ciAttributes.size:M";
         if (isLikelyElasticExpression(elasticExp)){
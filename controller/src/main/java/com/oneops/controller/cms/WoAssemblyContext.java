@@ -0,0 +1,120 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.controller.cms;
+
+import com.oneops.cms.dj.domain.CmsRfcCI;
+import com.oneops.cms.dj.domain.CmsWorkOrder;
+import org.apache.commons.lang3.SerializationUtils;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * The cms data shared by the work orders of one deployment step. The work orders of a step are mostly
+ * instances of the same few components in the same platforms and clouds, so their manifest cis, templates,
+ * payload definitions, variables and cloud services are looked up once for the step instead of once per
+ * work order. {@link CmsWoProvider#getAssemblyContext(long, int)} prefetches the dpmt records, the rfcs
+ * and the manifest side of the step in bulk, the rest is loaded on first use.
+ * <p>
+ * The context is meant to live while a step is dispatched, it is not refreshed. The work orders of a step
+ * are assembled in parallel, so it is thread safe; a value may be loaded twice by racing threads.
+ * <p>
+ * The values are shared by every work order of the step: lists and maps are kept unmodifiable, and the cis
+ * that end up in a work order are taken with {@link #getCopy} or {@link #getCopies} so the work order owns them.
+ */
+public class WoAssemblyContext {
+
+    private final Map<Long, CmsWorkOrder> workOrders = new ConcurrentHashMap<>();
+    private final Map<Long, CmsRfcCI> rfcCis = new ConcurrentHashMap<>();
+    private final Map<String, Optional<Object>> values = new ConcurrentHashMap<>();
+
+    void putWorkOrder(CmsWorkOrder workOrder) {
+        workOrders.put(workOrder.getDpmtRecordId(), workOrder);
+    }
+
+    /**
+     * Takes the prefetched dpmt record, each record is assembled once per step.
+     */
+    CmsWorkOrder takeWorkOrder(long dpmtRecordId) {
+        return workOrders.remove(dpmtRecordId);
+    }
+
+    void putRfcCi(long rfcId, CmsRfcCI rfcCi) {
+        rfcCis.put(rfcId, rfcCi);
+    }
+
+    /**
+     * Takes the prefetched ci of a work order rfc merged with the rfc, the work order owns it from then on.
+     */
+    CmsRfcCI takeRfcCi(long rfcId) {
+        return rfcCis.remove(rfcId);
+    }
+
+    void put(String key, Object value) {
+        values.put(key, Optional.ofNullable(unmodifiable(value)));
+    }
+
+    /**
+     * Gets the value of the key, loading it on first use. Nulls are kept like any other value, lists and maps
+     * are returned unmodifiable.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(String key, Supplier<T> loader) {
+        Optional<Object> value = values.get(key);
+        if (value == null) {
+            // not computeIfAbsent, the loaders look up other keys of the context
+            value = Optional.ofNullable(unmodifiable(loader.get()));
+            Optional<Object> previous = values.putIfAbsent(key, value);
+            if (previous != null) {
+                value = previous;
+            }
+        }
+        return (T) value.orElse(null);
+    }
+
+    /**
+     * Gets a copy of the value of the key for the caller to keep and change.
+     */
+    <T extends Serializable> T getCopy(String key, Supplier<T> loader) {
+        T value = get(key, loader);
+        return value == null ? null : SerializationUtils.clone(value);
+    }
+
+    /**
+     * Gets a modifiable list of copies of the values of the key for the caller to keep and change.
+     */
+    <T extends Serializable> List<T> getCopies(String key, Supplier<List<T>> loader) {
+        List<T> value = get(key, loader);
+        return value == null ? null : value.stream().map(SerializationUtils::clone).collect(Collectors.toList());
+    }
+
+    private static Object unmodifiable(Object value) {
+        if (value instanceof List) {
+            return Collections.unmodifiableList((List<?>) value);
+        } else if (value instanceof Map) {
+            return Collections.unmodifiableMap((Map<?, ?>) value);
+        }
+        return value;
+    }
+}
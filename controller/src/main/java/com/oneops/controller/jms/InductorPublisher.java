@@ -22,14 +22,24 @@ import com.oneops.cms.simple.domain.CmsActionOrderSimple;
 import com.oneops.cms.simple.domain.CmsWorkOrderSimple;
 import com.oneops.cms.util.CmsConstants;
 import com.oneops.util.Version;
-import java.text.SimpleDateFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.zip.GZIPOutputStream;
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.TextMessage;
@@ -38,11 +48,15 @@ import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.activemq.util.IndentPrinter;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.FastDateFormat;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
- * The Class InductorPublisher.
+ * The Class InductorPublisher. JMS sessions are single threaded, the work orders are dispatched in parallel,
+ * so each publish borrows a session with its producers from a pool that grows to the number of dispatching
+ * threads. When compression is on, the work order is streamed as gzipped json into a BytesMessage with the
+ * {@link CmsConstants#MSG_ENCODING} property set, the inductors have to read both formats before it is turned on.
  */
 public class InductorPublisher {
     private static final String DEFAULT_VERSION = "1.0.0";
@@ -51,15 +65,17 @@ public class InductorPublisher {
     private static final String USE_SHARED_FLAG = "com.oneops.controller.use-shared-queue";
     private static final String SHARED_QUEUE_PREFIX = "com.oneops.controller.queue.prefix.";
     private static final String CONTROLLLER_VERSION_SEARCH_TAG = "cVersion";
+    private static final FastDateFormat SEARCH_TS_FORMAT = FastDateFormat.getInstance(CmsConstants.SEARCH_TS_PATTERN);
     private static Logger logger = Logger.getLogger(InductorPublisher.class);
     final private Gson gson = new Gson();
     @Autowired
     Version version;
     //private long timeToLive;
-    private Map<String, MessageProducer> bindingQueusMap = new ConcurrentHashMap<>();
+    private Map<String, String> queueNames = new ConcurrentHashMap<>();
+    private BlockingDeque<PublisherSession> sessions = new LinkedBlockingDeque<>();
     private Connection connection = null;
-    private Session session = null;
     private ActiveMQConnectionFactory connFactory;
+    private boolean compressed = false;
 
     /**
      * Sets the conn factory.
@@ -70,6 +86,15 @@ public class InductorPublisher {
         this.connFactory = connFactory;
     }
 
+    /**
+     * Sets whether the work orders are sent as gzipped json.
+     *
+     * @param compressed true to compress
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
     /**
      * Inits the.
      *
@@ -77,7 +102,6 @@ public class InductorPublisher {
      */
     public void init() throws JMSException {
         connection = connFactory.createConnection();
-        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
         connection.start();
         logger.info(">>>>>>>>>>>>>>InductorPublisher initialized...");
     }
@@ -106,37 +130,56 @@ public class InductorPublisher {
      * @throws JMSException the jMS exception
      */
     public void publishMessage(String processId, String execId, CmsWorkOrderSimpleBase wo, String waitTaskName, String woType) throws JMSException {
-        SimpleDateFormat format = new SimpleDateFormat(CmsConstants.SEARCH_TS_PATTERN);
-        wo.getSearchTags().put(CmsConstants.REQUEST_ENQUE_TS, format.format(new Date()));
+        wo.getSearchTags().put(CmsConstants.REQUEST_ENQUE_TS, SEARCH_TS_FORMAT.format(new Date()));
         //guarantee non empty-value for searchMap
         if (version != null && StringUtils.isNotBlank(version.getGitVersion())) {
             wo.getSearchTags().put(CONTROLLLER_VERSION_SEARCH_TAG, version.getGitVersion());
         } else {
             wo.getSearchTags().put(CONTROLLLER_VERSION_SEARCH_TAG, DEFAULT_VERSION);
         }
-        TextMessage message = session.createTextMessage(gson.toJson(wo));
         String corelationId = processId + "!" + execId + "!" + waitTaskName+"!"+getCtxtId(wo);
-        message.setJMSCorrelationID(corelationId);
-        message.setStringProperty("task_id", corelationId);
-        message.setStringProperty("type", woType);
-
         String queueName = getQueue(wo);
-        bindingQueusMap.computeIfAbsent(queueName, k -> {
-            try {
-                return newMessageProducer(k);
-            } catch (JMSException e) {
-                throw new RuntimeException(e);
+
+        PublisherSession publisherSession = borrowSession();
+        boolean failed = true;
+        try {
+            Message message = compressed ? publisherSession.createBytesMessage(wo) : publisherSession.session.createTextMessage(gson.toJson(wo));
+            message.setJMSCorrelationID(corelationId);
+            message.setStringProperty("task_id", corelationId);
+            message.setStringProperty("type", woType);
+            publisherSession.getProducer(queueName).send(message);
+            failed = false;
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Published: " + (compressed ? gson.toJson(wo) : ((TextMessage) message).getText()));
             }
-        }).send(message);
-        
-        if (logger.isDebugEnabled()) {
-            logger.debug("Published: " + message.getText());
+        } finally {
+            releaseSession(publisherSession, failed);
         }
 
         logger.info("Posted message with id "+ corelationId +" to q: "+queueName);
 
     }
 
+    private PublisherSession borrowSession() throws JMSException {
+        PublisherSession publisherSession = sessions.pollFirst();
+        if (publisherSession == null) {
+            publisherSession = new PublisherSession(connection.createSession(false, Session.AUTO_ACKNOWLEDGE));
+            logger.info("Created inductor publisher session");
+        }
+        return publisherSession;
+    }
+
+    private void releaseSession(PublisherSession publisherSession, boolean failed) {
+        if (failed) {
+            // the session may be broken, the next publish gets a new one
+            publisherSession.close();
+        } else {
+            // the most recently used session first, it is warm
+            sessions.offerFirst(publisherSession);
+        }
+    }
+
     String getQueue(CmsWorkOrderSimpleBase wo) {
         String queueName = null;
         String location = wo.getCloud().getCiAttributes().get("location");
@@ -152,8 +195,7 @@ public class InductorPublisher {
             if (queueName == null)
                 queueName = SHARED_QUEUE;
         } else {
-            queueName = (location.replaceAll("/", ".") + QUEUE_SUFFIX).substring(
-                1);
+            queueName = queueNames.computeIfAbsent(location, k -> (k.replace('/', '.') + QUEUE_SUFFIX).substring(1));
         }
         return queueName;
     }
@@ -174,16 +216,52 @@ public class InductorPublisher {
       return ctxtId;
     }
 
-    private MessageProducer newMessageProducer(String queueName) throws JMSException {
-        // Create the session
-        Destination destination = session.createQueue(queueName);
-        // Create the producer.
-        MessageProducer producer = session.createProducer(destination);
-        producer.setDeliveryMode(DeliveryMode.PERSISTENT);
-        logger.info("Created message producer for queue " + queueName);
-        return producer;
-    }
+    /**
+     * A session with its producers and the buffer for the compressed work orders, used by one thread at a time.
+     */
+    private class PublisherSession {
+        private final Session session;
+        private final Map<String, MessageProducer> producers = new HashMap<>();
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private PublisherSession(Session session) {
+            this.session = session;
+        }
+
+        private MessageProducer getProducer(String queueName) throws JMSException {
+            MessageProducer producer = producers.get(queueName);
+            if (producer == null) {
+                // Create the producer.
+                Destination destination = session.createQueue(queueName);
+                producer = session.createProducer(destination);
+                producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+                producers.put(queueName, producer);
+                logger.info("Created message producer for queue " + queueName);
+            }
+            return producer;
+        }
 
+        private BytesMessage createBytesMessage(CmsWorkOrderSimpleBase wo) throws JMSException {
+            buffer.reset();
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(buffer), StandardCharsets.UTF_8)) {
+                gson.toJson(wo, writer);
+            } catch (IOException e) {
+                throw new JMSException("Can not compress the work order: " + e.getMessage());
+            }
+            BytesMessage message = session.createBytesMessage();
+            message.writeBytes(buffer.toByteArray());
+            message.setStringProperty(CmsConstants.MSG_ENCODING, CmsConstants.MSG_ENCODING_GZIP);
+            return message;
+        }
+
+        private void close() {
+            try {
+                session.close();
+            } catch (JMSException e) {
+                logger.warn("Can not close inductor publisher session", e);
+            }
+        }
+    }
 
     /**
      * Gets the connection stats.
@@ -206,10 +284,10 @@ public class InductorPublisher {
      */
     public void closeConnection() {
         try {
-            for (MessageProducer producer : bindingQueusMap.values()) {
-                producer.close();
+            PublisherSession publisherSession;
+            while ((publisherSession = sessions.pollFirst()) != null) {
+                publisherSession.close();
             }
-            session.close();
             connection.close();
         } catch (Exception ignore) {
         }
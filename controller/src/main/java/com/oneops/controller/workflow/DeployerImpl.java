@@ -204,6 +204,7 @@ public class DeployerImpl extends Execution<CmsWorkOrderSimple> implements Deplo
 
 
   private void dispatchOrders(DeploymentContext context, List<CmsWorkOrderSimple> ordersList) {
+    context.assemblyContext = cmsClient.getWoAssemblyContext(context.dpmt, context.dpmt.getCurrentStep());
     CountDownLatch latch = new CountDownLatch(ordersList.size());
     ordersList.forEach(o -> {
       dispatch(context, o, latch);
@@ -218,7 +219,7 @@ public class DeployerImpl extends Execution<CmsWorkOrderSimple> implements Deplo
 
   private void assembleAndDispatchAsync(ExecutionContext context, CmsWorkOrderSimple wo, CountDownLatch latch) {
     CmsDeployment dpmt = deployment(context);
-    WorkOrderContext woContext = new WorkOrderContext(wo, dpmt.getCurrentStep());
+    WorkOrderContext woContext = new WorkOrderContext(wo, dpmt.getCurrentStep(), ((DeploymentContext) context).assemblyContext);
     CmsDpmtRecord dpmtRecord = dpmtProcessor.getDeploymentRecord(wo.getDpmtRecordId());
     if (isPending(dpmtRecord)) {
       logger.info(">>>>>>>>>>> dispatching workorder dpmtId : " + dpmt.getDeploymentId() + " rfc : "
@@ -2,6 +2,7 @@ package com.oneops.controller.workflow;
 
 import com.oneops.cms.dj.domain.CmsDeployment;
 import com.oneops.cms.simple.domain.CmsWorkOrderSimple;
+import com.oneops.controller.cms.WoAssemblyContext;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
@@ -11,6 +12,7 @@ public class DeploymentContext implements ExecutionContext {
   List<CmsWorkOrderSimple> woList;
   boolean completed;
   CountDownLatch latch;
+  WoAssemblyContext assemblyContext;
 
   DeploymentContext(CmsDeployment dpmt) {
     this.dpmt = dpmt;
@@ -1,16 +1,23 @@
 package com.oneops.controller.workflow;
 
 import com.oneops.cms.simple.domain.CmsWorkOrderSimple;
+import com.oneops.controller.cms.WoAssemblyContext;
 
 public class WorkOrderContext {
 
   private int execOrder;
   private CmsWorkOrderSimple woSimple;
   private String woDispatchError;
+  private WoAssemblyContext assemblyContext;
 
   public WorkOrderContext(CmsWorkOrderSimple woSimple, int execOrder) {
+    this(woSimple, execOrder, new WoAssemblyContext());
+  }
+
+  public WorkOrderContext(CmsWorkOrderSimple woSimple, int execOrder, WoAssemblyContext assemblyContext) {
     this.woSimple = woSimple;
     this.execOrder = execOrder;
+    this.assemblyContext = assemblyContext;
   }
 
   public CmsWorkOrderSimple getWoSimple() {
@@ -37,4 +44,8 @@ public class WorkOrderContext {
   public void setWoDispatchError(String woDispatchError) {
     this.woDispatchError = woDispatchError;
   }
+
+  public WoAssemblyContext getAssemblyContext() {
+    return assemblyContext;
+  }
 }
@@ -189,6 +189,65 @@ public class ExpressionEvalTest {
 		}
 	}
 
+	@Test
+	public void testCachedExpressions() {
+		ExpressionEvaluator cachedEvaluator = new ExpressionEvaluator();
+		CachingExpressionParser cachingParser = new CachingExpressionParser(new SpelExpressionParser(), 2);
+		cachedEvaluator.setExprParser(cachingParser);
+		cachedEvaluator.setCmsUtil(new CmsUtil());
+
+		String[] exprs = {EXPR_WO, EXPR_AO, EXPR_INVALID, EXPR_WRONG_SYNTAX, null};
+		String[] classes = {"bom.Compute", "bom.oneops.1.Compute", "bom.Os"};
+		String[] sizes = {"M", "L"};
+		for (int i = 0; i < 2; i++) {
+			for (String expr : exprs) {
+				CmsCI complianceCi = createComplianceCIForExpr(expr);
+				for (String clazz : classes) {
+					for (String size : sizes) {
+						CmsWorkOrder wo = createWo(clazz, size);
+						Assert.assertEquals(cachedEvaluator.isExpressionMatching(complianceCi, wo),
+								expressionEvaluator.isExpressionMatching(complianceCi, wo), expr + " " + clazz + " " + size);
+					}
+				}
+			}
+		}
+		//three of the expressions parse, the cache keeps two
+		Assert.assertEquals(cachingParser.size(), 2);
+	}
+
+	@Test
+	public void testEvaluatorThroughput() {
+		ExpressionEvaluator cachedEvaluator = new ExpressionEvaluator();
+		cachedEvaluator.setExprParser(new CachingExpressionParser());
+		cachedEvaluator.setCmsUtil(new CmsUtil());
+		CmsCI complianceCi = createComplianceCIForExpr(EXPR_WO);
+		CmsWorkOrder wo = createWo("bom.Compute", "M");
+		int count = 20000;
+		for (ExpressionEvaluator evaluator : new ExpressionEvaluator[] {expressionEvaluator, cachedEvaluator}) {
+			for (int i = 0; i < count; i++) {
+				evaluator.isExpressionMatching(complianceCi, wo);
+			}
+			long startTime = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				Assert.assertTrue(evaluator.isExpressionMatching(complianceCi, wo));
+			}
+			long time = System.nanoTime() - startTime;
+			System.out.println((evaluator == cachedEvaluator ? "cached" : "parsed") + " expressions: "
+					+ (count * 1000000000L / time) + " work orders per second");
+		}
+	}
+
+	private CmsWorkOrder createWo(String clazz, String size) {
+		CmsRfcCI rfcCi = new CmsRfcCI();
+		rfcCi.setCiClassName(clazz);
+		rfcCi.setCiName("compute-1231999");
+		rfcCi.addAttribute(createRfcAttribute("size", size, null));
+		rfcCi.addAttribute(createRfcAttribute("ostype", "CentOS 6.5", null));
+		CmsWorkOrder wo = new CmsWorkOrder();
+		wo.setRfcCi(rfcCi);
+		return wo;
+	}
+
 	private CmsRfcAttribute createRfcAttribute(String name, String newValue, String oldValue) {
 		CmsRfcAttribute rfcAttribute = new CmsRfcAttribute();
 		rfcAttribute.setAttributeName(name);
@@ -0,0 +1,116 @@
+package com.oneops.controller.cms;
+
+import com.oneops.cms.cm.domain.CmsCI;
+import com.oneops.cms.cm.domain.CmsCIAttribute;
+import com.oneops.cms.cm.service.CmsCmProcessor;
+import com.oneops.cms.simple.domain.CmsRfcCISimple;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+public class OfferingsMatcherTest {
+
+    private static final String OFFERING_NS = "/public/oneops/clouds/cloud1/cloud.service.Openstack/openstack";
+
+    private CmsCmProcessor cmProcessor;
+    private OfferingsMatcher matcher;
+    private List<CmsCI> offerings;
+
+    @BeforeMethod
+    public void setUp() {
+        cmProcessor = mock(CmsCmProcessor.class);
+        matcher = new OfferingsMatcher();
+        matcher.setCmsCmProcessor(cmProcessor);
+        matcher.setExprParser(new CachingExpressionParser());
+        offerings = new ArrayList<>(Arrays.asList(
+                offering(1, "ciClassName matches 'bom(\\..*\\.[0-9]+)?\\.Compute' and ciAttributes['size'] == 'M'"),
+                offering(2, "(ciClassName:bom.*.[1 TO *].Compute OR ciClassName:bom.Compute) AND ciAttributes.size:L"),
+                offering(3, "ciClassName == 'bom.Storage'")));
+        when(cmProcessor.getCiBy3Naked(OFFERING_NS, "cloud.Offering", null)).thenAnswer(invocation -> new ArrayList<>(offerings));
+        when(cmProcessor.getCiBy3(OFFERING_NS, "cloud.Offering", null)).thenAnswer(invocation -> new ArrayList<>(offerings));
+    }
+
+    private CmsCI offering(long ciId, String criteria) {
+        CmsCI offering = new CmsCI();
+        offering.setCiId(ciId);
+        offering.setCiClassName("cloud.Offering");
+        offering.setCiName("offering-" + ciId);
+        offering.setNsPath(OFFERING_NS);
+        offering.setUpdated(new Date(1000));
+        CmsCIAttribute attribute = new CmsCIAttribute();
+        attribute.setAttributeName("criteria");
+        attribute.setDfValue(criteria);
+        offering.addAttribute(attribute);
+        return offering;
+    }
+
+    private CmsRfcCISimple rfc(String className, String size) {
+        CmsRfcCISimple rfc = new CmsRfcCISimple();
+        rfc.setCiClassName(className);
+        rfc.addCiAttribute("size", size);
+        return rfc;
+    }
+
+    private List<Long> match(CmsRfcCISimple rfc) {
+        return matcher.getEligbleOfferings(rfc, OFFERING_NS).stream().map(CmsCI::getCiId).collect(Collectors.toList());
+    }
+
+    private List<Long> matchUncached(CmsRfcCISimple rfc) {
+        OfferingsMatcher uncached = new OfferingsMatcher();
+        uncached.setCmsCmProcessor(cmProcessor);
+        uncached.setExprParser(new SpelExpressionParser());
+        return uncached.getEligbleOfferings(rfc, OFFERING_NS).stream().map(CmsCI::getCiId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void sameOfferings() {
+        for (String className : new String[] {"bom.Compute", "bom.oneops.1.Compute", "bom.Storage", "bom.Os"}) {
+            for (String size : new String[] {"M", "L"}) {
+                CmsRfcCISimple rfc = rfc(className, size);
+                assertEquals(match(rfc), matchUncached(rfc), className + " " + size);
+                assertEquals(match(rfc), matchUncached(rfc), className + " " + size);
+            }
+        }
+        assertEquals(match(rfc("bom.Compute", "M")), Arrays.asList(1L));
+        assertEquals(match(rfc("bom.oneops.1.Compute", "L")), Arrays.asList(2L));
+    }
+
+    @Test
+    public void offeringsLoadedOnce() {
+        for (int i = 0; i < 10; i++) {
+            match(rfc("bom.Compute", "M"));
+        }
+        verify(cmProcessor, times(1)).getCiBy3(OFFERING_NS, "cloud.Offering", null);
+        verify(cmProcessor, times(10)).getCiBy3Naked(OFFERING_NS, "cloud.Offering", null);
+    }
+
+    @Test
+    public void offeringsReloadedOnChange() {
+        assertEquals(match(rfc("bom.Compute", "M")), Arrays.asList(1L));
+
+        CmsCI updated = offering(1, "ciClassName == 'bom.Compute' and ciAttributes['size'] == 'S'");
+        updated.setUpdated(new Date(2000));
+        offerings.set(0, updated);
+        assertEquals(match(rfc("bom.Compute", "M")), Arrays.asList());
+        assertEquals(match(rfc("bom.Compute", "S")), Arrays.asList(1L));
+
+        offerings.add(offering(4, "ciClassName == 'bom.Compute'"));
+        assertEquals(match(rfc("bom.Compute", "S")), Arrays.asList(1L, 4L));
+
+        offerings.remove(0);
+        assertEquals(match(rfc("bom.Compute", "S")), Arrays.asList(4L));
+        verify(cmProcessor, times(4)).getCiBy3(OFFERING_NS, "cloud.Offering", null);
+    }
+}
@@ -0,0 +1,385 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.controller.cms;
+
+import com.oneops.cms.cm.domain.CmsCI;
+import com.oneops.cms.cm.domain.CmsCIAttribute;
+import com.oneops.cms.cm.domain.CmsCIRelation;
+import com.oneops.cms.cm.domain.CmsCIRelationAttribute;
+import com.oneops.cms.cm.service.CmsCmProcessor;
+import com.oneops.cms.collections.CollectionProcessor;
+import com.oneops.cms.dj.dal.DJDpmtMapper;
+import com.oneops.cms.dj.dal.DJMapper;
+import com.oneops.cms.dj.domain.CmsRfcCI;
+import com.oneops.cms.dj.domain.CmsRfcRelation;
+import com.oneops.cms.dj.domain.CmsWorkOrder;
+import com.oneops.cms.dj.service.CmsCmRfcMrgProcessor;
+import com.oneops.cms.dj.service.CmsRfcUtil;
+import com.oneops.cms.simple.domain.CmsCISimple;
+import com.oneops.cms.simple.domain.CmsRfcCISimple;
+import com.oneops.cms.simple.domain.CmsWorkOrderSimple;
+import com.oneops.cms.util.CmsUtil;
+import org.apache.log4j.Logger;
+import org.mockito.listeners.InvocationListener;
+import org.mockito.listeners.MethodInvocationReport;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.oneops.cms.util.CmsConstants.ATTR_NAME_AUTO_COMPLY;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Counts the cms calls made to assemble the work orders of a step, a call of a mapper or processor stands
+ * for at least one sql query.
+ */
+public class WoAssemblyContextTest {
+
+    private static final Logger logger = Logger.getLogger(WoAssemblyContextTest.class);
+
+    private static final long DEPLOYMENT_ID = 1;
+    private static final int EXEC_ORDER = 1;
+    private static final long ENV_ID = 10;
+    private static final long CLOUD_ID = 20;
+    private static final long SERVICE_ID = 30;
+    private static final long PLATFORM_ID = 100;
+    private static final long MANIFEST_CI_ID = 200;
+    private static final long TEMPLATE_ID = 300;
+    private static final long QPATH_ID = 400;
+    private static final long BOM_CI_ID = 1000;
+    private static final long RFC_ID = 5000;
+    private static final long DPMT_RECORD_ID = 9000;
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private CmsWoProvider woProvider;
+    private int woCount;
+
+    @BeforeMethod
+    public void setUp() {
+        InvocationListener counter = (MethodInvocationReport report) -> calls.incrementAndGet();
+        CmsCmProcessor cmProcessor = mock(CmsCmProcessor.class, withSettings().invocationListeners(counter));
+        CmsCmRfcMrgProcessor cmrfcProcessor = mock(CmsCmRfcMrgProcessor.class, withSettings().invocationListeners(counter));
+        DJDpmtMapper dpmtMapper = mock(DJDpmtMapper.class, withSettings().invocationListeners(counter));
+        DJMapper djMapper = mock(DJMapper.class, withSettings().invocationListeners(counter));
+        CollectionProcessor colProcessor = mock(CollectionProcessor.class, withSettings().invocationListeners(counter));
+        OfferingsMatcher offeringMatcher = mock(OfferingsMatcher.class, withSettings().invocationListeners(counter));
+
+        CmsRfcUtil rfcUtil = new CmsRfcUtil();
+        CmsUtil cmsUtil = new CmsUtil();
+        cmsUtil.setCmProcessor(cmProcessor);
+        cmsUtil.setRfcUtil(rfcUtil);
+        ExpressionEvaluator expressionEvaluator = new ExpressionEvaluator();
+        expressionEvaluator.setCmsUtil(cmsUtil);
+        expressionEvaluator.setExprParser(new SpelExpressionParser());
+
+        woProvider = new CmsWoProvider();
+        woProvider.setCmProcessor(cmProcessor);
+        woProvider.setCmrfcProcessor(cmrfcProcessor);
+        woProvider.setDpmtMapper(dpmtMapper);
+        woProvider.setDjMapper(djMapper);
+        woProvider.setColProcessor(colProcessor);
+        woProvider.setOfferingMatcher(offeringMatcher);
+        woProvider.setRfcUtil(rfcUtil);
+        woProvider.setCmsUtil(cmsUtil);
+        woProvider.setExpressionEvaluator(expressionEvaluator);
+
+        // dpmt records and rfcs
+        when(dpmtMapper.getWorkOrders(eq(DEPLOYMENT_ID), (String) isNull(), eq(EXEC_ORDER))).thenAnswer(invocation -> {
+            List<CmsWorkOrder> workOrders = new ArrayList<>();
+            for (int i = 0; i < woCount; i++) {
+                workOrders.add(workOrder(i));
+            }
+            return workOrders;
+        });
+        when(dpmtMapper.getWorkOrder(anyLong(), (String) isNull(), eq(EXEC_ORDER)))
+                .thenAnswer(invocation -> workOrder((int) ((Long) invocation.getArguments()[0] - DPMT_RECORD_ID)));
+        when(djMapper.getRfcCIById(anyLong())).thenAnswer(invocation -> rfc((Long) invocation.getArguments()[0] - RFC_ID + BOM_CI_ID));
+        when(djMapper.getRfcCIByIdList(anyListOf(Long.class))).thenAnswer(invocation -> ((List<Long>) invocation.getArguments()[0]).stream()
+                .map(rfcId -> rfc(rfcId - RFC_ID + BOM_CI_ID))
+                .collect(Collectors.toList()));
+        when(cmrfcProcessor.getCiById(anyLong(), eq("df"))).thenAnswer(invocation -> rfc((Long) invocation.getArguments()[0]));
+        when(cmrfcProcessor.getCiByIdList(anyListOf(Long.class), eq("df"))).thenAnswer(invocation -> ((List<Long>) invocation.getArguments()[0]).stream()
+                .map(this::rfc)
+                .collect(Collectors.toList()));
+
+        // manifest side
+        when(cmrfcProcessor.getToCIRelationsNakedNoAttrs(anyLong(), eq("base.RealizedAs"), (String) isNull(), (String) isNull()))
+                .thenAnswer(invocation -> Collections.singletonList(rfcRelation(MANIFEST_CI_ID, (Long) invocation.getArguments()[0])));
+        when(cmProcessor.getCIRelationsByToCiIdsNakedNoAttrs(eq("base.RealizedAs"), (String) isNull(), anyListOf(Long.class)))
+                .thenAnswer(invocation -> ((List<Long>) invocation.getArguments()[2]).stream()
+                        .map(ciId -> relation(ci(MANIFEST_CI_ID, "manifest.Compute"), ciId))
+                        .collect(Collectors.toList()));
+        when(cmProcessor.getCIRelationsByToCiIdsNakedNoAttrs(eq("manifest.Requires"), (String) isNull(), anyListOf(Long.class)))
+                .thenAnswer(invocation -> Collections.singletonList(requires()));
+        when(cmProcessor.getToCIRelations(MANIFEST_CI_ID, "manifest.Requires", null)).thenAnswer(invocation -> Collections.singletonList(requires()));
+        when(cmProcessor.getToCIRelationsNaked(MANIFEST_CI_ID, "manifest.Requires", null)).thenAnswer(invocation -> Collections.singletonList(requires()));
+        when(cmProcessor.getFromCIRelationsNaked(PLATFORM_ID, "manifest.Requires", null)).thenAnswer(invocation -> Collections.singletonList(requires()));
+        when(cmProcessor.getCiById(MANIFEST_CI_ID)).thenAnswer(invocation -> ci(MANIFEST_CI_ID, "manifest.Compute"));
+        when(cmProcessor.getCiByIdList(anyListOf(Long.class))).thenAnswer(invocation -> ((List<Long>) invocation.getArguments()[0]).stream()
+                .map(ciId -> ciId == PLATFORM_ID ? platform() : ci(ciId, "manifest.Compute"))
+                .collect(Collectors.toList()));
+        when(cmProcessor.getToCIRelations(PLATFORM_ID, "manifest.ComposedOf", "manifest.Environment")).thenAnswer(invocation -> {
+            CmsCIRelation composedOf = relation(ci(ENV_ID, "manifest.Environment"), PLATFORM_ID);
+            CmsCIRelationAttribute enabled = new CmsCIRelationAttribute();
+            enabled.setAttributeName("enabled");
+            enabled.setDfValue("true");
+            composedOf.addAttribute(enabled);
+            return Collections.singletonList(composedOf);
+        });
+        when(cmrfcProcessor.getToCIRelations(anyLong(), eq("base.RealizedAs"), (String) isNull(), eq("df")))
+                .thenAnswer(invocation -> Collections.singletonList(rfcRelation(MANIFEST_CI_ID, (Long) invocation.getArguments()[0])));
+        when(cmrfcProcessor.getToCIRelations(PLATFORM_ID, "manifest.ComposedOf", null, "df"))
+                .thenAnswer(invocation -> Collections.singletonList(rfcRelation(ENV_ID, PLATFORM_ID)));
+        when(cmrfcProcessor.getToCIRelations(ENV_ID, "base.RealizedIn", null, "df"))
+                .thenAnswer(invocation -> Collections.singletonList(rfcRelation(3, ENV_ID)));
+        when(cmrfcProcessor.getToCIRelations(3, "base.Manages", null, "df"))
+                .thenAnswer(invocation -> Collections.singletonList(rfcRelation(2, 3)));
+        when(cmProcessor.getTemplateObjForManifestObj(any(CmsCI.class), any(CmsCI.class))).thenAnswer(invocation -> ci(TEMPLATE_ID, "mgmt.manifest.Compute"));
+        when(cmProcessor.getFromCIRelations(TEMPLATE_ID, "mgmt.manifest.Payload", "mgmt.manifest.Qpath"))
+                .thenAnswer(invocation -> Collections.singletonList(relation(ci(TEMPLATE_ID, "mgmt.manifest.Compute"), QPATH_ID)));
+
+        // cloud side
+        when(cmrfcProcessor.getFromCIRelationsNakedNoAttrs(anyLong(), eq("base.DeployedTo"), (String) isNull(), eq("account.Cloud")))
+                .thenAnswer(invocation -> {
+                    CmsRfcRelation deployedTo = rfcRelation((Long) invocation.getArguments()[0], 0);
+                    deployedTo.setToCiId(CLOUD_ID);
+                    return Collections.singletonList(deployedTo);
+                });
+        when(cmProcessor.getCiById(CLOUD_ID)).thenAnswer(invocation -> {
+            CmsCI cloud = ci(CLOUD_ID, "account.Cloud");
+            cloud.setCiName("cloud");
+            cloud.setNsPath("/org/_clouds");
+            return cloud;
+        });
+        when(cmProcessor.getFromCIRelationsByAttrs(eq(CLOUD_ID), eq("base.Provides"), (String) isNull(), (String) isNull(), anyListOf(com.oneops.cms.util.domain.AttrQueryCondition.class)))
+                .thenAnswer(invocation -> Collections.singletonList(relation(ci(CLOUD_ID, "account.Cloud"), SERVICE_ID)));
+        when(colProcessor.getFlatCollectionRfc(anyLong(), any())).thenAnswer(invocation -> new ArrayList<>());
+        when(cmProcessor.getCmVarByLongestMatchingCriteria(anyString(), anyString())).thenReturn(Collections.emptyList());
+    }
+
+    private CmsWorkOrder workOrder(int i) {
+        CmsWorkOrder workOrder = new CmsWorkOrder();
+        workOrder.setDeploymentId(DEPLOYMENT_ID);
+        workOrder.setDpmtRecordId(DPMT_RECORD_ID + i);
+        workOrder.setRfcId(RFC_ID + i);
+        workOrder.setDpmtRecordState("pending");
+        return workOrder;
+    }
+
+    private CmsRfcCI rfc(long ciId) {
+        CmsRfcCI rfc = new CmsRfcCI();
+        rfc.setCiId(ciId);
+        rfc.setRfcId(ciId - BOM_CI_ID + RFC_ID);
+        rfc.setCiName("compute-" + ciId);
+        rfc.setCiClassName("bom.Compute");
+        rfc.setNsPath("/org/assembly/env/bom/platform/1");
+        rfc.setRfcAction("add");
+        return rfc;
+    }
+
+    private CmsCI ci(long ciId, String className) {
+        CmsCI ci = new CmsCI();
+        ci.setCiId(ciId);
+        ci.setCiName(className.substring(className.lastIndexOf('.') + 1).toLowerCase());
+        ci.setCiClassName(className);
+        ci.setNsPath("/org/assembly/env/manifest/platform/1");
+        return ci;
+    }
+
+    private CmsCI platform() {
+        CmsCI platform = ci(PLATFORM_ID, "manifest.Platform");
+        platform.addAttribute(attribute(ATTR_NAME_AUTO_COMPLY, "false"));
+        return platform;
+    }
+
+    private CmsCIAttribute attribute(String name, String value) {
+        CmsCIAttribute attribute = new CmsCIAttribute();
+        attribute.setAttributeName(name);
+        attribute.setDfValue(value);
+        attribute.setDjValue(value);
+        return attribute;
+    }
+
+    private CmsCIRelation relation(CmsCI from, long toCiId) {
+        CmsCIRelation relation = new CmsCIRelation();
+        relation.setFromCiId(from.getCiId());
+        relation.setFromCi(from);
+        relation.setToCiId(toCiId);
+        CmsCI to = ci(toCiId, toCiId == SERVICE_ID ? "cloud.service.Openstack" : "mgmt.manifest.Qpath");
+        if (toCiId == QPATH_ID) {
+            to.setCiName("os");
+            to.addAttribute(attribute("definition", "{\"returnObject\":true,\"relations\":[]}"));
+        }
+        relation.setToCi(to);
+        return relation;
+    }
+
+    private CmsCIRelation requires() {
+        CmsCIRelation requires = relation(platform(), MANIFEST_CI_ID);
+        CmsCIRelationAttribute services = new CmsCIRelationAttribute();
+        services.setAttributeName("services");
+        services.setDjValue("compute");
+        services.setDfValue("compute");
+        requires.addAttribute(services);
+        return requires;
+    }
+
+    private CmsRfcRelation rfcRelation(long fromCiId, long toCiId) {
+        CmsRfcRelation relation = new CmsRfcRelation();
+        relation.setFromCiId(fromCiId);
+        relation.setToCiId(toCiId);
+        CmsRfcCI from = rfc(fromCiId);
+        from.setCiClassName(fromCiId == MANIFEST_CI_ID ? "manifest.Compute" : "manifest.Environment");
+        relation.setFromRfcCi(from);
+        return relation;
+    }
+
+    private List<CmsWorkOrderSimple> assemble(int count, boolean shared) {
+        woCount = count;
+        WoAssemblyContext context = shared ? woProvider.getAssemblyContext(DEPLOYMENT_ID, EXEC_ORDER) : null;
+        List<CmsWorkOrderSimple> workOrders = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            workOrders.add(shared
+                    ? woProvider.getWorkOrderSimple(DPMT_RECORD_ID + i, null, EXEC_ORDER, context)
+                    : woProvider.getWorkOrderSimple(DPMT_RECORD_ID + i, null, EXEC_ORDER));
+        }
+        return workOrders;
+    }
+
+    /**
+     * @return the ci id, class, name and attributes of each ci in order
+     */
+    private static List<String> describe(Collection<CmsCISimple> cis) {
+        return cis.stream()
+                .map(ci -> ci.getCiId() + " " + ci.getCiClassName() + " " + ci.getCiName() + " " + new TreeMap<>(ci.getCiAttributes()))
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> describe(List<CmsRfcCISimple> rfcs) {
+        return rfcs.stream()
+                .map(rfc -> rfc.getCiId() + " " + rfc.getCiClassName() + " " + rfc.getCiName() + " " + new TreeMap<>(rfc.getCiAttributes()))
+                .collect(Collectors.toList());
+    }
+
+    private int countCalls(int count, boolean shared) {
+        calls.set(0);
+        assemble(count, shared);
+        return calls.get();
+    }
+
+    @Test
+    public void sameWorkOrders() {
+        List<CmsWorkOrderSimple> separate = assemble(5, false);
+        List<CmsWorkOrderSimple> shared = assemble(5, true);
+        for (int i = 0; i < 5; i++) {
+            CmsWorkOrderSimple expected = separate.get(i);
+            CmsWorkOrderSimple actual = shared.get(i);
+            assertEquals(actual.getRfcCi().getCiId(), expected.getRfcCi().getCiId());
+            assertEquals(actual.getBox().getCiId(), expected.getBox().getCiId());
+            assertEquals(actual.getBox().getCiAttributes(), expected.getBox().getCiAttributes());
+            assertEquals(actual.getCloud().getCiId(), expected.getCloud().getCiId());
+            assertEquals(actual.getServices().keySet(), expected.getServices().keySet());
+            for (String service : expected.getServices().keySet()) {
+                assertEquals(describe(actual.getServices().get(service).values()), describe(expected.getServices().get(service).values()), service);
+            }
+            assertEquals(actual.getPayLoad().keySet(), expected.getPayLoad().keySet());
+            for (String payload : expected.getPayLoad().keySet()) {
+                assertEquals(describe(actual.getPayLoad().get(payload)), describe(expected.getPayLoad().get(payload)), payload);
+            }
+        }
+        assertEquals(shared.get(0).getBox().getCiAttributes().get("is_platform_enabled"), "true");
+        assertEquals(shared.get(0).getPayLoad().get("Environment").get(0).getCiId(), ENV_ID);
+    }
+
+    @Test
+    public void callCount() {
+        int perWo = countCalls(1, false);
+        int separate = countCalls(100, false);
+        int shared = countCalls(100, true);
+        int sharedDouble = countCalls(200, true);
+        int residue = (sharedDouble - shared) / 100;
+        assertEquals(separate, perWo * 100);
+        // only the calls about the bom ci itself are left per work order
+        assertTrue(residue * 2 < perWo, "per work order calls " + residue + " out of " + perWo);
+        assertTrue(shared < separate / 2);
+    }
+
+    @Test
+    public void workOrdersOwnTheirCis() {
+        woCount = 2;
+        WoAssemblyContext context = woProvider.getAssemblyContext(DEPLOYMENT_ID, EXEC_ORDER);
+        CmsWorkOrder first = woProvider.getWorkOrder(DPMT_RECORD_ID, null, EXEC_ORDER, context);
+        CmsWorkOrder second = woProvider.getWorkOrder(DPMT_RECORD_ID + 1, null, EXEC_ORDER, context);
+
+        assertNotSame(first.getBox(), second.getBox());
+        for (String payload : new String[] {"Environment", "Assembly", "Organization", "RequiresComputes"}) {
+            assertNotSame(first.getPayLoad().get(payload), second.getPayLoad().get(payload), payload);
+        }
+        CmsRfcCI env = first.getPayLoad().get("Environment").get(0);
+        String envName = env.getCiName();
+        assertNotSame(env, second.getPayLoad().get("Environment").get(0));
+        env.setCiName("changed");
+        first.getPayLoad().get("Environment").clear();
+        assertEquals(second.getPayLoad().get("Environment").get(0).getCiName(), envName);
+        CmsCI service = first.getServices().get("compute").get("cloud");
+        assertNotSame(service, second.getServices().get("compute").get("cloud"));
+
+        CmsWorkOrder third = woProvider.getWorkOrder(DPMT_RECORD_ID + 2, null, EXEC_ORDER, context);
+        assertEquals(third.getPayLoad().get("Environment").get(0).getCiName(), envName);
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void sharedListsAreUnmodifiable() {
+        WoAssemblyContext context = new WoAssemblyContext();
+        context.get("zones:" + CLOUD_ID, () -> new ArrayList<>(Collections.singletonList(ci(1, "cloud.Zone"))));
+        context.<List<CmsCI>>get("zones:" + CLOUD_ID, Collections::emptyList).clear();
+    }
+
+    @Test
+    public void stepLatency() {
+        assemble(500, false);
+        assemble(500, true);
+        long startTime = System.nanoTime();
+        assemble(500, false);
+        long separate = System.nanoTime() - startTime;
+        startTime = System.nanoTime();
+        assemble(500, true);
+        long shared = System.nanoTime() - startTime;
+        // mocked cms calls, the timing is reported only, callCount checks the saving
+        logger.info("500 work orders, shared context " + shared / 1000000 + "ms, one by one " + separate / 1000000 + "ms");
+    }
+}
@@ -16,10 +16,31 @@
  *******************************************************************************/
 package com.oneops.controller.jms;
 
+import com.google.gson.Gson;
 import com.oneops.cms.simple.domain.CmsRfcCISimple;
 import com.oneops.cms.simple.domain.CmsWorkOrderSimple;
+import com.oneops.cms.util.CmsConstants;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.commons.io.IOUtils;
 
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
@@ -121,6 +142,131 @@ public class InductorPublisherTest {
 
 
 
+	@Test
+	public void publishCompressed() throws Exception {
+		for (boolean compressed : new boolean[] {false, true}) {
+			InductorPublisher compressingPublisher = newPublisher(compressed);
+			String queue = "compressed-" + compressed;
+			CmsWorkOrderSimple wo = newWorkOrder(queue, 1);
+			compressingPublisher.publishMessage("123", "234", wo, "wait-task", "deploybom");
+
+			Connection connection = ((ActiveMQConnectionFactory) context.getBean("stubConnectionFactory")).createConnection();
+			try {
+				connection.start();
+				Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+				Message message = session.createConsumer(session.createQueue(compressingPublisher.getQueue(wo))).receive(5000);
+				Assert.assertEquals(message instanceof BytesMessage, compressed);
+				Assert.assertEquals(message.getStringProperty("type"), "deploybom");
+				Assert.assertEquals(message.getJMSCorrelationID(), "123!234!wait-task!d-1-1-1-1");
+				Assert.assertEquals(readBody(message), new Gson().toJson(wo));
+			} finally {
+				connection.close();
+				compressingPublisher.cleanup();
+			}
+		}
+	}
+
+	@Test
+	public void publishThroughput() throws Exception {
+		int count = 1000;
+		int threads = 4;
+		for (boolean compressed : new boolean[] {false, true}) {
+			InductorPublisher throughputPublisher = newPublisher(compressed);
+			String queue = "throughput-" + compressed;
+			AtomicLong received = new AtomicLong();
+			AtomicLong size = new AtomicLong();
+			Connection connection = ((ActiveMQConnectionFactory) context.getBean("stubConnectionFactory")).createConnection();
+			connection.start();
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			session.createConsumer(session.createQueue(throughputPublisher.getQueue(newWorkOrder(queue, 0)))).setMessageListener(message -> {
+				try {
+					size.addAndGet(message instanceof BytesMessage ? ((BytesMessage) message).getBodyLength()
+							: ((TextMessage) message).getText().getBytes(StandardCharsets.UTF_8).length);
+				} catch (JMSException e) {
+					throw new RuntimeException(e);
+				}
+				received.incrementAndGet();
+			});
+
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			List<Future<?>> futures = new ArrayList<>();
+			long startTime = System.currentTimeMillis();
+			for (int i = 0; i < count; i++) {
+				CmsWorkOrderSimple wo = newWorkOrder(queue, i);
+				futures.add(executor.submit(() -> {
+					throughputPublisher.publishMessage("123", "234", wo, "wait-task", "deploybom");
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			long time = System.currentTimeMillis() - startTime;
+			executor.shutdown();
+			for (int i = 0; i < 100 && received.get() < count; i++) {
+				Thread.sleep(100);
+			}
+			connection.close();
+			throughputPublisher.cleanup();
+
+			Assert.assertEquals(received.get(), count);
+			System.out.println((compressed ? "compressed" : "text") + " work orders: " + (count * 1000L / Math.max(time, 1))
+					+ " published per second, " + size.get() / count + " bytes per message");
+		}
+	}
+
+	private InductorPublisher newPublisher(boolean compressed) throws JMSException {
+		InductorPublisher newPublisher = new InductorPublisher();
+		newPublisher.setConnFactory((ActiveMQConnectionFactory) context.getBean("stubConnectionFactory"));
+		newPublisher.setCompressed(compressed);
+		newPublisher.init();
+		return newPublisher;
+	}
+
+	private CmsWorkOrderSimple newWorkOrder(String queue, int i) {
+		CmsWorkOrderSimple wo = new CmsWorkOrderSimple();
+		wo.setDeploymentId(1);
+		CmsCISimple cloud = new CmsCISimple();
+		cloud.setCiName(queue);
+		cloud.addCiAttribute("location", "/" + queue);
+		wo.setCloud(cloud);
+		wo.rfcCi = newRfc(i);
+		List<CmsRfcCISimple> dependsOn = new ArrayList<>();
+		for (int j = 0; j < 20; j++) {
+			dependsOn.add(newRfc(i * 100 + j));
+		}
+		wo.payLoad = new HashMap<>();
+		wo.payLoad.put("DependsOn", dependsOn);
+		return wo;
+	}
+
+	private CmsRfcCISimple newRfc(long id) {
+		CmsRfcCISimple rfc = new CmsRfcCISimple();
+		rfc.setRfcId(id);
+		rfc.setCiId(id);
+		rfc.setExecOrder(1);
+		rfc.setCiName("compute-" + id);
+		rfc.setCiClassName("bom.oneops.1.Compute");
+		rfc.setNsPath("/org/assembly/env/bom/platform/1");
+		for (int j = 0; j < 20; j++) {
+			rfc.addCiAttribute("attribute" + j, "value of attribute " + j + " of compute " + id);
+		}
+		return rfc;
+	}
+
+	private String readBody(Message message) throws Exception {
+		if (message instanceof TextMessage) {
+			return ((TextMessage) message).getText();
+		}
+		Assert.assertEquals(message.getStringProperty(CmsConstants.MSG_ENCODING), CmsConstants.MSG_ENCODING_GZIP);
+		BytesMessage bytesMessage = (BytesMessage) message;
+		byte[] bytes = new byte[(int) bytesMessage.getBodyLength()];
+		bytesMessage.readBytes(bytes);
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+			return IOUtils.toString(in, StandardCharsets.UTF_8);
+		}
+	}
+
 	@Test (priority=2)
 	/** dump stats and close conn */
 	public void cleanupTest() throws Exception{
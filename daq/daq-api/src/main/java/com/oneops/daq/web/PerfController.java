@@ -23,6 +23,7 @@ import com.oneops.daq.dao.PerfDao;
 import com.oneops.daq.domain.*;
 import com.oneops.ops.PerfDataRequest;
 import com.oneops.ops.dao.PerfDataAccessor;
+import com.oneops.ops.dao.PerfSeriesCache;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.ServletRequestUtils;
@@ -32,6 +33,12 @@ import org.springframework.web.bind.annotation.ResponseBody;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static org.springframework.web.bind.annotation.RequestMethod.*;
 
@@ -71,8 +78,8 @@ public class PerfController {
     /**
      * Gets the perf data.
      *
-     * @param request  the request, contains json array of {@link PerfDataRequest}
-     * @param response the response, contains json array of tabled results.
+     * @param request  the request, contains json array of {@link PerfDataRequest} and optional maxPoints
+     * @param response the response, contains json array of tabled results streamed per series.
      * @return the perf data
      * @throws Exception the exception
      */
@@ -81,24 +88,28 @@ public class PerfController {
 
         String reqSet = ServletRequestUtils.getStringParameter(request, "reqSet");
         PerfDataRequest[] reqs = gson.fromJson(reqSet, PerfDataRequest[].class);
+        int maxPoints = ServletRequestUtils.getIntParameter(request, "maxPoints", 0);
 
         long startTime = System.currentTimeMillis();
-        StringBuilder bu = new StringBuilder("[ ");
+        response.setStatus(200);
+        Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        out.write("[ ");
         for (int i = 0; i < reqs.length; i++) {
             PerfDataRequest req = reqs[i];
+            if (maxPoints > 0) {
+                req.setMaxPoints(maxPoints);
+            }
             if (i > 0) {
-                bu.append(",");
+                out.write(",");
             }
-            bu.append(perfDataAccessor.getPerfDataSeries(req));
+            perfDataAccessor.writePerfDataSeries(req, out);
         }
-        bu.append("\n]");
+        out.write("\n]");
+        out.flush();
 
         long endTime = System.currentTimeMillis();
         long duration = endTime - startTime;
         logger.debug(request.getRemoteAddr() + " took " + duration + " ms");
-
-        response.getOutputStream().print(bu.toString());
-        response.setStatus(200);
     }
 
     /**
@@ -122,6 +133,32 @@ public class PerfController {
         response.setStatus(200);
     }
 
+    /**
+     * Report the series and chart cache hit ratios.
+     *
+     * @param request  the request
+     * @param response the response, json of the cache counters
+     * @throws Exception the exception
+     */
+    @RequestMapping("/cacheStats")
+    public void cacheStats(HttpServletRequest request, HttpServletResponse response) throws Exception {
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        PerfSeriesCache seriesCache = perfDataAccessor.getSeriesCache();
+        if (seriesCache != null) {
+            stats.put("seriesHits", seriesCache.hitCount.get());
+            stats.put("seriesMisses", seriesCache.missCount.get());
+            stats.put("seriesHitRatio", seriesCache.getHitRatio());
+            stats.put("seriesChunks", seriesCache.size());
+        }
+        stats.put("chartHits", perfDao.chartHitCount.get());
+        stats.put("chartMisses", perfDao.chartMissCount.get());
+        stats.put("chartHitRatio", perfDao.getChartHitRatio());
+
+        response.setStatus(200);
+        response.getOutputStream().print(gson.toJson(stats));
+    }
+
     /**
      * Purge perf metrics.
      *
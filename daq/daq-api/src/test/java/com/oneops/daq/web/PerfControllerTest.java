@@ -0,0 +1,347 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.daq.web;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.oneops.daq.dao.PerfDao;
+import com.oneops.daq.domain.Chart;
+import com.oneops.ops.PerfDataRequest;
+import com.oneops.ops.dao.PerfDataAccessor;
+import com.oneops.ops.dao.PerfSeriesCache;
+import me.prettyprint.cassandra.serializers.DoubleSerializer;
+import me.prettyprint.cassandra.serializers.LongSerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.HSuperColumn;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the perf series and chart caches behind the controller, with a fake
+ * PerfDataAccessor in place of cassandra.
+ */
+public class PerfControllerTest {
+
+    private static final LongSerializer longSerializer = LongSerializer.get();
+    private static final DoubleSerializer doubleSerializer = DoubleSerializer.get();
+    private static final StringSerializer stringSerializer = StringSerializer.get();
+
+    // 2015-01-01T12:30:00Z
+    private static final long NOW = 1420115400L;
+
+    private FakePerfDataAccessor accessor;
+    private PerfSeriesCache seriesCache;
+    private PerfDao perfDao;
+    private PerfController controller;
+
+    @BeforeMethod
+    public void setUp() {
+        accessor = new FakePerfDataAccessor();
+        seriesCache = new PerfSeriesCache(1000, 4, 60, 300) {
+            @Override
+            protected long currentTimeSec() {
+                return accessor.now;
+            }
+        };
+        accessor.setSeriesCache(seriesCache);
+        perfDao = new PerfDao();
+        perfDao.setPerfDataAccessor(accessor);
+        controller = new PerfController();
+        controller.setPerfDao(perfDao);
+        controller.setPerfDataAccessor(accessor);
+    }
+
+    @Test
+    public void testCachedSeriesMatchUncached() throws Exception {
+        long start = NOW - 6 * 3600;
+        String cached = getPerfData(start, NOW);
+
+        PerfDataAccessor uncached = new FakePerfDataAccessor();
+        PerfDataRequest req = request(start, NOW);
+        assertEquals(cached, "[ " + uncached.getPerfDataSeries(req) + "\n]");
+        // and again from the cache
+        assertEquals(getPerfData(start, NOW), cached);
+        assertEquals(new JsonParser().parse(cached).getAsJsonArray().size(), 2);
+    }
+
+    @Test
+    public void testOnlyOpenChunkIsReadAgain() throws Exception {
+        long start = NOW - 6 * 3600;
+        getPerfData(start, NOW);
+        long misses = seriesCache.missCount.get();
+        // 6 completed hour chunks for each metric, the 12:00 hour is still open
+        assertEquals(misses, 2 * 6);
+
+        accessor.reads.clear();
+        getPerfData(start, NOW);
+        assertEquals(seriesCache.missCount.get(), misses);
+        assertEquals(seriesCache.hitCount.get(), 2 * 6);
+        for (long[] read : accessor.reads) {
+            assertTrue(read[0] >= NOW - NOW % 3600, "read completed bucket " + read[0]);
+        }
+        // the open chunk of both metrics in one read
+        assertEquals(accessor.reads.size(), 1);
+
+        Response response = new Response();
+        controller.cacheStats(request(new HashMap<>()), response.proxy());
+        JsonObject stats = new JsonParser().parse(response.content()).getAsJsonObject();
+        assertEquals(stats.get("seriesHitRatio").getAsDouble(), 0.5);
+    }
+
+    @Test
+    public void testClosingChunkIsCachedOnceSettled() throws Exception {
+        long start = NOW - 2 * 3600;
+        getPerfData(start, NOW);
+        assertEquals(seriesCache.missCount.get(), 2 * 2);
+
+        // the open hour closes, but its last bucket may still be written
+        accessor.now = NOW + 1800 + 60;
+        getPerfData(start, NOW);
+        assertEquals(seriesCache.missCount.get(), 2 * 2);
+
+        accessor.now = NOW + 1800 + 60 + 300;
+        getPerfData(start, NOW);
+        assertEquals(seriesCache.missCount.get(), 2 * 3);
+    }
+
+    @Test
+    public void testChunkExpiresWithColumnTtl() throws Exception {
+        long start = NOW - 6 * 3600;
+        String cached = getPerfData(start, NOW);
+        assertEquals(seriesCache.missCount.get(), 2 * 6);
+
+        // the 1m columns live 2 days, the first chunk may have lost buckets in cassandra,
+        // the 12:00 chunk is closed by now
+        long firstChunk = start - start % 3600;
+        accessor.now = firstChunk + 2 * 86400;
+        getPerfData(start, NOW);
+        assertEquals(seriesCache.missCount.get(), 2 * 8);
+        assertEquals(seriesCache.size(), 2 * 6);
+        // an expired chunk is not cached again
+        getPerfData(start, NOW);
+        assertEquals(seriesCache.missCount.get(), 2 * 9);
+
+        accessor.now = NOW;
+        assertEquals(getPerfData(start, NOW), cached);
+    }
+
+    @Test
+    public void testPurgeInvalidatesCi() throws Exception {
+        long start = NOW - 6 * 3600;
+        getPerfData(start, NOW);
+        assertEquals(seriesCache.size(), 2 * 6);
+
+        assertEquals(seriesCache.invalidate(java.util.Collections.singleton("2")), 0);
+        assertEquals(seriesCache.size(), 2 * 6);
+        assertEquals(seriesCache.invalidate(java.util.Collections.singleton("1")), 2 * 6);
+        assertEquals(seriesCache.size(), 0);
+        getPerfData(start, NOW);
+        assertEquals(seriesCache.missCount.get(), 2 * 12);
+    }
+
+    @Test
+    public void testChartCachedUntilSetChart() throws Exception {
+        Chart chart = getChart("chart-1");
+        assertEquals(chart.getTitle(), "title 1");
+        getChart("chart-1");
+        getChart("chart-1");
+        assertEquals(accessor.chartReads, 1);
+        assertEquals(perfDao.getChartHitRatio(), 2.0 / 3.0, 0.0001);
+
+        chart.setTitle("title 2");
+        Map<String, String> params = new HashMap<>();
+        params.put("chartSet", new Gson().toJson(new Chart[]{chart}));
+        controller.setChart(request(params), new Response().proxy());
+
+        assertEquals(getChart("chart-1").getTitle(), "title 2");
+        assertEquals(accessor.chartReads, 2);
+    }
+
+    private String getPerfData(long start, long end) throws Exception {
+        Map<String, String> params = new HashMap<>();
+        params.put("reqSet", new Gson().toJson(new PerfDataRequest[]{request(start, end)}));
+        Response response = new Response();
+        controller.getPerfData(request(params), response.proxy());
+        assertEquals(response.status, 200);
+        return response.content();
+    }
+
+    private Chart getChart(String key) throws Exception {
+        Chart chart = new Chart();
+        chart.setKey(key);
+        Map<String, String> params = new HashMap<>();
+        params.put("chartSet", new Gson().toJson(new Chart[]{chart}));
+        Response response = new Response();
+        controller.getChart(request(params), response.proxy());
+        JsonArray charts = new JsonParser().parse(response.content()).getAsJsonArray();
+        return new Gson().fromJson(charts.get(0), Chart.class);
+    }
+
+    private static PerfDataRequest request(long start, long end) {
+        PerfDataRequest req = new PerfDataRequest();
+        req.setCi_id(1);
+        req.setStart(start);
+        req.setEnd(end);
+        req.setStep(60);
+        req.setMetrics(new String[]{"cpu:CpuIdle", "mem:free"});
+        return req;
+    }
+
+    private static HttpServletRequest request(Map<String, String> params) {
+        return (HttpServletRequest) Proxy.newProxyInstance(PerfControllerTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getParameter":
+                            return params.get(args[0]);
+                        case "getRemoteAddr":
+                            return "127.0.0.1";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Response recording the status and the content written to its output stream.
+     */
+    private static class Response {
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private int status;
+
+        private HttpServletResponse proxy() {
+            ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    content.write(b);
+                }
+            };
+            return (HttpServletResponse) Proxy.newProxyInstance(PerfControllerTest.class.getClassLoader(),
+                    new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getOutputStream":
+                                return out;
+                            case "setStatus":
+                                status = (Integer) args[0];
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        private String content() {
+            return new String(content.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * PerfDataAccessor serving generated 1m buckets up to the current time and charts
+     * from memory.
+     */
+    private static class FakePerfDataAccessor extends PerfDataAccessor {
+        private long now = NOW;
+        private final List<long[]> reads = new ArrayList<>();
+        private final Map<String, Map<String, String>> charts = new HashMap<>();
+        private int chartReads = 0;
+
+        FakePerfDataAccessor() {
+            Map<String, String> chart = new HashMap<>();
+            chart.put("name", "chart-1");
+            chart.put("title", "title 1");
+            charts.put("chart-1", chart);
+        }
+
+        @Override
+        protected Map<String, List<HColumn<Long, Double>>> readSeriesPages(String dataCF, List<String> keys, long from, long end, int count) {
+            reads.add(new long[]{from, end});
+            Map<String, List<HColumn<Long, Double>>> pages = new HashMap<>();
+            for (String key : keys) {
+                pages.put(key, generate(key, from, end, count));
+            }
+            return pages;
+        }
+
+        @Override
+        protected List<HColumn<Long, Double>> readSeriesPage(String dataCF, String key, long from, long end, int count) {
+            reads.add(new long[]{from, end});
+            return generate(key, from, end, count);
+        }
+
+        private List<HColumn<Long, Double>> generate(String key, long from, long end, int count) {
+            List<HColumn<Long, Double>> page = new ArrayList<>();
+            // buckets are written once closed
+            long last = Math.min(end, now - now % 60);
+            for (long t = from + (60 - from % 60) % 60; t <= last && page.size() < count; t += 60) {
+                // a gap every 7th bucket
+                if ((t / 60) % 7 != 0) {
+                    page.add(HFactory.createColumn(t, (double) (key.hashCode() % 13 + (t / 60) % 100), longSerializer, doubleSerializer));
+                }
+            }
+            return page;
+        }
+
+        @Override
+        public List<HSuperColumn<String, String, String>> getChart(String key) {
+            chartReads++;
+            List<HColumn<String, String>> columns = new ArrayList<>();
+            for (Map.Entry<String, String> column : charts.get(key).entrySet()) {
+                if (column.getValue() != null) {
+                    columns.add(HFactory.createStringColumn(column.getKey(), column.getValue()));
+                }
+            }
+            List<HSuperColumn<String, String, String>> superColumns = new ArrayList<>();
+            superColumns.add(HFactory.createSuperColumn("chart", columns, stringSerializer, stringSerializer, stringSerializer));
+            return superColumns;
+        }
+
+        @Override
+        public Mutator<String> newMutator() {
+            return null;
+        }
+
+        @Override
+        public void insert(Mutator<String> mutator, String key, Map<String, String> columnsMap, String columnFamily, String superColumn) {
+            if ("chart".equals(superColumn)) {
+                charts.put(key, new HashMap<>(columnsMap));
+            }
+        }
+
+        @Override
+        public void execute(Mutator<String> mutator) {
+        }
+    }
+}
@@ -40,6 +40,10 @@ public class PerfEventProcessor {
 	private static int threadPoolSize = Integer.parseInt(System.getProperty("threads", "40")); 
 	private static long threadKeepAliveSec = Long.parseLong(System.getProperty("thread_keepalive_sec", "600")); 
 	private static String stateFile = System.getProperty("state_file", "/opt/oneops/log/lsperfcollector.state"); 	
+	private static int headerCacheSize = Integer.parseInt(System.getProperty("header_cache_size", "200000"));
+	private static int headerCacheShards = Integer.parseInt(System.getProperty("header_cache_shards", "64"));
+	private static long headerFlushSec = Long.parseLong(System.getProperty("header_flush_sec", "30"));
+	private static int headerFlushMaxDirty = Integer.parseInt(System.getProperty("header_flush_max_dirty", "20000"));
 	private BlockingQueue<Runnable> linkedBlockingDeque = new LinkedBlockingDeque<Runnable>(queueSize);
 	
 	private	ExecutorService executor = new ThreadPoolExecutor(threadPoolSize, threadPoolSize, 
@@ -108,12 +112,22 @@ public class PerfEventProcessor {
 			logger.error("Could not init perfDataAccessor, EXITING VM", e);
 			System.exit(1);
 		}
+		// bucket writes are group committed, write what is queued on exit
+		Runtime.getRuntime().addShutdownHook(new Thread(perfDataAccessor::shutdown));
 
 
 		perfDao = new PerfWriter();
 		perfDao.setSensorPublisher(sensorPub);
 		perfDao.setPerfDataAccessor(perfDataAccessor);
 		perfDao.setStateFilename(stateFile);
+
+		// header_cache_size=0 falls back to reading and writing the header per sample
+		if (headerCacheSize > 0) {
+			PerfHeaderCache headerCache = new PerfHeaderCache(perfDataAccessor.getHeaderDao(),
+					headerCacheSize, headerCacheShards, headerFlushSec, headerFlushMaxDirty);
+			perfDao.setHeaderCache(headerCache);
+			Runtime.getRuntime().addShutdownHook(new Thread(headerCache::shutdown));
+		}
 	}
 
 	public void process(String event, String ip) {
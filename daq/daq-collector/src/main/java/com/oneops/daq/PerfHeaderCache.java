@@ -0,0 +1,308 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+
+package com.oneops.daq;
+
+import com.oneops.ops.PerfHeader;
+import com.oneops.ops.dao.PerfHeaderDao;
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PerfHeaderCache - bounded, sharded write-behind cache of perf headers keyed by ciId:grouping.
+ * <p>
+ * Consolidation state is updated in memory and dirty headers are written through
+ * {@link PerfHeaderDao#putHeaders(Map)} every flush interval, or sooner once the number of
+ * dirty headers exceeds the configured threshold. A crash loses at most one flush interval
+ * of header state. Dirty headers are never dropped by the LRU eviction, they stay readable
+ * until they are written. Neither are headers in use between {@link #get(String)} and
+ * {@link #release(String)}, so a header evicted while it is updated is not loaded again as a
+ * second copy.
+ */
+public class PerfHeaderCache {
+
+    private static Logger logger = Logger.getLogger(PerfHeaderCache.class);
+
+    private final PerfHeaderDao headerDao;
+    private final Segment[] segments;
+    private final int maxDirty;
+    private final long flushIntervalSec;
+    private final AtomicInteger dirtyCount = new AtomicInteger();
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private final ScheduledExecutorService flusher;
+
+    public final AtomicLong hitCount = new AtomicLong();
+    public final AtomicLong missCount = new AtomicLong();
+    public final AtomicLong flushCount = new AtomicLong();
+    public final AtomicLong flushedHeaderCount = new AtomicLong();
+    public final AtomicLong flushErrorCount = new AtomicLong();
+
+    /**
+     * Creates the cache and starts the periodic flush.
+     *
+     * @param headerDao        header dao used for loads and flushes
+     * @param maxSize          max number of cached headers
+     * @param shards           number of independently locked shards
+     * @param flushIntervalSec max seconds a dirty header stays unwritten
+     * @param maxDirty         dirty header count which triggers an early flush
+     */
+    public PerfHeaderCache(PerfHeaderDao headerDao, int maxSize, int shards, long flushIntervalSec, int maxDirty) {
+        this.headerDao = headerDao;
+        this.maxDirty = maxDirty;
+        this.flushIntervalSec = flushIntervalSec;
+        this.segments = new Segment[shards];
+        int segmentSize = Math.max(1, maxSize / shards);
+        for (int i = 0; i < shards; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "perf-header-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        if (flushIntervalSec > 0) {
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalSec, flushIntervalSec, TimeUnit.SECONDS);
+        }
+        logger.info("PerfHeaderCache (size:" + maxSize + " shards:" + shards + " flushIntervalSec:"
+                + flushIntervalSec + " maxDirty:" + maxDirty + ")");
+    }
+
+    /**
+     * Gets the header, loading it from cassandra on a miss. The header is kept in memory until
+     * it is released.
+     *
+     * @param key ciId:grouping
+     * @return the header
+     */
+    public PerfHeader get(String key) {
+        Segment segment = segmentFor(key);
+        PerfHeader header = segment.acquire(key);
+        if (header != null) {
+            hitCount.incrementAndGet();
+            return header;
+        }
+        missCount.incrementAndGet();
+        return segment.putIfAbsent(key, headerDao.getHeader(key));
+    }
+
+    /**
+     * Releases a header got from the cache, once released by all users a clean header can be
+     * evicted.
+     *
+     * @param key ciId:grouping
+     */
+    public void release(String key) {
+        segmentFor(key).release(key);
+    }
+
+    /**
+     * Marks the header as updated, it will be written with the next flush.
+     *
+     * @param key    ciId:grouping
+     * @param header the updated header
+     */
+    public void markDirty(String key, PerfHeader header) {
+        if (segmentFor(key).markDirty(key, header) && dirtyCount.incrementAndGet() >= maxDirty
+                && flushPending.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * Writes all dirty headers.
+     */
+    public void flush() {
+        flushPending.set(false);
+        long start = System.currentTimeMillis();
+        int flushed = 0;
+        for (Segment segment : segments) {
+            Map<String, PerfHeader> batch = segment.beginFlush();
+            if (batch.isEmpty()) {
+                continue;
+            }
+            dirtyCount.addAndGet(-batch.size());
+            boolean written = false;
+            try {
+                headerDao.putHeaders(batch);
+                written = true;
+                flushed += batch.size();
+            } finally {
+                // failed batches go back to dirty and are retried with the next flush
+                dirtyCount.addAndGet(segment.endFlush(batch, written));
+            }
+        }
+        flushCount.incrementAndGet();
+        flushedHeaderCount.addAndGet(flushed);
+        logger.debug("flushed " + flushed + " headers in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Flushes the dirty headers and stops the flush thread.
+     */
+    public void shutdown() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(flushIntervalSec + 5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Gets the number of headers waiting to be flushed.
+     *
+     * @return dirty header count
+     */
+    public int getDirtyCount() {
+        return dirtyCount.get();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            flushErrorCount.incrementAndGet();
+            logger.error("Error flushing perf headers", e);
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * One lock per shard. Clean headers live only in the LRU; dirty headers are also held in
+     * the dirty map, and while being written in the flushing map, headers in use are held in
+     * the in use map, so they outlive eviction.
+     */
+    private static class Segment {
+        private final LinkedHashMap<String, PerfHeader> lru;
+        private Map<String, PerfHeader> dirty = new HashMap<>();
+        private Map<String, PerfHeader> flushing = new HashMap<>();
+        private final Map<String, Use> inUse = new HashMap<>();
+
+        Segment(final int maxSize) {
+            this.lru = new LinkedHashMap<String, PerfHeader>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PerfHeader> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized PerfHeader acquire(String key) {
+            PerfHeader header = get(key);
+            if (header != null) {
+                use(key, header);
+            }
+            return header;
+        }
+
+        synchronized PerfHeader putIfAbsent(String key, PerfHeader loaded) {
+            // another thread may have loaded it in the meantime
+            PerfHeader header = get(key);
+            if (header == null) {
+                header = loaded;
+                lru.put(key, loaded);
+            }
+            use(key, header);
+            return header;
+        }
+
+        synchronized void release(String key) {
+            Use use = inUse.get(key);
+            if (use != null && --use.count == 0) {
+                inUse.remove(key);
+            }
+        }
+
+        private PerfHeader get(String key) {
+            PerfHeader header = lru.get(key);
+            if (header == null) {
+                header = dirty.get(key);
+                if (header == null) {
+                    header = flushing.get(key);
+                }
+                if (header == null) {
+                    Use use = inUse.get(key);
+                    header = use == null ? null : use.header;
+                }
+                if (header != null) {
+                    lru.put(key, header);
+                }
+            }
+            return header;
+        }
+
+        private void use(String key, PerfHeader header) {
+            inUse.computeIfAbsent(key, k -> new Use(header)).count++;
+        }
+
+        synchronized boolean markDirty(String key, PerfHeader header) {
+            lru.put(key, header);
+            return dirty.put(key, header) == null;
+        }
+
+        synchronized Map<String, PerfHeader> beginFlush() {
+            if (dirty.isEmpty()) {
+                return dirty;
+            }
+            Map<String, PerfHeader> batch = dirty;
+            flushing.putAll(batch);
+            dirty = new HashMap<>();
+            return batch;
+        }
+
+        synchronized int endFlush(Map<String, PerfHeader> batch, boolean written) {
+            int requeued = 0;
+            for (Map.Entry<String, PerfHeader> entry : batch.entrySet()) {
+                flushing.remove(entry.getKey());
+                if (!written && dirty.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+                    requeued++;
+                }
+            }
+            return requeued;
+        }
+    }
+
+    /**
+     * A header in use with the number of users.
+     */
+    private static class Use {
+        private final PerfHeader header;
+        private int count;
+
+        Use(PerfHeader header) {
+            this.header = header;
+        }
+    }
+}
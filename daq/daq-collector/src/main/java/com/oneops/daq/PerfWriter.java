@@ -21,7 +21,7 @@ package com.oneops.daq;
 
 import com.oneops.daq.dao.PerfDao;
 import com.oneops.daq.jms.SensorPublisher;
-import com.oneops.ops.PerfArchive;
+import com.oneops.ops.PerfConsolidationPlan;
 import com.oneops.ops.PerfDatasource;
 import com.oneops.ops.PerfHeader;
 import com.oneops.ops.dao.PerfDataAccessor;
@@ -31,12 +31,12 @@ import org.apache.log4j.Logger;
 import javax.jms.JMSException;
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 
 public class PerfWriter extends PerfDao {
     private static SensorPublisher sensorPub = null;
+    private PerfHeaderCache headerCache = null;
 
     private static Logger logger = Logger.getLogger(PerfWriter.class);
 
@@ -78,9 +78,32 @@ public class PerfWriter extends PerfDao {
 
         String columnKey = perfEvent.getCiId() + ":" + perfEvent.getGrouping();
         PerfDataAccessor perfDataAccessor = getPerfDataAccessor();
-        PerfHeader header = perfDataAccessor.getHeader(columnKey);
+        PerfHeader header;
+        if (headerCache != null) {
+            header = headerCache.get(columnKey);
+        } else {
+            header = perfDataAccessor.getHeader(columnKey);
+        }
+
+        // the header is shared across worker threads, samples of one ci are consolidated in turn
+        try {
+            synchronized (header) {
+                return process(perfEvent, ip, columnKey, header, perfDataAccessor);
+            }
+        } finally {
+            if (headerCache != null) {
+                headerCache.release(columnKey);
+            }
+        }
+    }
+
+    private boolean process(PerfEvent perfEvent, String ip, String columnKey, PerfHeader header,
+                            PerfDataAccessor perfDataAccessor) throws IOException, JMSException {
 
-        logger.debug("column key: " + columnKey + " ip: " + ip + " header ip: " + header.getIp());
+        boolean debug = logger.isDebugEnabled();
+        if (debug) {
+            logger.debug("column key: " + columnKey + " ip: " + ip + " header ip: " + header.getIp());
+        }
         if (header.getIp() == null || header.getIp().equalsIgnoreCase("")) {
             header.setIp(ip);
         } else if (!header.getIp().equalsIgnoreCase(ip)) {
@@ -89,7 +112,9 @@ public class PerfWriter extends PerfDao {
             //return false;
         }
 
-        logger.debug("### EVENT header:" + header.toLogString());
+        if (debug) {
+            logger.debug("### EVENT header:" + header.toLogString());
+        }
 
         // map for values keyed by datasource and aggregate
         Map<String, Double> dsRraValueMap = new HashMap<String, Double>();
@@ -123,7 +148,7 @@ public class PerfWriter extends PerfDao {
         }
 
         // find the aligned timestamps for the pdp values
-        long step = Long.valueOf(header.getStep());
+        long step = header.getStep();
 
         long delta = timestamp - updated;
         long startTime = PerfDataAccessor.bucketize(timestamp, step);
@@ -133,9 +158,10 @@ public class PerfWriter extends PerfDao {
         long lastDelta = updated % step;
         long thisDelta = timestamp % step;
 
-
-        logger.debug("startTime:" + startTime + " endTime:" + endTime
-                + " step:" + step + " lastStartTime:" + lastStartTime + " lastEndTime:" + lastEndTime);
+        if (debug) {
+            logger.debug("startTime:" + startTime + " endTime:" + endTime
+                    + " step:" + step + " lastStartTime:" + lastStartTime + " lastEndTime:" + lastEndTime);
+        }
 
         Map<String, Double> metrics = perfEvent.getMetrics().getAvg();
 
@@ -144,28 +170,32 @@ public class PerfWriter extends PerfDao {
             return true;
         }
 
-        Iterator<String> k = metrics.keySet().iterator();
-        while (k.hasNext()) {
-            String dsKey = (String) k.next();
+        for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+            String dsKey = metric.getKey();
+            double v = metric.getValue();
             PerfDatasource ds = header.getDsMap().get(dsKey);
 
             // lenient new ds
             if (ds == null) {
                 logger.info("header.getDsMap missing: " + dsKey);
                 ds = new PerfDatasource();
-                double nv = metrics.get(dsKey);
                 ds.setType(PerfDatasource.GAUGE);
-                ds.setLast(nv);
-                ds.setInput(nv);
-                ds.setPdp(nv);
+                ds.setLast(v);
+                ds.setInput(v);
+                ds.setPdp(v);
                 header.getDsMap().put(dsKey, ds);
             }
-            logger.debug("### DS: " + dsKey + " " + ds.toLogString());
+            // recompiled when the ds was just added
+            PerfConsolidationPlan plan = header.getConsolidationPlan();
+            int dsIndex = plan.indexOf(dsKey);
+
+            if (debug) {
+                logger.debug("### DS: " + dsKey + " " + ds.toLogString());
+            }
             if (delta > ds.getHeartbeat()) {
                 delta = ds.getHeartbeat();
             }
 
-            double v = metrics.get(dsKey);
             double last = ds.getLast();
 
             // rate based on type
@@ -179,34 +209,39 @@ public class PerfWriter extends PerfDao {
                 ds.setLast(v);
             }
 
-            // check if the sample is within the same pdp with the previous sample
-            double diff = endTime - timestamp;
-
-            logger.debug("updated:" + updated + " startTime:" + startTime + " diff(curr-upd):" + diff);
+            if (debug) {
+                // check if the sample is within the same pdp with the previous sample
+                double diff = endTime - timestamp;
+                logger.debug("updated:" + updated + " startTime:" + startTime + " diff(curr-upd):" + diff);
+            }
 
             if (lastStartTime == startTime) {
                 // last / new value ratio
-                double lr = new Double(lastDelta) / new Double(thisDelta);
-                double nr = new Double(thisDelta - lastDelta) / new Double(thisDelta);
-                logger.debug("lastStartTime == startTime ; thisDelta:" + thisDelta + " - lastDelta:" + lastDelta + " ) / thisDelta:" + thisDelta);
+                double lr = (double) lastDelta / (double) thisDelta;
+                double nr = (double) (thisDelta - lastDelta) / (double) thisDelta;
+                if (debug) {
+                    logger.debug("lastStartTime == startTime ; thisDelta:" + thisDelta + " - lastDelta:" + lastDelta + " ) / thisDelta:" + thisDelta);
+                }
 
                 double nv = 0;
                 if (type.equalsIgnoreCase(PerfDatasource.COUNTER) ||
                         type.equalsIgnoreCase(PerfDatasource.DERIVE)) {
 
                     nv = Util.calcRate(ds.getType(), v, ds.getInput(), thisDelta);
-                    logger.debug("using Util.calcRate (" + ds.getType() + ", " + v + ", " + ds.getInput() + ", " + thisDelta + ") - nv: " + nv);
+                    if (debug) {
+                        logger.debug("using Util.calcRate (" + ds.getType() + ", " + v + ", " + ds.getInput() + ", " + thisDelta + ") - nv: " + nv);
+                    }
                 } else {
                     nv = v;
                 }
 
                 // calculate the pdp
-                double pdp = new Double((nv * nr) + (last * lr));
-                if (pdp == Double.NaN) {
-                    pdp = 0;
+                double pdp = (nv * nr) + (last * lr);
+                if (debug) {
+                    logger.debug("cv:" + v + " pdp:" + pdp + " nv:" + nv + " nr:" + nr + " last:" + last + " lr:" + lr);
                 }
-                logger.debug("cv:" + v + " pdp:" + pdp + " nv:" + nv + " nr:" + nr + " last:" + last + " lr:" + lr);
-                consolidate(header, dsKey, endTime, pdp, dsRraValueMap);
+                plan.consolidate(dsIndex, endTime, pdp, header.getUpdated(), dsRraValueMap);
+                ds.setPdp(pdp);
 
                 // update the header values
                 ds.setInput(v);
@@ -218,17 +253,21 @@ public class PerfWriter extends PerfDao {
                 long pdpTs = lastEndTime;
 
                 // last value ratio and last value
-                double lr = new Double(lastDelta) / new Double(step);
-                logger.debug("updated < startTime - last update in some previous bucket:" + pdpTs + " lastDelta:" + lastDelta + " lr:" + lr + " step:" + step);
+                double lr = (double) lastDelta / (double) step;
+                if (debug) {
+                    logger.debug("updated < startTime - last update in some previous bucket:" + pdpTs + " lastDelta:" + lastDelta + " lr:" + lr + " step:" + step);
+                }
 
                 // new value ratio and new value
-                double nr = new Double((step - lastDelta)) / new Double(step);
+                double nr = (double) (step - lastDelta) / (double) step;
                 double nv;
                 if (type.equalsIgnoreCase(PerfDatasource.COUNTER) ||
                         type.equalsIgnoreCase(PerfDatasource.DERIVE)) {
 
                     nv = Util.calcRate(ds.getType(), v, ds.getInput(), delta);
-                    logger.debug("using Util.calcRate (" + ds.getType() + ", " + v + ", " + ds.getInput() + ", " + delta + ") returned: " + nv);
+                    if (debug) {
+                        logger.debug("using Util.calcRate (" + ds.getType() + ", " + v + ", " + ds.getInput() + ", " + delta + ") returned: " + nv);
+                    }
                 } else {
                     nv = v;
                 }
@@ -240,22 +279,29 @@ public class PerfWriter extends PerfDao {
 
 
                 // calculate the pdp
-                double pdp = new Double((nv * nr) + (last * lr));
+                double pdp = (nv * nr) + (last * lr);
 
-                logger.debug("pdp:" + pdp + " nv:" + nv + " nr:" + nr + " last:" + last + " lr:" + lr);
+                if (debug) {
+                    logger.debug("pdp:" + pdp + " nv:" + nv + " nr:" + nr + " last:" + last + " lr:" + lr);
+                }
 
                 while (pdpTs <= startTime) {
                     // max lets go back is 1 step
                     if ((startTime - step) > pdpTs) {
-                        logger.debug("old pdpTs: " + pdpTs + " new pdpTs:" + (startTime - step));
+                        if (debug) {
+                            logger.debug("old pdpTs: " + pdpTs + " new pdpTs:" + (startTime - step));
+                        }
                         pdpTs = startTime - step;
                     }
-                    logger.debug(perfEvent.getCiId() + " " + dsKey + " filling in " + pdpTs + " to " + startTime);
+                    if (debug) {
+                        logger.debug(perfEvent.getCiId() + " " + dsKey + " filling in " + pdpTs + " to " + startTime);
+                    }
                     // consolidate pdp and cdp (in header)
                     if (Double.isNaN(pdp)) {
                         pdp = v;
                     }
-                    consolidate(header, dsKey, pdpTs, pdp, dsRraValueMap);
+                    plan.consolidate(dsIndex, pdpTs, pdp, header.getUpdated(), dsRraValueMap);
+                    ds.setPdp(pdp);
                     pdpTs += step;
                 }
 
@@ -263,18 +309,26 @@ public class PerfWriter extends PerfDao {
                 ds.setInput(v);
                 ds.setLast(nv);
 
-                logger.debug("header-post consolidate " + header.toLogString());
+                if (debug) {
+                    logger.debug("header-post consolidate " + header.toLogString());
+                }
             }
 
-            header.setUpdated(Long.valueOf(timestamp));
-            logger.debug("at the end write info header");
-
+            header.setUpdated(timestamp);
+        }
+        if (debug) {
+            Util.logMapDouble("dsAggregateMap", dsRraValueMap, logger);
         }
         HashMap<String, PerfEvent> perfEventMap = new HashMap<String, PerfEvent>();
         perfEventMap.put("1m", perfEvent);
 
         // writes to cass and populates perfEventMap for sensor
-        perfDataAccessor.writeSampleToHeaderAndBuckets(columnKey, endTime, header, dsRraValueMap, perfEventMap);
+        if (headerCache != null) {
+            perfDataAccessor.writeSampleToBuckets(columnKey, dsRraValueMap, perfEventMap);
+            headerCache.markDirty(columnKey, header);
+        } else {
+            perfDataAccessor.writeSampleToHeaderAndBuckets(columnKey, endTime, header, dsRraValueMap, perfEventMap);
+        }
 
         for (String key : perfEventMap.keySet()) {
             perfEvent = perfEventMap.get(key);
@@ -296,134 +350,6 @@ public class PerfWriter extends PerfDao {
 
     }
 
-    /*
-*  consolidate ; update rra values for
-*/
-    private Map<String, Double> consolidate(PerfHeader header, String dsKey,
-                                            long endTime, Double pdp, Map<String, Double> dsAggregateMap) {
-
-        if (dsAggregateMap == null) {
-            dsAggregateMap = new HashMap<String, Double>();
-        }
-        for (String rraKey : header.getRraMap().keySet()) {
-            PerfArchive rra = header.getRraMap().get(rraKey);
-
-            // delta to end of the archive bucket
-            long archiveDelta = endTime % (rra.getSteps() * header.getStep());
-
-            // set the delta to the full period if end of the cdp range
-            long cdpStartTime, archiveRange;
-
-            // calculate new cdp
-            Double cdp = null;
-            String cdpKey = dsKey + ":" + rraKey;
-            Map<String, Double> cdpMap = header.getCdpMap();
-            Double lastCdp = cdpMap.get(cdpKey);
-
-            if (archiveDelta == 0) {
-                archiveRange = rra.getSteps() * header.getStep();
-                cdpStartTime = endTime - archiveRange;
-            } else {
-                archiveRange = archiveDelta;
-                cdpStartTime = endTime - archiveDelta;
-            }
-
-            if (lastCdp == null) {
-                lastCdp = Double.NaN;
-            }
-            String statFunction = rra.getConsolidationFunction();
-
-            if (rraKey.contains(LOGBUCKET)) {
-                logger.debug("consolidate: " + rraKey + " stat:" + statFunction + " dsKey=" + dsKey + " pdp=" + pdp + " bucket:"
-                        + endTime + " archiveDelta:" + archiveDelta + " cdpKey:" + cdpKey + " lastCdp:" + lastCdp
-                        + " updated:" + header.getUpdated() + " cdpStartTime:" + cdpStartTime + " archiveRange:" + archiveRange);
-            }
-
-            if (pdp.isNaN()) {
-                // if empty pdp value keep the last cdp value
-                cdp = lastCdp;
-
-            } else if ((header.getUpdated() < cdpStartTime) || lastCdp.isNaN()) {
-                // old or empty cdp data does not need consolidation
-                // count starts at 1
-                if (statFunction.equalsIgnoreCase(COUNT)) {
-                    cdp = 1.0;
-                } else {
-                    cdp = pdp;
-                }
-
-            } else {
-                // check the consolidation function and calculate accordingly
-                if (statFunction.equalsIgnoreCase(MAX)) {
-                    if (pdp > lastCdp) {
-                        cdp = pdp;
-                    } else {
-                        cdp = lastCdp;
-                    }
-                } else if (statFunction.equalsIgnoreCase(MIN)) {
-                    if (pdp < lastCdp) {
-                        cdp = pdp;
-                    } else {
-                        cdp = lastCdp;
-                    }
-                } else if (statFunction.equalsIgnoreCase(COUNT)) {
-                    cdp = lastCdp + 1.0;
-
-                } else if (statFunction.equalsIgnoreCase(SUM)) {
-                    cdp = lastCdp + pdp;
-
-                } else if (statFunction.equalsIgnoreCase(AVERAGE)) {
-                    long lastRange = header.getUpdated() - cdpStartTime;
-                    if (lastRange < archiveRange) {
-                        double lastValueRate = Double.valueOf(lastRange) / Double.valueOf(archiveRange);
-                        double pdpRate = Double.valueOf((archiveRange - lastRange)) / Double.valueOf(archiveRange);
-
-                        cdp = (lastCdp * lastValueRate) + (pdp * pdpRate);
-                        if (rraKey.contains(LOGBUCKET)) {
-                            logger.debug("lastCdp: " + lastCdp + " lastValueRate:" + lastValueRate + " pdp:" + pdp + " pdpRate:" + pdpRate);
-                        }
-
-                    } else {
-                        cdp = pdp;
-                    }
-
-                    if (rraKey.contains(LOGBUCKET)) {
-                        logger.debug(rraKey + " cdp:" + cdp + " lv:" + lastCdp + " lastRange:" + lastRange + " pdp:" + pdp);
-                    }
-                }
-
-            }
-
-            if (cdp.isNaN()) {
-                cdp = 0.0;
-            }
-
-            if (rraKey.contains(LOGBUCKET)) {
-                logger.debug(rraKey + " cdp:" + cdp + " archiveDelta:" + archiveDelta);
-            }
-            cdpMap.put(cdpKey, cdp);
-
-            if (archiveDelta == 0) {
-                // need to update rra data / end of consolidation period and reset cdp
-                dsAggregateMap.put(dsKey + ":" + rraKey + "::" + endTime, cdp);
-
-                //start new bucket
-                if (statFunction.equalsIgnoreCase(COUNT)) {
-                    cdp = 1.0;
-                } else if (rraKey.contains("average-1m")) {
-                    cdp = pdp;
-                }
-                cdpMap.put(cdpKey, cdp);
-            }
-        }
-
-        PerfDatasource ds = header.getDsMap().get(dsKey);
-        ds.setPdp(pdp);
-        Util.logMapDouble("dsAggregateMap", dsAggregateMap, logger);
-
-        return dsAggregateMap;
-    }
-
     /**
      * Sets the sensor publisher.
      *
@@ -432,5 +358,14 @@ public class PerfWriter extends PerfDao {
     public void setSensorPublisher(SensorPublisher sp) {
         sensorPub = sp;
     }
+
+    /**
+     * Sets the header cache. Without one, headers are read and written per sample.
+     *
+     * @param headerCache the header cache
+     */
+    public void setHeaderCache(PerfHeaderCache headerCache) {
+        this.headerCache = headerCache;
+    }
 }
 
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.daq.jms;
+
+import com.oneops.sensor.events.BasicEvent;
+import com.oneops.sensor.events.PerfEventBatchCodec;
+import org.apache.log4j.Logger;
+import org.springframework.jms.JmsException;
+import org.springframework.jms.core.JmsTemplate;
+
+import javax.jms.BytesMessage;
+import javax.jms.DeliveryMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PerfEventBatcher - accumulates the events of one perf-in-q shard for up to maxDelayMs or
+ * maxBatchSize events and sends them as one BytesMessage encoded with {@link PerfEventBatchCodec}.
+ * <p>
+ * Publishers wait up to offerTimeoutMs once queueSize events are waiting, then the event is
+ * dropped. A batch that can't be sent is retried every retryDelayMs up to maxRetries times and
+ * then dropped, so a broker outage loses events instead of blocking the collector threads.
+ * Dropped events are counted.
+ */
+class PerfEventBatcher {
+
+    private static final Logger logger = Logger.getLogger(PerfEventBatcher.class);
+    private static final long POLL_MS = 100;
+    private static final long DROP_LOG_INTERVAL = 1000;
+
+    private final String name;
+    private final JmsTemplate producer;
+    private final int maxBatchSize;
+    private final long maxDelayMs;
+    private final long retryDelayMs;
+    private final int maxRetries;
+    private final long offerTimeoutMs;
+    private final BlockingQueue<BasicEvent> queue;
+    private final Thread sender;
+    private volatile boolean running = true;
+
+    final AtomicLong batchCount = new AtomicLong();
+    final AtomicLong sentEventCount = new AtomicLong();
+    final AtomicLong retryCount = new AtomicLong();
+    final AtomicLong droppedEventCount = new AtomicLong();
+
+    /**
+     * Creates the batcher and starts its sender thread.
+     *
+     * @param name           shard name used for the thread and logging
+     * @param producer       template with the shard queue as default destination
+     * @param maxBatchSize   max events per message
+     * @param maxDelayMs     max time the first event of a batch waits
+     * @param queueSize      events waiting to be sent before publishers wait
+     * @param retryDelayMs   delay between attempts to send a failed batch
+     * @param maxRetries     retries of a failed batch before it is dropped
+     * @param offerTimeoutMs max time a publisher waits for queue space
+     */
+    PerfEventBatcher(String name, JmsTemplate producer, int maxBatchSize, long maxDelayMs, int queueSize, long retryDelayMs,
+                     int maxRetries, long offerTimeoutMs) {
+        this.name = name;
+        this.producer = producer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMs = maxDelayMs;
+        this.retryDelayMs = retryDelayMs;
+        this.maxRetries = maxRetries;
+        this.offerTimeoutMs = offerTimeoutMs;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.sender = new Thread(this::run, "perf-batcher-" + name);
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * Queues the event, waiting up to offerTimeoutMs while the queue is full.
+     *
+     * @param event the event
+     * @return false if the event was dropped
+     * @throws InterruptedException if interrupted while waiting for queue space
+     */
+    boolean publish(BasicEvent event) throws InterruptedException {
+        if (queue.offer(event, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        if (droppedEventCount.incrementAndGet() % DROP_LOG_INTERVAL == 1) {
+            logger.warn(name + ": queue full, dropped " + droppedEventCount.get() + " events so far");
+        }
+        return false;
+    }
+
+    /**
+     * Sends the queued events and stops the sender thread.
+     */
+    void shutdown() {
+        running = false;
+        try {
+            sender.join(maxDelayMs + retryDelayMs * (maxRetries + 1) + POLL_MS * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            droppedEventCount.addAndGet(queue.size());
+            logger.error(name + ": dropped " + queue.size() + " unsent events on shutdown");
+            queue.clear();
+        }
+    }
+
+    int getQueuedCount() {
+        return queue.size();
+    }
+
+    private void run() {
+        List<BasicEvent> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                BasicEvent first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+                while (batch.size() < maxBatchSize) {
+                    if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || !running) {
+                        break;
+                    }
+                    BasicEvent next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                send(batch);
+            } catch (InterruptedException e) {
+                // the sender runs until shutdown, publishers would wait on a full queue otherwise
+                if (!batch.isEmpty()) {
+                    droppedEventCount.addAndGet(batch.size());
+                    logger.warn(name + ": interrupted, dropped batch of " + batch.size() + " events");
+                }
+            } catch (Exception e) {
+                droppedEventCount.addAndGet(batch.size());
+                logger.error(name + ": could not send batch of " + batch.size() + " events", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(List<BasicEvent> batch) throws InterruptedException {
+        final byte[] body = PerfEventBatchCodec.encode(batch);
+        final int events = batch.size();
+        int attempts = 0;
+        while (true) {
+            try {
+                producer.send(session -> {
+                    BytesMessage message = session.createBytesMessage();
+                    message.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+                    message.setStringProperty(PerfEventBatchCodec.FORMAT_PROPERTY, PerfEventBatchCodec.FORMAT);
+                    message.setIntProperty(PerfEventBatchCodec.EVENTS_PROPERTY, events);
+                    message.writeBytes(body);
+                    return message;
+                });
+                batchCount.incrementAndGet();
+                sentEventCount.addAndGet(events);
+                if (logger.isDebugEnabled()) {
+                    logger.debug(name + ": published batch of " + events + " events, " + body.length + " bytes");
+                }
+                return;
+            } catch (JmsException exception) {
+                retryCount.incrementAndGet();
+                attempts++;
+                if (attempts > maxRetries) {
+                    throw exception;
+                }
+                logger.warn(name + ": error sending batch of " + events + " events, retrying in " + retryDelayMs + " ms");
+                Thread.sleep(retryDelayMs);
+            }
+        }
+    }
+}
@@ -125,6 +125,16 @@ public class SensorPublisher {
 
     private JmsTemplate[] producers = new JmsTemplate[poolsize];
 
+    // events per BytesMessage, 1 publishes one ObjectMessage per event. Only raise it once every
+    // sensor consuming the queues reads the batched BytesMessages
+    private int batchSize = Integer.parseInt(System.getProperty("daq.publish.batchSize", "1"));
+    private long batchDelayMs = Long.parseLong(System.getProperty("daq.publish.batchDelayMs", "50"));
+    private int batchQueueSize = Integer.parseInt(System.getProperty("daq.publish.queueSize", "20000"));
+    private long batchRetryDelayMs = Long.parseLong(System.getProperty("daq.publish.retryDelayMs", "1000"));
+    private int batchMaxRetries = Integer.parseInt(System.getProperty("daq.publish.maxRetries", "3"));
+    private long batchOfferTimeoutMs = Long.parseLong(System.getProperty("daq.publish.offerTimeoutMs", "1000"));
+    private PerfEventBatcher[] batchers;
+
     private ThresholdsDao thresholdsDao = null;
 
 
@@ -197,7 +207,7 @@ public class SensorPublisher {
             producerTemplate.setDeliveryPersistent(false);
             producers[i] = producerTemplate;
         }
-
+        startBatchers();
 
     }
 
@@ -271,10 +281,21 @@ public class SensorPublisher {
      * @throws JMSException the jMS exception
      */
     public void publishMessage(final BasicEvent event) throws JMSException {
-        
+
+        int shard = (int) (event.getManifestId() % poolsize);
+        if (batchers != null) {
+            publishedCounter.incrementAndGet();
+            try {
+                batchers[shard].publish(event);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JMSException("interrupted while waiting to publish ciId:" + event.getCiId());
+            }
+            return;
+        }
+
         if (System.currentTimeMillis() > lastFailureTimestamp) {
             publishedCounter.incrementAndGet();
-            int shard = (int) (event.getManifestId() % poolsize);
             try {
                 producers[shard].send(session -> {
                     ObjectMessage message = session.createObjectMessage(event);
@@ -296,14 +317,77 @@ public class SensorPublisher {
     }
 
 
+    private void startBatchers() {
+        if (batchSize <= 1) {
+            return;
+        }
+        PerfEventBatcher[] shardBatchers = new PerfEventBatcher[producers.length];
+        for (int i = 0; i < producers.length; i++) {
+            shardBatchers[i] = new PerfEventBatcher(queueBase + "-" + (i + 1), producers[i], batchSize, batchDelayMs,
+                    batchQueueSize, batchRetryDelayMs, batchMaxRetries, batchOfferTimeoutMs);
+        }
+        batchers = shardBatchers;
+        logger.info("batching perf events, batchSize: " + batchSize + " batchDelayMs: " + batchDelayMs
+                + " queueSize: " + batchQueueSize);
+    }
+
+    private void stopBatchers() {
+        if (batchers == null) {
+            return;
+        }
+        for (PerfEventBatcher batcher : batchers) {
+            batcher.shutdown();
+        }
+        batchers = null;
+    }
+
     void setProducers(JmsTemplate[] producers) {
+        stopBatchers();
         this.producers = producers;
+        startBatchers();
+    }
+
+    /**
+     * Sets the max number of events per message, 1 sends one ObjectMessage per event.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the retries of a batch the broker didn't take before it is dropped.
+     *
+     * @param batchMaxRetries the max retries
+     */
+    public void setBatchMaxRetries(int batchMaxRetries) {
+        this.batchMaxRetries = batchMaxRetries;
+    }
+
+    /**
+     * Sets the max time a publisher waits for space in a full batch queue before the event is dropped.
+     *
+     * @param batchOfferTimeoutMs the offer timeout in ms
+     */
+    public void setBatchOfferTimeoutMs(long batchOfferTimeoutMs) {
+        this.batchOfferTimeoutMs = batchOfferTimeoutMs;
+    }
+
+    /**
+     * Sets the max time an event waits for its batch to fill.
+     *
+     * @param batchDelayMs the batch delay in ms
+     */
+    public void setBatchDelayMs(long batchDelayMs) {
+        this.batchDelayMs = batchDelayMs;
     }
 
     /**
      * Cleanup.
      */
     public void cleanup() {
+        stopBatchers();
         logger.info("Closing AMQ connection");
         closeConnection();
     }
@@ -329,4 +413,36 @@ public class SensorPublisher {
     public long getPublishedCounter() {
         return publishedCounter.get();
     }
+
+    /**
+     * Gets the number of batch messages sent.
+     *
+     * @return the batch count, 0 when not batching
+     */
+    public long getBatchCounter() {
+        long count = 0;
+        PerfEventBatcher[] shardBatchers = batchers;
+        if (shardBatchers != null) {
+            for (PerfEventBatcher batcher : shardBatchers) {
+                count += batcher.batchCount.get();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of batched events dropped, on a full queue or a broker outage.
+     *
+     * @return the dropped count, 0 when not batching
+     */
+    public long getDroppedCounter() {
+        long count = 0;
+        PerfEventBatcher[] shardBatchers = batchers;
+        if (shardBatchers != null) {
+            for (PerfEventBatcher batcher : shardBatchers) {
+                count += batcher.droppedEventCount.get();
+            }
+        }
+        return count;
+    }
 }
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.daq;
+
+import com.oneops.ops.PerfArchive;
+import com.oneops.ops.PerfConsolidationPlan;
+import com.oneops.ops.PerfDatasource;
+import com.oneops.ops.PerfHeader;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+
+/**
+ * Checks the compiled consolidation plan against the string keyed consolidation it replaced.
+ */
+public class PerfConsolidationPlanTest {
+
+	private static final Logger logger = Logger.getLogger(PerfConsolidationPlanTest.class);
+
+	private static final String[] DS_KEYS = {"CpuIdle", "load1", "bytes_in"};
+
+	@Test
+	public void testBitIdenticalBuckets() {
+		PerfHeader legacyHeader = newHeader();
+		PerfHeader header = newHeader();
+		PerfConsolidationPlan plan = header.getConsolidationPlan();
+
+		Random random = new Random(42);
+		long timestamp = 1420070400L + 17;
+		int buckets = 0;
+		for (int sample = 0; sample < 20000; sample++) {
+			long updated = legacyHeader.getUpdated();
+			int jitter = random.nextInt(100);
+			if (jitter < 2) {
+				// gap, more than a heartbeat
+				timestamp += 600 + random.nextInt(4000);
+			} else if (jitter < 10) {
+				// second sample in the same step
+				timestamp += 1 + random.nextInt(20);
+			} else {
+				timestamp += 60 + random.nextInt(21) - 10;
+			}
+			long endTime = timestamp - timestamp % 60 + 60;
+
+			Map<String, Double> legacyBuckets = new HashMap<String, Double>();
+			Map<String, Double> planBuckets = new HashMap<String, Double>();
+			for (int d = 0; d < DS_KEYS.length; d++) {
+				double pdp = random.nextInt(50) == 0 ? Double.NaN : random.nextDouble() * Math.pow(10, d * 3);
+				legacyConsolidate(legacyHeader, DS_KEYS[d], endTime, pdp, legacyBuckets);
+				plan.consolidate(plan.indexOf(DS_KEYS[d]), endTime, pdp, updated, planBuckets);
+			}
+			legacyHeader.setUpdated(timestamp);
+			header.setUpdated(timestamp);
+
+			// only the averages are written by PerfDataAccessor
+			Map<String, Double> written = new HashMap<String, Double>();
+			for (Map.Entry<String, Double> entry : legacyBuckets.entrySet()) {
+				if (entry.getKey().contains("rra-average")) {
+					written.put(entry.getKey(), entry.getValue());
+				}
+			}
+			assertBitIdentical(planBuckets, written);
+			buckets += written.size();
+		}
+		assertTrue(buckets > 20000);
+		for (String bucket : new String[]{"1m", "5m", "15m", "1h", "6h", "1d"}) {
+			assertTrue(header.getCdpMap().containsKey("CpuIdle:rra-average-" + bucket));
+		}
+		assertBitIdentical(header.getCdpMap(), legacyHeader.getCdpMap());
+	}
+
+	@Test
+	public void testRecompileKeepsCdpValues() {
+		PerfHeader header = newHeader();
+		PerfConsolidationPlan plan = header.getConsolidationPlan();
+		Map<String, Double> buckets = new HashMap<String, Double>();
+		plan.consolidate(plan.indexOf("CpuIdle"), 1420070460L, 12.5, 0, buckets);
+		assertEquals(plan.indexOf("CpuFree"), -1);
+
+		PerfDatasource ds = new PerfDatasource();
+		ds.setType(PerfDatasource.GAUGE);
+		header.getDsMap().put("CpuFree", ds);
+		PerfConsolidationPlan recompiled = header.getConsolidationPlan();
+		assertFalse(recompiled == plan);
+		assertTrue(recompiled.indexOf("CpuFree") >= 0);
+		assertEquals(header.getCdpMap().get("CpuIdle:rra-max-1h"), 12.5);
+		assertFalse(header.getCdpMap().containsKey("CpuFree:rra-max-1h"));
+	}
+
+	/**
+	 * Samples/sec and bytes allocated per sample, string keyed vs compiled plan.
+	 */
+	@Test
+	public void testConsolidationRate() {
+		int samples = 200000;
+		PerfHeader legacyHeader = newHeader();
+		PerfHeader header = newHeader();
+
+		// warm up both
+		runLegacy(legacyHeader, 20000, 0);
+		runPlan(header, 20000, 0);
+
+		long legacyBytes = allocatedBytes();
+		long start = System.nanoTime();
+		runLegacy(legacyHeader, samples, 20000);
+		long legacyNanos = Math.max(1, System.nanoTime() - start);
+		legacyBytes = allocatedBytes() - legacyBytes;
+
+		long planBytes = allocatedBytes();
+		start = System.nanoTime();
+		runPlan(header, samples, 20000);
+		long planNanos = Math.max(1, System.nanoTime() - start);
+		planBytes = allocatedBytes() - planBytes;
+
+		logger.info("string keyed: " + samples * 1_000_000_000L / legacyNanos + " samples/sec, "
+				+ legacyBytes / samples + " bytes/sample; compiled plan: " + samples * 1_000_000_000L / planNanos
+				+ " samples/sec, " + planBytes / samples + " bytes/sample");
+
+		if (legacyBytes >= 0 && planBytes >= 0) {
+			assertTrue(planBytes < legacyBytes);
+		}
+		assertBitIdentical(header.getCdpMap(), legacyHeader.getCdpMap());
+	}
+
+	private void runLegacy(PerfHeader header, int samples, int offset) {
+		for (int s = offset; s < offset + samples; s++) {
+			long endTime = 1420070400L + s * 60L + 60;
+			Map<String, Double> buckets = new HashMap<String, Double>();
+			for (int d = 0; d < DS_KEYS.length; d++) {
+				legacyConsolidate(header, DS_KEYS[d], endTime, (double) ((s + d) % 100), buckets);
+			}
+			header.setUpdated(endTime - 30);
+		}
+	}
+
+	private void runPlan(PerfHeader header, int samples, int offset) {
+		for (int s = offset; s < offset + samples; s++) {
+			long endTime = 1420070400L + s * 60L + 60;
+			Map<String, Double> buckets = new HashMap<String, Double>();
+			PerfConsolidationPlan plan = header.getConsolidationPlan();
+			for (int d = 0; d < DS_KEYS.length; d++) {
+				plan.consolidate(plan.indexOf(DS_KEYS[d]), endTime, (double) ((s + d) % 100), header.getUpdated(), buckets);
+			}
+			header.setUpdated(endTime - 30);
+		}
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static void assertBitIdentical(Map<String, Double> actual, Map<String, Double> expected) {
+		assertEquals(actual.keySet(), expected.keySet());
+		for (Map.Entry<String, Double> entry : expected.entrySet()) {
+			assertEquals(Double.doubleToRawLongBits(actual.get(entry.getKey())),
+					Double.doubleToRawLongBits(entry.getValue()), entry.getKey());
+		}
+	}
+
+	private static PerfHeader newHeader() {
+		PerfHeader header = new PerfHeader();
+		header.setStep(60);
+		Map<String, PerfDatasource> dsMap = new HashMap<String, PerfDatasource>();
+		for (String dsKey : DS_KEYS) {
+			PerfDatasource ds = new PerfDatasource();
+			ds.setType(PerfDatasource.GAUGE);
+			ds.setHeartbeat(300);
+			dsMap.put(dsKey, ds);
+		}
+		header.setDsMap(dsMap);
+		Map<String, Double> cdpMap = new HashMap<String, Double>();
+		// as loaded from cassandra
+		cdpMap.put("CpuIdle:rra-average-1h", 42.0);
+		cdpMap.put("CpuIdle:rra-count-1d", 7.0);
+		header.setCdpMap(cdpMap);
+		PerfArchive.setDefaultArchives(header);
+		return header;
+	}
+
+	/*
+	 * The string keyed consolidation PerfWriter used before the compiled plan, kept as the reference.
+	 */
+	private static void legacyConsolidate(PerfHeader header, String dsKey, long endTime, Double pdp,
+										  Map<String, Double> dsAggregateMap) {
+		for (String rraKey : header.getRraMap().keySet()) {
+			PerfArchive rra = header.getRraMap().get(rraKey);
+			long archiveDelta = endTime % (rra.getSteps() * header.getStep());
+			long cdpStartTime, archiveRange;
+			Double cdp = null;
+			String cdpKey = dsKey + ":" + rraKey;
+			Map<String, Double> cdpMap = header.getCdpMap();
+			Double lastCdp = cdpMap.get(cdpKey);
+
+			if (archiveDelta == 0) {
+				archiveRange = rra.getSteps() * header.getStep();
+				cdpStartTime = endTime - archiveRange;
+			} else {
+				archiveRange = archiveDelta;
+				cdpStartTime = endTime - archiveDelta;
+			}
+			if (lastCdp == null) {
+				lastCdp = Double.NaN;
+			}
+			String statFunction = rra.getConsolidationFunction();
+
+			if (pdp.isNaN()) {
+				cdp = lastCdp;
+			} else if ((header.getUpdated() < cdpStartTime) || lastCdp.isNaN()) {
+				if (statFunction.equalsIgnoreCase(PerfArchive.COUNT)) {
+					cdp = 1.0;
+				} else {
+					cdp = pdp;
+				}
+			} else {
+				if (statFunction.equalsIgnoreCase(PerfArchive.MAX)) {
+					cdp = pdp > lastCdp ? pdp : lastCdp;
+				} else if (statFunction.equalsIgnoreCase(PerfArchive.MIN)) {
+					cdp = pdp < lastCdp ? pdp : lastCdp;
+				} else if (statFunction.equalsIgnoreCase(PerfArchive.COUNT)) {
+					cdp = lastCdp + 1.0;
+				} else if (statFunction.equalsIgnoreCase(PerfArchive.SUM)) {
+					cdp = lastCdp + pdp;
+				} else if (statFunction.equalsIgnoreCase(PerfArchive.AVERAGE)) {
+					long lastRange = header.getUpdated() - cdpStartTime;
+					if (lastRange < archiveRange) {
+						double lastValueRate = Double.valueOf(lastRange) / Double.valueOf(archiveRange);
+						double pdpRate = Double.valueOf((archiveRange - lastRange)) / Double.valueOf(archiveRange);
+						cdp = (lastCdp * lastValueRate) + (pdp * pdpRate);
+					} else {
+						cdp = pdp;
+					}
+				}
+			}
+			if (cdp.isNaN()) {
+				cdp = 0.0;
+			}
+			cdpMap.put(cdpKey, cdp);
+
+			if (archiveDelta == 0) {
+				dsAggregateMap.put(dsKey + ":" + rraKey + "::" + endTime, cdp);
+				if (statFunction.equalsIgnoreCase(PerfArchive.COUNT)) {
+					cdp = 1.0;
+				} else if (rraKey.contains("average-1m")) {
+					cdp = pdp;
+				}
+				cdpMap.put(cdpKey, cdp);
+			}
+		}
+	}
+}
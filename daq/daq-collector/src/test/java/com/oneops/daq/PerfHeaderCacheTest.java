@@ -0,0 +1,294 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.daq;
+
+import com.oneops.ops.PerfArchive;
+import com.oneops.ops.PerfDatasource;
+import com.oneops.ops.PerfHeader;
+import com.oneops.ops.dao.PerfDataAccessor;
+import com.oneops.ops.dao.PerfHeaderDao;
+import com.oneops.sensor.events.PerfEvent;
+import com.oneops.sensor.events.PerfEventPayload;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+
+/**
+ * Tests for PerfHeaderCache using a local stand-in for the cassandra header dao.
+ */
+public class PerfHeaderCacheTest {
+
+	private static final Logger logger = Logger.getLogger(PerfHeaderCacheTest.class);
+
+	@Test
+	public void testLoadOnce() {
+		LocalHeaderDao dao = new LocalHeaderDao();
+		PerfHeaderCache cache = new PerfHeaderCache(dao, 100, 4, 0, 1000);
+		PerfHeader header = cache.get("1:cpu");
+		assertSame(cache.get("1:cpu"), header);
+		assertEquals(dao.reads.get(), 1);
+		assertEquals(cache.hitCount.get(), 1);
+		assertEquals(cache.missCount.get(), 1);
+	}
+
+	@Test
+	public void testFlushCoalescesUpdates() {
+		LocalHeaderDao dao = new LocalHeaderDao();
+		PerfHeaderCache cache = new PerfHeaderCache(dao, 100, 4, 0, 1000);
+		PerfHeader header = cache.get("1:cpu");
+		for (int i = 1; i <= 10; i++) {
+			header.setUpdated(i);
+			cache.markDirty("1:cpu", header);
+		}
+		assertEquals(cache.getDirtyCount(), 1);
+		assertEquals(dao.writes.get(), 0);
+
+		cache.flush();
+		assertEquals(dao.writes.get(), 1);
+		assertEquals(dao.persistedUpdated.get("1:cpu").longValue(), 10L);
+		assertEquals(cache.getDirtyCount(), 0);
+
+		// nothing dirty, nothing written
+		cache.flush();
+		assertEquals(dao.writes.get(), 1);
+	}
+
+	@Test
+	public void testDirtyHeadersSurviveEviction() {
+		LocalHeaderDao dao = new LocalHeaderDao();
+		PerfHeaderCache cache = new PerfHeaderCache(dao, 2, 1, 0, 1000);
+		PerfHeader header = cache.get("1:cpu");
+		header.setUpdated(42);
+		cache.markDirty("1:cpu", header);
+
+		// push it out of the lru
+		cache.get("2:cpu");
+		cache.get("3:cpu");
+		cache.get("4:cpu");
+
+		// still served from memory, not the stale cassandra copy
+		assertSame(cache.get("1:cpu"), header);
+		assertEquals(dao.reads.get(), 4);
+
+		cache.flush();
+		assertEquals(dao.persistedUpdated.get("1:cpu").longValue(), 42L);
+	}
+
+	@Test
+	public void testHeadersInUseSurviveEviction() {
+		LocalHeaderDao dao = new LocalHeaderDao();
+		PerfHeaderCache cache = new PerfHeaderCache(dao, 2, 1, 0, 1000);
+		PerfHeader header = cache.get("1:cpu");
+
+		// evicted while still clean and in use
+		for (String key : new String[] {"2:cpu", "3:cpu", "4:cpu"}) {
+			cache.get(key);
+			cache.release(key);
+		}
+
+		// the same copy, not a second one loaded from cassandra
+		assertSame(cache.get("1:cpu"), header);
+		assertEquals(dao.reads.get(), 4);
+		cache.release("1:cpu");
+		cache.release("1:cpu");
+
+		// released, a clean header can be evicted again
+		for (String key : new String[] {"2:cpu", "3:cpu", "4:cpu"}) {
+			cache.get(key);
+			cache.release(key);
+		}
+		cache.get("1:cpu");
+		assertEquals(dao.reads.get(), 8);
+	}
+
+	@Test
+	public void testFailedFlushIsRetried() {
+		LocalHeaderDao dao = new LocalHeaderDao();
+		PerfHeaderCache cache = new PerfHeaderCache(dao, 100, 1, 0, 1000);
+		PerfHeader header = cache.get("1:cpu");
+		header.setUpdated(7);
+		cache.markDirty("1:cpu", header);
+
+		dao.failWrites = true;
+		try {
+			cache.flush();
+		} catch (RuntimeException e) {
+			// expected
+		}
+		assertEquals(cache.getDirtyCount(), 1);
+
+		dao.failWrites = false;
+		cache.flush();
+		assertEquals(dao.persistedUpdated.get("1:cpu").longValue(), 7L);
+		assertEquals(cache.getDirtyCount(), 0);
+	}
+
+	@Test
+	public void testMaxDirtyTriggersFlush() throws InterruptedException {
+		LocalHeaderDao dao = new LocalHeaderDao();
+		PerfHeaderCache cache = new PerfHeaderCache(dao, 100, 4, 0, 5);
+		for (int i = 0; i < 5; i++) {
+			String key = i + ":cpu";
+			cache.markDirty(key, cache.get(key));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (dao.persistedUpdated.size() < 5 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(dao.persistedUpdated.size(), 5);
+	}
+
+	@Test
+	public void testPeriodicFlushAndShutdown() throws InterruptedException {
+		LocalHeaderDao dao = new LocalHeaderDao();
+		PerfHeaderCache cache = new PerfHeaderCache(dao, 100, 4, 1, 1000);
+		cache.markDirty("1:cpu", cache.get("1:cpu"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (dao.writes.get() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(dao.writes.get(), 1);
+
+		cache.markDirty("2:cpu", cache.get("2:cpu"));
+		cache.shutdown();
+		assertTrue(dao.persistedUpdated.containsKey("2:cpu"));
+	}
+
+	/**
+	 * Sample rate benchmark, per sample header round trips vs the write-behind cache.
+	 */
+	@Test
+	public void testSampleRate() throws Exception {
+		int cis = 500;
+		int samples = 20;
+		long timestamp = System.currentTimeMillis() / 1000 - samples * 60;
+
+		LocalHeaderDao uncachedDao = new LocalHeaderDao();
+		PerfWriter uncached = new PerfWriter();
+		uncached.setPerfDataAccessor(new LocalDataAccessor(uncachedDao));
+		long uncachedRate = runSamples(uncached, cis, samples, timestamp);
+
+		LocalHeaderDao cachedDao = new LocalHeaderDao();
+		PerfHeaderCache cache = new PerfHeaderCache(cachedDao, cis * 2, 16, 0, Integer.MAX_VALUE);
+		PerfWriter cached = new PerfWriter();
+		cached.setPerfDataAccessor(new LocalDataAccessor(cachedDao));
+		cached.setHeaderCache(cache);
+		long cachedRate = runSamples(cached, cis, samples, timestamp);
+		cache.flush();
+
+		logger.info("per sample headers: " + uncachedRate + " samples/sec, " + (uncachedDao.reads.get() + uncachedDao.writes.get())
+				+ " header round trips; cached headers: " + cachedRate + " samples/sec, "
+				+ (cachedDao.reads.get() + cachedDao.writes.get()) + " header round trips");
+
+		assertEquals(uncachedDao.reads.get() + uncachedDao.writes.get(), 2 * cis * samples);
+		assertEquals(cachedDao.reads.get(), cis);
+		// one batch per shard
+		assertTrue(cachedDao.writes.get() <= 16);
+		// same consolidation state persisted either way
+		assertEquals(cachedDao.persistedUpdated, uncachedDao.persistedUpdated);
+	}
+
+	private long runSamples(PerfWriter writer, int cis, int samples, long timestamp) throws Exception {
+		long start = System.nanoTime();
+		for (int s = 0; s < samples; s++) {
+			for (int ci = 0; ci < cis; ci++) {
+				PerfEvent event = new PerfEvent();
+				event.setCiId(ci);
+				event.setGrouping("cpu");
+				event.setTimestamp(timestamp + s * 60);
+				PerfEventPayload metrics = new PerfEventPayload();
+				metrics.addAvg("CpuIdle", (double) ((ci + s) % 100));
+				event.setMetrics(metrics);
+				writer.process(event, "127.0.0.1");
+			}
+		}
+		long nanos = Math.max(1, System.nanoTime() - start);
+		return (long) cis * samples * 1_000_000_000L / nanos;
+	}
+
+	/**
+	 * Local stand-in for the cassandra backed header dao.
+	 */
+	private static class LocalHeaderDao extends PerfHeaderDao {
+		final AtomicInteger reads = new AtomicInteger();
+		final AtomicInteger writes = new AtomicInteger();
+		final Map<String, Long> persistedUpdated = new ConcurrentHashMap<>();
+		volatile boolean failWrites = false;
+
+		@Override
+		public PerfHeader getHeader(String key) {
+			reads.incrementAndGet();
+			PerfHeader header = new PerfHeader();
+			header.setStep(60);
+			header.setDsMap(new HashMap<String, PerfDatasource>());
+			header.setCdpMap(new HashMap<String, Double>());
+			PerfArchive.setDefaultArchives(header);
+			Long updated = persistedUpdated.get(key);
+			header.setUpdated(updated == null ? 0 : updated);
+			return header;
+		}
+
+		@Override
+		public void putHeaders(Map<String, PerfHeader> headers) {
+			if (failWrites) {
+				throw new RuntimeException("cassandra down");
+			}
+			writes.incrementAndGet();
+			for (Map.Entry<String, PerfHeader> entry : headers.entrySet()) {
+				persistedUpdated.put(entry.getKey(), entry.getValue().getUpdated());
+			}
+		}
+	}
+
+	/**
+	 * Local stand-in for the accessor, buckets are dropped and headers go to the local dao.
+	 */
+	private static class LocalDataAccessor extends PerfDataAccessor {
+		private final LocalHeaderDao headerDao;
+
+		LocalDataAccessor(LocalHeaderDao headerDao) {
+			this.headerDao = headerDao;
+		}
+
+		@Override
+		public PerfHeader getHeader(String columnKey) {
+			return headerDao.getHeader(columnKey);
+		}
+
+		@Override
+		public void writeSampleToHeaderAndBuckets(String key, long endTime, PerfHeader header, Map<String, Double> data,
+												  HashMap<String, PerfEvent> perfEventMap) {
+			Map<String, PerfHeader> headers = new HashMap<>();
+			headers.put(key, header);
+			headerDao.putHeaders(headers);
+		}
+
+		@Override
+		public void writeSampleToBuckets(String key, Map<String, Double> data, HashMap<String, PerfEvent> perfEventMap) {
+		}
+	}
+}
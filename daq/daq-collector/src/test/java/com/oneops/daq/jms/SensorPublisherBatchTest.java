@@ -0,0 +1,236 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.daq.jms;
+
+import com.oneops.sensor.events.BasicEvent;
+import com.oneops.sensor.events.PerfEvent;
+import com.oneops.sensor.events.PerfEventBatchCodec;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.pool.PooledConnectionFactory;
+import org.apache.log4j.Logger;
+import org.springframework.jms.UncategorizedJmsException;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.core.MessageCreator;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * End to end test of the batched SensorPublisher through an embedded broker, the
+ * consumer unpacks the batches the way the sensor's SensorListener does.
+ */
+public class SensorPublisherBatchTest {
+
+    private static final Logger logger = Logger.getLogger(SensorPublisherBatchTest.class);
+    private static final String URL = "vm://perf-batch-test?create=false";
+    private static final int EVENTS = 20000;
+
+    private BrokerService broker;
+
+    @BeforeClass
+    public void startBroker() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("perf-batch-test");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        broker.waitUntilStarted();
+    }
+
+    @AfterClass
+    public void stopBroker() throws Exception {
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    @Test
+    public void testBatchedEventsArriveInOrder() throws Exception {
+        Result result = publishAndConsume("perf-in-q-batched", 200, EVENTS);
+        assertEquals(result.events.get(), EVENTS);
+        assertEquals(result.outOfOrder.get(), 0);
+        assertTrue(result.messages.get() < EVENTS / 10, "messages: " + result.messages.get());
+        assertEquals(result.publishedBatches, result.messages.get());
+    }
+
+    @Test
+    public void testMessagesPerSecond() throws Exception {
+        // warm up the broker and both paths
+        publishAndConsume("perf-in-q-warmup-single", 1, 2000);
+        publishAndConsume("perf-in-q-warmup-batched", 200, 2000);
+
+        Result single = publishAndConsume("perf-in-q-single", 1, EVENTS);
+        Result batched = publishAndConsume("perf-in-q-batched-rate", 200, EVENTS);
+        assertEquals(single.events.get(), EVENTS);
+        assertEquals(batched.events.get(), EVENTS);
+
+        logger.info("one ObjectMessage per event: " + single.messages.get() + " messages, "
+                + rate(single.messages.get(), single.nanos) + " messages/sec, "
+                + rate(EVENTS, single.nanos) + " events/sec");
+        logger.info("batched BytesMessages: " + batched.messages.get() + " messages, "
+                + rate(batched.messages.get(), batched.nanos) + " messages/sec, "
+                + rate(EVENTS, batched.nanos) + " events/sec");
+    }
+
+    @Test
+    public void testBrokerOutageDropsInsteadOfBlocking() throws Exception {
+        JmsTemplate down = new JmsTemplate() {
+            @Override
+            public void send(MessageCreator messageCreator) {
+                throw new UncategorizedJmsException("broker down");
+            }
+        };
+        PerfEventBatcher batcher = new PerfEventBatcher("outage", down, 10, 5, 20, 10, 2, 20);
+        Thread sender = null;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("perf-batcher-outage")) {
+                sender = thread;
+            }
+        }
+        int events = 500;
+        long start = System.nanoTime();
+        int queued = 0;
+        for (int i = 0; i < events; i++) {
+            if (batcher.publish(event(i))) {
+                queued++;
+            }
+            if (i == events / 2) {
+                sender.interrupt();
+            }
+        }
+        long publishMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(queued > 20, "queued " + queued);
+        assertTrue(batcher.retryCount.get() > 0);
+        // an interrupt doesn't stop the sender
+        Thread.sleep(100);
+        assertTrue(sender.isAlive());
+
+        batcher.shutdown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (batcher.droppedEventCount.get() < events && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(batcher.droppedEventCount.get(), events);
+        assertEquals(batcher.sentEventCount.get(), 0);
+        logger.info("published " + events + " events to a broker that is down in " + publishMs + " ms");
+    }
+
+    private Result publishAndConsume(String queue, int batchSize, int events) throws Exception {
+        Result result = new Result(events);
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(URL);
+        Connection connection = factory.createConnection();
+        connection.start();
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(new ActiveMQQueue(queue + "-1"));
+        consumer.setMessageListener(msg -> {
+            try {
+                result.messages.incrementAndGet();
+                if (msg instanceof ObjectMessage) {
+                    result.onEvent((BasicEvent) ((ObjectMessage) msg).getObject());
+                } else if (msg instanceof BytesMessage) {
+                    assertEquals(msg.getStringProperty(PerfEventBatchCodec.FORMAT_PROPERTY), PerfEventBatchCodec.FORMAT);
+                    BytesMessage bytesMessage = (BytesMessage) msg;
+                    byte[] batch = new byte[(int) bytesMessage.getBodyLength()];
+                    bytesMessage.readBytes(batch);
+                    for (BasicEvent event : PerfEventBatchCodec.decode(batch)) {
+                        result.onEvent(event);
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("could not consume", e);
+            }
+        });
+
+        PooledConnectionFactory pooled = new PooledConnectionFactory(new ActiveMQConnectionFactory(URL));
+        JmsTemplate template = new JmsTemplate(pooled);
+        template.setDefaultDestination(new ActiveMQQueue(queue + "-1"));
+        template.setDeliveryPersistent(false);
+
+        SensorPublisher publisher = new SensorPublisher();
+        publisher.setBatchSize(batchSize);
+        publisher.setBatchDelayMs(20);
+        publisher.setProducers(new JmsTemplate[]{template});
+
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            publisher.publishMessage(event(i));
+        }
+        assertTrue(result.done.await(60, TimeUnit.SECONDS), "received " + result.events.get() + " of " + events);
+        result.nanos = System.nanoTime() - start;
+        result.publishedBatches = publisher.getBatchCounter();
+
+        publisher.cleanup();
+        connection.close();
+        return result;
+    }
+
+    private static PerfEvent event(int i) {
+        PerfEvent event = new PerfEvent();
+        event.setCiId(1000 + i % 100);
+        event.setManifestId(0);
+        event.setTimestamp(1432000000000L + i);
+        event.setSource("cpu");
+        event.setBucket("1m");
+        event.setGrouping("cpu");
+        event.getMetrics().addAvg("CpuIdle", (double) i);
+        event.getMetrics().addAvg("CpuUser", 100.0 - i % 100);
+        return event;
+    }
+
+    private static long rate(long count, long nanos) {
+        return count * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos);
+    }
+
+    private static class Result {
+        private final AtomicLong messages = new AtomicLong();
+        private final AtomicLong events = new AtomicLong();
+        private final AtomicLong outOfOrder = new AtomicLong();
+        private final Map<Long, Long> lastByCi = new ConcurrentHashMap<>();
+        private final CountDownLatch done;
+        private long nanos;
+        private long publishedBatches;
+
+        Result(int events) {
+            this.done = new CountDownLatch(events);
+        }
+
+        void onEvent(BasicEvent event) {
+            Long last = lastByCi.put(event.getCiId(), event.getTimestamp());
+            if (last != null && last > event.getTimestamp()) {
+                outOfOrder.incrementAndGet();
+            }
+            events.incrementAndGet();
+            done.countDown();
+        }
+    }
+}
@@ -40,6 +40,7 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
@@ -75,6 +76,21 @@ public class PerfDao implements CassandraConstants {
     public final AtomicLong oldCount = new AtomicLong();
     public final AtomicLong newCount = new AtomicLong();
 
+    public final AtomicLong chartHitCount = new AtomicLong();
+    public final AtomicLong chartMissCount = new AtomicLong();
+
+    // chart definitions by key, invalidated by setChart
+    private int maxCachedCharts = 1000;
+    private final AtomicLong chartGeneration = new AtomicLong();
+    private final Map<String, Chart> chartCache = new LinkedHashMap<String, Chart>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Chart> eldest) {
+            return size() > maxCachedCharts;
+        }
+    };
+
 
     /**
      * Sets the state filename and open a file channel for writing.
@@ -133,12 +149,33 @@ public class PerfDao implements CassandraConstants {
     }
 
     /**
-     * Gets the chart.
+     * Gets the chart, cached until the next setChart for the key.
      *
      * @param key the key
      * @return the chart
      */
     public Chart getChart(String key) {
+        Chart chart;
+        synchronized (chartCache) {
+            chart = chartCache.get(key);
+        }
+        if (chart != null) {
+            chartHitCount.incrementAndGet();
+            return chart;
+        }
+        chartMissCount.incrementAndGet();
+        long generation = chartGeneration.get();
+        chart = readChart(key);
+        synchronized (chartCache) {
+            // a chart read while a setChart was running may be stale
+            if (generation == chartGeneration.get()) {
+                chartCache.put(key, chart);
+            }
+        }
+        return chart;
+    }
+
+    private Chart readChart(String key) {
         Chart chart = new Chart();
         chart.setKey(key);
 
@@ -254,10 +291,37 @@ public class PerfDao implements CassandraConstants {
         }
 
         logger.debug("write keys:" + pendingKeys);
-        perfDataAccessor.execute(mutator);
+        try {
+            perfDataAccessor.execute(mutator);
+        } finally {
+            synchronized (chartCache) {
+                chartGeneration.incrementAndGet();
+                chartCache.remove(chart.getKey());
+            }
+        }
+
+    }
+
 
+    /**
+     * Gets the ratio of getChart calls served from the cache.
+     *
+     * @return the hit ratio, 0 before the first call
+     */
+    public double getChartHitRatio() {
+        long hits = chartHitCount.get();
+        long total = hits + chartMissCount.get();
+        return total == 0 ? 0 : (double) hits / total;
     }
 
+    /**
+     * Sets the max number of cached chart definitions.
+     *
+     * @param maxCachedCharts the max cached charts
+     */
+    public void setMaxCachedCharts(int maxCachedCharts) {
+        this.maxCachedCharts = maxCachedCharts;
+    }
 
     public PerfDataAccessor getPerfDataAccessor() {
         return perfDataAccessor;
@@ -52,4 +52,9 @@ $PSQL  -h localhost -d kloopzdb -v user=${PGUSER} -f kloopzcm-functions.sql
 RETVAL=$?
 [ $RETVAL -ne 0 ] && echo functions failed && exit 1
 
+# backfill ns_namespace_paths for the namespaces created before it existed
+$PSQL  -h localhost -d kloopzdb -v user=${PGUSER} -f kloopzcm-ns-paths-migration.sql
+RETVAL=$?
+[ $RETVAL -ne 0 ] && echo ns paths migration failed && exit 1
+
 exit 0
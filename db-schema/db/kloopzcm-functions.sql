@@ -1463,6 +1463,26 @@ $BODY$
 ALTER FUNCTION dj_upd_dpmt_record_state(bigint, character varying, character varying) OWNER TO :user;
 
 
+-- Function: ns_path_ancestors(character varying)
+
+-- DROP FUNCTION ns_path_ancestors(character varying);
+
+CREATE OR REPLACE FUNCTION ns_path_ancestors(p_ns_path character varying)
+  RETURNS TABLE(ancestor_path character varying, depth integer) AS
+$BODY$
+    select (case when i = n then p_ns_path
+                 when i = 0 then '/'
+                 else '/' || array_to_string(seg[1:i], '/') end)::character varying,
+           n - i
+    from (select seg, n, generate_series(0, n) as i
+          from (select seg, coalesce(array_length(seg, 1), 0) as n
+                from (select string_to_array(trim(both '/' from p_ns_path), '/') as seg) s) c) a;
+$BODY$
+  LANGUAGE sql IMMUTABLE
+  COST 100
+  ROWS 10;
+ALTER FUNCTION ns_path_ancestors(character varying) OWNER TO :user;
+
 -- Function: ns_create_namespace(character varying)
 
 -- DROP FUNCTION ns_create_namespace(character varying);
@@ -1475,6 +1495,10 @@ BEGIN
     insert into ns_namespaces (ns_id, ns_path)
     values (nextval('cm_pk_seq'), p_ns_path)
     returning ns_id into out_ns_id;
+
+    insert into ns_namespace_paths (ns_id, ancestor_path, depth)
+    select out_ns_id, a.ancestor_path, a.depth
+    from ns_path_ancestors(p_ns_path) a;
     
 END;
 $BODY$
@@ -1494,18 +1518,20 @@ DECLARE
 BEGIN
 
 	for l_ns_id in
-	select ns_id from ns_namespaces
-	where (ns_path like p_ns_path || '/%' or ns_path = p_ns_path)
+	select ns_id from ns_namespace_paths
+	where ancestor_path = p_ns_path
+	-- the root only goes by itself
+	and (depth = 0 or p_ns_path <> '/')
 	loop
 		insert into cms_ci_event_queue(event_id, source_pk, source_name, event_type_id)
 		values (nextval('event_pk_seq'), l_ns_id, 'namespace' , 300);
 	end loop;
 
+	-- the ns_namespace_paths rows go with the namespaces
 	delete from ns_namespaces 
-	where ns_path like p_ns_path || '/%';
-
-	delete from ns_namespaces 
-	where ns_path = p_ns_path;
+	where ns_id in (select ns_id from ns_namespace_paths
+	                where ancestor_path = p_ns_path
+	                and (depth = 0 or p_ns_path <> '/'));
     
 END;
 $BODY$
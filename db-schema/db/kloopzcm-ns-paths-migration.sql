@@ -0,0 +1,128 @@
+-- Adds ns_namespace_paths, the materialized namespace hierarchy used for the ns subtree queries
+-- instead of ns_path like, and backfills it from ns_namespaces.
+-- Run against an existing kloopzdb as the schema owner:
+--   psql -h localhost -d kloopzdb -v user=kloopzcm -f kloopzcm-ns-paths-migration.sql
+-- It can be rerun, only the namespaces without paths are backfilled.
+
+SET SCHEMA 'kloopzcm';
+
+BEGIN;
+
+-- no namespaces can be created or deleted while the paths are backfilled
+LOCK TABLE kloopzcm.ns_namespaces IN SHARE ROW EXCLUSIVE MODE;
+
+CREATE TABLE IF NOT EXISTS kloopzcm.ns_namespace_paths (
+                ns_id BIGINT NOT NULL,
+                ancestor_path VARCHAR(200) NOT NULL,
+                depth INTEGER NOT NULL,
+                CONSTRAINT ns_namespace_paths_pk PRIMARY KEY (ancestor_path, ns_id)
+);
+COMMENT ON TABLE kloopzcm.ns_namespace_paths IS 'every namespace with all the prefixes of its path, the namespace itself has depth 0';
+
+-- Function: ns_path_ancestors(character varying)
+
+-- DROP FUNCTION ns_path_ancestors(character varying);
+
+CREATE OR REPLACE FUNCTION ns_path_ancestors(p_ns_path character varying)
+  RETURNS TABLE(ancestor_path character varying, depth integer) AS
+$BODY$
+    select (case when i = n then p_ns_path
+                 when i = 0 then '/'
+                 else '/' || array_to_string(seg[1:i], '/') end)::character varying,
+           n - i
+    from (select seg, n, generate_series(0, n) as i
+          from (select seg, coalesce(array_length(seg, 1), 0) as n
+                from (select string_to_array(trim(both '/' from p_ns_path), '/') as seg) s) c) a;
+$BODY$
+  LANGUAGE sql IMMUTABLE
+  COST 100
+  ROWS 10;
+ALTER FUNCTION ns_path_ancestors(character varying) OWNER TO :user;
+
+-- Function: ns_create_namespace(character varying)
+
+-- DROP FUNCTION ns_create_namespace(character varying);
+
+CREATE OR REPLACE FUNCTION ns_create_namespace(IN p_ns_path character varying, OUT out_ns_id bigint)
+  RETURNS bigint AS
+$BODY$
+BEGIN
+
+    insert into ns_namespaces (ns_id, ns_path)
+    values (nextval('cm_pk_seq'), p_ns_path)
+    returning ns_id into out_ns_id;
+
+    insert into ns_namespace_paths (ns_id, ancestor_path, depth)
+    select out_ns_id, a.ancestor_path, a.depth
+    from ns_path_ancestors(p_ns_path) a;
+    
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE
+  COST 100;
+ALTER FUNCTION ns_create_namespace(character varying) OWNER TO :user;
+
+-- Function: ns_delete_namespace(character varying)
+
+-- DROP FUNCTION ns_delete_namespace(character varying);
+
+CREATE OR REPLACE FUNCTION ns_delete_namespace(p_ns_path character varying)
+  RETURNS void AS
+$BODY$
+DECLARE
+    l_ns_id bigint;
+BEGIN
+
+	for l_ns_id in
+	select ns_id from ns_namespace_paths
+	where ancestor_path = p_ns_path
+	-- the root only goes by itself
+	and (depth = 0 or p_ns_path <> '/')
+	loop
+		insert into cms_ci_event_queue(event_id, source_pk, source_name, event_type_id)
+		values (nextval('event_pk_seq'), l_ns_id, 'namespace' , 300);
+	end loop;
+
+	-- the ns_namespace_paths rows go with the namespaces
+	delete from ns_namespaces 
+	where ns_id in (select ns_id from ns_namespace_paths
+	                where ancestor_path = p_ns_path
+	                and (depth = 0 or p_ns_path <> '/'));
+    
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE
+  COST 100;
+ALTER FUNCTION ns_delete_namespace(character varying)
+  OWNER TO :user;
+
+insert into ns_namespace_paths (ns_id, ancestor_path, depth)
+select a.ns_id, (a.p).ancestor_path, (a.p).depth
+from (select ns.ns_id, ns_path_ancestors(ns.ns_path) as p
+      from ns_namespaces ns
+      where not exists (select 1 from ns_namespace_paths nsp where nsp.ns_id = ns.ns_id)) a;
+
+DO $BODY$
+BEGIN
+    if not exists (select 1 from pg_indexes where schemaname = 'kloopzcm' and indexname = 'ns_namespace_paths_nsid') then
+        CREATE INDEX ns_namespace_paths_nsid
+         ON kloopzcm.ns_namespace_paths
+         ( ns_id );
+    end if;
+
+    if not exists (select 1 from pg_constraint where conname = 'ns_namespace_paths_ns_fk') then
+        ALTER TABLE kloopzcm.ns_namespace_paths ADD CONSTRAINT ns_namespace_paths_ns_fk
+        FOREIGN KEY (ns_id)
+        REFERENCES kloopzcm.ns_namespaces (ns_id)
+        ON DELETE CASCADE
+        ON UPDATE RESTRICT
+        NOT DEFERRABLE;
+    end if;
+END;
+$BODY$;
+
+ALTER TABLE kloopzcm.ns_namespace_paths OWNER TO :user;
+
+COMMIT;
+
+ANALYZE kloopzcm.ns_namespace_paths;
@@ -107,6 +107,9 @@ values (200, 'Component','Component','global', false,'This is component super cl
 insert into ns_namespaces (ns_id, ns_path)
 values (100, '/');
 
+insert into ns_namespace_paths (ns_id, ancestor_path, depth)
+values (100, '/', 0);
+
 insert into cm_ci_state (ci_state_id, state_name) values (100, 'default');
 insert into cm_ci_state (ci_state_id, state_name) values (200, 'pending_deletion');
 insert into cm_ci_state (ci_state_id, state_name) values (300, 'replace');
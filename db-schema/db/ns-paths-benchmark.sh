@@ -0,0 +1,24 @@
+#!/bin/sh
+
+# Installs the kloopzcm schema in a scratch database, generates a namespace tree with cis
+# and prints the plans of the ns subtree queries with ns_path like and with ns_namespace_paths.
+# usage: ns-paths-benchmark.sh [orgs] [assemblies] [envs] [platforms]
+
+export PSQL=${PSQL-psql}
+export PGUSER=${PGUSER-kloopzcm}
+export PGPASSWORD=${PGPASSWORD-kloopzcm}
+DB=kloopzbench
+
+$PSQL -h localhost -d postgres -c "DROP DATABASE IF EXISTS $DB"
+$PSQL -h localhost -d postgres -c "CREATE DATABASE $DB WITH ENCODING='UTF8' OWNER=$PGUSER"
+
+$PSQL -h localhost -d $DB -v user=${PGUSER} -f kloopzcm-schema.sql
+$PSQL -h localhost -d $DB -c "ALTER DATABASE $DB SET search_path TO kloopzcm,public"
+$PSQL -h localhost -d $DB -f kloopzcm-tables.ddl
+$PSQL -h localhost -d $DB -f kloopzcm-partition.ddl
+$PSQL -h localhost -d $DB -v user=${PGUSER} -f kloopzcm-postprocess.sql
+$PSQL -h localhost -d $DB -v user=${PGUSER} -f kloopzcm-functions.sql
+
+$PSQL -h localhost -d $DB -v orgs=${1-50} -v assemblies=${2-20} -v envs=${3-4} -v platforms=${4-10} -f ns-paths-benchmark.sql
+
+$PSQL -h localhost -d postgres -c "DROP DATABASE $DB"
@@ -0,0 +1,96 @@
+-- Generates a large namespace tree with cis in it and compares the plans of the ns subtree
+-- queries with ns_path like and with ns_namespace_paths.
+-- Run on a scratch database with the kloopzcm schema installed, see ns-paths-benchmark.sh:
+--   psql -h localhost -d kloopzbench -v orgs=50 -v assemblies=20 -v envs=4 -v platforms=10 -f ns-paths-benchmark.sql
+
+SET search_path TO kloopzcm;
+\timing on
+
+-- /org/assembly, /org/assembly/_design/platform and /org/assembly/env/{manifest,bom}/platform/1
+select count(ns_create_namespace(p.ns_path))
+from (
+    select '/org' || o as ns_path from generate_series(1, :orgs) o
+    union all
+    select '/org' || o || '/a' || a from generate_series(1, :orgs) o, generate_series(1, :assemblies) a
+    union all
+    select '/org' || o || '/a' || a || '/_design/p' || p
+    from generate_series(1, :orgs) o, generate_series(1, :assemblies) a, generate_series(1, :platforms) p
+    union all
+    select '/org' || o || '/a' || a || '/e' || e || '/' || t || '/p' || p || '/1'
+    from generate_series(1, :orgs) o, generate_series(1, :assemblies) a, generate_series(1, :envs) e,
+         generate_series(1, :platforms) p, unnest(array['manifest', 'bom']) t
+) p;
+
+-- two cis in every namespace
+insert into cm_ci (ci_id, ns_id, class_id, ci_name, ci_goid, ci_state_id)
+select nextval('cm_pk_seq'), ns.ns_id, 100, 'ci' || i, ns.ns_id || '-100-' || i, 100
+from ns_namespaces ns, generate_series(1, 2) i
+where ns.ns_id <> 100;
+
+ANALYZE kloopzcm.ns_namespaces;
+ANALYZE kloopzcm.ns_namespace_paths;
+ANALYZE kloopzcm.cm_ci;
+
+select (select count(*) from ns_namespaces) as namespaces,
+       (select count(*) from ns_namespace_paths) as namespace_paths,
+       (select count(*) from cm_ci) as cis;
+
+-- an org, as in getCIby3NsLike('/org1', '/org1/%', ...)
+EXPLAIN (ANALYZE, BUFFERS)
+select ci.ci_id, ci.ci_name, ns.ns_path
+from cm_ci ci, ns_namespaces ns
+where (ns.ns_path like '/org1/%' or ns.ns_path = '/org1')
+and ci.ns_id = ns.ns_id;
+
+EXPLAIN (ANALYZE, BUFFERS)
+select ci.ci_id, ci.ci_name, ns.ns_path
+from cm_ci ci, ns_namespaces ns
+where ns.ns_id in (select nsp.ns_id from ns_namespace_paths nsp
+    where nsp.ancestor_path in ('/org1', rtrim('/org1', '/'))
+    and (nsp.depth > 0 or nsp.ancestor_path = '/org1'))
+and ci.ns_id = ns.ns_id;
+
+-- an assembly, as in getCIby3NsLike('/org1/a1', '/org1/a1/%', ...)
+EXPLAIN (ANALYZE, BUFFERS)
+select ci.ci_id, ci.ci_name, ns.ns_path
+from cm_ci ci, ns_namespaces ns
+where (ns.ns_path like '/org1/a1/%' or ns.ns_path = '/org1/a1')
+and ci.ns_id = ns.ns_id;
+
+EXPLAIN (ANALYZE, BUFFERS)
+select ci.ci_id, ci.ci_name, ns.ns_path
+from cm_ci ci, ns_namespaces ns
+where ns.ns_id in (select nsp.ns_id from ns_namespace_paths nsp
+    where nsp.ancestor_path in ('/org1/a1', rtrim('/org1/a1', '/'))
+    and (nsp.depth > 0 or nsp.ancestor_path = '/org1/a1'))
+and ci.ns_id = ns.ns_id;
+
+-- an environment bom with a trailing slash, as in getCIby3NsLike('/org1/a1/e1/bom/', '/org1/a1/e1/bom/%', ...)
+EXPLAIN (ANALYZE, BUFFERS)
+select ci.ci_id, ci.ci_name, ns.ns_path
+from cm_ci ci, ns_namespaces ns
+where (ns.ns_path like '/org1/a1/e1/bom/%' or ns.ns_path = '/org1/a1/e1/bom/')
+and ci.ns_id = ns.ns_id;
+
+EXPLAIN (ANALYZE, BUFFERS)
+select ci.ci_id, ci.ci_name, ns.ns_path
+from cm_ci ci, ns_namespaces ns
+where ns.ns_id in (select nsp.ns_id from ns_namespace_paths nsp
+    where nsp.ancestor_path in ('/org1/a1/e1/bom/', rtrim('/org1/a1/e1/bom/', '/'))
+    and (nsp.depth > 0 or nsp.ancestor_path = '/org1/a1/e1/bom/'))
+and ci.ns_id = ns.ns_id;
+
+-- a namespace with an underscore, a wildcard for like unless it is escaped
+EXPLAIN (ANALYZE, BUFFERS)
+select ci.ci_id, ci.ci_name, ns.ns_path
+from cm_ci ci, ns_namespaces ns
+where (ns.ns_path like '/org1/a1/\_design/%' or ns.ns_path = '/org1/a1/_design')
+and ci.ns_id = ns.ns_id;
+
+EXPLAIN (ANALYZE, BUFFERS)
+select ci.ci_id, ci.ci_name, ns.ns_path
+from cm_ci ci, ns_namespaces ns
+where ns.ns_id in (select nsp.ns_id from ns_namespace_paths nsp
+    where nsp.ancestor_path in ('/org1/a1/_design', rtrim('/org1/a1/_design', '/'))
+    and (nsp.depth > 0 or nsp.ancestor_path = '/org1/a1/_design'))
+and ci.ns_id = ns.ns_id;
@@ -100,6 +100,7 @@ public abstract class AbstractOrderExecutor {
   protected String[] sshInteractiveCmdLine;
   protected Random randomGenerator = new Random();
   protected StatCollector inductorStat;
+  protected CookbookSyncCache cookbookSyncCache;
 
   private Config config;
   // Verification template.
@@ -108,6 +109,7 @@ public abstract class AbstractOrderExecutor {
   public AbstractOrderExecutor(Config config) {
     this.config = config;
     processRunner = new ProcessRunner(config);
+    cookbookSyncCache = new CookbookSyncCache(config.getCookbookSyncTtl());
 
     rsyncCmdLine = new String[]{"/usr/bin/rsync", "-az", "--force", "--exclude=*.png",
         "--rsh=ssh -o StrictHostKeyChecking=no -o UserKnownHostsFile=/dev/null ",
@@ -159,6 +161,10 @@ public abstract class AbstractOrderExecutor {
     this.processRunner = processRunner;
   }
 
+  public void setCookbookSyncCache(CookbookSyncCache cookbookSyncCache) {
+    this.cookbookSyncCache = cookbookSyncCache;
+  }
+
   /**
    * Process the work-order or action-order and return message to be put
    * in the controller response queue
@@ -836,8 +842,53 @@ public abstract class AbstractOrderExecutor {
   }
 
   protected boolean rsynch(ExecutionContext ctx) {
-    boolean rsynchFailed = false;
+    return rsynchFailed(ctx, processRunner.executeProcessRetry(ctx));
+  }
+
+  /**
+   * rsynch of a cookbook directory, skipped if the same content is already synced to the
+   * destination.
+   *
+   * @param ctx execution context with the rsync command.
+   * @param source cookbook directory.
+   * @param port ssh port.
+   * @param destination remote directory.
+   * @return <code>true</code> if the rsync failed.
+   */
+  protected boolean rsynchCookbooks(ExecutionContext ctx, String source, String port,
+      String destination) {
+    return rsynchFailed(ctx, syncCookbooks(ctx, source, ctx.getHost(), port, destination));
+  }
+
+  /**
+   * Runs the rsync command of the context unless the content of the cookbook directory was already
+   * synced to the destination of the host.
+   *
+   * @param ctx execution context with the rsync command.
+   * @param source cookbook directory.
+   * @param host remote host.
+   * @param port ssh port.
+   * @param destination remote directory.
+   * @return rsync result, a successful result if the rsync was skipped.
+   */
+  protected ProcessResult syncCookbooks(ExecutionContext ctx, String source, String host,
+      String port, String destination) {
+    String hash = cookbookSyncCache.hash(source);
+    if (cookbookSyncCache.isSynced(host, port, destination, hash)) {
+      logger.info(ctx.getLogKey() + " ### SKIP SYNC, unchanged since the last sync: " + source);
+      ProcessResult result = new ProcessResult();
+      result.setResultCode(0);
+      return result;
+    }
     ProcessResult result = processRunner.executeProcessRetry(ctx);
+    if (result.getResultCode() == 0) {
+      cookbookSyncCache.synced(host, port, destination, hash);
+    }
+    return result;
+  }
+
+  private boolean rsynchFailed(ExecutionContext ctx, ProcessResult result) {
+    boolean rsynchFailed = false;
     if (result.getResultCode() > 0) {
       logger.error(
           ctx.getLogKey() + " FATAL: " + generateRsyncErrorMessage(result.getResultCode(),
@@ -380,7 +380,7 @@ public class ActionOrderExecutor extends AbstractOrderExecutor {
               user + "@" + host + ":" + destination});
       logger.info(logKey + " ### SYNC BASE: " + components);
       ExecutionContext ctx = new ExecutionContext(ao, cmdLine, logKey, host, keyFile, retryCount);
-      boolean rsynchFailed = rsynch(ctx);
+      boolean rsynchFailed = rsynchCookbooks(ctx, components, port, destination);
       if (rsynchFailed) {
         return;
       }
@@ -395,7 +395,7 @@ public class ActionOrderExecutor extends AbstractOrderExecutor {
       ctx.setCmd(cmdLine);
       logger.info(logKey + " ### SYNC SHARED: " + components);
 
-      rsynchFailed = rsynch(ctx);
+      rsynchFailed = rsynchCookbooks(ctx, components, port, destination);
       if (rsynchFailed) {
         return;
       }
@@ -113,6 +113,12 @@ public class Config {
   @Value("${rsync_timeout:30}")
   private int rsyncTimeout;
 
+  // Minutes a cookbook sync to a host is trusted, the rsync is skipped if the cookbooks are
+  // unchanged since. The syncs are only known to this inductor, enable it only if a single
+  // inductor serves the cloud queue. Default value is 0, disabled
+  @Value("${cookbook_sync_ttl:0}")
+  private int cookbookSyncTtl;
+
   /**
    * The list of clouds which are marked to be in stub mode. Inductor will mark those work-order and
    * action orders execution result as per <value>stubResultCode</value>
@@ -569,6 +575,14 @@ public class Config {
     return rsyncTimeout;
   }
 
+  public int getCookbookSyncTtl() {
+    return cookbookSyncTtl;
+  }
+
+  public void setCookbookSyncTtl(int cookbookSyncTtl) {
+    this.cookbookSyncTtl = cookbookSyncTtl;
+  }
+
   public String getPublicKey() {
     return publicKey;
   }
@@ -723,6 +737,7 @@ public class Config {
         ", initialUser='" + initialUser + '\'' +
         ", localMaxConsumers=" + localMaxConsumers +
         ", rsyncTimeout=" + rsyncTimeout +
+        ", cookbookSyncTtl=" + cookbookSyncTtl +
         ", stubbedCloudsList=" + stubbedCloudsList +
         ", clouds=" + clouds +
         ", stubResultCode=" + stubResultCode +
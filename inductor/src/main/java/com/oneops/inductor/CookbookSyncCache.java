@@ -0,0 +1,264 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.inductor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps track of the cookbook directories synced to the remote hosts, so that the rsync of an
+ * unchanged cookbook tree can be skipped.
+ * <p>
+ * The content of a cookbook directory is identified by a hash over the manifest of its files
+ * (relative path and content hash). The manifest is kept per directory and only files whose size or
+ * modification time changed are read again, a cookbook reload is picked up as a new hash. The hash
+ * synced to each destination of a host is trusted for the configured ttl, or until the host is
+ * invalidated (host replaced, failed chef run).
+ * <p>
+ * The syncs are only recorded in this inductor process, a host synced or replaced through another
+ * inductor consuming the same cloud queue isn't seen here. The cache is disabled by default.
+ *
+ * @see Config#getCookbookSyncTtl()
+ */
+public class CookbookSyncCache {
+
+  private static final Logger logger = Logger.getLogger(CookbookSyncCache.class);
+
+  private final long ttl;
+
+  private final ConcurrentMap<String, Manifest> manifests = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, ConcurrentMap<String, Synced>> hosts = new ConcurrentHashMap<>();
+
+  /**
+   * @param ttlMinutes minutes a sync to a host is trusted, 0 disables the cache.
+   */
+  public CookbookSyncCache(int ttlMinutes) {
+    this.ttl = TimeUnit.MINUTES.toMillis(ttlMinutes);
+  }
+
+  public boolean isEnabled() {
+    return ttl > 0;
+  }
+
+  /**
+   * Returns the content hash of the directory.
+   *
+   * @param sourceDir cookbook directory.
+   * @return hex hash, <code>null</code> if the cache is disabled or the directory can't be read.
+   */
+  public String hash(String sourceDir) {
+    if (!isEnabled()) {
+      return null;
+    }
+    Manifest manifest = manifests.computeIfAbsent(sourceDir, Manifest::new);
+    synchronized (manifest) {
+      try {
+        return manifest.update();
+      } catch (IOException e) {
+        logger.warn("Can't hash cookbook dir " + sourceDir + " : " + e.getMessage());
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Checks if the content with the given hash was synced to the destination of the host.
+   */
+  public boolean isSynced(String host, String port, String destination, String hash) {
+    if (hash == null || host == null) {
+      return false;
+    }
+    Map<String, Synced> synced = hosts.get(host);
+    if (synced == null) {
+      return false;
+    }
+    Synced last = synced.get(port + ":" + destination);
+    return last != null && last.hash.equals(hash) && !last.isExpired(System.currentTimeMillis());
+  }
+
+  /**
+   * Records the content with the given hash as synced to the destination of the host.
+   */
+  public void synced(String host, String port, String destination, String hash) {
+    if (hash == null || host == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    hosts.computeIfAbsent(host, h -> new ConcurrentHashMap<>())
+        .put(port + ":" + destination, new Synced(hash, now));
+    evictExpired(now);
+  }
+
+  /**
+   * Forgets everything synced to the host, the next work order will rsync all cookbooks again.
+   */
+  public void invalidate(String host) {
+    if (host != null && hosts.remove(host) != null) {
+      logger.info("Invalidated the cookbook sync of host " + host);
+    }
+  }
+
+  int size() {
+    return hosts.size();
+  }
+
+  private void evictExpired(long now) {
+    hosts.forEach((host, synced) -> {
+      synced.values().removeIf(s -> s.isExpired(now));
+      if (synced.isEmpty()) {
+        hosts.remove(host, synced);
+      }
+    });
+  }
+
+  private class Synced {
+
+    private final String hash;
+    private final long time;
+
+    Synced(String hash, long time) {
+      this.hash = hash;
+      this.time = time;
+    }
+
+    boolean isExpired(long now) {
+      return now - time >= ttl;
+    }
+  }
+
+  /**
+   * Files of a cookbook directory with the content hash of each file.
+   */
+  private static class Manifest {
+
+    private final Path root;
+    private Map<String, FileEntry> files = new HashMap<>();
+
+    Manifest(String root) {
+      this.root = Paths.get(root);
+    }
+
+    /**
+     * Walks the directory, rehashes the new and modified files and returns the hash of the tree.
+     * A symlinked root (circuit dir linked into the inductor home) is resolved first, otherwise
+     * the walk would only see the link.
+     */
+    String update() throws IOException {
+      Map<String, FileEntry> previous = files;
+      TreeMap<String, FileEntry> current = new TreeMap<>();
+      Path root = this.root.toRealPath();
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          current.put(root.relativize(dir).toString() + "/", FileEntry.DIRECTORY);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          String path = root.relativize(file).toString();
+          long size = attrs.size();
+          long modified = attrs.lastModifiedTime().toMillis();
+          FileEntry entry = previous.get(path);
+          if (entry == null || entry.size != size || entry.modified != modified) {
+            String hash = attrs.isSymbolicLink()
+                ? sha1(("link:" + Files.readSymbolicLink(file)).getBytes(StandardCharsets.UTF_8))
+                : sha1(file);
+            entry = new FileEntry(size, modified, hash);
+          }
+          current.put(path, entry);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      files = current;
+
+      MessageDigest digest = sha1();
+      for (Map.Entry<String, FileEntry> file : current.entrySet()) {
+        digest.update(file.getKey().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(file.getValue().hash.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+      }
+      return hex(digest.digest());
+    }
+  }
+
+  private static class FileEntry {
+
+    static final FileEntry DIRECTORY = new FileEntry(0, 0, "");
+
+    private final long size;
+    private final long modified;
+    private final String hash;
+
+    FileEntry(long size, long modified, String hash) {
+      this.size = size;
+      this.modified = modified;
+      this.hash = hash;
+    }
+  }
+
+  private static String sha1(Path file) throws IOException {
+    MessageDigest digest = sha1();
+    byte[] buffer = new byte[8192];
+    try (InputStream in = Files.newInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    return hex(digest.digest());
+  }
+
+  private static String sha1(byte[] bytes) {
+    return hex(sha1().digest(bytes));
+  }
+
+  private static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
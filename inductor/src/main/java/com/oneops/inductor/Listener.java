@@ -17,6 +17,8 @@
  *******************************************************************************/
 package com.oneops.inductor;
 
+import static com.oneops.cms.util.CmsConstants.MSG_ENCODING;
+import static com.oneops.cms.util.CmsConstants.MSG_ENCODING_GZIP;
 import static com.oneops.cms.util.CmsConstants.QUEUE_TIME;
 import static com.oneops.cms.util.CmsConstants.REQUEST_DEQUE_TS;
 import static com.oneops.cms.util.CmsConstants.REQUEST_ENQUE_TS;
@@ -37,15 +39,22 @@ import com.oneops.cms.simple.domain.CmsActionOrderSimple;
 import com.oneops.cms.simple.domain.CmsWorkOrderSimple;
 import com.oneops.cms.util.CmsConstants;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Date;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
@@ -173,8 +182,7 @@ public class Listener implements MessageListener, ApplicationContextAware {
     try {
       checkFreeSpace();
       activeThreads.getAndIncrement();
-      if (msg instanceof TextMessage) {
-        String msgText = ((TextMessage) msg).getText();
+      if (msg instanceof TextMessage || msg instanceof BytesMessage) {
         final String correlationID = msg.getJMSCorrelationID();
         Map<String, String> responseMsgMap;
         String type = msg.getStringProperty("type");
@@ -184,7 +192,7 @@ public class Listener implements MessageListener, ApplicationContextAware {
           // WorkOrder
           case WORK_ORDER_TYPE: {
             long t = System.currentTimeMillis();
-            wo = getWorkOrderOf(msgText, CmsWorkOrderSimple.class);
+            wo = getWorkOrderOf(msg, CmsWorkOrderSimple.class);
             wo.putSearchTag("iWoCrtTime", Long.toString(System.currentTimeMillis() - t));
 
             String logKey = workOrderExecutor.getLogKey(wo);
@@ -205,7 +213,7 @@ public class Listener implements MessageListener, ApplicationContextAware {
           // ActionOrder
           case ACTION_ORDER_TYPE: {
             long t = System.currentTimeMillis();
-            wo = getWorkOrderOf(msgText, CmsActionOrderSimple.class);
+            wo = getWorkOrderOf(msg, CmsActionOrderSimple.class);
             wo.putSearchTag("iAoCrtTime", Long.toString(System.currentTimeMillis() - t));
             preProcess(wo);
 
@@ -280,11 +288,29 @@ public class Listener implements MessageListener, ApplicationContextAware {
         CmsConstants.RESPONSE_ENQUE_TS, DateUtil.formatDate(new Date(), SEARCH_TS_PATTERN));
   }
 
-  private CmsWorkOrderSimpleBase getWorkOrderOf(String msgText, Class c) {
+  /**
+   * Reads the work order of a text message or of a bytes message with the gzipped json, as sent by the
+   * controller when the work order compression is on.
+   */
+  private CmsWorkOrderSimpleBase getWorkOrderOf(Message msg, Class c) throws JMSException, IOException {
     CmsWorkOrderSimpleBase wo;
-    JsonReader reader = new JsonReader(new StringReader(msgText));
-    reader.setLenient(true);
-    wo = gson.fromJson(reader, c);
+    Reader msgReader;
+    if (msg instanceof BytesMessage) {
+      BytesMessage bytesMsg = (BytesMessage) msg;
+      byte[] bytes = new byte[(int) bytesMsg.getBodyLength()];
+      bytesMsg.readBytes(bytes);
+      InputStream in = new ByteArrayInputStream(bytes);
+      if (MSG_ENCODING_GZIP.equals(msg.getStringProperty(MSG_ENCODING))) {
+        in = new GZIPInputStream(in);
+      }
+      msgReader = new InputStreamReader(in, StandardCharsets.UTF_8);
+    } else {
+      msgReader = new StringReader(((TextMessage) msg).getText());
+    }
+    try (JsonReader reader = new JsonReader(msgReader)) {
+      reader.setLenient(true);
+      wo = gson.fromJson(reader, c);
+    }
     return wo;
   }
 
@@ -21,11 +21,19 @@ import com.google.gson.Gson;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import java.io.OutputStream;
-
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Logs the output of a process line by line and collects the result, fault, tag and additional info
+ * lines of the recipes into the process result. The bytes of a line are buffered until its new line and
+ * decoded once, the markers looked for anywhere in a line are found in a single pass over the line.
+ */
 public class OutputHandler extends OutputStream {
     private Logger logger;
     private Level level;
-    private String line;
+    private byte[] buffer = new byte[256];
+    private int count = 0;
     private String logKey;
     private static String REBOOT_FLAG = "***REBOOT_FLAG***";
     private static String RESULT_KEY = "***RESULT:";
@@ -34,6 +42,8 @@ public class OutputHandler extends OutputStream {
     private static String RESULTJSON_KEY = "***RESULTJSON:";
 
     private static String ADDITIONAL_INFO_KEY = "***ADDITIONAL_INFO:";
+    private static String ERROR_KEY = "ERROR:";
+    private static String PRIVATE_KEY = "PRIVATE KEY";
 
     private ProcessResult result;
 
@@ -48,7 +58,6 @@ public class OutputHandler extends OutputStream {
         setLevel(Level.ALL);
         setLogKey(logKey);
         this.result = result;
-        line = "";
     }
 
     public void setLogger(Logger logger) {
@@ -76,30 +85,60 @@ public class OutputHandler extends OutputStream {
     }
 
     public void write(int b) {
-        byte[] bytes = new byte[1];
-        bytes[0] = (byte) (b & 0xff);
-        line = line + new String(bytes);
-
-        if (line.endsWith("\n")) {
-            line = line.substring(0, line.length() - 1).replace("\r", "");
+        if (b == '\n') {
             flush();
+        } else {
+            append(new byte[] {(byte) b}, 0, 1);
+        }
+    }
+
+    public void write(byte[] b, int off, int len) {
+        int end = off + len;
+        while (off < end) {
+            int eol = off;
+            while (eol < end && b[eol] != '\n') {
+                eol++;
+            }
+            append(b, off, eol - off);
+            if (eol < end) {
+                flush();
+            }
+            off = eol + 1;
+        }
+    }
+
+    private void append(byte[] b, int off, int len) {
+        // the lines over the limit are not logged, no need to keep them
+        if (rowCount >= maxRowCount || len == 0) {
+            return;
+        }
+        if (count + len > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + len));
         }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    private String takeLine() {
+        String line = new String(buffer, 0, count, StandardCharsets.UTF_8);
+        count = 0;
+        return line.indexOf('\r') > -1 ? line.replace("\r", "") : line;
     }
 
     public void flush() {
+        String line = takeLine();
         if (rowCount < maxRowCount && line.length() > 0) {
-            if (!line.contains("PRIVATE KEY")) {
+            Markers markers = new Markers(line);
+            if (!markers.privateKey) {
                 logger.info(logKey + "cmd out: " + line);
                 result.appendStdOut(line + "\n");
             }
 
-            if (line.indexOf(REBOOT_FLAG) > -1)
+            if (markers.reboot)
                 result.setRebooting(true);
 
-            int keyIndex = line.indexOf(RESULT_KEY);
-            if (keyIndex == 0) {
-                String withOutResultKey = line.substring(keyIndex + 10,
-                        line.length());
+            if (line.startsWith(RESULT_KEY)) {
+                String withOutResultKey = line.substring(RESULT_KEY.length());
                 String k = withOutResultKey.substring(0,
                         withOutResultKey.indexOf("="));
                 String v = withOutResultKey.substring(
@@ -109,10 +148,8 @@ public class OutputHandler extends OutputStream {
                 logger.debug(logKey + " resultCi " + k + ": " + v);
             }
 
-            keyIndex = line.indexOf(FAULT_KEY);
-            if (keyIndex == 0) {
-                String withOutResultKey = line.substring(keyIndex + 9,
-                        line.length());
+            if (line.startsWith(FAULT_KEY)) {
+                String withOutResultKey = line.substring(FAULT_KEY.length());
                 String k = withOutResultKey.substring(0,
                         withOutResultKey.indexOf("="));
                 String v = withOutResultKey.substring(
@@ -122,10 +159,8 @@ public class OutputHandler extends OutputStream {
                 logger.info(logKey + " fault: " + k + ": " + v);
             }
 
-            keyIndex = line.indexOf(TAG_KEY);
-            if (keyIndex == 0) {
-                String withOutResultKey = line.substring(keyIndex + 7,
-                        line.length());
+            if (line.startsWith(TAG_KEY)) {
+                String withOutResultKey = line.substring(TAG_KEY.length());
                 String k = withOutResultKey.substring(0,
                         withOutResultKey.indexOf("="));
                 String v = withOutResultKey.substring(
@@ -136,10 +171,9 @@ public class OutputHandler extends OutputStream {
             }
 
             // multi-line attributes encoded w/ json
-            keyIndex = line.indexOf(RESULTJSON_KEY);
-            if (keyIndex == 0) {
+            if (line.startsWith(RESULTJSON_KEY)) {
                 int firstEquals = line.indexOf("=");
-                String key = line.substring(keyIndex + 14, firstEquals);
+                String key = line.substring(RESULTJSON_KEY.length(), firstEquals);
                 String val = line.substring(firstEquals + 1,
                         line.length());
 
@@ -147,13 +181,13 @@ public class OutputHandler extends OutputStream {
                         MultiLineValue.class);
 
                 result.getResultMap().put(key, value.getValue());
-                if (!value.getValue().contains("PRIVATE KEY"))
+                if (!value.getValue().contains(PRIVATE_KEY))
                     logger.debug(logKey + " resultCi " + key + ": "
                             + val);
 
             }
 
-            keyIndex = line.indexOf(ADDITIONAL_INFO_KEY);
+            int keyIndex = markers.additionalInfo;
             if (keyIndex > -1) {
                 int firstEquals = line.indexOf("=", keyIndex);
                 if (firstEquals > -1) {
@@ -165,9 +199,9 @@ public class OutputHandler extends OutputStream {
             }
 
             // set last error to use if faults are empty
-            keyIndex = line.indexOf("ERROR:");
+            keyIndex = markers.error;
             if (keyIndex > -1) {
-                result.setLastError(line.substring(keyIndex + 6, line.length()));
+                result.setLastError(line.substring(keyIndex + ERROR_KEY.length(), line.length()));
             }
 
 
@@ -178,7 +212,42 @@ public class OutputHandler extends OutputStream {
                     + " lines. Please run the workorder on the box: chef-solo -c /home/oneops/cookbooks/chef.rb -j /opt/oneops/workorder/someworkorder ");
         }
         rowCount++;
-        line = "";
     }
 
-}
\ No newline at end of file
+    /**
+     * The markers found anywhere in a line, the line is scanned once and only compared to the markers
+     * starting with the character at hand.
+     */
+    private static class Markers {
+        private boolean privateKey;
+        private boolean reboot;
+        private int additionalInfo = -1;
+        private int error = -1;
+
+        private Markers(String line) {
+            for (int i = 0, length = line.length(); i < length; i++) {
+                switch (line.charAt(i)) {
+                    case '*':
+                        if (!reboot && line.startsWith(REBOOT_FLAG, i)) {
+                            reboot = true;
+                        } else if (additionalInfo < 0 && line.startsWith(ADDITIONAL_INFO_KEY, i)) {
+                            additionalInfo = i;
+                        }
+                        break;
+                    case 'E':
+                        if (error < 0 && line.startsWith(ERROR_KEY, i)) {
+                            error = i;
+                        }
+                        break;
+                    case 'P':
+                        if (!privateKey && line.startsWith(PRIVATE_KEY, i)) {
+                            privateKey = true;
+                        }
+                        break;
+                    default:
+                }
+            }
+        }
+    }
+
+}
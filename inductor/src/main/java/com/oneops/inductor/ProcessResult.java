@@ -21,8 +21,8 @@ import java.util.HashMap;
 
 public class ProcessResult {
 
-  private String stdOut = "";
-  private String stdErr = "";
+  private StringBuilder stdOut = new StringBuilder();
+  private StringBuilder stdErr = new StringBuilder();
   private int resultCode = -1;
   private boolean isRebooting = false;
   private HashMap<String, String> resultMap = new HashMap<>();
@@ -41,27 +41,27 @@ public class ProcessResult {
   }
 
   public String getStdOut() {
-    return stdOut;
+    return stdOut.toString();
   }
 
   public void setStdOut(String stdOut) {
-    this.stdOut = stdOut;
+    this.stdOut = new StringBuilder(stdOut);
   }
 
   public String getStdErr() {
-    return stdErr;
+    return stdErr.toString();
   }
 
   public void setStdErr(String stdErr) {
-    this.stdErr = stdErr;
+    this.stdErr = new StringBuilder(stdErr);
   }
 
   public void appendStdErr(String line) {
-    this.stdErr += line;
+    this.stdErr.append(line);
   }
 
   public void appendStdOut(String line) {
-    this.stdOut += line;
+    this.stdOut.append(line);
   }
 
   public int getResultCode() {
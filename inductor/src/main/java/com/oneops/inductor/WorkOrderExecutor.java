@@ -528,6 +528,8 @@ public class WorkOrderExecutor extends AbstractOrderExecutor {
           && !isPropagationUpdate(wo)) {
 
         logger.info(logKey + " ### BASE INSTALL");
+        // new or replaced vm, nothing synced to it yet
+        cookbookSyncCache.invalidate(host);
         wo.setComments("");
         runBaseInstall(wo, host, port, logKey, keyFile);
         if (!wo.getComments().isEmpty()) {
@@ -545,8 +547,8 @@ public class WorkOrderExecutor extends AbstractOrderExecutor {
           new String[]{components, user + "@" + host + ":" + destination});
       logger.info(logKey + " ### SYNC BASE: " + components);
 
-      ProcessResult result = processRunner
-          .executeProcessRetry(new ExecutionContext(wo, cmdLine, logKey, retryCount));
+      ProcessResult result = syncCookbooks(new ExecutionContext(wo, cmdLine, logKey, retryCount),
+          components, host, port, destination);
       if (result.getResultCode() > 0) {
         if (DELETE.equals(wo.getRfcCi().getRfcAction())) {
           List<CmsRfcCISimple> managedViaRfcs = wo.getPayLoad().get(MANAGED_VIA);
@@ -581,8 +583,8 @@ public class WorkOrderExecutor extends AbstractOrderExecutor {
           new String[]{sharedComponents, user + "@" + host + ":" + destination});
       logger.info(logKey + " ### SYNC SHARED: " + sharedComponents);
 
-      result = processRunner.executeProcessRetry(
-          new ExecutionContext(wo, cmdLine, logKey, retryCount));
+      result = syncCookbooks(new ExecutionContext(wo, cmdLine, logKey, retryCount),
+          sharedComponents, host, port, destination);
       if (result.getResultCode() > 0) {
         inductorStat.addRsyncFailed();
         wo.setComments(
@@ -643,6 +645,8 @@ public class WorkOrderExecutor extends AbstractOrderExecutor {
       // set the result status
       if (result.getResultCode() != 0) {
         inductorStat.addWoFailed();
+        // the failed run may have changed the synced cookbooks on the host
+        cookbookSyncCache.invalidate(host);
         // mark as complete when rfc and managed_via is DELETE
         if (DELETE.equals(wo.getRfcCi().getRfcAction())) {
           List<CmsRfcCISimple> managedViaRfcs = wo.getPayLoad().get(MANAGED_VIA);
@@ -675,6 +679,10 @@ public class WorkOrderExecutor extends AbstractOrderExecutor {
       removeFile(wo, keyFile);
 
     } else {
+      if (appName.equalsIgnoreCase(COMPUTE)) {
+        // the vm of the compute may be replaced or deleted
+        cookbookSyncCache.invalidate(wo.getRfcCi().getCiAttributes().get(config.getIpAttribute()));
+      }
       runLocalWorkOrder(wo, appName, logKey, fileName, cookbookPath);
     }
     if (!isDebugEnabled(wo)) {
@@ -761,6 +769,12 @@ public class WorkOrderExecutor extends AbstractOrderExecutor {
               serviceCookbookPaths.add(serviceCookbookCircuitPath);
               String destination =
                   serviceCookbookCircuitPath + "/" + serviceClassNameShort.toLowerCase() + "/";
+              if (cookbookSyncCache.isSynced(host, port, destination,
+                  cookbookSyncCache.hash(serviceCookbookPath))) {
+                logger.info(logKey + " ### SKIP SYNC, unchanged since the last sync: "
+                    + serviceCookbookPath);
+                continue;
+              }
 
               String remoteCmd = "mkdir -p " + destination;
               String[] cmd = (String[]) ArrayUtils.addAll(sshCmdLine,
@@ -780,8 +794,8 @@ public class WorkOrderExecutor extends AbstractOrderExecutor {
 
               logger.info(logKey + " ### SYNC Service cookbook: " + serviceCookbookPath);
 
-              result = processRunner
-                  .executeProcessRetry(new ExecutionContext(wo, cmdLine, logKey, retryCount));
+              result = syncCookbooks(new ExecutionContext(wo, cmdLine, logKey, retryCount),
+                  serviceCookbookPath, host, port, destination);
               if (result.getResultCode() > 0) {
                 wo.setComments("FATAL: " + generateRsyncErrorMessage(result.getResultCode(),
                     host + ":" + port));
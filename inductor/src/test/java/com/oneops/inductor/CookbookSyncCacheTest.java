@@ -0,0 +1,250 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.inductor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CookbookSyncCacheTest {
+
+	private static final String HOST = "10.65.224.18";
+	private static final String PORT = "22";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Config config;
+	private Path components;
+	private Path host;
+	private LoopbackRunner runner;
+	private WorkOrderExecutor executor;
+
+	@Before
+	public void setUp() throws IOException {
+		config = new Config();
+		config.setChefTimeout(10);
+		config.setCookbookSyncTtl(60);
+		components = folder.newFolder("circuit-main-1", "components").toPath();
+		for (int i = 0; i < 20; i++) {
+			Path cookbook = components.resolve("cookbooks/cookbook" + i);
+			write(cookbook.resolve("metadata.rb"), "name 'cookbook" + i + "'\nversion '0.1.0'\n");
+			write(cookbook.resolve("attributes/default.rb"), "default[:cookbook" + i + "][:port] = 8080\n");
+			for (String recipe : new String[] {"add", "update", "delete", "replace", "status"}) {
+				write(cookbook.resolve("recipes/" + recipe + ".rb"), "include_recipe 'cookbook" + i + "::" + recipe + "'\n");
+			}
+		}
+		host = folder.newFolder("host").toPath();
+		runner = new LoopbackRunner();
+		executor = newExecutor(new CookbookSyncCache(config.getCookbookSyncTtl()));
+	}
+
+	private WorkOrderExecutor newExecutor(CookbookSyncCache cache) {
+		WorkOrderExecutor executor = new WorkOrderExecutor(config, null);
+		executor.setProcessRunner(runner);
+		executor.setCookbookSyncCache(cache);
+		return executor;
+	}
+
+	private static void write(Path file, String content) throws IOException {
+		Files.createDirectories(file.getParent());
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private ProcessResult sync(WorkOrderExecutor executor) throws IOException {
+		String destination = "/home/oneops/circuit-main-1";
+		Path remote = host.resolve("home/oneops/circuit-main-1");
+		Files.createDirectories(remote);
+		String[] cmd = {"cp", "-a", components.toString(), remote.toString()};
+		return executor.syncCookbooks(new ExecutionContext(null, cmd, "", 0), components.toString(), HOST, PORT, destination);
+	}
+
+	private String remote(String path) throws IOException {
+		return new String(Files.readAllBytes(host.resolve("home/oneops/circuit-main-1/components/" + path)), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void sameContentSameHash() throws IOException {
+		CookbookSyncCache cache = new CookbookSyncCache(60);
+		String hash = cache.hash(components.toString());
+		assertNotNull(hash);
+		assertEquals(hash, cache.hash(components.toString()));
+
+		Path copy = folder.getRoot().toPath().resolve("copy");
+		assertEquals(0, runner.executeProcessRetry(new String[] {"cp", "-a", components.toString(), copy.toString()}, "", 0).getResultCode());
+		assertEquals(hash, new CookbookSyncCache(60).hash(copy.toString()));
+	}
+
+	@Test
+	public void reloadChangesHash() throws IOException {
+		CookbookSyncCache cache = new CookbookSyncCache(60);
+		String hash = cache.hash(components.toString());
+
+		// touched, same content
+		Path recipe = components.resolve("cookbooks/cookbook3/recipes/add.rb");
+		Files.setLastModifiedTime(recipe, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+		assertEquals(hash, cache.hash(components.toString()));
+
+		// same size, different content
+		write(recipe, "include_recipe 'cookbook3::ADD'\n");
+		Files.setLastModifiedTime(recipe, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+		String changed = cache.hash(components.toString());
+		assertNotEquals(hash, changed);
+
+		write(components.resolve("cookbooks/cookbook3/recipes/restart.rb"), "service 'cookbook3'\n");
+		String added = cache.hash(components.toString());
+		assertNotEquals(changed, added);
+
+		Files.createDirectories(components.resolve("cookbooks/cookbook3/templates"));
+		String dirAdded = cache.hash(components.toString());
+		assertNotEquals(added, dirAdded);
+
+		Files.delete(components.resolve("cookbooks/cookbook3/recipes/restart.rb"));
+		Files.delete(components.resolve("cookbooks/cookbook3/templates"));
+		assertEquals(changed, cache.hash(components.toString()));
+	}
+
+	@Test
+	public void symlinkedRootHashesContent() throws IOException {
+		Path link = folder.getRoot().toPath().resolve("circuit-link");
+		Files.createSymbolicLink(link, components);
+		CookbookSyncCache cache = new CookbookSyncCache(60);
+		String hash = cache.hash(link.toString());
+		assertEquals(new CookbookSyncCache(60).hash(components.toString()), hash);
+
+		write(components.resolve("cookbooks/cookbook5/recipes/add.rb"), "include_recipe 'cookbook5::install'\n");
+		assertNotEquals(hash, cache.hash(link.toString()));
+	}
+
+	@Test
+	public void missingDirNotCached() {
+		CookbookSyncCache cache = new CookbookSyncCache(60);
+		assertNull(cache.hash(new File(folder.getRoot(), "missing").getPath()));
+		assertFalse(cache.isSynced(HOST, PORT, "/home/oneops/missing", null));
+	}
+
+	@Test
+	public void noopRedeploySkipsSync() throws IOException {
+		assertEquals(0, sync(executor).getResultCode());
+		assertEquals(1, runner.runs);
+		assertEquals("name 'cookbook7'\nversion '0.1.0'\n", remote("cookbooks/cookbook7/metadata.rb"));
+
+		for (int i = 0; i < 5; i++) {
+			assertEquals(0, sync(executor).getResultCode());
+		}
+		assertEquals(1, runner.runs);
+
+		// cookbook reload
+		write(components.resolve("cookbooks/cookbook7/metadata.rb"), "name 'cookbook7'\nversion '0.2.0'\n");
+		assertEquals(0, sync(executor).getResultCode());
+		assertEquals(2, runner.runs);
+		assertEquals("name 'cookbook7'\nversion '0.2.0'\n", remote("cookbooks/cookbook7/metadata.rb"));
+		sync(executor);
+		assertEquals(2, runner.runs);
+	}
+
+	@Test
+	public void hostReplaceInvalidates() throws IOException {
+		CookbookSyncCache cache = new CookbookSyncCache(60);
+		WorkOrderExecutor executor = newExecutor(cache);
+		sync(executor);
+		sync(executor);
+		assertEquals(1, runner.runs);
+
+		cache.invalidate(HOST);
+		assertEquals(0, cache.size());
+		sync(executor);
+		assertEquals(2, runner.runs);
+		assertTrue(cache.isSynced(HOST, PORT, "/home/oneops/circuit-main-1", cache.hash(components.toString())));
+		assertFalse(cache.isSynced(HOST, "2222", "/home/oneops/circuit-main-1", cache.hash(components.toString())));
+		assertFalse(cache.isSynced("10.65.224.19", PORT, "/home/oneops/circuit-main-1", cache.hash(components.toString())));
+	}
+
+	@Test
+	public void failedSyncNotRecorded() throws IOException {
+		CookbookSyncCache cache = new CookbookSyncCache(60);
+		WorkOrderExecutor executor = newExecutor(cache);
+		String[] cmd = {"false"};
+		for (int i = 0; i < 3; i++) {
+			ProcessResult result = executor.syncCookbooks(new ExecutionContext(null, cmd, "", 0), components.toString(), HOST, PORT, "/home/oneops/circuit-main-1");
+			assertNotEquals(0, result.getResultCode());
+		}
+		assertEquals(3, runner.runs);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void disabled() throws IOException {
+		WorkOrderExecutor executor = newExecutor(new CookbookSyncCache(0));
+		sync(executor);
+		sync(executor);
+		assertEquals(2, runner.runs);
+	}
+
+	@Test
+	public void noopRedeployLatency() throws IOException {
+		long syncTime = 0;
+		long skipTime = 0;
+		int runs = 10;
+		for (int i = 0; i < runs; i++) {
+			executor = newExecutor(new CookbookSyncCache(config.getCookbookSyncTtl()));
+			long start = System.nanoTime();
+			sync(executor);
+			syncTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sync(executor);
+			skipTime += System.nanoTime() - start;
+		}
+		assertEquals(runs, runner.runs);
+		System.out.println("Cookbook sync: " + syncTime / runs / 1000 + " us, no-op redeploy: " + skipTime / runs / 1000 + " us");
+		assertTrue(skipTime < syncTime);
+	}
+
+	/**
+	 * Runs the sync commands locally, the host is a local directory.
+	 */
+	private class LoopbackRunner extends ProcessRunner {
+
+		private int runs;
+
+		LoopbackRunner() {
+			super(config);
+		}
+
+		@Override
+		public ProcessResult executeProcessRetry(ExecutionContext ctx) {
+			runs++;
+			return executeProcessRetry(ctx.getCmd(), ctx.getLogKey(), ctx.getRetryCount());
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.inductor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class OutputHandlerTest {
+
+	private static final Logger logger = Logger.getLogger(OutputHandlerTest.class);
+
+	private static byte[] chefLog;
+
+	@BeforeClass
+	public static void readChefLog() throws IOException {
+		logger.setLevel(Level.OFF);
+		try (InputStream in = OutputHandlerTest.class.getResourceAsStream("/chef/compute-add.log")) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			chefLog = out.toByteArray();
+		}
+	}
+
+	private static ProcessResult handle(byte[] output, int chunkSize) throws IOException {
+		ProcessResult result = new ProcessResult();
+		OutputHandler handler = new OutputHandler(logger, "", result);
+		write(handler, output, chunkSize);
+		return result;
+	}
+
+	private static void write(OutputStream out, byte[] output, int chunkSize) throws IOException {
+		if (chunkSize == 1) {
+			for (byte b : output) {
+				out.write(b);
+			}
+		} else {
+			for (int off = 0; off < output.length; off += chunkSize) {
+				out.write(output, off, Math.min(chunkSize, output.length - off));
+			}
+		}
+		out.flush();
+	}
+
+	private static void assertSameResult(ProcessResult expected, ProcessResult result) {
+		assertEquals(expected.getStdOut(), result.getStdOut());
+		assertEquals(expected.getResultMap(), result.getResultMap());
+		assertEquals(expected.getFaultMap(), result.getFaultMap());
+		assertEquals(expected.getTagMap(), result.getTagMap());
+		assertEquals(expected.getAdditionInfoMap(), result.getAdditionInfoMap());
+		assertEquals(expected.getLastError(), result.getLastError());
+		assertEquals(expected.isRebooting(), result.isRebooting());
+	}
+
+	@Test
+	public void chefLogResult() throws IOException {
+		ProcessResult result = handle(chefLog, 8192);
+
+		assertEquals(6, result.getResultMap().size());
+		assertEquals("8a3b8f74-0b71-4c42-a6b3-34a01e0a2c5e", result.getResultMap().get("instance_id"));
+		assertEquals("10.65.224.18", result.getResultMap().get("private_ip"));
+		assertEquals("ssh-rsa AAAAB3NzaC1yc2EAAAADAQABAAABAQC3 oneops@inductor\nssh-rsa AAAAB3NzaC1yc2EAAAADAQABAAABAQD9 deploy@inductor",
+				result.getResultMap().get("ssh_key"));
+		assertEquals("yum repository not reachable", result.getFaultMap().get("KNOWN"));
+		assertEquals("execute[yum -y install java-1.8.0-openjdk] had an error: exit status 1", result.getFaultMap().get("FATAL"));
+		assertEquals("compute-238712-1.prod.web.acme.oneops.com", result.getTagMap().get("host"));
+		assertEquals(" zone-3", result.getAdditionInfoMap().get("cloud_zone"));
+		assertEquals("r12=a", result.getAdditionInfoMap().get("rack"));
+		assertEquals(" Exception handlers complete", result.getLastError());
+		assertTrue(result.isRebooting());
+
+		String stdOut = result.getStdOut();
+		assertFalse(stdOut.contains("PRIVATE KEY"));
+		assertFalse(stdOut.contains("\r"));
+		assertFalse(stdOut.contains("\n\n"));
+		assertTrue(stdOut.startsWith("Starting Chef Client, version 11.18.12\n"));
+		assertTrue(stdOut.endsWith("Chef run process exited unsuccessfully (exit code 1)\n"));
+	}
+
+	@Test
+	public void sameResultAsLineString() throws IOException {
+		ProcessResult expected = new ProcessResult();
+		write(new LineStringOutputHandler(expected), chefLog, 1);
+		for (int chunkSize : new int[] {1, 2, 7, 100, 4096, 8192, chefLog.length}) {
+			assertSameResult(expected, handle(chefLog, chunkSize));
+		}
+	}
+
+	@Test
+	public void unterminatedLastLine() throws IOException {
+		ProcessResult result = handle("***RESULT:a=1\n***RESULT:b=2".getBytes(), 4);
+		assertEquals("1", result.getResultMap().get("a"));
+		assertEquals("2", result.getResultMap().get("b"));
+		assertEquals("***RESULT:a=1\n***RESULT:b=2\n", result.getStdOut());
+	}
+
+	@Test
+	public void outputOverRowLimit() throws IOException {
+		StringBuilder output = new StringBuilder();
+		for (int i = 0; i < 2500; i++) {
+			output.append("line ").append(i).append('\n');
+		}
+		output.append("***RESULT:late=1\n");
+		ProcessResult result = handle(output.toString().getBytes(), 8192);
+		assertTrue(result.getStdOut().endsWith("line 1999\n"));
+		assertTrue(result.getResultMap().isEmpty());
+	}
+
+	@Test
+	public void throughput() throws IOException {
+		// chef runs log up to the row limit, the rest is only counted
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (int i = 0; i < 20; i++) {
+			output.write(chefLog);
+		}
+		byte[] bytes = output.toByteArray();
+		int runs = 5;
+
+		long lineStringTime = 0;
+		long time = 0;
+		for (int round = 0; round < 2; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < runs; i++) {
+				write(new LineStringOutputHandler(new ProcessResult()), bytes, 4096);
+			}
+			lineStringTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < runs; i++) {
+				handle(bytes, 4096);
+			}
+			time = System.nanoTime() - start;
+		}
+		long kb = (long) bytes.length * runs / 1024;
+		System.out.println("OutputHandler: " + kb + " KB in " + time / 1000000 + " ms, "
+				+ kb * 1000000000L / Math.max(time, 1) + " KB/s; per byte string lines: "
+				+ lineStringTime / 1000000 + " ms, " + kb * 1000000000L / Math.max(lineStringTime, 1) + " KB/s");
+		assertTrue(time < lineStringTime);
+	}
+
+	/**
+	 * The handler appending every byte to the line string, the results of the handler are compared to it.
+	 */
+	private static class LineStringOutputHandler extends OutputStream {
+		private static String REBOOT_FLAG = "***REBOOT_FLAG***";
+		private static String RESULT_KEY = "***RESULT:";
+		private static String FAULT_KEY = "***FAULT:";
+		private static String TAG_KEY = "***TAG:";
+		private static String RESULTJSON_KEY = "***RESULTJSON:";
+		private static String ADDITIONAL_INFO_KEY = "***ADDITIONAL_INFO:";
+
+		private final ProcessResult result;
+		private final Gson gson = new Gson();
+		private String line = "";
+		private int rowCount = 0;
+
+		LineStringOutputHandler(ProcessResult result) {
+			this.result = result;
+		}
+
+		public void write(int b) {
+			byte[] bytes = new byte[1];
+			bytes[0] = (byte) (b & 0xff);
+			line = line + new String(bytes);
+
+			if (line.endsWith("\n")) {
+				line = line.substring(0, line.length() - 1).replace("\r", "");
+				flush();
+			}
+		}
+
+		public void flush() {
+			if (rowCount < 2000 && line.length() > 0) {
+				if (!line.contains("PRIVATE KEY")) {
+					logger.info("cmd out: " + line);
+					result.appendStdOut(line + "\n");
+				}
+				if (line.indexOf(REBOOT_FLAG) > -1)
+					result.setRebooting(true);
+
+				if (line.indexOf(RESULT_KEY) == 0) {
+					String kv = line.substring(10);
+					result.getResultMap().put(kv.substring(0, kv.indexOf("=")), kv.substring(kv.indexOf("=") + 1));
+				}
+				if (line.indexOf(FAULT_KEY) == 0) {
+					String kv = line.substring(9);
+					result.getFaultMap().put(kv.substring(0, kv.indexOf("=")), kv.substring(kv.indexOf("=") + 1));
+				}
+				if (line.indexOf(TAG_KEY) == 0) {
+					String kv = line.substring(7);
+					result.getTagMap().put(kv.substring(0, kv.indexOf("=")), kv.substring(kv.indexOf("=") + 1));
+				}
+				if (line.indexOf(RESULTJSON_KEY) == 0) {
+					int firstEquals = line.indexOf("=");
+					MultiLineValue value = gson.fromJson(line.substring(firstEquals + 1), MultiLineValue.class);
+					result.getResultMap().put(line.substring(14, firstEquals), value.getValue());
+				}
+				int keyIndex = line.indexOf(ADDITIONAL_INFO_KEY);
+				if (keyIndex > -1) {
+					int firstEquals = line.indexOf("=", keyIndex);
+					if (firstEquals > -1) {
+						result.getAdditionInfoMap().put(
+								line.substring(keyIndex + ADDITIONAL_INFO_KEY.length(), firstEquals).trim(),
+								line.substring(firstEquals + 1));
+					}
+				}
+				keyIndex = line.indexOf("ERROR:");
+				if (keyIndex > -1) {
+					result.setLastError(line.substring(keyIndex + 6));
+				}
+			}
+			rowCount++;
+			line = "";
+		}
+	}
+}
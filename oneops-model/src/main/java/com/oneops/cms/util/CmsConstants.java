@@ -42,6 +42,10 @@ public final class CmsConstants {
     public static final String INDUCTOR_RSYNC_TIME = "rsyncTime";
     public static final String SEARCH_TS_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS";
 
+    //work order message encoding, a BytesMessage with the gzipped json when set to gzip
+    public static final String MSG_ENCODING = "encoding";
+    public static final String MSG_ENCODING_GZIP = "gzip";
+
     //starting to put some relation constants 
     public static final String ENTRYPOINT = "Entrypoint";
     //base relations
@@ -200,6 +200,16 @@ public class CiOpsProcessor {
      */
     public void persistCiStateChange(long ciId, long manifestId, CiChangeStateEvent chStateEvent, long timestamp, Map<String, Long> manifestStates) {
     	opsCiStateDao.persistCiStateChange(ciId, manifestId, chStateEvent, timestamp);
+        changeManifestStateCounters(manifestId, manifestStates);
+    }
+
+    /**
+     * Applies the state counter deltas of the manifest cis.
+     *
+     * @param manifestId
+     * @param manifestStates counter delta by state
+     */
+    public void changeManifestStateCounters(long manifestId, Map<String, Long> manifestStates) {
         if (manifestStates != null && !manifestStates.isEmpty()) {
             List<Long> bomIds = trDao.getManifestCiIds(manifestId);
             resetManifestStateCounters(manifestId, bomIds, manifestStates);
@@ -0,0 +1,278 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.ops;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Consolidation plan compiled from a PerfHeader. The cdp values live in a flat
+ * double array indexed by datasource * rraCount + rra, so consolidating a pdp
+ * walks arrays instead of the header maps. Values are copied back into the
+ * header cdpMap only when it is read, e.g. when the header is persisted.
+ */
+public class PerfConsolidationPlan {
+
+	private static Logger logger = Logger.getLogger(PerfConsolidationPlan.class);
+
+	private static final String LOGBUCKET = "average-5m";
+
+	static final int CF_AVERAGE = 0;
+	static final int CF_MIN = 1;
+	static final int CF_MAX = 2;
+	static final int CF_SUM = 3;
+	static final int CF_COUNT = 4;
+	static final int CF_UNKNOWN = -1;
+
+	private final int step;
+	private final int dsCount;
+	private final int rraCount;
+	private final Map<String, Integer> dsIndex;
+
+	// per rra
+	private final String[] rraKeys;
+	private final int[] functions;
+	private final long[] periods;
+	private final boolean[] resetToPdp;
+	private final boolean[] logBucket;
+
+	// per ds * rra slot
+	private final String[] cdpKeys;
+	private final String[] bucketPrefixes;
+	private final double[] cdps;
+	private final boolean[] dirty;
+
+	private PerfConsolidationPlan(PerfHeader header) {
+		Map<String, PerfDatasource> dsMap = header.getDsMap();
+		Map<String, PerfArchive> rraMap = header.getRraMap();
+		Map<String, Double> cdpMap = header.getCdpMap();
+
+		step = header.getStep();
+		dsCount = dsMap.size();
+		rraCount = rraMap.size();
+		dsIndex = new HashMap<String, Integer>(dsCount * 2);
+
+		rraKeys = new String[rraCount];
+		functions = new int[rraCount];
+		periods = new long[rraCount];
+		resetToPdp = new boolean[rraCount];
+		logBucket = new boolean[rraCount];
+		int r = 0;
+		for (Map.Entry<String, PerfArchive> entry : rraMap.entrySet()) {
+			String rraKey = entry.getKey();
+			PerfArchive rra = entry.getValue();
+			rraKeys[r] = rraKey;
+			functions[r] = toFunction(rra.getConsolidationFunction());
+			// int product, same as the archive period the string keyed consolidation used
+			periods[r] = rra.getSteps() * step;
+			resetToPdp[r] = rraKey.contains("average-1m");
+			logBucket[r] = rraKey.contains(LOGBUCKET);
+			r++;
+		}
+
+		int slots = dsCount * rraCount;
+		cdpKeys = new String[slots];
+		bucketPrefixes = new String[slots];
+		cdps = new double[slots];
+		dirty = new boolean[slots];
+		int d = 0;
+		for (String dsKey : dsMap.keySet()) {
+			dsIndex.put(dsKey, d);
+			for (r = 0; r < rraCount; r++) {
+				int slot = d * rraCount + r;
+				String cdpKey = dsKey + ":" + rraKeys[r];
+				cdpKeys[slot] = cdpKey;
+				// only the averages are written to the data buckets
+				if (cdpKey.contains("rra-average")) {
+					bucketPrefixes[slot] = cdpKey + "::";
+				}
+				Double cdp = cdpMap.get(cdpKey);
+				cdps[slot] = cdp == null ? Double.NaN : cdp;
+			}
+			d++;
+		}
+	}
+
+	/**
+	 * Compiles the plan for the current ds, rra and cdp maps of the header.
+	 *
+	 * @param header the header
+	 * @return the plan
+	 */
+	public static PerfConsolidationPlan compile(PerfHeader header) {
+		return new PerfConsolidationPlan(header);
+	}
+
+	private static int toFunction(String statFunction) {
+		if (PerfArchive.AVERAGE.equalsIgnoreCase(statFunction)) {
+			return CF_AVERAGE;
+		} else if (PerfArchive.MIN.equalsIgnoreCase(statFunction)) {
+			return CF_MIN;
+		} else if (PerfArchive.MAX.equalsIgnoreCase(statFunction)) {
+			return CF_MAX;
+		} else if (PerfArchive.SUM.equalsIgnoreCase(statFunction)) {
+			return CF_SUM;
+		} else if (PerfArchive.COUNT.equalsIgnoreCase(statFunction)) {
+			return CF_COUNT;
+		}
+		return CF_UNKNOWN;
+	}
+
+	/**
+	 * Checks the plan still covers the header, datasources are only ever added.
+	 *
+	 * @param header the header
+	 * @return true if the plan can be used for the header
+	 */
+	boolean isCurrent(PerfHeader header) {
+		return step == header.getStep()
+				&& dsCount == header.getDsMap().size()
+				&& rraCount == header.getRraMap().size();
+	}
+
+	/**
+	 * Gets the datasource index.
+	 *
+	 * @param dsKey the datasource key
+	 * @return the index or -1 if the datasource is not in the plan
+	 */
+	public int indexOf(String dsKey) {
+		Integer index = dsIndex.get(dsKey);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Consolidates a pdp into every archive of the datasource. Completed archive
+	 * buckets are put into bucketValues keyed by ds:rra::endTime.
+	 *
+	 * @param ds the datasource index
+	 * @param endTime the pdp end time
+	 * @param pdp the pdp value
+	 * @param updated the header updated timestamp
+	 * @param bucketValues the completed bucket values
+	 */
+	public void consolidate(int ds, long endTime, double pdp, long updated, Map<String, Double> bucketValues) {
+		boolean debug = logger.isDebugEnabled();
+		int base = ds * rraCount;
+		for (int r = 0; r < rraCount; r++) {
+			int slot = base + r;
+			long period = periods[r];
+
+			// delta to end of the archive bucket
+			long archiveDelta = endTime % period;
+
+			// set the delta to the full period if end of the cdp range
+			long cdpStartTime, archiveRange;
+			if (archiveDelta == 0) {
+				archiveRange = period;
+				cdpStartTime = endTime - archiveRange;
+			} else {
+				archiveRange = archiveDelta;
+				cdpStartTime = endTime - archiveDelta;
+			}
+
+			double lastCdp = cdps[slot];
+			int function = functions[r];
+			double cdp;
+
+			if (debug && logBucket[r]) {
+				logger.debug("consolidate: " + rraKeys[r] + " cdpKey:" + cdpKeys[slot] + " pdp=" + pdp + " bucket:" + endTime
+						+ " archiveDelta:" + archiveDelta + " lastCdp:" + lastCdp + " updated:" + updated
+						+ " cdpStartTime:" + cdpStartTime + " archiveRange:" + archiveRange);
+			}
+
+			if (Double.isNaN(pdp)) {
+				// if empty pdp value keep the last cdp value
+				cdp = lastCdp;
+
+			} else if (updated < cdpStartTime || Double.isNaN(lastCdp)) {
+				// old or empty cdp data does not need consolidation
+				// count starts at 1
+				cdp = function == CF_COUNT ? 1.0 : pdp;
+
+			} else {
+				switch (function) {
+				case CF_MAX:
+					cdp = pdp > lastCdp ? pdp : lastCdp;
+					break;
+				case CF_MIN:
+					cdp = pdp < lastCdp ? pdp : lastCdp;
+					break;
+				case CF_COUNT:
+					cdp = lastCdp + 1.0;
+					break;
+				case CF_SUM:
+					cdp = lastCdp + pdp;
+					break;
+				case CF_AVERAGE:
+					long lastRange = updated - cdpStartTime;
+					if (lastRange < archiveRange) {
+						double lastValueRate = (double) lastRange / (double) archiveRange;
+						double pdpRate = (double) (archiveRange - lastRange) / (double) archiveRange;
+						cdp = (lastCdp * lastValueRate) + (pdp * pdpRate);
+					} else {
+						cdp = pdp;
+					}
+					break;
+				default:
+					throw new IllegalStateException("unsupported consolidation function for " + cdpKeys[slot]);
+				}
+			}
+
+			if (Double.isNaN(cdp)) {
+				cdp = 0.0;
+			}
+
+			if (debug && logBucket[r]) {
+				logger.debug(rraKeys[r] + " cdp:" + cdp + " archiveDelta:" + archiveDelta);
+			}
+
+			if (archiveDelta == 0) {
+				// end of consolidation period, emit the bucket and reset cdp
+				if (bucketPrefixes[slot] != null) {
+					bucketValues.put(bucketPrefixes[slot] + endTime, cdp);
+				}
+
+				//start new bucket
+				if (function == CF_COUNT) {
+					cdp = 1.0;
+				} else if (resetToPdp[r]) {
+					cdp = pdp;
+				}
+			}
+			cdps[slot] = cdp;
+			dirty[slot] = true;
+		}
+	}
+
+	/**
+	 * Copies the cdp values changed since the last sync into the cdp map.
+	 *
+	 * @param cdpMap the header cdp map
+	 */
+	void syncCdpMap(Map<String, Double> cdpMap) {
+		for (int slot = 0; slot < dirty.length; slot++) {
+			if (dirty[slot]) {
+				cdpMap.put(cdpKeys[slot], cdps[slot]);
+				dirty[slot] = false;
+			}
+		}
+	}
+}
@@ -76,9 +76,28 @@ public class PerfDataRequest extends DataRequest {
 		this.stat_function = statFunction;
 	}
 
+	/**
+	 * Gets the max points per series, 0 returns every sample.
+	 *
+	 * @return the max points
+	 */
+	public int getMaxPoints() {
+		return maxPoints;
+	}
+
+	/**
+	 * Sets the max points per series.
+	 *
+	 * @param maxPoints the new max points
+	 */
+	public void setMaxPoints(int maxPoints) {
+		this.maxPoints = maxPoints;
+	}
+
 	
 	private int step;
 	private String stat_function;
+	private int maxPoints;
 
 
 	private String[] metrics;
@@ -52,18 +52,37 @@ public class PerfHeader {
 	}
 	public void setDsMap(Map<String, PerfDatasource> dsMap) {
 		this.dsMap = dsMap;
+		this.consolidationPlan = null;
 	}
 	public Map<String, PerfArchive> getRraMap() {
 		return rraMap;
 	}
 	public void setRraMap(Map<String, PerfArchive> rraMap) {
 		this.rraMap = rraMap;
+		this.consolidationPlan = null;
 	}
 	public Map<String, Double> getCdpMap() {
+		if (consolidationPlan != null) {
+			consolidationPlan.syncCdpMap(cdpMap);
+		}
 		return cdpMap;
 	}
 	public void setCdpMap(Map<String, Double> cdpMap) {
 		this.cdpMap = cdpMap;
+		this.consolidationPlan = null;
+	}
+
+	/**
+	 * Gets the consolidation plan, compiled on first use and again when datasources are added.
+	 * Once compiled the plan holds the current cdp values, getCdpMap copies them back.
+	 *
+	 * @return the consolidation plan
+	 */
+	public PerfConsolidationPlan getConsolidationPlan() {
+		if (consolidationPlan == null || !consolidationPlan.isCurrent(this)) {
+			consolidationPlan = PerfConsolidationPlan.compile(this);
+		}
+		return consolidationPlan;
 	}
 
 	public Map<Long, Long> getZoneMap() {
@@ -106,6 +125,7 @@ public class PerfHeader {
 	}
 	private String toLogStringCdp() {
 		String str = "";
+		Map<String,Double> cdpMap = getCdpMap();
 		for (String key : cdpMap.keySet() ) {
 			Double val = cdpMap.get(key);
 			str += "{cdp: "+key+":"+ val +"}";
@@ -122,5 +142,6 @@ public class PerfHeader {
 	private Map<String,PerfArchive> rraMap;
 	private Map<String,Double> cdpMap;
 	private Map<Long,Long> zoneMap;
+	private PerfConsolidationPlan consolidationPlan;
 
 }
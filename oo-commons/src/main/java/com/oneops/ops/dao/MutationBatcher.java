@@ -0,0 +1,293 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.ops.dao;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Group commit writer for hector mutations. Callers submit pending writes and
+ * get a future back, a small pool of flusher threads drains them into one
+ * batch_mutate per drain. A drain is bounded by the max batch size and by the
+ * max delay since its first write.
+ * <p>
+ * Writes are routed to a flusher by their partition key, so the writes for a
+ * partition are executed in submit order. Each flusher owns its mutator, the
+ * hector mutators are not shared between threads.
+ */
+public class MutationBatcher {
+
+    private static Logger logger = Logger.getLogger(MutationBatcher.class);
+    private static final BytesArraySerializer bytesSerializer = BytesArraySerializer.get();
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Pending write, adds its insertions and deletions to the flusher mutator.
+     */
+    public interface PendingWrite {
+        void addTo(Mutator<byte[]> mutator);
+    }
+
+    private final String name;
+    private final Keyspace keyspace;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Flusher[] flushers;
+    private volatile boolean running = true;
+
+    private final Histogram batchSize;
+    private final Timer flushTimer;
+    private final Meter flushErrors;
+
+    /**
+     * Creates the batcher and starts the flusher threads.
+     *
+     * @param name         name used for the threads and metrics
+     * @param keyspace     the keyspace
+     * @param threads      number of flusher threads
+     * @param maxBatchSize max writes per batch_mutate
+     * @param maxDelayMs   max time a drain waits for more writes once it has one
+     * @param metrics      registry for the batch size and flush latency metrics, may be null
+     */
+    public MutationBatcher(String name, Keyspace keyspace, int threads, int maxBatchSize, long maxDelayMs,
+                           MetricRegistry metrics) {
+        this.name = name;
+        this.keyspace = keyspace;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        if (metrics == null) {
+            metrics = new MetricRegistry();
+        }
+        batchSize = metrics.histogram(name(MutationBatcher.class, name, "batchSize"));
+        flushTimer = metrics.timer(name(MutationBatcher.class, name, "flush"));
+        flushErrors = metrics.meter(name(MutationBatcher.class, name, "flushErrors"));
+
+        flushers = new Flusher[Math.max(1, threads)];
+        for (int i = 0; i < flushers.length; i++) {
+            flushers[i] = new Flusher(this.maxBatchSize * 16);
+            Thread thread = new Thread(flushers[i], "mutation-batcher-" + name + "-" + i);
+            thread.setDaemon(true);
+            flushers[i].thread = thread;
+            thread.start();
+        }
+        logger.info("Started mutation batcher " + name + " threads:" + flushers.length
+                + " maxBatchSize:" + this.maxBatchSize + " maxDelayMs:" + maxDelayMs);
+    }
+
+    /**
+     * Creates the mutator for a flusher thread.
+     *
+     * @return the mutator
+     */
+    protected Mutator<byte[]> createMutator() {
+        return HFactory.createMutator(keyspace, bytesSerializer);
+    }
+
+    /**
+     * Queues a write, blocks while the flusher queue is full.
+     *
+     * @param partitionKey key the write is ordered by, e.g. the row key or ci id
+     * @param write        the pending write
+     * @return future completed once the batch holding the write is executed
+     */
+    public CompletableFuture<Void> submit(Object partitionKey, PendingWrite write) {
+        if (!running) {
+            throw new IllegalStateException("mutation batcher " + name + " is shut down");
+        }
+        Flusher flusher = flushers[(spread(partitionKey.hashCode()) & Integer.MAX_VALUE) % flushers.length];
+        Entry entry = new Entry(write);
+        try {
+            flusher.queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HectorException("interrupted queueing write for " + partitionKey);
+        }
+        return entry.future;
+    }
+
+    /**
+     * Queues a write and waits for its batch to be executed.
+     *
+     * @param partitionKey key the write is ordered by
+     * @param write        the pending write
+     */
+    public void write(Object partitionKey, PendingWrite write) {
+        try {
+            submit(partitionKey, write).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HectorException("interrupted waiting for write of " + partitionKey);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof HectorException) {
+                throw (HectorException) e.getCause();
+            }
+            throw new HectorException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops accepting writes and executes everything already queued.
+     */
+    public void shutdown() {
+        running = false;
+        for (Flusher flusher : flushers) {
+            try {
+                flusher.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // anything queued while the flushers were exiting
+        for (Flusher flusher : flushers) {
+            List<Entry> batch = new ArrayList<Entry>();
+            while (flusher.queue.drainTo(batch, maxBatchSize) > 0) {
+                flusher.flush(batch);
+                batch.clear();
+            }
+        }
+        logger.info("Stopped mutation batcher " + name + " batches:" + flushTimer.getCount());
+    }
+
+    public Histogram getBatchSize() {
+        return batchSize;
+    }
+
+    public Timer getFlushTimer() {
+        return flushTimer;
+    }
+
+    public Meter getFlushErrors() {
+        return flushErrors;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static class Entry {
+        final PendingWrite write;
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        Entry(PendingWrite write) {
+            this.write = write;
+        }
+    }
+
+    private class Flusher implements Runnable {
+        final BlockingQueue<Entry> queue;
+        Mutator<byte[]> mutator;
+        Thread thread;
+
+        Flusher(int capacity) {
+            queue = new LinkedBlockingQueue<Entry>(capacity);
+        }
+
+        @Override
+        public void run() {
+            List<Entry> batch = new ArrayList<Entry>(maxBatchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    Entry first = queue.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    while (batch.size() < maxBatchSize) {
+                        if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                            continue;
+                        }
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        // short polls so a shutdown does not wait out the delay
+                        Entry next = queue.poll(Math.min(wait, POLL_NANOS), TimeUnit.NANOSECONDS);
+                        if (next != null) {
+                            batch.add(next);
+                        } else if (!running) {
+                            break;
+                        }
+                    }
+                    flush(batch);
+                } catch (InterruptedException e) {
+                    logger.warn("mutation batcher " + name + " flusher interrupted");
+                    flush(batch);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        void flush(List<Entry> batch) {
+            if (mutator == null) {
+                mutator = createMutator();
+            }
+            List<Entry> added = new ArrayList<Entry>(batch.size());
+            for (Entry entry : batch) {
+                try {
+                    entry.write.addTo(mutator);
+                    added.add(entry);
+                } catch (RuntimeException e) {
+                    entry.future.completeExceptionally(e);
+                }
+            }
+            if (added.isEmpty()) {
+                return;
+            }
+            Timer.Context context = flushTimer.time();
+            try {
+                mutator.execute();
+                batchSize.update(added.size());
+                for (Entry entry : added) {
+                    entry.future.complete(null);
+                }
+            } catch (RuntimeException e) {
+                flushErrors.mark();
+                mutator.discardPendingMutations();
+                logger.error("mutation batcher " + name + " failed to write " + added.size() + " mutations", e);
+                for (Entry entry : added) {
+                    entry.future.completeExceptionally(e);
+                }
+            } finally {
+                context.stop();
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.gson.Gson;
 import com.oneops.cassandra.ClusterBootstrap;
 import com.oneops.ops.OrphanCloseEvent;
@@ -40,7 +41,6 @@ import me.prettyprint.hector.api.HConsistencyLevel;
 import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.beans.*;
 import me.prettyprint.hector.api.factory.HFactory;
-import me.prettyprint.hector.api.mutation.Mutator;
 import me.prettyprint.hector.api.query.*;
 import rx.Observable;
 
@@ -54,9 +54,11 @@ public class OpsEventDao {
     private String clusterName;
     private String keyspaceName;
     private Keyspace keyspace;
-    protected Mutator<byte[]> eventMutator;
-    protected Mutator<Long> ciMutator;
-    protected Mutator<Long> orphanCloseMutator;
+    protected MutationBatcher batcher;
+    private int writeThreads = 4;
+    private int maxBatchSize = 200;
+    private long maxBatchDelayMs = 2;
+    private MetricRegistry metricRegistry;
     private ClusterBootstrap cb;
     private Gson gson = new Gson();
 
@@ -87,6 +89,42 @@ public class OpsEventDao {
         this.cb = cb;
     }
 
+    /**
+     * Sets the number of threads writing batched mutations, writes for a ci stay on one thread.
+     *
+     * @param writeThreads
+     */
+    public void setWriteThreads(int writeThreads) {
+        this.writeThreads = writeThreads;
+    }
+
+    /**
+     * Sets the max number of writes executed in one batch_mutate.
+     *
+     * @param maxBatchSize
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Sets the max time a write thread waits to fill a batch.
+     *
+     * @param maxBatchDelayMs
+     */
+    public void setMaxBatchDelayMs(long maxBatchDelayMs) {
+        this.maxBatchDelayMs = maxBatchDelayMs;
+    }
+
+    /**
+     * Sets the registry for the batch size and flush latency metrics.
+     *
+     * @param metricRegistry
+     */
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
     /**
      * Bean post init method. The following configuration is used
      * for initializing the OpsEventDao cassandra cluster,
@@ -106,9 +144,16 @@ public class OpsEventDao {
         cl.setDefaultWriteConsistencyLevel(HConsistencyLevel.ONE);
         cl.setDefaultReadConsistencyLevel(HConsistencyLevel.ONE);
         keyspace = createKeyspace(keyspaceName, cluster, cl);
-        eventMutator = HFactory.createMutator(keyspace, bytesSerializer);
-        ciMutator = HFactory.createMutator(keyspace, longSerializer);
-        orphanCloseMutator = HFactory.createMutator(keyspace, longSerializer);
+        batcher = new MutationBatcher("opsEvents", keyspace, writeThreads, maxBatchSize, maxBatchDelayMs, metricRegistry);
+    }
+
+    /**
+     * Bean destroy method, writes the queued mutations.
+     */
+    public void shutdown() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
     }
 
 
@@ -122,13 +167,12 @@ public class OpsEventDao {
      */
     public void persistOpsEvent(long ciId, String eventName, long timestamp, String payload) {
         String key = ciId + eventName;
+        HColumn<Long, String> column = createDataColumn(timestamp, payload);
 
-        eventMutator.addInsertion(
+        batcher.write(ciId, mutator -> mutator.addInsertion(
                 key.getBytes(),
                 SchemaBuilder.OPS_EVENTS_CF,
-                createDataColumn(timestamp, payload));
-
-        eventMutator.execute();
+                column));
 
     }
 
@@ -139,7 +183,8 @@ public class OpsEventDao {
      * @param eventName
      */
     public void removeOpenEventForCi(long ciId, String eventName) {
-        ciMutator.delete(ciId, SchemaBuilder.CI_OPEN_EVENTS_CF, eventName, stringSerializer);
+        batcher.write(ciId, mutator -> mutator.addDeletion(
+                longSerializer.toBytes(ciId), SchemaBuilder.CI_OPEN_EVENTS_CF, eventName, stringSerializer));
         checkAndRemoveEmptyRow(ciId);
     }
 
@@ -157,16 +202,7 @@ public class OpsEventDao {
         long lastOpenId = getCiOpenEventId(ciId, eventName);
 
         if (lastOpenId == 0) {
-            List<HColumn<String, byte[]>> subCols = new ArrayList<>();
-
-            HColumn<String, byte[]> eventIdCol = HFactory.createColumn("id", longSerializer.toBytes(eventId), stringSerializer, bytesSerializer);
-            HColumn<String, byte[]> eventStateCol = HFactory.createColumn("state", ciState.getBytes(), stringSerializer, bytesSerializer);
-            subCols.add(eventIdCol);
-            subCols.add(eventStateCol);
-
-            ciMutator.insert(ciId,
-                    SchemaBuilder.CI_OPEN_EVENTS_CF,
-                    HFactory.createSuperColumn(eventName, subCols, stringSerializer, stringSerializer, bytesSerializer));
+            putOpenEventForCi(ciId, eventName, eventId, ciState);
             isNew = true;
         }
         logger.debug("there is already an open event for" + ciId + " " + eventName + " lastOpenId " + lastOpenId);
@@ -174,6 +210,30 @@ public class OpsEventDao {
         return isNew;
     }
 
+    /**
+     * Writes the open event of the ci without checking for an existing one, for callers
+     * which already read the open events of the ci.
+     *
+     * @param ciId
+     * @param eventName
+     * @param eventId
+     * @param ciState
+     */
+    public void putOpenEventForCi(long ciId, String eventName, long eventId, String ciState) {
+        List<HColumn<String, byte[]>> subCols = new ArrayList<>();
+
+        HColumn<String, byte[]> eventIdCol = HFactory.createColumn("id", longSerializer.toBytes(eventId), stringSerializer, bytesSerializer);
+        HColumn<String, byte[]> eventStateCol = HFactory.createColumn("state", ciState.getBytes(), stringSerializer, bytesSerializer);
+        subCols.add(eventIdCol);
+        subCols.add(eventStateCol);
+
+        HSuperColumn<String, String, byte[]> superColumn =
+                HFactory.createSuperColumn(eventName, subCols, stringSerializer, stringSerializer, bytesSerializer);
+        batcher.write(ciId, mutator -> mutator.addInsertion(longSerializer.toBytes(ciId),
+                SchemaBuilder.CI_OPEN_EVENTS_CF,
+                superColumn));
+    }
+
 	public void addOrphanCloseEventForCi(long ciId, String eventName, long manifestId, String openEvent) {
 		String event = getOrphanCloseEventForCi(ciId, eventName, manifestId);
 		if (event == null) {
@@ -183,8 +243,10 @@ public class OpsEventDao {
 					stringSerializer, bytesSerializer);
 			subCols.add(payloadCol);
 
-			orphanCloseMutator.insert(ciId, SchemaBuilder.ORPHAN_CLOSE_EVENTS_CF, HFactory.createSuperColumn(manifestId,
-					subCols, longSerializer, stringSerializer, bytesSerializer));
+			HSuperColumn<Long, String, byte[]> superColumn = HFactory.createSuperColumn(manifestId,
+					subCols, longSerializer, stringSerializer, bytesSerializer);
+			batcher.write(ciId, mutator -> mutator.addInsertion(longSerializer.toBytes(ciId),
+					SchemaBuilder.ORPHAN_CLOSE_EVENTS_CF, superColumn));
 		}
 	}
 
@@ -267,15 +329,18 @@ public class OpsEventDao {
 			long manifestId = orphanEvents.get(0).getManifestId();
 			int count = getOrphanCountForCi(ciId, manifestId);
 			if (count > 0) {
-				if (count <= orphanEvents.size()) {
-					orphanCloseMutator.addDeletion(ciId, SchemaBuilder.ORPHAN_CLOSE_EVENTS_CF);
-				} else {
-					for (OrphanCloseEvent event : orphanEvents) {
-						orphanCloseMutator.addSubDelete(ciId, SchemaBuilder.ORPHAN_CLOSE_EVENTS_CF, manifestId, event.getName(),
-								longSerializer, stringSerializer);
+				byte[] key = longSerializer.toBytes(ciId);
+				boolean deleteRow = count <= orphanEvents.size();
+				batcher.write(ciId, mutator -> {
+					if (deleteRow) {
+						mutator.addDeletion(key, SchemaBuilder.ORPHAN_CLOSE_EVENTS_CF);
+					} else {
+						for (OrphanCloseEvent event : orphanEvents) {
+							mutator.addSubDelete(key, SchemaBuilder.ORPHAN_CLOSE_EVENTS_CF, manifestId, event.getName(),
+									longSerializer, stringSerializer);
+						}
 					}
-				}
-				orphanCloseMutator.execute();	
+				});
 			}
 		}
 	}
@@ -342,8 +407,7 @@ public class OpsEventDao {
      */
     public void removeCi(long ciId) {
         // Remove the whole row
-        ciMutator.addDeletion(ciId, SchemaBuilder.CI_OPEN_EVENTS_CF);
-        ciMutator.execute();
+        batcher.write(ciId, mutator -> mutator.addDeletion(longSerializer.toBytes(ciId), SchemaBuilder.CI_OPEN_EVENTS_CF));
     }
 
     /**
@@ -21,6 +21,8 @@ import static me.prettyprint.hector.api.factory.HFactory.createKeyspace;
 import static me.prettyprint.hector.api.factory.HFactory.createMutator;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
@@ -83,6 +85,7 @@ public class PerfDataAccessor implements CassandraConstants {
     protected static final String CI_METRIC_CF = "ci_metric";
     private static final String CHART_SCF = "chart";
     private static final String[] buckets = {"1m", "5m", "15m", "1h", "6h", "1d"};
+    private static final int[] RRA_STEPS = {60, 300, 900, 3600, 21600, 86400};
 
     private static Logger logger = Logger.getLogger(PerfDataAccessor.class);
     private static PerfHeaderDao phd = null;
@@ -91,6 +94,14 @@ public class PerfDataAccessor implements CassandraConstants {
     public static int MAX_EXCEPTION_COUNT = 10;
     // Default time seconds for hector to connect to cassandra.
     private static final int TIMEOUT_IN_SECONDS = Integer.valueOf(System.getProperty("dao.timeToWaitForCassandra", "7"));
+    // group commit of the bucket writes
+    private static final int WRITE_THREADS = Integer.valueOf(System.getProperty("dao.writeThreads", "4"));
+    private static final int MAX_BATCH_SIZE = Integer.valueOf(System.getProperty("dao.maxBatchSize", "500"));
+    private static final long MAX_BATCH_DELAY_MS = Long.valueOf(System.getProperty("dao.maxBatchDelayMs", "10"));
+    private volatile MutationBatcher batcher;
+
+    private int seriesPageSize = Integer.valueOf(System.getProperty("dao.seriesPageSize", "1000"));
+    private PerfSeriesCache seriesCache;
 
     /**
      * Sets the cluster name.
@@ -110,6 +121,33 @@ public class PerfDataAccessor implements CassandraConstants {
         keyspaceName = name;
     }
 
+    /**
+     * Sets the number of columns read per page of a perf data series.
+     *
+     * @param seriesPageSize the page size
+     */
+    public void setSeriesPageSize(int seriesPageSize) {
+        this.seriesPageSize = seriesPageSize;
+    }
+
+    /**
+     * Sets the cache for completed chunks of perf data series.
+     *
+     * @param seriesCache the series cache, null reads every series from cassandra
+     */
+    public void setSeriesCache(PerfSeriesCache seriesCache) {
+        this.seriesCache = seriesCache;
+    }
+
+    /**
+     * Gets the series cache.
+     *
+     * @return the series cache or null
+     */
+    public PerfSeriesCache getSeriesCache() {
+        return seriesCache;
+    }
+
     /**
      * Sets the cluster bootstrap
      *
@@ -297,6 +335,29 @@ public class PerfDataAccessor implements CassandraConstants {
         return step;
     }
 
+    /**
+     * Selects the step to read. With maxPoints set the coarsest rra bucket that
+     * still has maxPoints buckets in the time range is used.
+     *
+     * @param req the request object
+     * @return the step to read
+     */
+    private int selectStep(PerfDataRequest req) {
+        int reqStep = req.getStep();
+        int maxPoints = req.getMaxPoints();
+        if (maxPoints <= 0) {
+            return reqStep;
+        }
+        int minStep = alignRraStep(reqStep);
+        long range = req.getEnd() - req.getStart();
+        for (int i = RRA_STEPS.length - 1; i >= 0 && RRA_STEPS[i] > minStep; i--) {
+            if (range / RRA_STEPS[i] >= maxPoints) {
+                return RRA_STEPS[i];
+            }
+        }
+        return reqStep;
+    }
+
     /**
      * Gets the perf data series. Contains tmp code for conversion of data cf to sharded data cfs
      *
@@ -304,140 +365,189 @@ public class PerfDataAccessor implements CassandraConstants {
      * @return the perf data series
      */
     public String getPerfDataSeries(PerfDataRequest req) {
-
-        Long start = Long.valueOf(req.getStart());
-        Long end = Long.valueOf(req.getEnd());
-        int maxColumns = (int) (end - start);
-        StringBuilder jsonOut = new StringBuilder("");
-
+        StringWriter out = new StringWriter();
         try {
-            long startTime = System.currentTimeMillis();
-            String stat = "rra-average";
-            if (req.getStat_function() != null) {
-                stat = "rra-" + req.getStat_function();
-            }
-
-            String rra = getRraByStat(stat, req.getStep());
-            int step = alignRraStep(req.getStep());
-            List<byte[]> keys = new ArrayList<byte[]>();
-            StringBuilder sb = new StringBuilder("");
-            long adjustedStart = start - start % step;
-            String dataCF = DATA_CF + "_" + getShard(step);
-            if (isTestMode) dataCF += "_test";
-
-            MultigetSliceQuery<byte[], Long, Double> multigetSliceQuery = HFactory.createMultigetSliceQuery(keyspace, bytesSerializer, longSerializer, doubleSerializer);
-            multigetSliceQuery.setColumnFamily(dataCF);
-            keys = new ArrayList<>();
-            sb = new StringBuilder("");
-            for (int i = 0; i < req.getMetrics().length; i++) {
-                String metricDs = req.getMetrics()[i];
-                String key = Long.valueOf(req.getCi_id()).toString() + ":" + metricDs + ":" + rra;
-                keys.add(key.getBytes());
-                sb.append(" " + key);
-            }
-            multigetSliceQuery.setKeys(keys);
-            multigetSliceQuery.setRange(adjustedStart, end, false, maxColumns);
-
-            logger.info("start:" + start + " end:" + end + " for: " + sb);
-            long cassStart = System.currentTimeMillis();
+            writePerfDataSeries(req, out);
+        } catch (IOException e) {
+            // not thrown by a StringWriter
+            logger.error("could not write perf data series", e);
+        }
+        return out.toString();
+    }
 
-            QueryResult<Rows<byte[], Long, Double>> result = multigetSliceQuery.execute();
-            Rows<byte[], Long, Double> rows = result.get();
+    /**
+     * Writes the perf data series of the request, one series per metric in
+     * request order, as they are read. The first page of every series is
+     * read with one multiget, the rest of a series is then paged by itself
+     * while it is written, so only a page per series is held in memory.
+     * With maxPoints set on the request the coarsest rra satisfying it is
+     * read and the series is downsampled to at most maxPoints values.
+     *
+     * @param req the request object
+     * @param out the writer
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void writePerfDataSeries(PerfDataRequest req, Writer out) throws IOException {
 
-            long cassEnd = System.currentTimeMillis();
-            long cassDuration = cassEnd - cassStart;
+        long start = req.getStart();
+        long end = req.getEnd();
+        long startTime = System.currentTimeMillis();
 
-            // put the by-metric results into 1 csv-like table
-            // (time,metric1,metric2,etc)
-            // ... should find faster way to do this, but still 10x faster than
-            // gwt DataTable serialization
-            int rowCount = 0;
-            int totalSampleCount = 0;
-            HashMap<String, HashMap<Long, Double>> resultMap = new HashMap<String, HashMap<Long, Double>>();
+        String stat = "rra-average";
+        if (req.getStat_function() != null) {
+            stat = "rra-" + req.getStat_function();
+        }
 
-            for (Row<byte[], Long, Double> row : rows) {
+        int reqStep = selectStep(req);
+        String rra = getRraByStat(stat, reqStep);
+        int step = alignRraStep(reqStep);
+        long adjustedStart = start - start % step;
+        String dataCF = DATA_CF + "_" + getShard(step);
+        if (isTestMode) dataCF += "_test";
+
+        int stepsPerPoint = 1;
+        int maxPoints = req.getMaxPoints();
+        long slots = (end - adjustedStart) / step + 1;
+        if (maxPoints > 0 && slots > maxPoints) {
+            stepsPerPoint = (int) ((slots + maxPoints - 1) / maxPoints);
+        }
 
-                String rowKey = new String(row.getKey());
-                HashMap<Long, Double> results = null;
-                if (resultMap.containsKey(rowKey)) {
-                    results = resultMap.get(rowKey);
-                } else {
-                    results = new HashMap<>();
-                    resultMap.put(rowKey, results);
-                }
+        logger.info("start:" + start + " end:" + end + " step:" + step + " points per value:" + stepsPerPoint
+                + " for: " + req.getCi_id() + ":" + Arrays.toString(req.getMetrics()) + ":" + rra);
 
-                List<HColumn<Long, Double>> cols = row.getColumnSlice().getColumns();
-                Iterator<HColumn<Long, Double>> listIter = cols.listIterator();
+        // the completed chunks come from the cache, only the open part of a series is read
+        long openFrom = seriesCache != null ? seriesCache.openFrom(step, adjustedStart, end) : adjustedStart;
+        List<String> keys = new ArrayList<>();
+        for (String metricDs : req.getMetrics()) {
+            keys.add(req.getCi_id() + ":" + metricDs + ":" + rra);
+        }
 
-                while (listIter.hasNext()) {
-                    HColumn<Long, Double> c = (HColumn<Long, Double>) listIter.next();
-                    results.put(c.getName(), c.getValue());
-                }
+        boolean failed = false;
+        long cassDuration = 0;
+        Map<String, List<HColumn<Long, Double>>> firstPages = Collections.emptyMap();
+        if (openFrom <= end && !keys.isEmpty()) {
+            long cassStart = System.currentTimeMillis();
+            try {
+                firstPages = readSeriesPages(dataCF, keys, openFrom, end, seriesPageSize);
+            } catch (HectorException he) {
+                logger.error("could not read perf data for " + req.getCi_id(), he);
+                failed = true;
             }
+            cassDuration += System.currentTimeMillis() - cassStart;
+        }
 
-            for (String rowKey : resultMap.keySet()) {
-
-                HashMap<Long, Double> results = resultMap.get(rowKey);
-
-                if (rowCount > 0) {
-                    jsonOut.append(",\n");
-                }
-
-                String[] keyParts = rowKey.split(":");
-                String ciId = keyParts[0];
-                String metric = keyParts[1] + ":" + keyParts[2];
-
-                jsonOut.append("{ \"header\":{\"ci_id\":" + ciId
-                        + ", \"metric\":\"" + metric + "\", \"step\":" + step
-                        + ", \"start\":" + adjustedStart + "},\n ");
-                jsonOut.append("\"data\":[");
-
-                long currentBucket = adjustedStart;
-                int sampleCount = 0;
-                int emptyCount = 0;
-
-                SortedSet<Long> sortedKeys = new TreeSet<>(results.keySet());
-
-                for (long sampleBucket : sortedKeys) {
-                    double value = results.get(sampleBucket);
-                    if (sampleBucket != currentBucket) {
-                        while (sampleBucket > currentBucket) {
-                            if (sampleCount > 0) {
-                                jsonOut.append(",");
+        int totalSampleCount = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            String[] keyParts = key.split(":");
+            String metric = keyParts[1] + ":" + keyParts[2];
+            if (i > 0) {
+                out.write(",\n");
+            }
+            out.write("{ \"header\":{\"ci_id\":" + keyParts[0]
+                    + ", \"metric\":\"" + metric + "\", \"step\":" + (step * stepsPerPoint)
+                    + ", \"start\":" + adjustedStart + "},\n ");
+            out.write("\"data\":[");
+
+            PerfSeriesWriter writer = new PerfSeriesWriter(out, adjustedStart, step, stepsPerPoint);
+            if (!failed) {
+                try {
+                    long from = adjustedStart;
+                    if (seriesCache != null) {
+                        from = seriesCache.writeCompleted(dataCF, key, step, getTTL(getShard(step)), adjustedStart, end,
+                                this::readColumns, writer);
+                    }
+                    List<HColumn<Long, Double>> cols = firstPages.getOrDefault(key, Collections.emptyList());
+                    while (from <= end) {
+                        for (HColumn<Long, Double> c : cols) {
+                            // a chunk may have completed after the first pages were read
+                            if (c.getName() >= from) {
+                                writer.add(c.getName(), c.getValue());
+                                totalSampleCount++;
                             }
-                            jsonOut.append("null");
-                            currentBucket += step;
-                            emptyCount++;
-                            sampleCount++;
+                        }
+                        if (cols.size() < seriesPageSize) {
+                            break;
+                        }
+                        from = Math.max(from, cols.get(cols.size() - 1).getName() + 1);
+                        if (from <= end) {
+                            long cassStart = System.currentTimeMillis();
+                            cols = readSeriesPage(dataCF, key, from, end, seriesPageSize);
+                            cassDuration += System.currentTimeMillis() - cassStart;
                         }
                     }
-
-                    if (sampleCount > 0) {
-                        jsonOut.append(",");
-                    }
-                    jsonOut.append((Math.round(value * 1000.0) / 1000.0));
-
-                    currentBucket += step;
-                    totalSampleCount++;
-                    sampleCount++;
+                } catch (HectorException he) {
+                    logger.error("could not read perf data for " + key, he);
+                    failed = true;
                 }
+            }
+            writer.finish();
+            out.write("]}");
+            logger.debug("got samples:" + writer.getSampleCount() + " gaps:" + writer.getEmptyCount());
+        }
 
-                jsonOut.append("]}");
-                rowCount++;
-                logger.debug("got samples:" + sampleCount + " gaps:"
-                        + emptyCount);
+        long duration = System.currentTimeMillis() - startTime;
+        logger.debug("getPerfData took: " + duration + " ms (cass query: "
+                + cassDuration + " ms) returning: " + totalSampleCount
+                + " rows of " + keys.size() + " metrics");
+    }
+
+    private List<HColumn<Long, Double>> readColumns(String dataCF, String key, long from, long end) {
+        List<HColumn<Long, Double>> columns = new ArrayList<>();
+        while (from <= end) {
+            List<HColumn<Long, Double>> cols = readSeriesPage(dataCF, key, from, end, seriesPageSize);
+            columns.addAll(cols);
+            if (cols.size() < seriesPageSize) {
+                break;
             }
-            long endTime = System.currentTimeMillis();
-            long duration = endTime - startTime;
+            from = cols.get(cols.size() - 1).getName() + 1;
+        }
+        return columns;
+    }
 
-            logger.debug("getPerfData took: " + duration + " ms (cass query: "
-                    + cassDuration + " ms) returning: " + totalSampleCount
-                    + " rows of " + rowCount + " metrics");
+    /**
+     * Reads a page of a data row in time order.
+     *
+     * @param dataCF the data column family
+     * @param key the row key
+     * @param from the first time to read
+     * @param end the last time to read
+     * @param count the page size
+     * @return the columns
+     */
+    protected List<HColumn<Long, Double>> readSeriesPage(String dataCF, String key, long from, long end, int count) {
+        SliceQuery<byte[], Long, Double> sliceQuery = HFactory.createSliceQuery(keyspace, bytesSerializer, longSerializer, doubleSerializer);
+        sliceQuery.setColumnFamily(dataCF);
+        sliceQuery.setKey(key.getBytes());
+        sliceQuery.setRange(from, end, false, count);
+        return sliceQuery.execute().get().getColumns();
+    }
 
-        } catch (HectorException he) {
-            he.printStackTrace();
+    /**
+     * Reads a page of each data row in time order with one multiget.
+     *
+     * @param dataCF the data column family
+     * @param keys the row keys
+     * @param from the first time to read
+     * @param end the last time to read
+     * @param count the page size per row
+     * @return the columns by row key, rows without columns may be missing
+     */
+    protected Map<String, List<HColumn<Long, Double>>> readSeriesPages(String dataCF, List<String> keys, long from, long end, int count) {
+        MultigetSliceQuery<byte[], Long, Double> multigetSliceQuery = HFactory
+                .createMultigetSliceQuery(keyspace, bytesSerializer, longSerializer, doubleSerializer);
+        multigetSliceQuery.setColumnFamily(dataCF);
+        List<byte[]> rowKeys = new ArrayList<>();
+        for (String key : keys) {
+            rowKeys.add(key.getBytes());
+        }
+        multigetSliceQuery.setKeys(rowKeys);
+        multigetSliceQuery.setRange(from, end, false, count);
+        Map<String, List<HColumn<Long, Double>>> pages = new HashMap<>();
+        for (Row<byte[], Long, Double> row : multigetSliceQuery.execute().get()) {
+            pages.put(new String(row.getKey()), row.getColumnSlice().getColumns());
         }
-        return jsonOut.toString();
+        return pages;
     }
 
 
@@ -518,6 +628,7 @@ public class PerfDataAccessor implements CassandraConstants {
         String lastKey = null;
 
         Mutator<byte[]> mutator = HFactory.createMutator(keyspace, bytesSerializer);
+        Set<String> purgedCiIds = new HashSet<>();
 
         RangeSlicesQuery<String, Long, Double> query = HFactory
                 .createRangeSlicesQuery(keyspace, stringSerializer, longSerializer, doubleSerializer)
@@ -545,6 +656,7 @@ public class PerfDataAccessor implements CassandraConstants {
 
                 rowCount++;
                 lastKey = row.getKey();
+                purgedCiIds.add(getCiId(lastKey));
 
                 List<byte[]> keys = new ArrayList<byte[]>();
                 keys.add(row.getKey().getBytes());
@@ -585,6 +697,11 @@ public class PerfDataAccessor implements CassandraConstants {
                     break;
 
             }
+            if (seriesCache != null) {
+                // the cached chunks of the purged rows are read again
+                seriesCache.invalidate(purgedCiIds);
+                purgedCiIds.clear();
+            }
             logger.info("rows: " + rowCount + " cols: " + totalColCount
                     + " deleted: " + totalColDeleted);
 
@@ -595,6 +712,14 @@ public class PerfDataAccessor implements CassandraConstants {
 
     }
 
+    /**
+     * Gets the ci id a data row key starts with.
+     */
+    private static String getCiId(String rowKey) {
+        int index = rowKey.indexOf(':');
+        return index < 0 ? rowKey : rowKey.substring(0, index);
+    }
+
     public List<HSuperColumn<String, String, String>> getChart(String key) {
         SuperSliceQuery<String, String, String, String> q = HFactory
                 .createSuperSliceQuery(keyspace, stringSerializer, stringSerializer, stringSerializer, stringSerializer);
@@ -624,11 +749,30 @@ public class PerfDataAccessor implements CassandraConstants {
     }
 
     public void writeSampleToHeaderAndBuckets(String key, long endTime, PerfHeader header, Map<String, Double> data, HashMap<String, PerfEvent> perfEventMap) throws IOException {
+        List<BucketInsertion> insertions = getBucketInsertions(key, data, perfEventMap);
+        // the header is read back for the next sample, wait for the batch
+        getBatcher().write(key, mutator -> {
+            phd.putHeader(key, header, mutator);
+            addInsertions(mutator, insertions);
+        });
+    }
 
-        StringBuilder pendingKeys = new StringBuilder("");
-        Mutator<byte[]> mutator = createMutator(keyspace, bytesSerializer);
+    /**
+     * Writes the consolidated buckets of a sample without the header, for callers
+     * which keep the header state themselves and flush it separately.
+     *
+     * @param key          ciId:grouping
+     * @param data         consolidated values keyed by ds:rra::endTime
+     * @param perfEventMap perf events by bucket, populated for sensor
+     */
+    public void writeSampleToBuckets(String key, Map<String, Double> data, HashMap<String, PerfEvent> perfEventMap) {
+        List<BucketInsertion> insertions = getBucketInsertions(key, data, perfEventMap);
+        getBatcher().submit(key, mutator -> addInsertions(mutator, insertions));
+    }
 
-        phd.putHeader(key, header, mutator);
+    private List<BucketInsertion> getBucketInsertions(String key, Map<String, Double> data, HashMap<String, PerfEvent> perfEventMap) {
+        List<BucketInsertion> insertions = new ArrayList<BucketInsertion>();
+        StringBuilder pendingKeys = new StringBuilder("");
         // write the buckets / archives
         for (String dsRraTime : data.keySet()) {
             // only supporting avg due to volume
@@ -653,7 +797,7 @@ public class PerfDataAccessor implements CassandraConstants {
             if (isTestMode)
                 dataCF += "_test";
 
-            mutator.addInsertion(bucketKey.getBytes(), dataCF, column);
+            insertions.add(new BucketInsertion(bucketKey.getBytes(), dataCF, column));
             pendingKeys.append(" ," + bucketKey);
 
             // send the consolidated perf event to sensor
@@ -684,9 +828,48 @@ public class PerfDataAccessor implements CassandraConstants {
         }
 
         logger.debug("write keys:" + pendingKeys);
+        return insertions;
+    }
 
-        // perform the insert/updates
-        mutator.execute();
+    private static void addInsertions(Mutator<byte[]> mutator, List<BucketInsertion> insertions) {
+        for (BucketInsertion insertion : insertions) {
+            mutator.addInsertion(insertion.key, insertion.columnFamily, insertion.column);
+        }
+    }
+
+    /**
+     * Data column insertion, built by the caller and added to the batch by the write thread.
+     */
+    private static class BucketInsertion {
+        final byte[] key;
+        final String columnFamily;
+        final HColumn<Long, Double> column;
+
+        BucketInsertion(byte[] key, String columnFamily, HColumn<Long, Double> column) {
+            this.key = key;
+            this.columnFamily = columnFamily;
+            this.column = column;
+        }
+    }
+
+    private MutationBatcher getBatcher() {
+        if (batcher == null) {
+            synchronized (this) {
+                if (batcher == null) {
+                    batcher = new MutationBatcher("perfData", keyspace, WRITE_THREADS, MAX_BATCH_SIZE, MAX_BATCH_DELAY_MS, null);
+                }
+            }
+        }
+        return batcher;
+    }
+
+    /**
+     * Writes the queued bucket mutations and stops the write threads.
+     */
+    public void shutdown() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
     }
 
     private String translateBucket(String bucket) {
@@ -703,7 +886,7 @@ public class PerfDataAccessor implements CassandraConstants {
 
 
     public void writeBucket(PerfEvent perfEvent) throws IOException {
-        Mutator<byte[]> mutator = createMutator(keyspace, bytesSerializer);
+        List<BucketInsertion> insertions = new ArrayList<BucketInsertion>();
 
         String columnKey = perfEvent.getCiId() + ":" + perfEvent.getGrouping();
         String aggregate = translateBucket(perfEvent.getBucket());
@@ -722,7 +905,7 @@ public class PerfDataAccessor implements CassandraConstants {
                 logger.debug("write " + dataCF + ' ' + bucketKey + " " + bucketEndTime + ":" + value);
                 HColumn<Long, Double> column = createDataColumn(bucketEndTime, value.doubleValue());
                 column.setTtl(ttl);
-                mutator.addInsertion(bucketKey.getBytes(), dataCF, column);
+                insertions.add(new BucketInsertion(bucketKey.getBytes(), dataCF, column));
             }
         }
 
@@ -735,7 +918,7 @@ public class PerfDataAccessor implements CassandraConstants {
                 logger.debug("write " + dataCF + ' ' + bucketKey + " " + bucketEndTime + ":" + value);
                 HColumn<Long, Double> column = createDataColumn(bucketEndTime, value.doubleValue());
                 column.setTtl(ttl);
-                mutator.addInsertion(bucketKey.getBytes(), dataCF, column);
+                insertions.add(new BucketInsertion(bucketKey.getBytes(), dataCF, column));
             }
         }
 
@@ -748,12 +931,12 @@ public class PerfDataAccessor implements CassandraConstants {
                 logger.debug("write " + dataCF + ' ' + bucketKey + " " + bucketEndTime + ":" + value);
                 HColumn<Long, Double> column = createDataColumn(bucketEndTime, value.doubleValue());
                 column.setTtl(ttl);
-                mutator.addInsertion(bucketKey.getBytes(), dataCF, column);
+                insertions.add(new BucketInsertion(bucketKey.getBytes(), dataCF, column));
             }
         }
 
-        // perform the insert/updates
-        mutator.execute();
+        // perform the insert/updates with the other queued writes of the ci
+        getBatcher().submit(columnKey, mutator -> addInsertions(mutator, insertions));
     }
 
 
@@ -940,6 +1123,10 @@ public class PerfDataAccessor implements CassandraConstants {
         return phd.getHeader(columnKey);
     }
 
+    public PerfHeaderDao getHeaderDao() {
+        return phd;
+    }
+
     public String getHostName() {
         return hostName;
     }
@@ -464,10 +464,37 @@ public class PerfHeaderDao {
 	}
 	
 	
-	@SuppressWarnings("unchecked")
 	public void putHeader(String key, PerfHeader header, Mutator<byte[]> mutator) {
 		
 		headerCache.put(key, header);
+		addHeaderInsertions(key, header, mutator);
+	}
+
+
+	/**
+	 * Writes a batch of headers with a single mutation, bypassing the read cache.
+	 * Each header is locked while its columns are built, so callers updating
+	 * headers in place must synchronize on the header as well.
+	 *
+	 * @param headers headers keyed by ciId:grouping
+	 */
+	public void putHeaders(Map<String, PerfHeader> headers) {
+		if (headers.isEmpty()) {
+			return;
+		}
+		Mutator<byte[]> mutator = createMutator(keyspace, bytesSerializer);
+		for (Map.Entry<String, PerfHeader> entry : headers.entrySet()) {
+			PerfHeader header = entry.getValue();
+			synchronized (header) {
+				addHeaderInsertions(entry.getKey(), header, mutator);
+			}
+		}
+		mutator.execute();
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private void addHeaderInsertions(String key, PerfHeader header, Mutator<byte[]> mutator) {
 
 		// write info header
 		List<HColumn<String, String>> columns = Arrays.asList(
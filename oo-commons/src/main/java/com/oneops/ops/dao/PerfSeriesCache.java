@@ -0,0 +1,269 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.ops.dao;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import me.prettyprint.hector.api.beans.HColumn;
+
+/**
+ * PerfSeriesCache - bounded, sharded cache of perf data rows split into chunks of
+ * chunkSteps buckets aligned to the rra step.
+ * <p>
+ * Buckets are only written once they are closed, so a chunk that ended more than one
+ * step and the settle time ago no longer changes and is cached as is. Chunks still open
+ * are never cached, they are read from cassandra on every request.
+ * <p>
+ * A cached chunk expires once its first bucket could have expired in cassandra, so it never
+ * outlives the ttl of its columns. The chunks of a ci are dropped when its metrics are purged.
+ */
+public class PerfSeriesCache {
+
+    private static Logger logger = Logger.getLogger(PerfSeriesCache.class);
+
+    private final int chunkSteps;
+    private final long settleSec;
+    private final Segment[] segments;
+
+    public final AtomicLong hitCount = new AtomicLong();
+    public final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Reads all columns of a row in a time range.
+     */
+    interface ColumnReader {
+        List<HColumn<Long, Double>> read(String dataCF, String key, long from, long end);
+    }
+
+    /**
+     * Creates the cache.
+     *
+     * @param maxChunks  max number of cached chunks
+     * @param shards     number of independently locked shards
+     * @param chunkSteps number of rra buckets per chunk
+     * @param settleSec  seconds a closed bucket may still be written after the step
+     */
+    public PerfSeriesCache(int maxChunks, int shards, int chunkSteps, long settleSec) {
+        this.chunkSteps = chunkSteps;
+        this.settleSec = settleSec;
+        this.segments = new Segment[shards];
+        int segmentSize = Math.max(1, maxChunks / shards);
+        for (int i = 0; i < shards; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+        logger.info("PerfSeriesCache (maxChunks:" + maxChunks + " shards:" + shards + " chunkSteps:"
+                + chunkSteps + " settleSec:" + settleSec + ")");
+    }
+
+    /**
+     * Gets the start of the open part of the range, the first time writeCompleted would not write.
+     *
+     * @param step the rra step
+     * @param from the first time to write
+     * @param end  the last time to write
+     * @return the first time of the open part of the range
+     */
+    long openFrom(int step, long from, long end) {
+        long span = (long) step * chunkSteps;
+        long closedBefore = currentTimeSec() - step - settleSec;
+        long chunkStart = from - from % span;
+        while (chunkStart <= end && chunkStart + span <= closedBefore) {
+            chunkStart += span;
+        }
+        return Math.max(from, chunkStart);
+    }
+
+    /**
+     * Writes the samples of the completed chunks from the start of the range, loading
+     * missing chunks with the reader.
+     *
+     * @param dataCF the data column family
+     * @param key    the row key
+     * @param step   the rra step
+     * @param ttlSec the ttl of the columns of the row
+     * @param from   the first time to write
+     * @param end    the last time to write
+     * @param reader the reader for missing chunks
+     * @param series the series writer
+     * @return the first time not written, the open part of the range
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    long writeCompleted(String dataCF, String key, int step, int ttlSec, long from, long end, ColumnReader reader,
+                        PerfSeriesWriter series) throws IOException {
+        long span = (long) step * chunkSteps;
+        long now = currentTimeSec();
+        long closedBefore = now - step - settleSec;
+        long chunkStart = from - from % span;
+        while (chunkStart <= end && chunkStart + span <= closedBefore) {
+            String chunkKey = dataCF + ":" + key + ":" + chunkStart;
+            Segment segment = segmentFor(chunkKey);
+            Chunk chunk = segment.get(chunkKey);
+            if (chunk != null && chunk.expiresAt <= now) {
+                segment.remove(chunkKey);
+                chunk = null;
+            }
+            if (chunk != null) {
+                hitCount.incrementAndGet();
+            } else {
+                missCount.incrementAndGet();
+                chunk = new Chunk(reader.read(dataCF, key, chunkStart, chunkStart + span - 1), chunkStart + ttlSec);
+                if (chunk.expiresAt > now) {
+                    segment.put(chunkKey, chunk);
+                }
+            }
+            for (int i = 0; i < chunk.times.length; i++) {
+                long time = chunk.times[i];
+                if (time >= from && time <= end) {
+                    series.add(time, chunk.values[i]);
+                }
+            }
+            chunkStart += span;
+        }
+        return Math.max(from, chunkStart);
+    }
+
+    /**
+     * Drops the cached chunks of the cis.
+     *
+     * @param ciIds the ci ids
+     * @return the number of dropped chunks
+     */
+    public int invalidate(Collection<String> ciIds) {
+        if (ciIds.isEmpty()) {
+            return 0;
+        }
+        int removed = 0;
+        for (Segment segment : segments) {
+            removed += segment.removeCis(ciIds);
+        }
+        return removed;
+    }
+
+    /**
+     * Gets the ratio of chunk reads served from the cache.
+     *
+     * @return the hit ratio, 0 before the first read
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Gets the number of cached chunks.
+     *
+     * @return the size
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the current time in seconds.
+     *
+     * @return the current time
+     */
+    protected long currentTimeSec() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * Samples of a completed chunk.
+     */
+    private static class Chunk {
+        private final long[] times;
+        private final double[] values;
+        private final long expiresAt;
+
+        Chunk(List<HColumn<Long, Double>> columns, long expiresAt) {
+            this.expiresAt = expiresAt;
+            times = new long[columns.size()];
+            values = new double[columns.size()];
+            for (int i = 0; i < times.length; i++) {
+                HColumn<Long, Double> column = columns.get(i);
+                times[i] = column.getName();
+                values[i] = column.getValue();
+            }
+        }
+    }
+
+    /**
+     * One lock per shard over an access ordered LRU.
+     */
+    private static class Segment {
+        private final LinkedHashMap<String, Chunk> lru;
+
+        Segment(final int maxSize) {
+            this.lru = new LinkedHashMap<String, Chunk>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Chunk> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized Chunk get(String key) {
+            return lru.get(key);
+        }
+
+        synchronized void put(String key, Chunk chunk) {
+            lru.put(key, chunk);
+        }
+
+        synchronized void remove(String key) {
+            lru.remove(key);
+        }
+
+        /**
+         * Removes the chunks of the cis, the ci id follows the column family in the chunk key.
+         */
+        synchronized int removeCis(Collection<String> ciIds) {
+            int size = lru.size();
+            lru.keySet().removeIf(key -> {
+                int ciStart = key.indexOf(':') + 1;
+                int ciEnd = key.indexOf(':', ciStart);
+                return ciEnd > 0 && ciIds.contains(key.substring(ciStart, ciEnd));
+            });
+            return size - lru.size();
+        }
+
+        synchronized int size() {
+            return lru.size();
+        }
+    }
+}
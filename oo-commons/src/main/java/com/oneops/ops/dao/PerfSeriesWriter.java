@@ -0,0 +1,217 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.ops.dao;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes the json data array of one perf series as the samples are read.
+ * <p>
+ * With a span of one step every sample is written, empty buckets are written
+ * as null. With a larger span the samples are downsampled with
+ * largest-triangle-three-buckets: each window of span seconds keeps the sample
+ * forming the largest triangle with the sample kept for the previous window
+ * and the average of the next window, so peaks survive the downsampling. Only
+ * the samples of two windows are buffered.
+ */
+class PerfSeriesWriter {
+
+    private final Writer out;
+    private final long start;
+    private final long span;
+    private final boolean downsample;
+
+    private long currentBucket;
+    private int sampleCount = 0;
+    private int emptyCount = 0;
+
+    // lttb state, the completed window waiting for its next window and the window being read
+    private long pendingWindow = -1;
+    private Window pending = new Window();
+    private long currentWindow = -1;
+    private Window current = new Window();
+    private boolean anchored = false;
+    private double anchorTime;
+    private double anchorValue;
+
+    /**
+     * Instantiates a new series writer.
+     *
+     * @param out the writer
+     * @param start the aligned series start
+     * @param step the rra step
+     * @param stepsPerPoint the number of steps downsampled to one point
+     */
+    PerfSeriesWriter(Writer out, long start, int step, int stepsPerPoint) {
+        this.out = out;
+        this.start = start;
+        this.span = (long) step * stepsPerPoint;
+        this.downsample = stepsPerPoint > 1;
+        this.currentBucket = start;
+    }
+
+    /**
+     * Adds the next sample, samples must be added in time order.
+     *
+     * @param time the sample time
+     * @param value the sample value
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void add(long time, double value) throws IOException {
+        if (!downsample) {
+            write(time, value);
+            return;
+        }
+        long window = (time - start) / span;
+        if (window != currentWindow) {
+            completeWindow();
+            currentWindow = window;
+        }
+        current.add(time - start, value);
+    }
+
+    /**
+     * Writes the remaining samples.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void finish() throws IOException {
+        if (!downsample) {
+            return;
+        }
+        completeWindow();
+        if (pendingWindow >= 0) {
+            // last window, the next point is its own last sample
+            int last = pending.size - 1;
+            select(pendingWindow, pending, pending.times[last], pending.values[last]);
+            pendingWindow = -1;
+        }
+    }
+
+    private void completeWindow() throws IOException {
+        if (currentWindow < 0) {
+            return;
+        }
+        if (pendingWindow >= 0) {
+            select(pendingWindow, pending, current.averageTime(), current.averageValue());
+        }
+        Window done = pending;
+        pending = current;
+        pendingWindow = currentWindow;
+        current = done;
+        current.size = 0;
+        currentWindow = -1;
+    }
+
+    private void select(long window, Window w, double nextTime, double nextValue) throws IOException {
+        if (!anchored) {
+            anchorTime = w.times[0];
+            anchorValue = w.values[0];
+            anchored = true;
+        }
+        int selected = 0;
+        double maxArea = -1;
+        for (int i = 0; i < w.size; i++) {
+            double area = Math.abs((anchorTime - nextTime) * (w.values[i] - anchorValue)
+                    - (anchorTime - w.times[i]) * (nextValue - anchorValue));
+            if (area > maxArea) {
+                maxArea = area;
+                selected = i;
+            }
+        }
+        anchorTime = w.times[selected];
+        anchorValue = w.values[selected];
+        write(start + window * span, anchorValue);
+    }
+
+    private void write(long sampleBucket, double value) throws IOException {
+        if (sampleBucket != currentBucket) {
+            while (sampleBucket > currentBucket) {
+                if (sampleCount > 0) {
+                    out.write(",");
+                }
+                out.write("null");
+                currentBucket += span;
+                emptyCount++;
+                sampleCount++;
+            }
+        }
+        if (sampleCount > 0) {
+            out.write(",");
+        }
+        out.write(String.valueOf(Math.round(value * 1000.0) / 1000.0));
+        currentBucket += span;
+        sampleCount++;
+    }
+
+    /**
+     * Gets the number of values written, including nulls.
+     *
+     * @return the sample count
+     */
+    int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Gets the number of nulls written.
+     *
+     * @return the empty count
+     */
+    int getEmptyCount() {
+        return emptyCount;
+    }
+
+    /**
+     * Samples of one window, times relative to the series start.
+     */
+    private static class Window {
+        private double[] times = new double[16];
+        private double[] values = new double[16];
+        private int size;
+
+        private void add(long time, double value) {
+            if (size == times.length) {
+                int capacity = size * 2;
+                times = Arrays.copyOf(times, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            times[size] = time;
+            values[size] = value;
+            size++;
+        }
+
+        private double averageTime() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += times[i];
+            }
+            return sum / size;
+        }
+
+        private double averageValue() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += values[i];
+            }
+            return sum / size;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor.events;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of a batch of events, sent as one jms BytesMessage.
+ * <p>
+ * Timestamps are delta encoded against the previous event and ids are written as
+ * zigzag varints. Strings (sources, buckets, metric names) are interned per batch,
+ * every string after its first use is written as its index in the batch.
+ */
+public final class PerfEventBatchCodec {
+
+	/** value of the format message property of batch messages */
+	public static final String FORMAT = "perf-batch-v1";
+	public static final String FORMAT_PROPERTY = "format";
+	public static final String EVENTS_PROPERTY = "events";
+
+	private static final int VERSION = 1;
+
+	private static final int PERF_EVENT = 1;
+	private static final int AGGREGATE = 1 << 1;
+	private static final int HAS_METRICS = 1 << 2;
+	private static final int HAS_OFFSETS = 1 << 3;
+
+	private static final int NULL_STRING = 0;
+	private static final int NEW_STRING = 1;
+
+	private PerfEventBatchCodec() {
+	}
+
+	/**
+	 * Encodes the events.
+	 *
+	 * @param events the events
+	 * @return the encoded batch
+	 */
+	public static byte[] encode(List<? extends BasicEvent> events) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + events.size() * 64);
+		Encoder encoder = new Encoder(new DataOutputStream(bytes));
+		try {
+			encoder.writeBatch(events);
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a batch.
+	 *
+	 * @param batch the encoded batch
+	 * @return the events in publish order
+	 * @throws IOException if the batch is truncated or of an unknown version
+	 */
+	public static List<BasicEvent> decode(byte[] batch) throws IOException {
+		return new Decoder(new DataInputStream(new ByteArrayInputStream(batch))).readBatch();
+	}
+
+	private static class Encoder {
+		private final DataOutputStream out;
+		private final Map<String, Integer> strings = new HashMap<>();
+
+		Encoder(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void writeBatch(List<? extends BasicEvent> events) throws IOException {
+			out.writeByte(VERSION);
+			writeVarLong(events.size());
+			long lastTimestamp = 0;
+			for (BasicEvent event : events) {
+				int flags = 0;
+				if (event instanceof PerfEvent) flags |= PERF_EVENT;
+				if (event.isAggregate()) flags |= AGGREGATE;
+				if (event.getMetrics() != null) flags |= HAS_METRICS;
+				if (event.getOffsets() != null) flags |= HAS_OFFSETS;
+				out.writeByte(flags);
+				writeZigZag(event.getCiId());
+				writeZigZag(event.getManifestId());
+				writeZigZag(event.getChecksum());
+				writeZigZag(event.getTimestamp() - lastTimestamp);
+				lastTimestamp = event.getTimestamp();
+				writeString(event.getSource());
+				writeString(event.getBucket());
+				writeString(event.getGrouping());
+				writeString(event.getChannel());
+				if (event.getMetrics() != null) writePayload(event.getMetrics());
+				if (event.getOffsets() != null) writePayload(event.getOffsets());
+			}
+			out.flush();
+		}
+
+		private void writePayload(PerfEventPayload payload) throws IOException {
+			Map<?, ?>[] maps = {payload.getAvg(), payload.getMin(), payload.getMax(), payload.getSum(), payload.getCount()};
+			int present = 0;
+			for (int i = 0; i < maps.length; i++) {
+				if (maps[i] != null) present |= 1 << i;
+			}
+			out.writeByte(present);
+			writeMap(payload.getAvg());
+			writeMap(payload.getMin());
+			writeMap(payload.getMax());
+			writeMap(payload.getSum());
+			writeMap(payload.getCount());
+		}
+
+		private void writeMap(Map<String, Double> map) throws IOException {
+			if (map == null) {
+				return;
+			}
+			writeVarLong(map.size());
+			for (Map.Entry<String, Double> entry : map.entrySet()) {
+				Double value = entry.getValue();
+				// low bit of the name marks a null value
+				writeString(entry.getKey(), value == null ? 1 : 0);
+				if (value != null) {
+					out.writeDouble(value);
+				}
+			}
+		}
+
+		private void writeString(String s) throws IOException {
+			writeString(s, -1);
+		}
+
+		/**
+		 * Writes null, a new string or the index of a string used before. With a
+		 * flag bit the reference is shifted left and the bit is in the low bit.
+		 */
+		private void writeString(String s, int flag) throws IOException {
+			long ref;
+			boolean inline = false;
+			if (s == null) {
+				ref = NULL_STRING;
+			} else {
+				Integer index = strings.get(s);
+				if (index == null) {
+					strings.put(s, strings.size());
+					ref = NEW_STRING;
+					inline = true;
+				} else {
+					ref = index + 2;
+				}
+			}
+			writeVarLong(flag < 0 ? ref : (ref << 1) | flag);
+			if (inline) {
+				out.writeUTF(s);
+			}
+		}
+
+		private void writeZigZag(long value) throws IOException {
+			writeVarLong((value << 1) ^ (value >> 63));
+		}
+
+		private void writeVarLong(long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				out.writeByte((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.writeByte((int) value);
+		}
+	}
+
+	private static class Decoder {
+		private final DataInputStream in;
+		private final List<String> strings = new ArrayList<>();
+
+		Decoder(DataInputStream in) {
+			this.in = in;
+		}
+
+		List<BasicEvent> readBatch() throws IOException {
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("unknown perf event batch version " + version);
+			}
+			int count = (int) readVarLong();
+			List<BasicEvent> events = new ArrayList<>(count);
+			long lastTimestamp = 0;
+			for (int i = 0; i < count; i++) {
+				int flags = in.readUnsignedByte();
+				BasicEvent event = (flags & PERF_EVENT) != 0 ? new PerfEvent() : new BasicEvent();
+				event.setAggregate((flags & AGGREGATE) != 0);
+				event.setCiId(readZigZag());
+				event.setManifestId(readZigZag());
+				event.setChecksum(readZigZag());
+				lastTimestamp += readZigZag();
+				event.setTimestamp(lastTimestamp);
+				event.setSource(readString(readVarLong()));
+				event.setBucket(readString(readVarLong()));
+				event.setGrouping(readString(readVarLong()));
+				event.setChannel(readString(readVarLong()));
+				event.setMetrics((flags & HAS_METRICS) != 0 ? readPayload() : null);
+				event.setOffsets((flags & HAS_OFFSETS) != 0 ? readPayload() : null);
+				events.add(event);
+			}
+			return events;
+		}
+
+		private PerfEventPayload readPayload() throws IOException {
+			int present = in.readUnsignedByte();
+			PerfEventPayload payload = new PerfEventPayload();
+			if ((present & 1) != 0) payload.setAvg(readMap());
+			if ((present & 1 << 1) != 0) payload.setMin(readMap());
+			if ((present & 1 << 2) != 0) payload.setMax(readMap());
+			if ((present & 1 << 3) != 0) payload.setSum(readMap());
+			if ((present & 1 << 4) != 0) payload.setCount(readMap());
+			return payload;
+		}
+
+		private Map<String, Double> readMap() throws IOException {
+			int size = (int) readVarLong();
+			Map<String, Double> map = new HashMap<>(size * 2);
+			for (int i = 0; i < size; i++) {
+				long ref = readVarLong();
+				String name = readString(ref >>> 1);
+				map.put(name, (ref & 1) != 0 ? null : in.readDouble());
+			}
+			return map;
+		}
+
+		private String readString(long ref) throws IOException {
+			if (ref == NULL_STRING) {
+				return null;
+			} else if (ref == NEW_STRING) {
+				String s = in.readUTF();
+				strings.add(s);
+				return s;
+			}
+			int index = (int) (ref - 2);
+			if (index >= strings.size()) {
+				throw new IOException("string reference " + index + " out of range");
+			}
+			return strings.get(index);
+		}
+
+		private long readZigZag() throws IOException {
+			long value = readVarLong();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = in.readUnsignedByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("malformed varint");
+		}
+	}
+}
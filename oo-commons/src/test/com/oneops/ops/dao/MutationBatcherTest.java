@@ -0,0 +1,214 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.ops.dao;
+
+import com.codahale.metrics.MetricRegistry;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for MutationBatcher against an in-process fake keyspace.
+ */
+public class MutationBatcherTest {
+
+	private static final StringSerializer stringSerializer = StringSerializer.get();
+	private static final String CF = "data";
+
+	@Test
+	public void testOrderingPerRowKey() throws Exception {
+		FakeKeyspace keyspace = new FakeKeyspace();
+		MetricRegistry metrics = new MetricRegistry();
+		MutationBatcher batcher = newBatcher(keyspace, 4, 50, 2, metrics);
+
+		int rows = 64;
+		int writes = 200;
+		ExecutorService submitters = Executors.newFixedThreadPool(8);
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		List<Future<List<CompletableFuture<Void>>>> submitted = new ArrayList<Future<List<CompletableFuture<Void>>>>();
+		for (int t = 0; t < 8; t++) {
+			final int thread = t;
+			submitted.add(submitters.submit(() -> {
+				List<CompletableFuture<Void>> threadFutures = new ArrayList<CompletableFuture<Void>>();
+				// each row is written by one thread, in sequence
+				for (int seq = 0; seq < writes; seq++) {
+					for (int row = thread; row < rows; row += 8) {
+						threadFutures.add(batcher.submit("row" + row, insert("row" + row, seq)));
+					}
+				}
+				return threadFutures;
+			}));
+		}
+		for (Future<List<CompletableFuture<Void>>> f : submitted) {
+			futures.addAll(f.get());
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get(30, TimeUnit.SECONDS);
+		submitters.shutdown();
+		batcher.shutdown();
+
+		for (int row = 0; row < rows; row++) {
+			List<String> columns = keyspace.rows.get("row" + row);
+			assertEquals(columns.size(), writes);
+			for (int seq = 0; seq < writes; seq++) {
+				assertEquals(columns.get(seq), String.valueOf(seq), "row" + row);
+			}
+		}
+		// writes were grouped
+		assertTrue(keyspace.batches < rows * writes);
+		assertEquals(batcher.getBatchSize().getCount(), keyspace.batches);
+		assertEquals(batcher.getFlushTimer().getCount(), keyspace.batches);
+		assertTrue(batcher.getBatchSize().getSnapshot().getMax() <= 50);
+		assertEquals(metrics.getHistograms().size(), 1);
+	}
+
+	@Test
+	public void testShutdownWritesQueued() throws Exception {
+		FakeKeyspace keyspace = new FakeKeyspace();
+		// long delay, nothing is written before shutdown unless a batch fills
+		MutationBatcher batcher = newBatcher(keyspace, 2, 1000, 60000, null);
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int seq = 0; seq < 500; seq++) {
+			futures.add(batcher.submit("row" + (seq % 5), insert("row" + (seq % 5), seq)));
+		}
+		batcher.shutdown();
+
+		for (CompletableFuture<Void> future : futures) {
+			assertTrue(future.isDone() && !future.isCompletedExceptionally());
+		}
+		int written = 0;
+		for (List<String> columns : keyspace.rows.values()) {
+			written += columns.size();
+		}
+		assertEquals(written, 500);
+
+		try {
+			batcher.submit("row0", insert("row0", 500));
+			fail("expected the batcher to reject writes after shutdown");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFailedBatch() {
+		FakeKeyspace keyspace = new FakeKeyspace();
+		MutationBatcher batcher = newBatcher(keyspace, 1, 10, 0, null);
+		keyspace.failing = true;
+		try {
+			batcher.write("row0", insert("row0", 0));
+			fail("expected the failed batch to be reported to the writer");
+		} catch (HectorException e) {
+			// expected
+		}
+		assertEquals(batcher.getFlushErrors().getCount(), 1);
+
+		// the failed mutations are discarded, not replayed with the next batch
+		keyspace.failing = false;
+		batcher.write("row0", insert("row0", 1));
+		assertEquals(keyspace.rows.get("row0").size(), 1);
+		assertEquals(keyspace.rows.get("row0").get(0), "1");
+		batcher.shutdown();
+	}
+
+	private static MutationBatcher newBatcher(FakeKeyspace keyspace, int threads, int maxBatchSize, long maxDelayMs,
+											  MetricRegistry metrics) {
+		return new MutationBatcher("test", null, threads, maxBatchSize, maxDelayMs, metrics) {
+			@Override
+			protected Mutator<byte[]> createMutator() {
+				return keyspace.createMutator();
+			}
+		};
+	}
+
+	private static MutationBatcher.PendingWrite insert(String row, int seq) {
+		HColumn<String, String> column = HFactory.createColumn(String.valueOf(seq), "v", stringSerializer, stringSerializer);
+		return mutator -> mutator.addInsertion(row.getBytes(), CF, column);
+	}
+
+	/**
+	 * In-process keyspace, keeps the column names of each row in write order.
+	 * Mutators buffer insertions until execute, like the hector ones.
+	 */
+	private static class FakeKeyspace {
+		final Map<String, List<String>> rows = new HashMap<String, List<String>>();
+		int batches = 0;
+		volatile boolean failing = false;
+
+		@SuppressWarnings("unchecked")
+		Mutator<byte[]> createMutator() {
+			List<Object[]> pending = new ArrayList<Object[]>();
+			return (Mutator<byte[]>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Mutator.class},
+					(proxy, method, args) -> {
+						switch (method.getName()) {
+						case "addInsertion":
+							pending.add(args);
+							return proxy;
+						case "discardPendingMutations":
+							pending.clear();
+							return proxy;
+						case "execute":
+							try {
+								if (failing) {
+									throw new HectorException("keyspace unavailable");
+								}
+								apply(pending);
+							} finally {
+								// hector drops the pending mutations whether or not the batch succeeded
+								pending.clear();
+							}
+							return null;
+						default:
+							throw new UnsupportedOperationException(method.getName());
+						}
+					});
+		}
+
+		private synchronized void apply(List<Object[]> pending) {
+			for (Object[] insertion : pending) {
+				String row = new String((byte[]) insertion[0]);
+				List<String> columns = rows.get(row);
+				if (columns == null) {
+					columns = new ArrayList<String>();
+					rows.put(row, columns);
+				}
+				columns.add((String) ((HColumn<?, ?>) insertion[2]).getName());
+			}
+			batches++;
+		}
+	}
+}
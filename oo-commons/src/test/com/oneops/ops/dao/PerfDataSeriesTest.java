@@ -0,0 +1,366 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.ops.dao;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.oneops.ops.PerfDataRequest;
+
+import me.prettyprint.cassandra.serializers.DoubleSerializer;
+import me.prettyprint.cassandra.serializers.LongSerializer;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.factory.HFactory;
+
+import org.testng.annotations.Test;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the streamed and downsampled perf data series against a fake data cf.
+ * The expected output was captured from the map based getPerfDataSeries.
+ */
+public class PerfDataSeriesTest {
+
+	private static final LongSerializer longSerializer = LongSerializer.get();
+	private static final DoubleSerializer doubleSerializer = DoubleSerializer.get();
+
+	@Test
+	public void testMatchesFullFidelityOutput() throws Exception {
+		JsonObject fixture = new JsonParser().parse(resource("series-fixture.json")).getAsJsonObject();
+		FixtureAccessor accessor = new FixtureAccessor();
+		for (Map.Entry<String, JsonElement> row : fixture.getAsJsonObject("rows").entrySet()) {
+			TreeMap<Long, Double> columns = new TreeMap<>();
+			for (JsonElement point : row.getValue().getAsJsonArray()) {
+				JsonArray p = point.getAsJsonArray();
+				columns.put(p.get(0).getAsLong(), p.get(1).getAsDouble());
+			}
+			accessor.rows.put(row.getKey(), columns);
+		}
+		// small pages so the gap and the misaligned sample cross page boundaries
+		accessor.setSeriesPageSize(7);
+
+		PerfDataRequest req = toRequest(fixture.getAsJsonObject("request"));
+		String json = accessor.getPerfDataSeries(req);
+
+		Map<String, String> expected = splitSeries(read("series-expected.json"));
+		Map<String, String> actual = splitSeries(json);
+		assertEquals(actual.size(), req.getMetrics().length);
+		assertEquals(new ArrayList<>(actual.keySet()).toString(), "[cpu:CpuIdle, cpu:CpuUser, mem:free]");
+		for (String metric : expected.keySet()) {
+			assertEquals(actual.get(metric), expected.get(metric), metric);
+		}
+		assertEquals(accessor.dataCFs.toString(), "[data_1m]");
+	}
+
+	@Test
+	public void testFirstPagesInOneMultiget() throws Exception {
+		FixtureAccessor accessor = new FixtureAccessor();
+		long start = 1420070400L;
+		long end = start + 99 * 60;
+		accessor.rows.put("1:cpu:CpuIdle:rra-average-1m", synthetic(start, end, 60, -1));
+		accessor.rows.put("1:cpu:CpuUser:rra-average-1m", synthetic(start, end, 60, -1));
+		// a row with half the samples is done after half the pages
+		accessor.rows.put("1:mem:free:rra-average-1m", synthetic(start, start + 49 * 60, 60, -1));
+		accessor.setSeriesPageSize(10);
+
+		PerfDataRequest req = request(start, end, 60, 0, "cpu:CpuIdle", "cpu:CpuUser", "mem:free");
+		JsonArray series = parseSeries(accessor.getPerfDataSeries(req));
+
+		// the first page of the 3 rows at once, then 9 more pages of each full row and 4 of the half one
+		assertEquals(accessor.multigets, 1);
+		assertEquals(accessor.pageReads, 9 + 9 + 5);
+		assertEquals(series.size(), 3);
+		assertEquals(series.get(0).getAsJsonObject().getAsJsonObject("header").get("metric").getAsString(), "cpu:CpuIdle");
+		assertEquals(series.get(2).getAsJsonObject().getAsJsonObject("header").get("metric").getAsString(), "mem:free");
+		assertEquals(series.get(1).getAsJsonObject().getAsJsonArray("data").size(), 100);
+		assertEquals(series.get(2).getAsJsonObject().getAsJsonArray("data").get(49).getAsDouble(), 10.0 + (start / 60 + 49) % 7);
+	}
+
+	@Test
+	public void testSelectsCoarsestBucket() throws Exception {
+		FixtureAccessor accessor = new FixtureAccessor();
+		long start = 1420070400L;
+		long end = start + 30 * 86400;
+		accessor.rows.put("1:cpu:CpuIdle:rra-average-6h", synthetic(start, end, 21600, -1));
+
+		PerfDataRequest req = request(start, end, 60, 100, "cpu:CpuIdle");
+		JsonObject series = parseSeries(accessor.getPerfDataSeries(req)).get(0).getAsJsonObject();
+
+		// 30 days have 120 buckets of 6h but only 30 of 1d
+		assertEquals(accessor.dataCFs.toString(), "[data_6h]");
+		assertEquals(series.getAsJsonObject("header").get("step").getAsInt(), 2 * 21600);
+		assertTrue(series.getAsJsonArray("data").size() <= 100);
+	}
+
+	@Test
+	public void testKeepsRequestedStepBelowMaxPoints() throws Exception {
+		FixtureAccessor accessor = new FixtureAccessor();
+		long start = 1420070400L;
+		long end = start + 3600;
+		accessor.rows.put("1:cpu:CpuIdle:rra-average-1m", synthetic(start, end, 60, -1));
+
+		PerfDataRequest req = request(start, end, 60, 500, "cpu:CpuIdle");
+		JsonObject series = parseSeries(accessor.getPerfDataSeries(req)).get(0).getAsJsonObject();
+
+		assertEquals(accessor.dataCFs.toString(), "[data_1m]");
+		assertEquals(series.getAsJsonObject("header").get("step").getAsInt(), 60);
+		assertEquals(series.getAsJsonArray("data").size(), 61);
+	}
+
+	@Test
+	public void testDownsamplePreservesPeaks() throws Exception {
+		FixtureAccessor accessor = new FixtureAccessor();
+		long start = 1420070400L;
+		long end = start + 2 * 86400;
+		long spike = start + 300 * 217;
+		TreeMap<Long, Double> columns = synthetic(start, end, 300, spike);
+		accessor.rows.put("1:cpu:CpuIdle:rra-average-5m", columns);
+
+		PerfDataRequest req = request(start, end, 60, 200, "cpu:CpuIdle");
+		JsonObject series = parseSeries(accessor.getPerfDataSeries(req)).get(0).getAsJsonObject();
+
+		// 2 days have 576 buckets of 5m but only 192 of 15m
+		assertEquals(accessor.dataCFs.toString(), "[data_5m]");
+		assertEquals(series.getAsJsonObject("header").get("step").getAsInt(), 3 * 300);
+		JsonArray data = series.getAsJsonArray("data");
+		assertTrue(data.size() <= 200, "points: " + data.size());
+
+		double max = Double.NEGATIVE_INFINITY;
+		double min = Double.POSITIVE_INFINITY;
+		for (JsonElement value : data) {
+			max = Math.max(max, value.getAsDouble());
+			min = Math.min(min, value.getAsDouble());
+		}
+		assertEquals(max, 500.0);
+		assertEquals(data.get(217 / 3).getAsDouble(), 500.0);
+		assertTrue(min >= 10.0);
+	}
+
+	@Test
+	public void testMemoryCeiling() throws Exception {
+		FixtureAccessor accessor = new FixtureAccessor();
+		long start = 1420070400L;
+		long end = start + 365 * 86400;
+		accessor.generated = true;
+		CountingWriter out = new CountingWriter();
+		accessor.out = out;
+
+		PerfDataRequest req = request(start, end, 60, 0, "cpu:CpuIdle", "cpu:CpuUser");
+		// warm up
+		for (int i = 0; i < 3; i++) {
+			accessor.writePerfDataSeries(req, out);
+		}
+
+		long samples = 2 * ((end - start) / 60 + 1);
+		// the least of a few runs, the allocations of a single run vary with the jit
+		long allocated = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			out.chars = 0;
+			accessor.writtenBeforeLastPage = -1;
+			long before = allocatedBytes();
+			accessor.writePerfDataSeries(req, out);
+			allocated = Math.min(allocated, allocatedBytes() - before);
+		}
+
+		// every series is written while it is read, the second one is not buffered until the first one is done
+		assertTrue(accessor.writtenBeforeLastPage > out.chars * 9 / 10,
+				"written before last page: " + accessor.writtenBeforeLastPage + " of " + out.chars);
+
+		// the columns handed out by the fake read
+		long read = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			long readBefore = allocatedBytes();
+			long readSamples = 0;
+			for (String key : new String[] {"1:cpu:CpuIdle:rra-average-1m", "1:cpu:CpuUser:rra-average-1m"}) {
+				for (long from = start; from <= end; from += 60 * 1000) {
+					readSamples += accessor.readSeriesPage("data_1m", key, from, end, 1000).size();
+				}
+			}
+			read = Math.min(read, allocatedBytes() - readBefore);
+			assertEquals(readSamples, samples);
+		}
+
+		if (allocatedBytes() >= 0) {
+			// what is left per sample once the columns are read: the short lived strings formatting the
+			// value, no map entries or buffered json
+			long perSample = (allocated - read) / samples;
+			assertTrue(perSample < 384, "allocated per sample: " + perSample);
+		}
+	}
+
+	private static TreeMap<Long, Double> synthetic(long start, long end, int step, long spike) {
+		TreeMap<Long, Double> columns = new TreeMap<>();
+		for (long t = start; t <= end; t += step) {
+			columns.put(t, t == spike ? 500.0 : 10.0 + (t / step) % 7);
+		}
+		return columns;
+	}
+
+	private static PerfDataRequest request(long start, long end, int step, int maxPoints, String... metrics) {
+		PerfDataRequest req = new PerfDataRequest();
+		req.setCi_id(1);
+		req.setStart(start);
+		req.setEnd(end);
+		req.setStep(step);
+		req.setMaxPoints(maxPoints);
+		req.setMetrics(metrics);
+		return req;
+	}
+
+	private static PerfDataRequest toRequest(JsonObject json) {
+		JsonArray metrics = json.getAsJsonArray("metrics");
+		String[] names = new String[metrics.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = metrics.get(i).getAsString();
+		}
+		PerfDataRequest req = request(json.get("start").getAsLong(), json.get("end").getAsLong(),
+				json.get("step").getAsInt(), 0, names);
+		req.setCi_id(json.get("ci_id").getAsLong());
+		return req;
+	}
+
+	private static JsonArray parseSeries(String json) {
+		return new JsonParser().parse("[" + json + "]").getAsJsonArray();
+	}
+
+	private static Map<String, String> splitSeries(String json) {
+		Map<String, String> series = new LinkedHashMap<>();
+		for (String s : json.split("(?<=\\]\\}),\n")) {
+			String metric = s.substring(s.indexOf("\"metric\":\"") + 10);
+			series.put(metric.substring(0, metric.indexOf('"')), s);
+		}
+		return series;
+	}
+
+	private static Reader resource(String name) {
+		return new InputStreamReader(PerfDataSeriesTest.class.getResourceAsStream("/perf/" + name), StandardCharsets.UTF_8);
+	}
+
+	private static String read(String name) throws Exception {
+		return new String(Files.readAllBytes(Paths.get(PerfDataSeriesTest.class.getResource("/perf/" + name).toURI())),
+				StandardCharsets.UTF_8);
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Accessor reading the data cf from rows in memory, or generating the columns.
+	 */
+	private static class FixtureAccessor extends PerfDataAccessor {
+		private final Map<String, TreeMap<Long, Double>> rows = new HashMap<>();
+		private final List<String> dataCFs = new ArrayList<>();
+		private boolean generated = false;
+		private CountingWriter out;
+		private long writtenBeforeLastPage;
+		private int multigets;
+		private int pageReads;
+
+		@Override
+		protected Map<String, List<HColumn<Long, Double>>> readSeriesPages(String dataCF, List<String> keys, long from, long end, int count) {
+			multigets++;
+			Map<String, List<HColumn<Long, Double>>> pages = new HashMap<>();
+			for (String key : keys) {
+				pages.put(key, page(dataCF, key, from, end, count));
+			}
+			return pages;
+		}
+
+		@Override
+		protected List<HColumn<Long, Double>> readSeriesPage(String dataCF, String key, long from, long end, int count) {
+			pageReads++;
+			return page(dataCF, key, from, end, count);
+		}
+
+		private List<HColumn<Long, Double>> page(String dataCF, String key, long from, long end, int count) {
+			if (!dataCFs.contains(dataCF)) {
+				dataCFs.add(dataCF);
+			}
+			List<HColumn<Long, Double>> page = new ArrayList<>();
+			if (generated) {
+				long t = from + (60 - from % 60) % 60;
+				for (; t <= end && page.size() < count; t += 60) {
+					page.add(HFactory.createColumn(t, 10.0 + (t / 60) % 7, longSerializer, doubleSerializer));
+				}
+				if (page.size() < count && out != null) {
+					writtenBeforeLastPage = out.chars;
+				}
+				return page;
+			}
+			TreeMap<Long, Double> row = rows.get(key);
+			if (row == null) {
+				return page;
+			}
+			for (Map.Entry<Long, Double> column : row.subMap(from, true, end, true).entrySet()) {
+				if (page.size() == count) {
+					break;
+				}
+				page.add(HFactory.createColumn(column.getKey(), column.getValue(), longSerializer, doubleSerializer));
+			}
+			return page;
+		}
+	}
+
+	/**
+	 * Writer counting and discarding the chars written.
+	 */
+	private static class CountingWriter extends Writer {
+		private long chars;
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			chars += len;
+		}
+
+		@Override
+		public void write(String str) {
+			chars += str.length();
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
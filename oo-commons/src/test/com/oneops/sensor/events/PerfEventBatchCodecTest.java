@@ -0,0 +1,142 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor.events;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for PerfEventBatchCodec round trips.
+ */
+public class PerfEventBatchCodecTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		List<BasicEvent> events = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			events.add(perfEvent(1000 + i, 1432000000000L + (i % 5) * 60000L - i));
+		}
+		BasicEvent basic = new BasicEvent();
+		basic.setCiId(-1);
+		basic.setTimestamp(5);
+		basic.setAggregate(true);
+		basic.setMetrics(null);
+		basic.getOffsets().addAvg("offset", null);
+		events.add(basic);
+
+		List<BasicEvent> decoded = PerfEventBatchCodec.decode(PerfEventBatchCodec.encode(events));
+
+		assertEquals(decoded.size(), events.size());
+		for (int i = 0; i < events.size(); i++) {
+			BasicEvent expected = events.get(i);
+			BasicEvent actual = decoded.get(i);
+			assertEquals(actual.getClass(), expected.getClass());
+			assertEquals(actual.getCiId(), expected.getCiId());
+			assertEquals(actual.getManifestId(), expected.getManifestId());
+			assertEquals(actual.getChecksum(), expected.getChecksum());
+			assertEquals(actual.getTimestamp(), expected.getTimestamp());
+			assertEquals(actual.getSource(), expected.getSource());
+			assertEquals(actual.getBucket(), expected.getBucket());
+			assertEquals(actual.getGrouping(), expected.getGrouping());
+			assertEquals(actual.getChannel(), expected.getChannel());
+			assertEquals(actual.isAggregate(), expected.isAggregate());
+			assertPayload(actual.getMetrics(), expected.getMetrics());
+			assertPayload(actual.getOffsets(), expected.getOffsets());
+		}
+		assertNull(decoded.get(50).getMetrics());
+		assertTrue(decoded.get(50).getOffsets().getAvg().containsKey("offset"));
+		assertFalse(decoded.get(0).isAggregate());
+	}
+
+	@Test
+	public void testSmallerThanSerializedEvents() throws Exception {
+		List<BasicEvent> events = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			events.add(perfEvent(1000 + i, 1432000000000L + i));
+		}
+		int serialized = 0;
+		for (BasicEvent event : events) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+				out.writeObject(event);
+			}
+			serialized += bytes.size();
+		}
+		int encoded = PerfEventBatchCodec.encode(events).length;
+		assertTrue(encoded * 5 < serialized, "encoded: " + encoded + " serialized: " + serialized);
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void testUnknownVersion() throws Exception {
+		byte[] batch = PerfEventBatchCodec.encode(new ArrayList<BasicEvent>());
+		batch[0] = 99;
+		PerfEventBatchCodec.decode(batch);
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void testTruncatedBatch() throws Exception {
+		List<BasicEvent> events = new ArrayList<>();
+		events.add(perfEvent(1, 1));
+		byte[] batch = PerfEventBatchCodec.encode(events);
+		byte[] truncated = new byte[batch.length - 3];
+		System.arraycopy(batch, 0, truncated, 0, truncated.length);
+		PerfEventBatchCodec.decode(truncated);
+	}
+
+	private static PerfEvent perfEvent(long ciId, long timestamp) {
+		PerfEvent event = new PerfEvent();
+		event.setCiId(ciId);
+		event.setManifestId(ciId / 10);
+		event.setChecksum(3735928559L + ciId);
+		event.setTimestamp(timestamp);
+		event.setSource("cpu");
+		event.setBucket("1m");
+		event.setGrouping("cpu");
+		if (ciId % 2 == 0) {
+			event.setChannel("channel-" + (ciId % 3));
+		}
+		PerfEventPayload metrics = event.getMetrics();
+		metrics.addAvg("CpuIdle", 90.5 + ciId);
+		metrics.addAvg("CpuUser", 4.25);
+		metrics.addMax("CpuIdle", 99.0);
+		metrics.addCount("CpuIdle", 3.0);
+		return event;
+	}
+
+	private static void assertPayload(PerfEventPayload actual, PerfEventPayload expected) {
+		if (expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertEquals(actual.getAvg(), expected.getAvg());
+		assertEquals(actual.getMin(), expected.getMin());
+		assertEquals(actual.getMax(), expected.getMax());
+		assertEquals(actual.getSum(), expected.getSum());
+		assertEquals(actual.getCount(), expected.getCount());
+	}
+}
@@ -92,7 +92,7 @@ public class CachedEnvPropsProcessor extends EnvPropsProcessor {
         long updateTs = getLongVariable(MD_CACHE_STATUS_VAR);
         if (updateTs > lastUpdatedTs) {
             lastUpdatedTs = updateTs;
-            getMdProcessor().invalidateCache();
+            getMdProcessor().refreshCache();
         }
     }
 
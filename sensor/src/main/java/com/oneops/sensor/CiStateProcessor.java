@@ -1,5 +1,6 @@
 package com.oneops.sensor;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -28,8 +29,23 @@ public class CiStateProcessor {
 	private CiOpsProcessor coProcessor;
 
 	public void updateState4OpenEvent(EventContext eventContext) {
-        OpsEvent event = (OpsEvent)eventContext.getEvent();
         lookupCurrentState(eventContext);
+        processOpenEvent(eventContext);
+    }
+
+	/**
+	 * Updates the state for an open event from the open events already read for the ci.
+	 *
+	 * @param eventContext the event context
+	 * @param ciOpenEvents current open events of the ci, not modified
+	 */
+	public void updateState4OpenEvent(EventContext eventContext, List<CiOpenEvent> ciOpenEvents) {
+        setCurrentState(eventContext, new ArrayList<>(ciOpenEvents));
+        processOpenEvent(eventContext);
+    }
+
+	private void processOpenEvent(EventContext eventContext) {
+        OpsEvent event = (OpsEvent)eventContext.getEvent();
         List<CiOpenEvent> openEvents = eventContext.getOpenEvents();
         openEvents.add(constructOpenEvent(event));
         processCounters(eventContext, openEvents);
@@ -48,7 +64,10 @@ public class CiStateProcessor {
 
 	private void lookupCurrentState(EventContext eventContext) {
 		OpsBaseEvent event = eventContext.getEvent();
-		List<CiOpenEvent> openEvents = opsEventDao.getCiOpenEvents(event.getCiId());
+		setCurrentState(eventContext, opsEventDao.getCiOpenEvents(event.getCiId()));
+	}
+
+	private void setCurrentState(EventContext eventContext, List<CiOpenEvent> openEvents) {
 		eventContext.setOpenEvents(openEvents);
         String oldState = coProcessor.getState(openEvents);
         eventContext.setOldState(oldState);
@@ -17,11 +17,13 @@
  *******************************************************************************/
 package com.oneops.sensor;
 
-import static com.oneops.sensor.StmtBuilder.STMT_DELAY_PERF_EVENT;
 import static com.oneops.sensor.StmtBuilder.STMT_RESET;
 import static com.oneops.sensor.StmtBuilder.STMT_RESET_HEARTBEAT;
-import static com.oneops.sensor.StmtBuilder.STMT_RETRIGGER_HEARTBEAT;
-import static com.oneops.sensor.StmtBuilder.STMT_TRIGGER_CHANNELDOWN;
+import static com.oneops.sensor.StmtBuilder.STMT_CHANNELDOWN;
+import static com.oneops.sensor.StmtBuilder.STMT_MISSING_HEARTBEAT;
+import static com.oneops.sensor.StmtBuilder.STMT_THRESHOLD_DELETE;
+import static com.oneops.sensor.StmtBuilder.STMT_THRESHOLD_INSERT;
+import static com.oneops.sensor.StmtBuilder.STMT_THRESHOLD_WINDOW;
 import static com.oneops.sensor.StmtBuilder.THRESHOLDS_JSON_SIZE_FLOOR;
 import static java.lang.System.getProperty;
 
@@ -35,10 +37,12 @@ import com.google.gson.Gson;
 import com.oneops.cms.simple.domain.CmsRfcCISimple;
 import com.oneops.ops.CiOpsProcessor;
 import com.oneops.ops.dao.OpsEventDao;
+import com.oneops.ops.events.CiOpenEvent;
 import com.oneops.ops.events.OpsCloseEvent;
 import com.oneops.ops.events.OpsEvent;
-import com.oneops.sensor.domain.DelayedPerfEvent;
+import com.oneops.sensor.domain.MissingHeartbeatEvent;
 import com.oneops.sensor.domain.SensorStatement;
+import com.oneops.sensor.domain.ThresholdRow;
 import com.oneops.sensor.domain.ThresholdStatements;
 import com.oneops.sensor.events.BasicEvent;
 import com.oneops.sensor.events.PerfEvent;
@@ -46,15 +50,27 @@ import com.oneops.sensor.exceptions.SensorException;
 import com.oneops.sensor.thresholds.Threshold;
 import com.oneops.sensor.thresholds.ThresholdsDao;
 import com.oneops.sensor.util.ChannelDownEvent;
+import com.oneops.sensor.util.HeartbeatTimers;
+import com.oneops.sensor.util.MetricStats;
+import com.oneops.sensor.util.OpenEventRegistry;
 import com.oneops.sensor.util.ReplacedInstances;
+import com.oneops.sensor.util.SensorHeartBeat;
+import com.oneops.sensor.util.SensorSnapshot;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
@@ -85,11 +101,15 @@ public class Sensor {
     private static final boolean CHECK_TR_ON_EVENT = Boolean.valueOf(getProperty(RELOAD_TRS, "false"));
     public static final String ROW_COUNT = "com.oneops.sensor.events.batchsize";
     public static final int READ_ROWCOUNT = Integer.valueOf(getProperty(ROW_COUNT, "1000"));
+    private static final String SNAPSHOT_DIR = "com.oneops.sensor.snapshot.dir";
+    private static final long CHANNEL_DOWN_MS = TimeUnit.SECONDS.toMillis(Integer.valueOf(getProperty("com.oneops.sensor.chdowntime", "15")));
 
 
     private final Gson gson = new Gson();
     private final Random random = new Random();
-    private final Map<Long, Map<String, ThresholdStatements>> loadedThresholds = new HashMap<>();
+    private final Map<Long, Map<String, ThresholdStatements>> loadedThresholds = new ConcurrentHashMap<>();
+    // loaded thresholds using each shared shape statement, guarded by itself
+    private final Map<String, Integer> sharedStmtRefs = new HashMap<>();
 
     private int instanceId;
     private int poolSize;
@@ -105,6 +125,15 @@ public class Sensor {
     private int heartbeatRandomDelay = 30;
     private ReplacedInstances replacedInstances;
     private int loadStatementTimeOut;
+    private SensorHeartBeat sensorHeartBeat;
+    private String engineUri;
+    private String snapshotDir = getProperty(SNAPSHOT_DIR, "");
+    private int snapshotIntervalSec = 600;
+    private int snapshotMaxAgeSec = 86400;
+    private ScheduledExecutorService snapshotScheduler;
+    private OpenEventRegistry openEventRegistry = new OpenEventRegistry();
+    private HeartbeatTimers heartbeatTimers;
+    private ScheduledExecutorService timersScheduler;
 
   /**
      * Sets the statement builder
@@ -177,10 +206,12 @@ public class Sensor {
 
         Configuration cfg = new Configuration();
         cfg.addEventType("PerfEvent", PerfEvent.class.getName());
-        cfg.addEventType("DelayedPerfEvent", DelayedPerfEvent.class.getName());
+        cfg.addEventType("MissingHeartbeatEvent", MissingHeartbeatEvent.class.getName());
         cfg.addEventType("OpsEvent", OpsEvent.class.getName());
         cfg.addEventType("OpsCloseEvent", OpsCloseEvent.class.getName());
         cfg.addEventType("ChannelDownEvent", ChannelDownEvent.class.getName());
+        cfg.addEventType("ThresholdRow", ThresholdRow.class.getName());
+        cfg.addImport(MetricStats.class.getName());
 
         ConfigurationEngineDefaults.Threading ct = cfg.getEngineDefaults().getThreading();
         ct.setThreadPoolInbound(true);
@@ -192,18 +223,31 @@ public class Sensor {
         ct.setThreadPoolTimerExec(true);
         ct.setThreadPoolTimerExecNumThreads(ESPER_TIMER_THREADS);
 
-        this.epService = EPServiceProviderManager.getDefaultProvider(cfg);
+        this.epService = engineUri == null ? EPServiceProviderManager.getDefaultProvider(cfg)
+                : EPServiceProviderManager.getProvider(engineUri, cfg);
+        this.snapshotScheduler = Executors.newSingleThreadScheduledExecutor();
+        this.heartbeatTimers = new HeartbeatTimers(System::currentTimeMillis, CHANNEL_DOWN_MS,
+                this::getLoadedThreshold, this::sendTimerEvent);
+        this.timersScheduler = Executors.newSingleThreadScheduledExecutor();
+        timersScheduler.scheduleAtFixedRate(heartbeatTimers::advance, 1, 1, TimeUnit.SECONDS);
         loadAllStatements();
         this.isInited = true;
+        if (isSnapshotEnabled()) {
+            snapshotScheduler.scheduleWithFixedDelay(this::writeSnapshot, snapshotIntervalSec, snapshotIntervalSec, TimeUnit.SECONDS);
+        }
 
         long tt = TimeUnit.SECONDS.convert((System.currentTimeMillis() - start), TimeUnit.MILLISECONDS);
         logger.info(">>> Sensor initialization completed. Took " + tt + " seconds!!!");
     }
 
     /**
-     * Cleanup.
+     * Cleanup, the state is written to the snapshot so the next start does not need to read it all.
      */
     public void cleanup() {
+        stopSnapshots();
+        if (isInited) {
+            writeSnapshot();
+        }
         this.epService.destroy();
     }
 
@@ -211,25 +255,73 @@ public class Sensor {
      * Stops the sensor engine.
      */
     public void stop() {
+        stopSnapshots();
         this.epService.destroy();
         this.epService = null;
     }
 
+    private void stopSnapshots() {
+        if (timersScheduler != null) {
+            timersScheduler.shutdownNow();
+        }
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends an expiration of the heartbeat timers to esper engine.
+     *
+     * @param event the event
+     */
+    private void sendTimerEvent(Object event) {
+        EPServiceProvider engine = this.epService;
+        if (engine != null) {
+            engine.getEPRuntime().sendEvent(event);
+        }
+    }
+
+    /**
+     * Sends an OpsEvent to esper engine, an open heartbeat event starts its retrigger timer.
+     *
+     * @param e the event
+     */
+    private void sendOpsEventToEngine(OpsEvent e) {
+        this.epService.getEPRuntime().sendEvent(e);
+        if ("open".equals(e.getState()) && HEARTBEAT.equals(e.getType())) {
+            heartbeatTimers.onOpenHeartbeat(e);
+        }
+    }
+
+    /**
+     * Sends a PerfEvent to esper engine and restarts the heartbeat and channel timers of it.
+     *
+     * @param e the event
+     */
+    private void sendPerfEventToEngine(PerfEvent e) {
+        this.epService.getEPRuntime().sendEvent(e);
+        heartbeatTimers.onPerfEvent(e);
+    }
+
     /**
      * Loads the default statements.
      */
     private void initDefaultStatements() {
         addStatementToEngine("opsEventReset", STMT_RESET, "CloseEventListener");
         addStatementToEngine("opsHeartbeatReset", STMT_RESET_HEARTBEAT, "CloseEventListener");
-        addStatementToEngine("opsHeartbeatReTrigger", STMT_RETRIGGER_HEARTBEAT, "OpsEventListener");
-        addStatementToEngine("opsDelayPerfEvent", STMT_DELAY_PERF_EVENT, null);
+        addStatementToEngine("opsMissingHeartbeat", STMT_MISSING_HEARTBEAT, "OpsEventListener");
+        if (stmtBuilder.isSharedStatements()) {
+            addStatementToEngine("thresholdWindow", STMT_THRESHOLD_WINDOW, null);
+            addStatementToEngine("thresholdInsert", STMT_THRESHOLD_INSERT, null);
+            addStatementToEngine("thresholdDelete", STMT_THRESHOLD_DELETE, null);
+        }
     }
 
     /**
      * Adds channel down statement and listener.
      */
     private void initChannelDownStatement() {
-        addStatementToEngine("channelDownTrigger", STMT_TRIGGER_CHANNELDOWN, "ChannelDownListener");
+        addStatementToEngine("channelDown", STMT_CHANNELDOWN, "ChannelDownListener");
     }
 
     /**
@@ -262,7 +354,7 @@ public class Sensor {
      */
     void sendOpsEvent(OpsEvent e) {
         logger.info("Loading OpsEvent(CiId = " + e.getCiId() + ", manifestId = " + e.getManifestId() + ", name = " + e.getName() + ", state = " + e.getState() + ")");
-        this.epService.getEPRuntime().sendEvent(e);
+        sendOpsEventToEngine(e);
     }
 
 
@@ -300,7 +392,7 @@ public class Sensor {
      * @param monitors    the monitor
      * @throws SensorException
      */
-    public void addCiThresholdsList(long ciId, long manifestId, List<CmsRfcCISimple> monitors) throws SensorException {
+    public synchronized void addCiThresholdsList(long ciId, long manifestId, List<CmsRfcCISimple> monitors) throws SensorException {
 
         if (!isInited || (manifestId % this.poolSize) != this.instanceId) {
             // this is not my manifestId will post it on mgmt queue for other guy to pick up
@@ -365,6 +457,7 @@ public class Sensor {
                 for (String eplName : trStmt.getStmtNames()) {
                     removeStmtFromEngine(manifestId, source, eplName);
                 }
+                removeThresholdRowsFromEngine(manifestId, source, trStmt);
                 ciStateProcessor.updateState4MonitorRemoval(manifestId, source);
                 loadedThresholds.get(manifestId).remove(source);
 
@@ -375,6 +468,7 @@ public class Sensor {
                         thresholdsJson,
                         monitor.getCiAttributes().get(HEARTBEAT).equals("true"),
                         monitor.getCiAttributes().get(DURATION));
+                releaseSharedStatements(manifestId, source, trStmt);
             }
         }
         // now we need to clean up the deleted monitors
@@ -394,6 +488,8 @@ public class Sensor {
                     for (String eplName : trStmt.getStmtNames()) {
                         removeStmtFromEngine(manifestId, loadedMon, eplName);
                     }
+                    removeThresholdRowsFromEngine(manifestId, loadedMon, trStmt);
+                    releaseSharedStatements(manifestId, loadedMon, trStmt);
                     ciStateProcessor.updateState4MonitorRemoval(manifestId, loadedMon);
                     monsToRemove.add(loadedMon);
                     tsDao.removeManifestThreshold(manifestId, loadedMon);
@@ -476,6 +572,75 @@ public class Sensor {
         }
     }
 
+    /**
+     * Adds the shared shape statements (if not loaded yet) and inserts the threshold rows.
+     * Every loaded threshold holds a reference on the shapes it uses.
+     *
+     * @param stmts threshold statements
+     */
+    private void addSharedThresholdsToEngine(ThresholdStatements stmts) {
+        synchronized (sharedStmtRefs) {
+            for (SensorStatement stmt : stmts.getSharedStatements().values()) {
+                if (sharedStmtRefs.merge(stmt.getStmtName(), 1, Integer::sum) == 1) {
+                    addStatementToEngine(stmt.getStmtName(), stmt.getStmtText(), stmt.getListenerName());
+                }
+            }
+        }
+        for (ThresholdRow row : stmts.getRows()) {
+            this.epService.getEPRuntime().sendEvent(row);
+        }
+    }
+
+    /**
+     * Deletes the threshold rows of the manifest and source, the shape statements stay loaded
+     * until the threshold releases them.
+     *
+     * @param manifestId manifest id
+     * @param source     metric source
+     * @param stmts      threshold statements
+     */
+    private void removeThresholdRowsFromEngine(long manifestId, String source, ThresholdStatements stmts) {
+        if (!stmts.getRows().isEmpty()) {
+            this.epService.getEPRuntime().sendEvent(stmtBuilder.buildDeleteRow(manifestId, source));
+        }
+    }
+
+    /**
+     * Releases the shapes of a removed threshold, the statements of a shape are destroyed with
+     * the last threshold using it. A replaced threshold is released after its replacement is
+     * loaded, so the windows of the shapes both use are kept.
+     *
+     * @param manifestId manifest id
+     * @param source     metric source
+     * @param stmts      threshold statements
+     */
+    private void releaseSharedStatements(long manifestId, String source, ThresholdStatements stmts) {
+        List<String> stmtNames = new ArrayList<>(stmts.getSharedStatements().keySet());
+        // the match stmt defines the stream the shape stmt reads, destroy in reverse order
+        Collections.reverse(stmtNames);
+        synchronized (sharedStmtRefs) {
+            for (String stmtName : stmtNames) {
+                Integer refs = sharedStmtRefs.get(stmtName);
+                if (refs == null) {
+                    continue;
+                }
+                if (refs > 1) {
+                    sharedStmtRefs.put(stmtName, refs - 1);
+                } else {
+                    sharedStmtRefs.remove(stmtName);
+                    removeStmtFromEngine(manifestId, source, stmtName);
+                    logger.info("Removed shared " + stmtName + " from the engine");
+                }
+            }
+        }
+    }
+
+    int getSharedStmtCount() {
+        synchronized (sharedStmtRefs) {
+            return sharedStmtRefs.size();
+        }
+    }
+
 
     /**
      * Removes the ci.
@@ -483,7 +648,7 @@ public class Sensor {
      * @param ciId the ci id
      * @throws SensorException
      */
-    public void removeCi(long ciId, long manifestId) throws SensorException {
+    public synchronized void removeCi(long ciId, long manifestId) throws SensorException {
         //Long manifestId = tsDao.getManifestId(ciId);
         if (!isInited || (manifestId % this.poolSize) != this.instanceId) {
             // this is not my manifestId will post it on mgmt queue for other guy to pick up
@@ -501,6 +666,8 @@ public class Sensor {
                         removeStmtFromEngine(manifestId, source, eplName);
                         logger.info("Removed " + eplName + " from the engine");
                     }
+                    removeThresholdRowsFromEngine(manifestId, source, loadedThresholds.get(manifestId).get(source));
+                    releaseSharedStatements(manifestId, source, loadedThresholds.get(manifestId).get(source));
                     tsDao.removeManifestThreshold(manifestId, source);
                     //insert fake event to shut down Heartbeat retrigger
                     insertFakeEvent(ciId, manifestId, source);
@@ -516,18 +683,16 @@ public class Sensor {
         persistThreshold(ciId, manifestId, source, checksum, thresholdsJson, isHeartbeat, hbDuration);
         ThresholdStatements stmts = stmtBuilder.getThresholdStatements(manifestId, source, checksum, thresholdsJson, isHeartbeat, hbDuration);
 
+        addSharedThresholdsToEngine(stmts);
         for (String stmtName : stmts.getStatements().keySet()) {
             SensorStatement stmt = stmts.getStatements().get(stmtName);
             addStatementToEngine(stmt.getStmtName(), stmt.getStmtText(), stmt.getListenerName());
         }
 
-        if (stmts.getStmtNames().size() > 0) {
+        if (stmts.getStmtNames().size() > 0 || stmts.getRows().size() > 0 || stmts.isHeartbeat()) {
             // Register monitor
             // String key = manifestId + source;
-            if (!loadedThresholds.containsKey(manifestId)) {
-                loadedThresholds.put(manifestId, new HashMap<String, ThresholdStatements>());
-            }
-            loadedThresholds.get(manifestId).put(source, stmts);
+            thresholdsOf(manifestId).put(source, stmts);
         } else {
             logger.debug("Got empty threshols for ciId:" + ciId);
         }
@@ -549,21 +714,18 @@ public class Sensor {
         event.setSource(source);
         event.setTimestamp(System.currentTimeMillis());
         logger.debug("Sent PerfEvent to esper :" + gson.toJson(event));
-        this.epService.getEPRuntime().sendEvent(event);
+        sendPerfEventToEngine(event);
     }
     
     public void insertFakeEventWithDelay(long ciId, long manifestId, String source, int delay) {
         // Lets insert fake events so we start tracking the missing hearbeats
-        DelayedPerfEvent delayedEvent = new DelayedPerfEvent();
         PerfEvent event = new PerfEvent();
         event.setCiId(ciId);
         event.setManifestId(manifestId);
         event.setSource(source);
         event.setTimestamp(System.currentTimeMillis());
-        delayedEvent.setPerfEvent(event);
-        delayedEvent.setDelay(delay);
-        logger.debug("Sent DelayedPerfEvent to esper :" + gson.toJson(delayedEvent));
-        this.epService.getEPRuntime().sendEvent(delayedEvent);
+        logger.debug("Delayed PerfEvent to esper by " + delay + " sec :" + gson.toJson(event));
+        heartbeatTimers.delay(event, delay);
     }
 
 
@@ -583,7 +745,7 @@ public class Sensor {
         hEvent.setState("open");
         hEvent.setType(HEARTBEAT);
         logger.debug("Sent to esper event:" + gson.toJson(hEvent));
-        this.epService.getEPRuntime().sendEvent(hEvent);
+        sendOpsEventToEngine(hEvent);
 
 
         PerfEvent pEvent = new PerfEvent();
@@ -592,7 +754,7 @@ public class Sensor {
         pEvent.setSource(source);
         pEvent.setTimestamp(System.currentTimeMillis());
         logger.debug("Sent to esper event:" + gson.toJson(pEvent));
-        this.epService.getEPRuntime().sendEvent(pEvent);
+        sendPerfEventToEngine(pEvent);
     }
 
 
@@ -615,7 +777,7 @@ public class Sensor {
 
             isMetricsValid(event);
             logger.debug("Sent to esper event:" + event.getCiId() + "; " + event.getSource() + "; " + event.getBucket());
-            this.epService.getEPRuntime().sendEvent(event);
+            sendPerfEventToEngine((PerfEvent) event);
         }
     }
 
@@ -657,24 +819,76 @@ public class Sensor {
             //no thresholds defined
             return false;
         }
+        loadThreshold(tr);
+        return true;
+    }
+
+    /**
+     * Builds the statements of a threshold, loads them into esper engine and registers them.
+     *
+     * @param tr the threshold
+     * @return the loaded statements
+     */
+    private ThresholdStatements loadThreshold(Threshold tr) {
         ThresholdStatements stmts = stmtBuilder.getThresholdStatements(
-                manifestId,
-                source,
+                tr.getManifestId(),
+                tr.getSource(),
                 tr.getCrc(),
                 tr.getThresholdJson(),
                 tr.isHeartbeat(),
                 tr.getHbDuration());
 
+        addSharedThresholdsToEngine(stmts);
         for (String stmtName : stmts.getStatements().keySet()) {
             SensorStatement stmt = stmts.getStatements().get(stmtName);
             addStatementToEngine(stmt.getStmtName(), stmt.getStmtText(), stmt.getListenerName());
         }
+        thresholdsOf(tr.getManifestId()).put(tr.getSource(), stmts);
+        return stmts;
+    }
 
-        if (!loadedThresholds.containsKey(manifestId)) {
-            loadedThresholds.put(manifestId, new HashMap<String, ThresholdStatements>());
+    /**
+     * Removes the statements and rows of a loaded threshold from esper engine, the heartbeat
+     * retrigger of its cis is shut down with a fake event. Its shapes are released by the caller.
+     *
+     * @param manifestId manifest id
+     * @param source     metric source
+     * @param stmts      threshold statements
+     */
+    private void unloadThreshold(long manifestId, String source, ThresholdStatements stmts) {
+        if (stmts.isHeartbeat()) {
+            for (long ciId : tsDao.getManifestCiIds(manifestId)) {
+                insertFakeEvent(ciId, manifestId, source);
+            }
         }
-        loadedThresholds.get(manifestId).put(source, stmts);
-        return true;
+        for (String eplName : stmts.getStmtNames()) {
+            removeStmtFromEngine(manifestId, source, eplName);
+        }
+        removeThresholdRowsFromEngine(manifestId, source, stmts);
+        ciStateProcessor.updateState4MonitorRemoval(manifestId, source);
+        loadedThresholds.get(manifestId).remove(source);
+    }
+
+    /**
+     * Gets the loaded thresholds of the manifest, creating the map if needed.
+     *
+     * @param manifestId manifest id
+     * @return thresholds by source
+     */
+    private Map<String, ThresholdStatements> thresholdsOf(long manifestId) {
+        return loadedThresholds.computeIfAbsent(manifestId, k -> new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Gets the loaded threshold statements.
+     *
+     * @param manifestId manifest id
+     * @param source     metric source
+     * @return the statements or null if not loaded
+     */
+    private ThresholdStatements getLoadedThreshold(long manifestId, String source) {
+        Map<String, ThresholdStatements> sources = loadedThresholds.get(manifestId);
+        return sources == null ? null : sources.get(source);
     }
 
     /**
@@ -697,6 +911,7 @@ public class Sensor {
                             tr.isHeartbeat(),
                             tr.getHbDuration());
 
+                    addSharedThresholdsToEngine(stmts);
                     for (String stmtName : stmts.getStatements().keySet()) {
                         SensorStatement stmt = stmts.getStatements().get(stmtName);
                         addStatementToEngine(stmt.getStmtName(), stmt.getStmtText(), stmt.getListenerName());
@@ -706,10 +921,7 @@ public class Sensor {
                         }
                     }
 
-                    if (!loadedThresholds.containsKey(tr.getManifestId())) {
-                        loadedThresholds.put(tr.getManifestId(), new HashMap<String, ThresholdStatements>());
-                    }
-                    loadedThresholds.get(tr.getManifestId()).put(tr.getSource(), stmts);
+                    thresholdsOf(tr.getManifestId()).put(tr.getSource(), stmts);
                     return tr;
 
                 }).filter(tr -> tr.isHeartbeat()).flatMap(tr -> {
@@ -762,9 +974,7 @@ public class Sensor {
      * RMHB - Retrigger MHB
      * <p>
      */
-    private void loadAllStatements() throws InterruptedException {
-
-        initDefaultStatements();
+    private void loadFromCassandra() throws InterruptedException {
 
         // Bifurcate ops events stream into heartbeat and metric.
         ConnectableObservable<OpsEvent> openEvents = getAllOpenEvents().publish();
@@ -792,8 +1002,12 @@ public class Sensor {
                             lock.countDown();
                         });
 
+        final List<OpsEvent> metricOpenEvents = new ArrayList<>();
         metric.subscribeOn(Schedulers.io())
-                .subscribe(this::sendOpsEvent,
+                .subscribe(me -> {
+                            sendOpsEvent(me);
+                            metricOpenEvents.add(me);
+                        },
                         this::handleError,
                         () -> {
                             logger.info("Loading Metric OpsEvents completed!");
@@ -807,25 +1021,362 @@ public class Sensor {
         lock.await(getLoadStatementTimeOut(), TimeUnit.MINUTES);
 
         // Finally insert the fake events to satisfy the open hb conditions.
-        fes.stream().forEach(fe -> {
-            OpsEvent event = hbOpenEvents.get(fe.ciId + fe.source);
-            if (event != null) {
-                // If there is an open hb event lets just reinsert it so hb event will gets retriggered if no metrics coming in.
-                logger.info("Seeding OpenHbEvent(ciId = " + event.getCiId() + ", manifestId = " + event.getManifestId() + ", name = "
-                        + event.getName() + ", state = " + event.getState() + ")");
-                this.epService.getEPRuntime().sendEvent(event);
-            } else {
-                // If there is no open heartbeat event lets insert fake perf event to seed hb threshold.
-                logger.info("Seeding PerfEvent(ciId = " + fe.ciId + ", manifestId = " + fe.manifestId + ", source = " + fe.source + ")");
-                int delay = random.nextInt(heartbeatRandomDelay);
-                insertFakeEventWithDelay(fe.ciId, fe.manifestId, fe.source, delay);
-            }
+        fes.stream().forEach(fe -> seedHeartbeat(fe.ciId, fe.manifestId, fe.source, hbOpenEvents));
 
-        });
+        // The listeners keep the open events up to date from here on
+        List<OpsEvent> loadedOpenEvents = new ArrayList<>(metricOpenEvents);
+        loadedOpenEvents.addAll(hbOpenEvents.values());
+        openEventRegistry.seed(loadedOpenEvents);
+    }
+
+    /**
+     * Seeds the heartbeat threshold of a ci.
+     *
+     * @param ciId         ci id
+     * @param manifestId   manifest id
+     * @param source       metric source
+     * @param hbOpenEvents open heartbeat events by ci id and source
+     */
+    private void seedHeartbeat(long ciId, long manifestId, String source, Map<String, OpsEvent> hbOpenEvents) {
+        OpsEvent event = hbOpenEvents.get(ciId + source);
+        if (event != null) {
+            // If there is an open hb event lets just reinsert it so hb event will gets retriggered if no metrics coming in.
+            logger.info("Seeding OpenHbEvent(ciId = " + event.getCiId() + ", manifestId = " + event.getManifestId() + ", name = "
+                    + event.getName() + ", state = " + event.getState() + ")");
+            sendOpsEventToEngine(event);
+        } else {
+            // If there is no open heartbeat event lets insert fake perf event to seed hb threshold.
+            logger.info("Seeding PerfEvent(ciId = " + ciId + ", manifestId = " + manifestId + ", source = " + source + ")");
+            int delay = random.nextInt(heartbeatRandomDelay);
+            insertFakeEventWithDelay(ciId, manifestId, source, delay);
+        }
+    }
 
+    /**
+     * Loads the statements and seeds the events, from the local snapshot when there is a usable one.
+     */
+    private void loadAllStatements() throws InterruptedException {
+        initDefaultStatements();
+        SensorSnapshot snapshot = readSnapshot();
+        if (snapshot != null) {
+            restoreFromSnapshot(snapshot);
+        } else {
+            loadFromCassandra();
+        }
         initChannelDownStatement();
     }
 
+    /**
+     * Restores the thresholds, open events and channel states of a snapshot. The open events are
+     * reconciled with the open event ids in cassandra before seeding, only the events opened since
+     * the snapshot are read. The thresholds are reconciled with cassandra in the background once
+     * the engine is running.
+     *
+     * @param snapshot the snapshot
+     */
+    private void restoreFromSnapshot(SensorSnapshot snapshot) {
+        long start = System.currentTimeMillis();
+        logger.info(">>> Restoring sensor state from the snapshot taken at " + new Date(snapshot.getTimestamp()));
+
+        for (Threshold tr : snapshot.getThresholds()) {
+            if (validateThreshold(tr)) {
+                loadThreshold(tr);
+            }
+        }
+        Map<Long, List<Long>> manifestCiIds = getManifestCiIds(loadedThresholds.keySet());
+
+        List<OpsEvent> openEvents = reconcileOpenEvents(snapshot.getOpenEvents(), manifestCiIds);
+        Map<String, OpsEvent> hbOpenEvents = new HashMap<>();
+        for (OpsEvent event : openEvents) {
+            if (HEARTBEAT.equals(event.getType())) {
+                hbOpenEvents.put(event.getCiId() + event.getSource(), event);
+            } else if (METRIC.equals(event.getType())) {
+                sendOpsEvent(event);
+            }
+        }
+        openEventRegistry.seed(openEvents);
+
+        Map<Long, Set<String>> restored = new HashMap<>();
+        for (Map.Entry<Long, Map<String, ThresholdStatements>> entry : loadedThresholds.entrySet()) {
+            long manifestId = entry.getKey();
+            restored.put(manifestId, new HashSet<>(entry.getValue().keySet()));
+            for (Map.Entry<String, ThresholdStatements> trEntry : entry.getValue().entrySet()) {
+                if (trEntry.getValue().isHeartbeat() && manifestCiIds.containsKey(manifestId)) {
+                    for (long ciId : manifestCiIds.get(manifestId)) {
+                        seedHeartbeat(ciId, manifestId, trEntry.getKey(), hbOpenEvents);
+                    }
+                }
+            }
+        }
+
+        if (sensorHeartBeat != null) {
+            sensorHeartBeat.restore(snapshot.getChannels());
+        }
+        snapshotScheduler.execute(() -> reconcileThresholds(restored));
+
+        logger.info(">>> Restored " + snapshot.getThresholds().size() + " thresholds and " + openEvents.size()
+                + " open events from the snapshot. Took " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Reconciles the thresholds restored from a snapshot with the thresholds in cassandra,
+     * the monitor updates received while the snapshot was taken.
+     *
+     * @param restored the restored sources by manifest id
+     */
+    private void reconcileThresholds(Map<Long, Set<String>> restored) {
+        long start = System.currentTimeMillis();
+        AtomicInteger changed = new AtomicInteger(0);
+        try {
+            tsDao.getAllThreshold(READ_ROWCOUNT)
+                    .filter(this::validateThreshold)
+                    .toBlocking()
+                    .forEach(tr -> {
+                        Set<String> sources = restored.get(tr.getManifestId());
+                        if (sources != null) {
+                            sources.remove(tr.getSource());
+                        }
+                        ThresholdStatements loaded = getLoadedThreshold(tr.getManifestId(), tr.getSource());
+                        if (loaded == null || loaded.getChecksum() != tr.getCrc() || loaded.isHeartbeat() != tr.isHeartbeat()) {
+                            if (reloadThreshold(tr.getManifestId(), tr.getSource())) {
+                                changed.incrementAndGet();
+                            }
+                        }
+                    });
+            // restored thresholds not in cassandra anymore
+            for (Map.Entry<Long, Set<String>> entry : restored.entrySet()) {
+                for (String source : entry.getValue()) {
+                    if (reloadThreshold(entry.getKey(), source)) {
+                        changed.incrementAndGet();
+                    }
+                }
+            }
+            logger.info(">>> Reconciled the snapshot thresholds with cassandra, " + changed.get() + " changed. Took "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            logger.error("Could not reconcile the snapshot thresholds with cassandra", e);
+        }
+    }
+
+    /**
+     * Reloads a threshold if the loaded statements are not the ones in cassandra. It is read
+     * again while holding the lock as a monitor update could have changed it.
+     *
+     * @param manifestId manifest id
+     * @param source     metric source
+     * @return true if the threshold was reloaded or removed
+     */
+    private synchronized boolean reloadThreshold(long manifestId, String source) {
+        Threshold tr = tsDao.getThreshold(manifestId, source);
+        ThresholdStatements loaded = getLoadedThreshold(manifestId, source);
+        if (tr == null) {
+            if (loaded == null) {
+                return false;
+            }
+            unloadThreshold(manifestId, source, loaded);
+            releaseSharedStatements(manifestId, source, loaded);
+            return true;
+        }
+        if (loaded != null) {
+            if (loaded.getChecksum() == tr.getCrc() && loaded.isHeartbeat() == tr.isHeartbeat()) {
+                return false;
+            }
+            unloadThreshold(manifestId, source, loaded);
+        }
+        ThresholdStatements stmts = loadThreshold(tr);
+        if (loaded != null) {
+            releaseSharedStatements(manifestId, source, loaded);
+        }
+        if (stmts.isHeartbeat()) {
+            for (long ciId : tsDao.getManifestCiIds(manifestId)) {
+                insertFakeEventWithDelay(ciId, manifestId, source, random.nextInt(heartbeatRandomDelay));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the ci ids of the manifests in batches.
+     *
+     * @param manifestIds manifest ids
+     * @return ci ids by manifest id
+     */
+    private Map<Long, List<Long>> getManifestCiIds(Collection<Long> manifestIds) {
+        Map<Long, List<Long>> manifestCiIds = new HashMap<>();
+        List<Long> batch = new ArrayList<>(READ_ROWCOUNT);
+        for (Long manifestId : manifestIds) {
+            batch.add(manifestId);
+            if (batch.size() == READ_ROWCOUNT) {
+                manifestCiIds.putAll(tsDao.getManifestCiIds(batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            manifestCiIds.putAll(tsDao.getManifestCiIds(batch));
+        }
+        return manifestCiIds;
+    }
+
+    /**
+     * Reconciles known open events with the open event ids in cassandra. Only the cis of the
+     * manifests owned by this instance are read, in batches. Events that got closed are dropped
+     * and only the events opened since the known ones were read are fetched.
+     *
+     * @param known         the known open events
+     * @param manifestCiIds ci ids of the manifests of this instance
+     * @return the open events of this instance
+     */
+    private List<OpsEvent> reconcileOpenEvents(List<OpsEvent> known, Map<Long, List<Long>> manifestCiIds) {
+        Map<Long, Long> ciManifests = new HashMap<>();
+        for (Map.Entry<Long, List<Long>> entry : manifestCiIds.entrySet()) {
+            if (!isManagedByThisInstance(entry.getKey())) {
+                continue;
+            }
+            for (Long ciId : entry.getValue()) {
+                ciManifests.put(ciId, entry.getKey());
+            }
+        }
+        Map<String, OpsEvent> knownEvents = new HashMap<>();
+        if (known != null) {
+            for (OpsEvent event : known) {
+                knownEvents.put(event.getCiId() + event.getName(), event);
+            }
+        }
+
+        int fetched = 0;
+        List<OpsEvent> openEvents = new ArrayList<>();
+        List<Long> batch = new ArrayList<>(READ_ROWCOUNT);
+        for (Long ciId : ciManifests.keySet()) {
+            batch.add(ciId);
+            if (batch.size() == READ_ROWCOUNT) {
+                fetched += reconcileOpenEvents(batch, ciManifests, knownEvents, openEvents);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            fetched += reconcileOpenEvents(batch, ciManifests, knownEvents, openEvents);
+        }
+        logger.info("Reconciled open events of " + ciManifests.size() + " cis: " + openEvents.size() + " open, "
+                + fetched + " read from cassandra.");
+        return openEvents;
+    }
+
+    /**
+     * Reconciles the open events of a batch of cis.
+     *
+     * @param ciIds       ci ids
+     * @param ciManifests manifest id by ci id
+     * @param knownEvents the known open events by ci id and name
+     * @param openEvents  the open events, the events of the cis are added
+     * @return number of events read from cassandra
+     */
+    private int reconcileOpenEvents(List<Long> ciIds, Map<Long, Long> ciManifests, Map<String, OpsEvent> knownEvents,
+                                    List<OpsEvent> openEvents) {
+        int fetched = 0;
+        for (Map.Entry<Long, List<CiOpenEvent>> entry : opsEventDao.getCiOpenEvents(ciIds).entrySet()) {
+            long manifestId = ciManifests.get(entry.getKey());
+            for (CiOpenEvent openEvent : entry.getValue()) {
+                String key = entry.getKey() + openEvent.getName();
+                OpsEvent event = knownEvents.get(key);
+                if (event == null || event.getTimestamp() != openEvent.getTimestamp()) {
+                    event = opsEventDao.getOpsEvent(key, openEvent.getTimestamp());
+                    fetched++;
+                    if (event == null) {
+                        continue;
+                    }
+                }
+                event.setManifestId(manifestId);
+                openEvents.add(event);
+            }
+        }
+        return fetched;
+    }
+
+    /**
+     * Gets the snapshot file of this instance.
+     *
+     * @return the snapshot file
+     */
+    File getSnapshotFile() {
+        return new File(snapshotDir, "sensor-" + (instanceId + 1) + "-of-" + poolSize + ".snapshot.gz");
+    }
+
+    /**
+     * Reads the snapshot of this instance.
+     *
+     * @return the snapshot or null if snapshots are disabled or there is no usable snapshot
+     */
+    private SensorSnapshot readSnapshot() {
+        if (!isSnapshotEnabled()) {
+            return null;
+        }
+        File file = getSnapshotFile();
+        SensorSnapshot snapshot = SensorSnapshot.read(file);
+        if (snapshot == null) {
+            logger.info("No sensor snapshot in " + file + ", loading the state from cassandra.");
+            return null;
+        }
+        if (!snapshot.isFor(instanceId, poolSize)) {
+            logger.warn("Sensor snapshot " + file + " was taken for a different pool, loading the state from cassandra.");
+            return null;
+        }
+        long ageSec = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - snapshot.getTimestamp());
+        if (ageSec > snapshotMaxAgeSec) {
+            logger.warn("Sensor snapshot " + file + " is " + ageSec + " seconds old, loading the state from cassandra.");
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes the loaded thresholds, the open events and the channel states to the snapshot file. The
+     * state is taken from memory, nothing is read from cassandra.
+     */
+    void writeSnapshot() {
+        if (!isSnapshotEnabled() || epService == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            SensorSnapshot snapshot = new SensorSnapshot();
+            snapshot.setInstanceId(instanceId);
+            snapshot.setPoolSize(poolSize);
+            snapshot.setTimestamp(start);
+
+            List<Threshold> thresholds = new ArrayList<>();
+            for (Map.Entry<Long, Map<String, ThresholdStatements>> entry : loadedThresholds.entrySet()) {
+                for (Map.Entry<String, ThresholdStatements> trEntry : entry.getValue().entrySet()) {
+                    ThresholdStatements stmts = trEntry.getValue();
+                    Threshold tr = new Threshold();
+                    tr.setManifestId(entry.getKey());
+                    tr.setSource(trEntry.getKey());
+                    tr.setCrc(stmts.getChecksum());
+                    tr.setThresholdJson(stmts.getThresholdsJson());
+                    tr.setHeartbeat(stmts.isHeartbeat());
+                    tr.setHbDuration(stmts.getHbDuration());
+                    thresholds.add(tr);
+                }
+            }
+            snapshot.setThresholds(thresholds);
+
+            List<OpsEvent> openEvents = openEventRegistry.getOpenEvents();
+            snapshot.setOpenEvents(openEvents);
+
+            if (sensorHeartBeat != null) {
+                snapshot.setChannels(sensorHeartBeat.getChannelsStatus());
+            }
+            snapshot.write(getSnapshotFile());
+            logger.info("Wrote sensor snapshot with " + thresholds.size() + " thresholds and " + openEvents.size()
+                    + " open events. Took " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            logger.error("Could not write the sensor snapshot " + getSnapshotFile(), e);
+        }
+    }
+
+    private boolean isSnapshotEnabled() {
+        return snapshotDir != null && !snapshotDir.isEmpty();
+    }
+
 
     private boolean validateThreshold(Threshold tr) {
         if (!(tr.getManifestId() > 0 && tr.getSource() != null)) {
@@ -971,4 +1522,48 @@ public class Sensor {
   public void setLoadStatementTimeOut(int loadStatementTimeOut) {
     this.loadStatementTimeOut = loadStatementTimeOut;
   }
+
+	public void setSensorHeartBeat(SensorHeartBeat sensorHeartBeat) {
+		this.sensorHeartBeat = sensorHeartBeat;
+	}
+
+	/**
+	 * Sets the uri of the esper engine, the default engine is used if not set.
+	 *
+	 * @param engineUri the engine uri
+	 */
+	public void setEngineUri(String engineUri) {
+		this.engineUri = engineUri;
+	}
+
+	/**
+	 * Sets the dir of the state snapshot files, snapshots are disabled if empty.
+	 *
+	 * @param snapshotDir the snapshot dir
+	 */
+	public void setSnapshotDir(String snapshotDir) {
+		this.snapshotDir = snapshotDir;
+	}
+
+	/**
+	 * Sets the open events of this instance, seeded on start and kept up to date by the listeners.
+	 *
+	 * @param openEventRegistry the open event registry
+	 */
+	public void setOpenEventRegistry(OpenEventRegistry openEventRegistry) {
+		this.openEventRegistry = openEventRegistry;
+	}
+
+	public void setSnapshotIntervalSec(int snapshotIntervalSec) {
+		this.snapshotIntervalSec = snapshotIntervalSec;
+	}
+
+	/**
+	 * Sets the max age of a snapshot used on start, an older one is ignored.
+	 *
+	 * @param snapshotMaxAgeSec max age in seconds
+	 */
+	public void setSnapshotMaxAgeSec(int snapshotMaxAgeSec) {
+		this.snapshotMaxAgeSec = snapshotMaxAgeSec;
+	}
 }
@@ -20,12 +20,15 @@ package com.oneops.sensor;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import com.oneops.sensor.domain.SensorStatement;
+import com.oneops.sensor.domain.ThresholdRow;
 import com.oneops.sensor.domain.ThresholdStatements;
 import com.oneops.sensor.thresholds.ThresholdDef;
+import com.oneops.sensor.thresholds.ThresholdDef.StmtParams;
 import org.apache.log4j.Logger;
 
 import java.lang.reflect.Type;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.System.getProperty;
 
@@ -37,22 +40,49 @@ public class StmtBuilder {
     private static final Logger logger = Logger.getLogger(StmtBuilder.class);
 
     public static final int THRESHOLDS_JSON_SIZE_FLOOR = 3;
-    private static final int CHANNEL_DOWN_INTERVAL = Integer.valueOf(getProperty("com.oneops.sensor.chdowntime", "15"));
     private static final int WNDW_SIZE_MAX = Integer.valueOf(getProperty("com.oneops.sensor.MaxDuration", "5"));
+    private static final boolean SHARED_STMTS = Boolean.valueOf(getProperty("com.oneops.sensor.thresholds.shared", "false"));
 
     public final static String STMT_RESET = "insert into OpsCloseEvent select trigger.ciId as ciId, trigger.manifestId as manifestId, trigger.name as name, trigger.source as source, reset.timestamp as timestamp, reset.metrics as metrics, 'close' as state, trigger as openEvent from pattern [every trigger=OpsEvent(state = 'open') -> reset=OpsEvent(ciId = trigger.ciId and name = trigger.name and state = 'reset')]";
     public final static String STMT_RESET_HEARTBEAT = "insert into OpsCloseEvent select trigger.ciId as ciId, trigger.manifestId as manifestId, trigger.name as name, trigger.source as source, reset.timestamp as timestamp, 'close' as state, trigger as openEvent from pattern [every trigger=OpsEvent(state = 'open' and type = 'heartbeat') -> reset=PerfEvent(ciId = trigger.ciId and source = trigger.source)]";
-    public final static String STMT_RETRIGGER_HEARTBEAT = "insert into OpsEvent select hbtrigger.ciId as ciId,  hbtrigger.manifestId as manifestId,hbtrigger.channel as channel, hbtrigger.timestamp as timestamp, hbtrigger.state as state, 'heartbeat' as type, hbtrigger.source as source, hbtrigger.name as name, hbtrigger.ciState as ciState  from pattern [every hbtrigger=OpsEvent(state = 'open' and type = 'heartbeat') -> (timer:interval(15 min) and not PerfEvent(ciId = hbtrigger.ciId and source = hbtrigger.source))]";
-    public final static String STMT_TRIGGER_CHANNELDOWN = "insert into ChannelDownEvent select lastEvent.channel as channel from pattern [(every lastEvent=PerfEvent()) -> (timer:interval(" + CHANNEL_DOWN_INTERVAL + " sec) and not PerfEvent(channel = lastEvent.channel))]";
-    public final static String STMT_DELAY_PERF_EVENT = "insert into PerfEvent select delayedEvent.perfEvent from pattern [(every delayedEvent=DelayedPerfEvent -> timer:interval(delayedEvent.delay sec))]";
+    public final static String STMT_MISSING_HEARTBEAT = "insert into OpsEvent select missing.opsEvent from MissingHeartbeatEvent as missing";
+    public final static String STMT_CHANNELDOWN = "select * from ChannelDownEvent";
+
+    // Shared threshold statements, the threshold values live as rows in a named window
+    public final static String STMT_THRESHOLD_WINDOW = "create window ThresholdWindow.std:unique(key) as select * from ThresholdRow";
+    public final static String STMT_THRESHOLD_INSERT = "insert into ThresholdWindow select * from ThresholdRow(deleted = false)";
+    public final static String STMT_THRESHOLD_DELETE = "on ThresholdRow(deleted = true) as d delete from ThresholdWindow as w where w.manifestId = d.manifestId and w.source = d.source and w.version < d.version";
+
+    private static final String TRIGGER = "trigger";
+    private static final String RESET = "reset";
 
     private final Gson gson = new Gson();
+    private final AtomicLong rowVersion = new AtomicLong();
+    private boolean sharedStatements = SHARED_STMTS;
 
     /**
      * Statement constructor
      */
     public StmtBuilder() {
-        logger.info("Statement Builder initialized with Max Duration: " + WNDW_SIZE_MAX + ", ChannelDownInterval: " + CHANNEL_DOWN_INTERVAL);
+        logger.info("Statement Builder initialized with Max Duration: " + WNDW_SIZE_MAX + ", SharedStatements: " + sharedStatements);
+    }
+
+    /**
+     * Checks if thresholds are loaded as rows of shared statements.
+     *
+     * @return true, if shared statements are enabled
+     */
+    public boolean isSharedStatements() {
+        return sharedStatements;
+    }
+
+    /**
+     * Sets the shared statements mode.
+     *
+     * @param sharedStatements true to use one statement per threshold shape
+     */
+    public void setSharedStatements(boolean sharedStatements) {
+        this.sharedStatements = sharedStatements;
     }
 
     /**
@@ -142,25 +172,129 @@ public class StmtBuilder {
                 .append(def.getReset().getNumocc()).toString();
     }
 
+
+
     /**
-     * Builds the heartbeat stmt.
+     * Builds the shape key shared by all thresholds which compile to the same EPL
+     * apart from manifest, source, bucket, metric and value.
      *
-     * @param manifestId the manifest id
-     * @param source     the source
-     * @param duration   the duration
-     * @return heartbeat statement.
+     * @param kind     trigger or reset
+     * @param params   trigger or reset params
+     * @param coolOff  cool off minutes, null for reset
+     * @return shape key
      */
-    public String buildHeartbeatStmt(long manifestId, String source, String duration) {
-        return new StringBuilder(100)
-                .append("insert into OpsEvent select lastEvent.ciId as ciId, lastEvent.manifestId as manifestId, lastEvent.channel as channel, lastEvent.timestamp as timestamp, 'open' as state, 'heartbeat' as type, lastEvent.source as source, lastEvent.source || ':Heartbeat' as name, ")
-                .append("'unhealthy'")
-                .append(" as ciState from pattern [(every lastEvent=PerfEvent(source = ")
-                .append("'").append(source).append("'")
-                .append(" and manifestId = ")
-                .append(manifestId)
-                .append(")) -> (timer:interval(")
-                .append(duration)
-                .append(" min) and not PerfEvent(ciId = lastEvent.ciId and source = lastEvent.source))]").toString();
+    public String buildShape(String kind, StmtParams params, String coolOff) {
+        StringBuilder sb = new StringBuilder(40)
+                .append(kind).append(':')
+                .append(params.getOperator()).append(':')
+                .append(capDuration(params.getDuration())).append(':')
+                .append(params.getNumocc());
+        if (coolOff != null) {
+            sb.append(':').append(coolOff);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds the shared match stmt. It joins every PerfEvent against the threshold
+     * rows of one shape and emits a ThresholdMatch per breached threshold.
+     *
+     * @param shape    shape key
+     * @param operator comparison operator
+     * @return Match statement
+     */
+    public String buildSharedMatchStmt(String shape, String operator) {
+        return new StringBuilder(500)
+                .append("insert into ThresholdMatch select e.ciId as ciId, e.manifestId as manifestId, e.timestamp as timestamp, e.bucket as bucket, e.metrics as metrics, e.source as source, t.name as name, t.ciState as ciState, t.shape as shape ")
+                .append("from PerfEvent as e unidirectional, ThresholdWindow as t where t.shape = ")
+                .append("'").append(shape).append("'")
+                .append(" and e.manifestId = t.manifestId and e.source = t.source and e.bucket = t.bucket and MetricStats.value(e.metrics, t.stat, t.metric) ")
+                .append(operator)
+                .append(" t.value").toString();
+    }
+
+    /**
+     * Builds the shared trigger stmt for a threshold shape.
+     *
+     * @param shape    shape key
+     * @param params   trigger params
+     * @param coolOff  cool off minutes
+     * @return Trigger statement
+     */
+    public String buildSharedTriggerStmt(String shape, StmtParams params, String coolOff) {
+        return new StringBuilder(400)
+                .append("insert into OpsEvent select ciId, manifestId, timestamp, bucket, metrics, 'open' as state, 'metric' as type, source, ")
+                .append(coolOff).append(" as coolOff, ")
+                .append("name, ciState, count(1) as count from ThresholdMatch(shape = ")
+                .append("'").append(shape).append("'")
+                .append(").win:time(")
+                .append(capDuration(params.getDuration()))
+                .append(" min) group by ciId, name having count(1)>=")
+                .append(params.getNumocc())
+                .append(" output first every ")
+                .append(coolOff)
+                .append(" minutes").toString();
+    }
+
+    /**
+     * Builds the shared reset stmt for a threshold shape.
+     *
+     * @param shape  shape key
+     * @param params reset params
+     * @return Reset statement
+     */
+    public String buildSharedResetStmt(String shape, StmtParams params) {
+        return new StringBuilder(350)
+                .append("insert into OpsEvent select ciId, manifestId, timestamp, bucket, metrics, 'reset' as state, 'metric' as type, source, ")
+                .append("name, ciState, count(1) as count from ThresholdMatch(shape = ")
+                .append("'").append(shape).append("'")
+                .append(").win:time(")
+                .append(capDuration(params.getDuration()))
+                .append(" min) group by ciId, name having count(1)>=")
+                .append(params.getNumocc()).toString();
+    }
+
+    /**
+     * Creates a delete marker which removes all rows loaded so far for the manifest and source.
+     *
+     * @param manifestId manifest id
+     * @param source     metric source
+     * @return delete marker row
+     */
+    public ThresholdRow buildDeleteRow(long manifestId, String source) {
+        ThresholdRow row = new ThresholdRow();
+        row.setManifestId(manifestId);
+        row.setSource(source);
+        row.setVersion(rowVersion.incrementAndGet());
+        row.setDeleted(true);
+        return row;
+    }
+
+    private ThresholdRow buildRow(long manifestId, String source, String trsName, ThresholdDef def, String kind, String shape, long version) {
+        ThresholdRow row = new ThresholdRow();
+        row.setKey(manifestId + ":" + source + ":" + trsName + ":" + kind);
+        row.setShape(shape);
+        row.setManifestId(manifestId);
+        row.setSource(source);
+        row.setName(source + ":" + trsName);
+        row.setBucket(def.getBucket());
+        row.setStat(def.getStat());
+        row.setMetric(def.getMetric());
+        row.setValue(TRIGGER.equals(kind) ? def.getTrigger().getValue() : def.getReset().getValue());
+        row.setCiState(def.getState());
+        row.setVersion(version);
+        return row;
+    }
+
+    private void addSharedStatements(ThresholdStatements trStatements, String shape, String operator, String stmtText, String listenerName) {
+        String matchName = "shape-" + shape + "-match";
+        trStatements.addSharedStatement(new SensorStatement(matchName, buildSharedMatchStmt(shape, operator), null));
+        trStatements.addSharedStatement(new SensorStatement("shape-" + shape, stmtText, listenerName));
+    }
+
+    private int capDuration(int duration) {
+        // Set max window size to 5 mins to avoid OOM
+        return (duration > WNDW_SIZE_MAX) ? WNDW_SIZE_MAX : duration;
     }
 
 
@@ -182,6 +316,7 @@ public class StmtBuilder {
 
         ThresholdStatements trStatements = new ThresholdStatements();
         trStatements.setChecksum(checksum);
+        trStatements.setThresholdsJson(thresholdsJson);
 
         if (thresholdsJson != null && thresholdsJson.length() > THRESHOLDS_JSON_SIZE_FLOOR) {
 
@@ -189,8 +324,13 @@ public class StmtBuilder {
             }.getType();
             Map<String, ThresholdDef> trsholds = gson.fromJson(thresholdsJson, mapType);
 
+            long version = rowVersion.incrementAndGet();
             for (String trsName : trsholds.keySet()) {
                 ThresholdDef trDef = trsholds.get(trsName);
+                if (sharedStatements) {
+                    addThresholdRows(trStatements, manifestId, source, trsName, trDef, version);
+                    continue;
+                }
                 // Build trigger statement
                 if (trDef.getTrigger() != null) {
                     String eplStmt = buildTriggerStmt(manifestId, source, trsName, trDef);
@@ -207,15 +347,33 @@ public class StmtBuilder {
                 }
             }
         }
-        // Build heartbeat statement
+        // The missing heartbeat timers of the threshold are run by the HeartbeatTimers
         if (isHeartbeat) {
-            String eplStmt = buildHeartbeatStmt(manifestId, source, hbDuration);
             trStatements.setHeartbeat(true);
             trStatements.setHbDuration(hbDuration);
-            String eplName = source + ":Heartbeat-" + manifestId;
-            SensorStatement stmt = new SensorStatement(eplName, eplStmt, "OpsEventListener");
-            trStatements.addStatement(stmt);
         }
         return trStatements;
     }
+
+    /**
+     * Adds the threshold rows and the shared statements of their shapes.
+     */
+    private void addThresholdRows(ThresholdStatements trStatements, long manifestId, String source,
+                                  String trsName, ThresholdDef trDef, long version) {
+        if (trDef.getTrigger() != null) {
+            // Set default cooloff to 15 mins
+            String coolOff = trDef.getCooloff();
+            coolOff = (coolOff != null) ? coolOff : "15";
+            String shape = buildShape(TRIGGER, trDef.getTrigger(), coolOff);
+            trStatements.addRow(buildRow(manifestId, source, trsName, trDef, TRIGGER, shape, version));
+            addSharedStatements(trStatements, shape, trDef.getTrigger().getOperator(),
+                    buildSharedTriggerStmt(shape, trDef.getTrigger(), coolOff), "OpsEventListener");
+        }
+        if (trDef.getReset() != null) {
+            String shape = buildShape(RESET, trDef.getReset(), null);
+            trStatements.addRow(buildRow(manifestId, source, trsName, trDef, RESET, shape, version));
+            addSharedStatements(trStatements, shape, trDef.getReset().getOperator(),
+                    buildSharedResetStmt(shape, trDef.getReset()), null);
+        }
+    }
 }
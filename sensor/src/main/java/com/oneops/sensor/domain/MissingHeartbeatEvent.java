@@ -0,0 +1,23 @@
+package com.oneops.sensor.domain;
+
+import com.oneops.ops.events.OpsEvent;
+
+public class MissingHeartbeatEvent {
+	/**
+	 * open heartbeat event of an expired heartbeat timer
+	 */
+	private OpsEvent opsEvent;
+
+	public MissingHeartbeatEvent(OpsEvent opsEvent) {
+		this.opsEvent = opsEvent;
+	}
+
+	public OpsEvent getOpsEvent() {
+		return opsEvent;
+	}
+
+	public void setOpsEvent(OpsEvent opsEvent) {
+		this.opsEvent = opsEvent;
+	}
+
+}
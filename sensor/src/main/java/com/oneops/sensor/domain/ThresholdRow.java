@@ -0,0 +1,256 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor.domain;
+
+/**
+ * A single threshold definition held in the shared threshold named window.
+ * Shared statements join incoming PerfEvents against these rows instead of
+ * compiling one EPL statement per manifest/source.
+ */
+public class ThresholdRow {
+
+    private String key;
+    private String shape;
+    private long manifestId;
+    private String source;
+    private String name;
+    private String bucket;
+    private String stat;
+    private String metric;
+    private double value;
+    private String ciState;
+    private long version;
+    private boolean deleted;
+
+    /**
+     * Gets the row key (manifestId:source:name:kind).
+     *
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Sets the row key.
+     *
+     * @param key the new key
+     */
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Gets the threshold shape this row belongs to.
+     *
+     * @return the shape
+     */
+    public String getShape() {
+        return shape;
+    }
+
+    /**
+     * Sets the shape.
+     *
+     * @param shape the new shape
+     */
+    public void setShape(String shape) {
+        this.shape = shape;
+    }
+
+    /**
+     * Gets the manifest id.
+     *
+     * @return the manifest id
+     */
+    public long getManifestId() {
+        return manifestId;
+    }
+
+    /**
+     * Sets the manifest id.
+     *
+     * @param manifestId the new manifest id
+     */
+    public void setManifestId(long manifestId) {
+        this.manifestId = manifestId;
+    }
+
+    /**
+     * Gets the monitor source.
+     *
+     * @return the source
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Sets the source.
+     *
+     * @param source the new source
+     */
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Gets the threshold name (source:threshold).
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the name.
+     *
+     * @param name the new name
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the bucket.
+     *
+     * @return the bucket
+     */
+    public String getBucket() {
+        return bucket;
+    }
+
+    /**
+     * Sets the bucket.
+     *
+     * @param bucket the new bucket
+     */
+    public void setBucket(String bucket) {
+        this.bucket = bucket;
+    }
+
+    /**
+     * Gets the stat (avg, min, max, sum, count).
+     *
+     * @return the stat
+     */
+    public String getStat() {
+        return stat;
+    }
+
+    /**
+     * Sets the stat.
+     *
+     * @param stat the new stat
+     */
+    public void setStat(String stat) {
+        this.stat = stat;
+    }
+
+    /**
+     * Gets the metric name.
+     *
+     * @return the metric
+     */
+    public String getMetric() {
+        return metric;
+    }
+
+    /**
+     * Sets the metric.
+     *
+     * @param metric the new metric
+     */
+    public void setMetric(String metric) {
+        this.metric = metric;
+    }
+
+    /**
+     * Gets the threshold value.
+     *
+     * @return the value
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Sets the value.
+     *
+     * @param value the new value
+     */
+    public void setValue(double value) {
+        this.value = value;
+    }
+
+    /**
+     * Gets the ci state.
+     *
+     * @return the ci state
+     */
+    public String getCiState() {
+        return ciState;
+    }
+
+    /**
+     * Sets the ci state.
+     *
+     * @param ciState the new ci state
+     */
+    public void setCiState(String ciState) {
+        this.ciState = ciState;
+    }
+
+    /**
+     * Gets the load version. Delete rows only remove rows with a lower version,
+     * so a reload racing with its own cleanup is never lost.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version.
+     *
+     * @param version the new version
+     */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Checks if this is a delete marker.
+     *
+     * @return true, if deleted
+     */
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Sets the deleted flag.
+     *
+     * @param deleted the new deleted flag
+     */
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
+}
@@ -17,7 +17,10 @@
  *******************************************************************************/
 package com.oneops.sensor.domain;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -29,7 +32,10 @@ public class ThresholdStatements {
     private long checksum;
     private boolean isHeartbeat;
     private String hbDuration;
+    private String thresholdsJson;
     private Map<String, SensorStatement> statements = new HashMap<>();
+    private Map<String, SensorStatement> sharedStatements = new LinkedHashMap<>();
+    private List<ThresholdRow> rows = new ArrayList<>();
 
     /**
      * Gets the checksum.
@@ -49,6 +55,24 @@ public class ThresholdStatements {
         this.checksum = checksum;
     }
 
+    /**
+     * Gets the thresholds json the statements were built from.
+     *
+     * @return the thresholds json
+     */
+    public String getThresholdsJson() {
+        return thresholdsJson;
+    }
+
+    /**
+     * Sets the thresholds json.
+     *
+     * @param thresholdsJson the thresholds json
+     */
+    public void setThresholdsJson(String thresholdsJson) {
+        this.thresholdsJson = thresholdsJson;
+    }
+
     /**
      * Gets the stmt names.
      *
@@ -112,4 +136,42 @@ public class ThresholdStatements {
         return statements;
     }
 
+    /**
+     * Adds a shared (per threshold shape) statement. Shared statements are kept
+     * in insertion order, as the match stmt defines the stream the shape stmt reads,
+     * and are only removed with the last loaded threshold using them.
+     *
+     * @param statement the statement
+     */
+    public void addSharedStatement(SensorStatement statement) {
+        this.sharedStatements.put(statement.getStmtName(), statement);
+    }
+
+    /**
+     * Gets the shared statements.
+     *
+     * @return the shared statements
+     */
+    public Map<String, SensorStatement> getSharedStatements() {
+        return sharedStatements;
+    }
+
+    /**
+     * Adds a threshold row.
+     *
+     * @param row the row
+     */
+    public void addRow(ThresholdRow row) {
+        this.rows.add(row);
+    }
+
+    /**
+     * Gets the threshold rows.
+     *
+     * @return the rows
+     */
+    public List<ThresholdRow> getRows() {
+        return rows;
+    }
+
 }
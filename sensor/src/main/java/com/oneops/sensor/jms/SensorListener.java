@@ -20,13 +20,17 @@ package com.oneops.sensor.jms;
 import com.google.gson.Gson;
 import com.oneops.sensor.Sensor;
 import com.oneops.sensor.events.BasicEvent;
+import com.oneops.sensor.events.PerfEventBatchCodec;
 import com.oneops.sensor.util.SensorHeartBeat;
 import org.apache.log4j.Logger;
 
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
 import javax.jms.ObjectMessage;
+import java.io.IOException;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -77,13 +81,14 @@ public class SensorListener implements MessageListener {
 		try {
 			
 			if (msg instanceof ObjectMessage) {
-				BasicEvent event = (BasicEvent)((ObjectMessage)msg).getObject();
-				if (logger.isDebugEnabled() || cisToLog.contains(event.getCiId())) {
-					logger.info(gson.toJson(event));
-				}
-				sensorHeartBeat.timeStampIt(event.getChannel());
-				sensorHeartBeat.timeStampIt(BasicEvent.DEFAULT_CHANNEL);
-				sensor.sendCEPEvent(event);
+				onEvent((BasicEvent)((ObjectMessage)msg).getObject());
+			} else if (msg instanceof BytesMessage
+					&& PerfEventBatchCodec.FORMAT.equals(msg.getStringProperty(PerfEventBatchCodec.FORMAT_PROPERTY))) {
+				// batch of events published by the daq collector
+				BytesMessage bytesMessage = (BytesMessage) msg;
+				byte[] batch = new byte[(int) bytesMessage.getBodyLength()];
+				bytesMessage.readBytes(batch);
+				onBatch(batch);
 			}
 			msg.acknowledge();
 		} catch (JMSException e) {
@@ -91,6 +96,29 @@ public class SensorListener implements MessageListener {
 
 		}
 	}
+
+	private void onBatch(byte[] batch) {
+		List<BasicEvent> events;
+		try {
+			events = PerfEventBatchCodec.decode(batch);
+		} catch (IOException e) {
+			// acknowledged anyway, a redelivery would not decode either
+			logger.error("could not decode perf event batch of " + batch.length + " bytes", e);
+			return;
+		}
+		for (BasicEvent event : events) {
+			onEvent(event);
+		}
+	}
+
+	private void onEvent(BasicEvent event) {
+		if (logger.isDebugEnabled() || cisToLog.contains(event.getCiId())) {
+			logger.info(gson.toJson(event));
+		}
+		sensorHeartBeat.timeStampIt(event.getChannel());
+		sensorHeartBeat.timeStampIt(BasicEvent.DEFAULT_CHANNEL);
+		sensor.sendCEPEvent(event);
+	}
 	
 	public void addCiIdToLog(long ciId) {
 		cisToLog.add(ciId);
@@ -32,6 +32,7 @@ import com.oneops.sensor.domain.OpenEvent;
 import com.oneops.sensor.jms.OpsEventPublisher;
 import com.oneops.sensor.util.EventContext;
 import com.oneops.sensor.util.EventConverter;
+import com.oneops.sensor.util.OpenEventRegistry;
 
 /**
  * The listener interface for receiving closeEvent events.
@@ -54,6 +55,8 @@ public class CloseEventListener implements UpdateListener {
     private CiStateProcessor ciStateProcessor;
     private OpsEventPublisher opsEventPub;
     private boolean orphanEventEnabled = true;
+    private OpsEventListener opsEventListener;
+    private OpenEventRegistry openEventRegistry;
 
     /**
      * Sets the ops event pub.
@@ -94,38 +97,53 @@ public class CloseEventListener implements UpdateListener {
         for (EventBean eBean : newEvents) {
             OpsCloseEvent event = (OpsCloseEvent) eBean.getUnderlying();
             logger.info("close event  for " + event.getCiId() + " :" + event.getName());
-            OpsEvent openEvent = event.getOpenEvent();
-            event.setOpenEvent(null);
             event.setTimestamp(System.currentTimeMillis());
-            String payload = gson.toJson(EventConverter.convert(event));
-            logger.debug(payload);
-            opsEventDao.persistOpsEvent(event.getCiId(), event.getName(), event.getTimestamp(), payload);
-            long lastOpenId = opsEventDao.getCiOpenEventId(event.getCiId(), event.getName());
-            boolean publishedMessage = false;
-            if (lastOpenId > 0) {
-                EventContext eventContext = new EventContext(event);
-                eventContext.setPayload(payload);
-                handleEvent(eventContext);
-                publishedMessage = true;
+            //the open events of the ci may still wait for a batch, the close event is queued behind them
+            if (opsEventListener == null || !opsEventListener.submit(event)) {
+                handleCloseEvent(event);
             }
-            else {
-            	if (orphanEventEnabled) {
-            		//if there was no open event to close, it could mean that the OpsEventListener is not executed yet.
-                	//this may lead to an inconsistency between esper and cassandra states for this event. 
-                	//so save this event as orphan so that the OrphanEventHandler will process this later
-                	logger.warn("no open event found to close - ciId : " + event.getCiId() + 
-                			", eventName : " + event.getName() + ", marking this as orphan close event");
-                	OpenEvent opsOpenEvent = new OpenEvent();
-                	opsOpenEvent.setOpsEvent(openEvent);
-                	opsOpenEvent.setTimestamp(System.currentTimeMillis());
-                	String openEventPayload = gson.toJson(opsOpenEvent);
-                	opsEventDao.addOrphanCloseEventForCi(event.getCiId(), event.getName(), event.getManifestId(), openEventPayload);	
-            	}
-            }
-            logger.info("close event  for " + event.getCiId() + " :" + event.getName() + " :lastOpenId: " + lastOpenId + " :publishedMessage: " + publishedMessage);
         }
     }
 
+    /**
+     * Persists the close event and removes the open event it closes.
+     *
+     * @param event the close event
+     */
+    void handleCloseEvent(OpsCloseEvent event) {
+        OpsEvent openEvent = event.getOpenEvent();
+        event.setOpenEvent(null);
+        if (openEventRegistry != null) {
+            openEventRegistry.closed(event.getCiId(), event.getName());
+        }
+        String payload = gson.toJson(EventConverter.convert(event));
+        logger.debug(payload);
+        opsEventDao.persistOpsEvent(event.getCiId(), event.getName(), event.getTimestamp(), payload);
+        long lastOpenId = opsEventDao.getCiOpenEventId(event.getCiId(), event.getName());
+        boolean publishedMessage = false;
+        if (lastOpenId > 0) {
+            EventContext eventContext = new EventContext(event);
+            eventContext.setPayload(payload);
+            handleEvent(eventContext);
+            publishedMessage = true;
+        }
+        else {
+        	if (orphanEventEnabled) {
+        		//if there was no open event to close, it could mean that the OpsEventListener is not executed yet.
+            	//this may lead to an inconsistency between esper and cassandra states for this event. 
+            	//so save this event as orphan so that the OrphanEventHandler will process this later
+            	logger.warn("no open event found to close - ciId : " + event.getCiId() + 
+            			", eventName : " + event.getName() + ", marking this as orphan close event");
+            	OpenEvent opsOpenEvent = new OpenEvent();
+            	opsOpenEvent.setOpsEvent(openEvent);
+            	opsOpenEvent.setTimestamp(System.currentTimeMillis());
+            	String openEventPayload = gson.toJson(opsOpenEvent);
+            	opsEventDao.addOrphanCloseEventForCi(event.getCiId(), event.getName(), event.getManifestId(), openEventPayload);	
+        	}
+        }
+        logger.info("close event  for " + event.getCiId() + " :" + event.getName() + " :lastOpenId: " + lastOpenId + " :publishedMessage: " + publishedMessage);
+    }
+
     private void handleEvent(EventContext eventContext) {
         OpsCloseEvent event = (OpsCloseEvent) eventContext.getEvent();
         ciStateProcessor.updateState4CloseEvent(eventContext);
@@ -155,4 +173,22 @@ public class CloseEventListener implements UpdateListener {
 		this.ciStateProcessor = ciStateProcessor;
 	}
 
+	/**
+	 * Sets the listener batching the open events, close events are handled in order with them.
+	 *
+	 * @param opsEventListener the ops event listener
+	 */
+	public void setOpsEventListener(OpsEventListener opsEventListener) {
+		this.opsEventListener = opsEventListener;
+	}
+
+	/**
+	 * Sets the in memory open events of this instance, the closed events are removed from it.
+	 *
+	 * @param openEventRegistry the open event registry
+	 */
+	public void setOpenEventRegistry(OpenEventRegistry openEventRegistry) {
+		this.openEventRegistry = openEventRegistry;
+	}
+
 }
@@ -18,9 +18,14 @@
 package com.oneops.sensor.listeners;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.log4j.Logger;
@@ -40,12 +45,17 @@ import com.oneops.ops.dao.OpsEventDao;
 import com.oneops.ops.dao.PerfDataAccessor;
 import com.oneops.ops.dao.PerfHeaderDao;
 import com.oneops.ops.events.CiChangeStateEvent;
+import com.oneops.ops.events.CiOpenEvent;
+import com.oneops.ops.events.OpsBaseEvent;
+import com.oneops.ops.events.OpsCloseEvent;
 import com.oneops.ops.events.OpsEvent;
 import com.oneops.ops.events.Status;
 import com.oneops.sensor.CiStateProcessor;
 import com.oneops.sensor.jms.OpsEventPublisher;
+import com.oneops.sensor.util.EventBatcher;
 import com.oneops.sensor.util.EventContext;
 import com.oneops.sensor.util.EventConverter;
+import com.oneops.sensor.util.OpenEventRegistry;
 import com.oneops.sensor.util.ReplacedInstances;
 import com.oneops.sensor.util.SensorHeartBeat;
 
@@ -79,6 +89,12 @@ public class OpsEventListener implements UpdateListener {
     private CiStateProcessor ciStateProcessor;
     private long hbChannelUpTimeout = 90;
     private ReplacedInstances replacedInstances;
+    private long batchWindowMs = 0;
+    private int batchMaxSize = 500;
+    private int batchThreads = 4;
+    private EventBatcher<OpsBaseEvent> batcher;
+    private CloseEventListener closeEventListener;
+    private OpenEventRegistry openEventRegistry;
 
     public void init() {
         String chdelay = System.getProperty("com.oneops.sensor.channel.uptimedelay");
@@ -90,6 +106,70 @@ public class OpsEventListener implements UpdateListener {
             heartbeatPerfDataPoints = Integer.valueOf(heartbeatCheckProperty.trim());
             logger.info("using property : sensor.heartbeat.datacheck.minperfevents = " + heartbeatCheckProperty);
         }
+        if (batchWindowMs > 0) {
+            batcher = new EventBatcher<>("opsEvents", batchThreads, batchMaxSize, batchWindowMs, OpsBaseEvent::getCiId, this::handleEvents);
+        }
+    }
+
+    /**
+     * Handles the events still waiting for a batch.
+     */
+    public void cleanup() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+    }
+
+    /**
+     * Sets the time events wait to be handled in one batch with the other events of the window,
+     * 0 handles every event on its own.
+     *
+     * @param batchWindowMs the batch window in millis
+     */
+    public void setBatchWindowMs(long batchWindowMs) {
+        this.batchWindowMs = batchWindowMs;
+    }
+
+    /**
+     * Sets the listener handling the close events queued behind the open events of their ci.
+     *
+     * @param closeEventListener the close event listener
+     */
+    public void setCloseEventListener(CloseEventListener closeEventListener) {
+        this.closeEventListener = closeEventListener;
+    }
+
+    /**
+     * Queues a close event behind the open events of its ci that are waiting for a batch, so it
+     * is never handled before them.
+     *
+     * @param event the close event
+     * @return false if the events are not batched and the close event has to be handled by the caller
+     */
+    public boolean submit(OpsCloseEvent event) {
+        if (batcher == null || closeEventListener == null) {
+            return false;
+        }
+        batcher.submit(event);
+        return true;
+    }
+
+    /**
+     * Sets the max number of events handled in one batch.
+     *
+     * @param batchMaxSize the max batch size
+     */
+    public void setBatchMaxSize(int batchMaxSize) {
+        this.batchMaxSize = batchMaxSize;
+    }
+
+    /**
+     * Sets the number of threads handling the batches, the events of a ci stay on one thread.
+     *
+     * @param batchThreads the batch threads
+     */
+    public void setBatchThreads(int batchThreads) {
+        this.batchThreads = batchThreads;
     }
 
     /**
@@ -246,8 +326,11 @@ public class OpsEventListener implements UpdateListener {
                 logger.warn(" Shifting time by more than reasonable for :" + event.getCiId() + ": " + event.getSource() + "timestamp : " + timestamp + " reminder: " + reminder);
             }
             event.setTimestamp(timestamp);
-            EventContext eventContext = new EventContext(event);
-            handleEvent(eventContext);
+            if (batcher != null) {
+                batcher.submit(event);
+            } else {
+                handleEvent(new EventContext(event));
+            }
             timeShifter++;
         }
     }
@@ -256,6 +339,9 @@ public class OpsEventListener implements UpdateListener {
         OpsEvent event = (OpsEvent)eventContext.getEvent();
         ciStateProcessor.updateState4OpenEvent(eventContext);
         boolean isNew = opsEventDao.addOpenEventForCi(event.getCiId(), event.getName(), event.getTimestamp(), event.getCiState());
+        if (openEventRegistry != null) {
+            openEventRegistry.opened(event, isNew);
+        }
         if (logger.isDebugEnabled()) {
         	logger.debug("persisted open event ->" + event.getCiId() + " name : " + event.getName() + " state : " + event.getState() + " isNew " + isNew);
         }
@@ -268,6 +354,122 @@ public class OpsEventListener implements UpdateListener {
             event.setStatus(Status.EXISTING);
         }
 
+        CiChangeStateEvent ciEvent = persistAndCreateStateEvent(eventContext);
+
+        if (eventContext.isStateChanged()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("state changed ci -> " + event.getCiId() + ", old state : " + eventContext.getOldState() + ", new state : " + eventContext.getNewState());
+            }
+            coProcessor.persistCiStateChange(event.getCiId(), event.getManifestId(), ciEvent, event.getTimestamp(), eventContext.getStateCounterDelta());
+        }
+        opsEventPub.publishCiStateMessage(ciEvent);
+    }
+
+    /**
+     * Handles a batch of events in the submit order of each ci. A close event is handled once the
+     * open events of its ci queued before it are persisted.
+     *
+     * @param events the open and close events in submit order
+     */
+    void handleEvents(List<OpsBaseEvent> events) {
+        List<OpsEvent> openEvents = new ArrayList<>();
+        Set<Long> openCiIds = new HashSet<>();
+        for (OpsBaseEvent event : events) {
+            if (event instanceof OpsCloseEvent) {
+                if (openCiIds.contains(event.getCiId())) {
+                    handleOpenEvents(openEvents);
+                    openEvents = new ArrayList<>();
+                    openCiIds.clear();
+                }
+                closeEventListener.handleCloseEvent((OpsCloseEvent) event);
+            } else {
+                openEvents.add((OpsEvent) event);
+                openCiIds.add(event.getCiId());
+            }
+        }
+        if (!openEvents.isEmpty()) {
+            handleOpenEvents(openEvents);
+        }
+    }
+
+    /**
+     * Handles a batch of open events. The open events of all the cis are read with one multiget,
+     * the events of a ci are applied in order to its open events in memory and the resulting
+     * ci state change and manifest state counters are persisted once. Every event is still
+     * persisted and published with the state change it caused.
+     *
+     * @param events the events in submit order
+     */
+    private void handleOpenEvents(List<OpsEvent> events) {
+        Map<Long, List<OpsEvent>> ciEvents = new LinkedHashMap<>();
+        for (OpsEvent event : events) {
+            ciEvents.computeIfAbsent(event.getCiId(), k -> new ArrayList<>()).add(event);
+        }
+        Map<Long, List<CiOpenEvent>> openEvents = opsEventDao.getCiOpenEvents(new ArrayList<>(ciEvents.keySet()));
+        Map<Long, Map<String, Long>> counterDeltas = new HashMap<>();
+
+        for (Map.Entry<Long, List<OpsEvent>> entry : ciEvents.entrySet()) {
+            long ciId = entry.getKey();
+            List<CiOpenEvent> ciOpenEvents = openEvents.containsKey(ciId) ? openEvents.get(ciId) : new ArrayList<>();
+            String oldState = coProcessor.getState(ciOpenEvents);
+            CiChangeStateEvent ciEvent = null;
+            OpsEvent lastEvent = null;
+
+            for (OpsEvent event : entry.getValue()) {
+                EventContext eventContext = new EventContext(event);
+                ciStateProcessor.updateState4OpenEvent(eventContext, ciOpenEvents);
+                boolean isNew = !hasOpenEvent(ciOpenEvents, event.getName());
+                if (isNew) {
+                    opsEventDao.putOpenEventForCi(ciId, event.getName(), event.getTimestamp(), event.getCiState());
+                    ciOpenEvents = eventContext.getOpenEvents();
+                    event.setStatus(Status.NEW);
+                } else {
+                    event.setStatus(Status.EXISTING);
+                }
+                if (openEventRegistry != null) {
+                    openEventRegistry.opened(event, isNew);
+                }
+                ciEvent = persistAndCreateStateEvent(eventContext);
+                lastEvent = event;
+                opsEventPub.publishCiStateMessage(ciEvent);
+            }
+
+            String newState = coProcessor.getState(ciOpenEvents);
+            if (!oldState.equals(newState)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("state changed ci -> " + ciId + ", old state : " + oldState + ", new state : " + newState);
+                }
+                CiChangeStateEvent stateEvent = new CiChangeStateEvent();
+                stateEvent.setCiId(ciId);
+                stateEvent.setOldState(oldState);
+                stateEvent.setNewState(newState);
+                stateEvent.setPayLoad(ciEvent.getPayLoad());
+                stateEvent.setTimestamp(ciEvent.getTimestamp());
+                coProcessor.persistCiStateChange(ciId, lastEvent.getManifestId(), stateEvent, lastEvent.getTimestamp(), null);
+                Map<String, Long> delta = counterDeltas.computeIfAbsent(lastEvent.getManifestId(), k -> new HashMap<>());
+                delta.merge(oldState, -1L, Long::sum);
+                delta.merge(newState, 1L, Long::sum);
+            }
+        }
+
+        for (Map.Entry<Long, Map<String, Long>> entry : counterDeltas.entrySet()) {
+            Map<String, Long> delta = entry.getValue();
+            delta.values().removeIf(value -> value == 0);
+            coProcessor.changeManifestStateCounters(entry.getKey(), delta);
+        }
+    }
+
+    private boolean hasOpenEvent(List<CiOpenEvent> openEvents, String name) {
+        for (CiOpenEvent openEvent : openEvents) {
+            if (name.equals(openEvent.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CiChangeStateEvent persistAndCreateStateEvent(EventContext eventContext) {
+        OpsEvent event = (OpsEvent) eventContext.getEvent();
         String payload = gson.toJson(EventConverter.convert(event));
         logger.debug(payload);
         opsEventDao.persistOpsEvent(event.getCiId(), event.getName(), event.getTimestamp(), payload);
@@ -279,14 +481,7 @@ public class OpsEventListener implements UpdateListener {
         //TODO change ciEvent to have notify state ?
         ciEvent.setPayLoad(payload);
         ciEvent.setTimestamp(System.currentTimeMillis());
-
-        if (eventContext.isStateChanged()) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("state changed ci -> " + event.getCiId() + ", old state : " + eventContext.getOldState() + ", new state : " + eventContext.getNewState());
-            }
-            coProcessor.persistCiStateChange(event.getCiId(), event.getManifestId(), ciEvent, event.getTimestamp(), eventContext.getStateCounterDelta());
-        }
-        opsEventPub.publishCiStateMessage(ciEvent);
+        return ciEvent;
     }
 
     private PerfDataRequest createPerfDataRequest(OpsEvent event, PerfHeader ph) {
@@ -345,4 +540,13 @@ public class OpsEventListener implements UpdateListener {
 		this.replacedInstances = replacedInstances;
 	}
 
+	/**
+	 * Sets the in memory open events of this instance, updated with the persisted open events.
+	 *
+	 * @param openEventRegistry the open event registry
+	 */
+	public void setOpenEventRegistry(OpenEventRegistry openEventRegistry) {
+		this.openEventRegistry = openEventRegistry;
+	}
+
 }
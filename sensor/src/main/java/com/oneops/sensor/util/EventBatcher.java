@@ -0,0 +1,191 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import org.apache.log4j.Logger;
+
+/**
+ * Batching stage between the esper listeners and cassandra. Events are routed to a
+ * worker by their partition key, so the events of a ci are handled in submit order by
+ * one thread. A worker hands its events to the handler in batches bounded by the max
+ * batch size and by the window since the first event of the batch. Submitting blocks
+ * when the worker queue is full.
+ *
+ * @param <T> the event type
+ */
+public class EventBatcher<T> {
+
+	private static Logger logger = Logger.getLogger(EventBatcher.class);
+	private static final long POLL_MS = 100;
+
+	private final String name;
+	private final int maxBatchSize;
+	private final long windowNanos;
+	private final ToLongFunction<T> partitioner;
+	private final Consumer<List<T>> handler;
+	private final List<Worker> workers;
+	private volatile boolean running = true;
+
+	/**
+	 * Creates the batcher and starts the worker threads.
+	 *
+	 * @param name         name used for the threads
+	 * @param threads      number of worker threads
+	 * @param maxBatchSize max events per batch
+	 * @param windowMs     max time a batch waits for more events once it has one
+	 * @param partitioner  partition key of an event
+	 * @param handler      handles a batch of events
+	 */
+	public EventBatcher(String name, int threads, int maxBatchSize, long windowMs,
+						ToLongFunction<T> partitioner, Consumer<List<T>> handler) {
+		this.name = name;
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+		this.partitioner = partitioner;
+		this.handler = handler;
+		this.workers = new ArrayList<>();
+		for (int i = 0; i < Math.max(1, threads); i++) {
+			Worker worker = new Worker(this.maxBatchSize * 16);
+			Thread thread = new Thread(worker, "event-batcher-" + name + "-" + i);
+			thread.setDaemon(true);
+			worker.thread = thread;
+			workers.add(worker);
+			thread.start();
+		}
+		logger.info("Started event batcher " + name + " threads:" + workers.size()
+				+ " maxBatchSize:" + this.maxBatchSize + " windowMs:" + windowMs);
+	}
+
+	/**
+	 * Submits an event, blocks while the queue of its worker is full.
+	 *
+	 * @param event the event
+	 */
+	public void submit(T event) {
+		if (!running) {
+			throw new IllegalStateException("event batcher " + name + " is shut down");
+		}
+		long key = partitioner.applyAsLong(event);
+		Worker worker = workers.get((int) ((key & Long.MAX_VALUE) % workers.size()));
+		try {
+			worker.queue.put(event);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while submitting to event batcher " + name, e);
+		}
+	}
+
+	/**
+	 * Gets the number of events waiting for a batch.
+	 *
+	 * @return pending events
+	 */
+	public int pending() {
+		int pending = 0;
+		for (Worker worker : workers) {
+			pending += worker.queue.size();
+		}
+		return pending;
+	}
+
+	/**
+	 * Stops accepting events and waits until the workers have handled all the pending ones.
+	 * Events put while shutting down are handled on the calling thread.
+	 */
+	public void shutdown() {
+		running = false;
+		for (Worker worker : workers) {
+			try {
+				while (worker.thread.isAlive()) {
+					worker.thread.join(TimeUnit.SECONDS.toMillis(30));
+					if (worker.thread.isAlive()) {
+						logger.warn("Event batcher " + name + " still handling " + worker.queue.size()
+								+ " pending events of " + worker.thread.getName());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.error("Interrupted while stopping event batcher " + name + ", " + pending()
+						+ " pending events not handled");
+				return;
+			}
+			List<T> rest = new ArrayList<>();
+			worker.queue.drainTo(rest);
+			if (!rest.isEmpty()) {
+				handler.accept(rest);
+			}
+		}
+		logger.info("Stopped event batcher " + name);
+	}
+
+	private class Worker implements Runnable {
+
+		private final BlockingQueue<T> queue;
+		private Thread thread;
+
+		private Worker(int capacity) {
+			this.queue = new LinkedBlockingQueue<>(capacity);
+		}
+
+		@Override
+		public void run() {
+			List<T> batch = new ArrayList<>(maxBatchSize);
+			while (running || !queue.isEmpty()) {
+				try {
+					T first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					long deadline = System.nanoTime() + windowNanos;
+					while (batch.size() < maxBatchSize) {
+						if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+							continue;
+						}
+						long waitNanos = deadline - System.nanoTime();
+						if (waitNanos <= 0 || !running) {
+							break;
+						}
+						T next = queue.poll(waitNanos, TimeUnit.NANOSECONDS);
+						if (next == null) {
+							break;
+						}
+						batch.add(next);
+					}
+					handler.accept(batch);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (Exception e) {
+					logger.error("Event batcher " + name + " failed to handle " + batch.size() + " events", e);
+				} finally {
+					if (!batch.isEmpty()) {
+						batch = new ArrayList<>(maxBatchSize);
+					}
+				}
+			}
+		}
+	}
+}
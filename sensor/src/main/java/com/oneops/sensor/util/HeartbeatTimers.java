@@ -0,0 +1,190 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor.util;
+
+import com.oneops.ops.events.OpsEvent;
+import com.oneops.sensor.domain.MissingHeartbeatEvent;
+import com.oneops.sensor.domain.ThresholdStatements;
+import com.oneops.sensor.events.PerfEvent;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import org.apache.log4j.Logger;
+
+/**
+ * Missing heartbeat, heartbeat retrigger, delayed perf event and channel down timers.
+ * The timers live in timing wheels keyed by ci id and source or by channel, only the
+ * expirations are sent to esper:
+ * <ul>
+ * <li>a PerfEvent of a heartbeat threshold starts the missing heartbeat timer of its ci and source,
+ * when it expires an open heartbeat OpsEvent is sent wrapped in a {@link MissingHeartbeatEvent}</li>
+ * <li>an open heartbeat OpsEvent starts a retrigger timer which sends it again every 15 minutes</li>
+ * <li>any PerfEvent of the ci and source ends the retrigger</li>
+ * <li>a PerfEvent starts the timer of its channel, when it expires a {@link ChannelDownEvent} is sent</li>
+ * </ul>
+ */
+public class HeartbeatTimers {
+
+	private static Logger logger = Logger.getLogger(HeartbeatTimers.class);
+
+	public static final long RETRIGGER_MS = TimeUnit.MINUTES.toMillis(15);
+
+	private static final long TICK_MS = 1000;
+	private static final String HEARTBEAT = "heartbeat";
+
+	private final TimingWheel ciTimers;
+	private final TimingWheel channelTimers;
+	private final long channelDownMs;
+	private final BiFunction<Long, String, ThresholdStatements> thresholds;
+	private final Consumer<Object> engine;
+
+	/**
+	 * Creates the timers.
+	 *
+	 * @param clock         current time in millis
+	 * @param channelDownMs time without PerfEvents after which a channel is down
+	 * @param thresholds    loaded threshold statements by manifest id and source
+	 * @param engine        sends an event to esper
+	 */
+	public HeartbeatTimers(LongSupplier clock, long channelDownMs,
+						   BiFunction<Long, String, ThresholdStatements> thresholds, Consumer<Object> engine) {
+		this.ciTimers = new TimingWheel(TICK_MS, 4096, 16, clock);
+		this.channelTimers = new TimingWheel(TICK_MS, 64, 1, clock);
+		this.channelDownMs = channelDownMs;
+		this.thresholds = thresholds;
+		this.engine = engine;
+	}
+
+	/**
+	 * Tracks a PerfEvent sent to esper.
+	 *
+	 * @param event the event
+	 */
+	public void onPerfEvent(PerfEvent event) {
+		String key = key(event.getCiId(), event.getSource());
+		ThresholdStatements stmts = thresholds.apply(event.getManifestId(), event.getSource());
+		long durationMs = stmts != null && stmts.isHeartbeat() ? hbDurationMs(stmts) : 0;
+		if (durationMs > 0) {
+			ciTimers.schedule(key, durationMs, () -> missingHeartbeat(event, stmts));
+		} else {
+			// ends the retrigger of an open heartbeat event
+			ciTimers.cancel(key);
+		}
+		String channel = event.getChannel();
+		if (channel != null) {
+			channelTimers.schedule(channel, channelDownMs, () -> channelDown(channel));
+		}
+	}
+
+	/**
+	 * Tracks an open heartbeat OpsEvent sent to esper.
+	 *
+	 * @param event the event
+	 */
+	public void onOpenHeartbeat(OpsEvent event) {
+		ciTimers.schedule(key(event.getCiId(), event.getSource()), RETRIGGER_MS, () -> retrigger(event));
+	}
+
+	/**
+	 * Sends a PerfEvent to esper after a delay.
+	 *
+	 * @param event    the event
+	 * @param delaySec delay in seconds
+	 */
+	public void delay(PerfEvent event, int delaySec) {
+		ciTimers.schedule(null, TimeUnit.SECONDS.toMillis(delaySec), () -> {
+			engine.accept(event);
+			onPerfEvent(event);
+		});
+	}
+
+	/**
+	 * Runs the expired timers.
+	 */
+	public void advance() {
+		ciTimers.advance();
+		channelTimers.advance();
+	}
+
+	/**
+	 * Gets the number of pending timers.
+	 *
+	 * @return pending timers
+	 */
+	public int size() {
+		return ciTimers.size() + channelTimers.size();
+	}
+
+	private void missingHeartbeat(PerfEvent lastEvent, ThresholdStatements stmts) {
+		if (thresholds.apply(lastEvent.getManifestId(), lastEvent.getSource()) != stmts) {
+			// the threshold was changed or removed since the timer was started
+			return;
+		}
+		OpsEvent event = new OpsEvent();
+		event.setCiId(lastEvent.getCiId());
+		event.setManifestId(lastEvent.getManifestId());
+		event.setChannel(lastEvent.getChannel());
+		event.setTimestamp(lastEvent.getTimestamp());
+		event.setState("open");
+		event.setType(HEARTBEAT);
+		event.setSource(lastEvent.getSource());
+		event.setName(lastEvent.getSource() + ":Heartbeat");
+		event.setCiState("unhealthy");
+		send(event);
+	}
+
+	private void retrigger(OpsEvent trigger) {
+		OpsEvent event = new OpsEvent();
+		event.setCiId(trigger.getCiId());
+		event.setManifestId(trigger.getManifestId());
+		event.setChannel(trigger.getChannel());
+		event.setTimestamp(trigger.getTimestamp());
+		event.setState(trigger.getState());
+		event.setType(HEARTBEAT);
+		event.setSource(trigger.getSource());
+		event.setName(trigger.getName());
+		event.setCiState(trigger.getCiState());
+		send(event);
+	}
+
+	private void send(OpsEvent event) {
+		engine.accept(new MissingHeartbeatEvent(event));
+		onOpenHeartbeat(event);
+	}
+
+	private void channelDown(String channel) {
+		ChannelDownEvent event = new ChannelDownEvent();
+		event.setChannel(channel);
+		engine.accept(event);
+	}
+
+	private static String key(long ciId, String source) {
+		// the ci id has no separator, so ci 12 and source 3x can't collide with ci 123 and source x
+		return ciId + ":" + source;
+	}
+
+	private long hbDurationMs(ThresholdStatements stmts) {
+		try {
+			return (long) (Double.parseDouble(stmts.getHbDuration()) * TimeUnit.MINUTES.toMillis(1));
+		} catch (RuntimeException e) {
+			logger.error("Invalid heartbeat duration " + stmts.getHbDuration());
+			return 0;
+		}
+	}
+}
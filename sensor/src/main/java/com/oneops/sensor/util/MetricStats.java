@@ -0,0 +1,65 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor.util;
+
+import com.oneops.sensor.events.PerfEventPayload;
+
+import java.util.Map;
+
+/**
+ * Single row functions used by the shared threshold statements, where the
+ * stat and metric name come from the threshold row rather than the EPL text.
+ */
+public class MetricStats {
+
+    /**
+     * Resolves {@code metrics.<stat>('<metric>')} the same way the per manifest
+     * EPL does; a missing stat map or metric yields null.
+     *
+     * @param metrics perf event payload
+     * @param stat    stat name (avg, min, max, sum, count)
+     * @param metric  metric name
+     * @return metric value or null
+     */
+    public static Double value(PerfEventPayload metrics, String stat, String metric) {
+        if (metrics == null || stat == null) {
+            return null;
+        }
+        Map<String, Double> values;
+        switch (stat) {
+            case "avg":
+                values = metrics.getAvg();
+                break;
+            case "min":
+                values = metrics.getMin();
+                break;
+            case "max":
+                values = metrics.getMax();
+                break;
+            case "sum":
+                values = metrics.getSum();
+                break;
+            case "count":
+                values = metrics.getCount();
+                break;
+            default:
+                return null;
+        }
+        return values == null ? null : values.get(metric);
+    }
+}
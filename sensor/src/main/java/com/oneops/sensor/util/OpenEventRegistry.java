@@ -0,0 +1,85 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.sensor.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.oneops.ops.events.OpsEvent;
+
+/**
+ * The open events of this sensor instance kept in memory, seeded on start and updated as the
+ * listeners persist open events and remove closed ones. The state snapshot is written from here, the
+ * open events in cassandra are only read again when a snapshot is restored.
+ */
+public class OpenEventRegistry {
+
+    private final ConcurrentMap<String, OpsEvent> openEvents = new ConcurrentHashMap<>();
+
+    /**
+     * Replaces the open events with the loaded ones.
+     *
+     * @param events the open events
+     */
+    public void seed(Collection<OpsEvent> events) {
+        openEvents.clear();
+        for (OpsEvent event : events) {
+            openEvents.put(key(event.getCiId(), event.getName()), event);
+        }
+    }
+
+    /**
+     * Records an open event, an event of an already open event keeps the event that opened it.
+     *
+     * @param event the open event
+     * @param isNew whether the event opened a new event for the ci
+     */
+    public void opened(OpsEvent event, boolean isNew) {
+        String key = key(event.getCiId(), event.getName());
+        if (isNew) {
+            openEvents.put(key, event);
+        } else {
+            openEvents.putIfAbsent(key, event);
+        }
+    }
+
+    /**
+     * Removes the open event of the ci.
+     *
+     * @param ciId the ci id
+     * @param name the event name
+     */
+    public void closed(long ciId, String name) {
+        openEvents.remove(key(ciId, name));
+    }
+
+    public List<OpsEvent> getOpenEvents() {
+        return new ArrayList<>(openEvents.values());
+    }
+
+    public int size() {
+        return openEvents.size();
+    }
+
+    private static String key(long ciId, String name) {
+        return ciId + name;
+    }
+}
@@ -59,6 +59,17 @@ public class SensorHeartBeat {
 		return result;
 	}
 
+	/**
+	 * Restores the channel states from a snapshot, channels seen since the start are kept.
+	 *
+	 * @param channels the channel states by name
+	 */
+	public void restore(Map<String, ChannelState> channels) {
+		for (Entry<String, ChannelState> entry : channels.entrySet()) {
+			heartBeat.putIfAbsent(entry.getKey(), entry.getValue());
+		}
+	}
+
 	public long getNumChannelsDown() {
 		return heartBeat.entrySet().stream().filter(e->e.getValue().isDown()).count();
 	}
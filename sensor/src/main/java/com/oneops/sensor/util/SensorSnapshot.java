@@ -0,0 +1,163 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor.util;
+
+import com.google.gson.Gson;
+import com.oneops.ops.events.OpsEvent;
+import com.oneops.sensor.thresholds.Threshold;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * State of a sensor instance written to a local file, so a restarted instance
+ * can load its thresholds and open events without reading them all from cassandra.
+ */
+public class SensorSnapshot {
+
+	private static Logger logger = Logger.getLogger(SensorSnapshot.class);
+
+	private static final Gson gson = new Gson();
+
+	private int instanceId;
+	private int poolSize;
+	private long timestamp;
+	private List<Threshold> thresholds = new ArrayList<>();
+	private List<OpsEvent> openEvents = new ArrayList<>();
+	private Map<String, ChannelState> channels = new HashMap<>();
+
+	public int getInstanceId() {
+		return instanceId;
+	}
+
+	public void setInstanceId(int instanceId) {
+		this.instanceId = instanceId;
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	/**
+	 * Gets the time the snapshot was taken, open events changed later are read from cassandra.
+	 *
+	 * @return the snapshot time in millis
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public List<Threshold> getThresholds() {
+		return thresholds;
+	}
+
+	public void setThresholds(List<Threshold> thresholds) {
+		this.thresholds = thresholds;
+	}
+
+	public List<OpsEvent> getOpenEvents() {
+		return openEvents;
+	}
+
+	public void setOpenEvents(List<OpsEvent> openEvents) {
+		this.openEvents = openEvents;
+	}
+
+	public Map<String, ChannelState> getChannels() {
+		return channels;
+	}
+
+	public void setChannels(Map<String, ChannelState> channels) {
+		this.channels = channels;
+	}
+
+	/**
+	 * Checks the snapshot was taken by the same instance of a pool of the same size.
+	 *
+	 * @param instanceId the instance id
+	 * @param poolSize   the pool size
+	 * @return true if the snapshot holds the manifests of the instance
+	 */
+	public boolean isFor(int instanceId, int poolSize) {
+		return this.instanceId == instanceId && this.poolSize == poolSize;
+	}
+
+	/**
+	 * Writes the snapshot to a temp file and renames it, so a crash never leaves a partial snapshot.
+	 *
+	 * @param file the snapshot file
+	 * @throws IOException if the snapshot can not be written
+	 */
+	public void write(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can not create snapshot dir " + dir);
+		}
+		File tmp = new File(dir, file.getName() + ".tmp");
+		try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tmp), 64 * 1024), StandardCharsets.UTF_8)) {
+			gson.toJson(this, writer);
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Reads a snapshot file.
+	 *
+	 * @param file the snapshot file
+	 * @return the snapshot or null if there is no readable snapshot
+	 */
+	public static SensorSnapshot read(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try (Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file), 64 * 1024), StandardCharsets.UTF_8)) {
+			return gson.fromJson(reader, SensorSnapshot.class);
+		} catch (Exception e) {
+			logger.error("Can not read sensor snapshot " + file + ", will load the state from cassandra", e);
+			return null;
+		}
+	}
+}
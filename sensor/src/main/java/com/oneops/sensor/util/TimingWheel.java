@@ -0,0 +1,237 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import org.apache.log4j.Logger;
+
+/**
+ * Hashed timing wheel. A timer costs one entry linked into the slot of its deadline tick,
+ * scheduling and cancelling are O(1) and one tick only visits the entries of its slot.
+ * Timers with a key replace the pending timer of the same key. The wheel is striped by
+ * key hash so the threads scheduling timers do not contend on one lock. Expired tasks
+ * run on the thread calling {@link #advance()}.
+ */
+public class TimingWheel {
+
+	private static Logger logger = Logger.getLogger(TimingWheel.class);
+
+	private final long tickMs;
+	private final int mask;
+	private final LongSupplier clock;
+	private final Stripe[] stripes;
+
+	/**
+	 * Creates the wheel.
+	 *
+	 * @param tickMs    tick duration, the timers resolution
+	 * @param wheelSize number of slots, rounded up to a power of 2
+	 * @param stripes   number of independently locked stripes
+	 * @param clock     current time in millis
+	 */
+	public TimingWheel(long tickMs, int wheelSize, int stripes, LongSupplier clock) {
+		int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+		this.tickMs = tickMs;
+		this.mask = size - 1;
+		this.clock = clock;
+		this.stripes = new Stripe[stripes];
+		long tick = clock.getAsLong() / tickMs;
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new Stripe(size, tick);
+		}
+	}
+
+	/**
+	 * Schedules a task, a pending task of the same key is cancelled.
+	 *
+	 * @param key     the timer key, null for a timer which can not be cancelled
+	 * @param delayMs delay in millis
+	 * @param task    the task to run when the timer expires
+	 */
+	public void schedule(Object key, long delayMs, Runnable task) {
+		long deadlineTick = (clock.getAsLong() + delayMs + tickMs - 1) / tickMs;
+		stripeOf(key).schedule(new Entry(key, deadlineTick, task));
+	}
+
+	/**
+	 * Cancels the pending timer of the key.
+	 *
+	 * @param key the timer key
+	 * @return true if a timer was cancelled
+	 */
+	public boolean cancel(Object key) {
+		return stripeOf(key).cancel(key);
+	}
+
+	/**
+	 * Gets the number of pending timers.
+	 *
+	 * @return pending timers
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Moves the wheel to the current time and runs the expired tasks in deadline order.
+	 * Must be called by one thread at a time.
+	 */
+	public void advance() {
+		long tick = clock.getAsLong() / tickMs;
+		List<Entry> expired = new ArrayList<>();
+		for (Stripe stripe : stripes) {
+			stripe.expire(tick, expired);
+		}
+		if (expired.size() > 1) {
+			expired.sort((a, b) -> Long.compare(a.deadlineTick, b.deadlineTick));
+		}
+		for (Entry entry : expired) {
+			try {
+				entry.task.run();
+			} catch (Exception e) {
+				logger.error("Timer task for " + entry.key + " failed", e);
+			}
+		}
+	}
+
+	private Stripe stripeOf(Object key) {
+		if (key == null) {
+			return stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+		}
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[(h & 0x7fffffff) % stripes.length];
+	}
+
+	private static final class Entry {
+		private final Object key;
+		private final long deadlineTick;
+		private final Runnable task;
+		private int slot;
+		private Entry prev;
+		private Entry next;
+
+		private Entry(Object key, long deadlineTick, Runnable task) {
+			this.key = key;
+			this.deadlineTick = deadlineTick;
+			this.task = task;
+		}
+	}
+
+	private final class Stripe {
+		private final Entry[] slots;
+		private final Map<Object, Entry> byKey = new HashMap<>();
+		private long lastTick;
+		private int size;
+
+		private Stripe(int wheelSize, long tick) {
+			this.slots = new Entry[wheelSize];
+			this.lastTick = tick;
+		}
+
+		private synchronized void schedule(Entry entry) {
+			if (entry.key != null) {
+				Entry old = byKey.put(entry.key, entry);
+				if (old != null) {
+					unlink(old);
+				}
+			}
+			link(entry);
+		}
+
+		private synchronized boolean cancel(Object key) {
+			Entry entry = byKey.remove(key);
+			if (entry == null) {
+				return false;
+			}
+			unlink(entry);
+			return true;
+		}
+
+		private synchronized int size() {
+			return size;
+		}
+
+		private synchronized void expire(long tick, List<Entry> expired) {
+			if (tick <= lastTick) {
+				return;
+			}
+			if (tick - lastTick > slots.length) {
+				// a full rotation or more, every slot is visited once
+				for (int slot = 0; slot < slots.length; slot++) {
+					expireSlot(slot, tick, expired);
+				}
+			} else {
+				for (long t = lastTick + 1; t <= tick; t++) {
+					expireSlot((int) (t & mask), t, expired);
+				}
+			}
+			lastTick = tick;
+		}
+
+		private void expireSlot(int slot, long tick, List<Entry> expired) {
+			Entry entry = slots[slot];
+			while (entry != null) {
+				Entry next = entry.next;
+				if (entry.deadlineTick <= tick) {
+					unlink(entry);
+					if (entry.key != null) {
+						byKey.remove(entry.key);
+					}
+					expired.add(entry);
+				}
+				entry = next;
+			}
+		}
+
+		private void link(Entry entry) {
+			// a timer already due expires on the next tick
+			long deadlineTick = Math.max(entry.deadlineTick, lastTick + 1);
+			entry.slot = (int) (deadlineTick & mask);
+			entry.prev = null;
+			entry.next = slots[entry.slot];
+			if (entry.next != null) {
+				entry.next.prev = entry;
+			}
+			slots[entry.slot] = entry;
+			size++;
+		}
+
+		private void unlink(Entry entry) {
+			if (entry.prev != null) {
+				entry.prev.next = entry.next;
+			} else {
+				slots[entry.slot] = entry.next;
+			}
+			if (entry.next != null) {
+				entry.next.prev = entry.prev;
+			}
+			entry.prev = null;
+			entry.next = null;
+			size--;
+		}
+	}
+}
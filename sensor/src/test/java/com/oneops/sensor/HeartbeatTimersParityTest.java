@@ -0,0 +1,263 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor;
+
+import com.espertech.esper.client.Configuration;
+import com.espertech.esper.client.EPServiceProvider;
+import com.espertech.esper.client.EPServiceProviderManager;
+import com.espertech.esper.client.EventBean;
+import com.espertech.esper.client.time.CurrentTimeEvent;
+import com.oneops.ops.events.OpsCloseEvent;
+import com.oneops.ops.events.OpsEvent;
+import com.oneops.sensor.domain.DelayedPerfEvent;
+import com.oneops.sensor.domain.MissingHeartbeatEvent;
+import com.oneops.sensor.domain.ThresholdStatements;
+import com.oneops.sensor.events.PerfEvent;
+import com.oneops.sensor.listeners.ChannelDownListener;
+import com.oneops.sensor.util.ChannelDownEvent;
+import com.oneops.sensor.util.HeartbeatTimers;
+import com.oneops.sensor.util.SensorHeartBeat;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.oneops.sensor.StmtBuilder.STMT_CHANNELDOWN;
+import static com.oneops.sensor.StmtBuilder.STMT_MISSING_HEARTBEAT;
+import static com.oneops.sensor.StmtBuilder.STMT_RESET_HEARTBEAT;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Replays the same PerfEvents through the esper heartbeat, retrigger, delay and channel down
+ * patterns and through the HeartbeatTimers driven by the same clock, and compares the emitted
+ * heartbeat events and the channel states.
+ */
+public class HeartbeatTimersParityTest {
+
+    private static final long START = 1_500_000_000_000L;
+    private static final int MANIFESTS = 10;
+    private static final int CIS_PER_MANIFEST = 4;
+    private static final int MINUTES = 60;
+    private static final String SOURCE = "compute-load";
+    private static final String HB_DURATION = "2";
+    private static final String[] CHANNELS = {"ch-0", "ch-1", "ch-2"};
+
+    // the esper patterns the HeartbeatTimers replaced
+    private static final String STMT_RETRIGGER_HEARTBEAT = "insert into OpsEvent select hbtrigger.ciId as ciId,  hbtrigger.manifestId as manifestId,hbtrigger.channel as channel, hbtrigger.timestamp as timestamp, hbtrigger.state as state, 'heartbeat' as type, hbtrigger.source as source, hbtrigger.name as name, hbtrigger.ciState as ciState  from pattern [every hbtrigger=OpsEvent(state = 'open' and type = 'heartbeat') -> (timer:interval(15 min) and not PerfEvent(ciId = hbtrigger.ciId and source = hbtrigger.source))]";
+    private static final String STMT_TRIGGER_CHANNELDOWN = "insert into ChannelDownEvent select lastEvent.channel as channel from pattern [(every lastEvent=PerfEvent()) -> (timer:interval(15 sec) and not PerfEvent(channel = lastEvent.channel))]";
+    private static final String STMT_DELAY_PERF_EVENT = "insert into PerfEvent select delayedEvent.perfEvent from pattern [(every delayedEvent=DelayedPerfEvent -> timer:interval(delayedEvent.delay sec))]";
+
+    private final StmtBuilder builder = new StmtBuilder();
+    private final AtomicLong clock = new AtomicLong(START);
+    private final Map<Long, ThresholdStatements> thresholds = new HashMap<>();
+
+    private EPServiceProvider oldEngine;
+    private EPServiceProvider newEngine;
+    private HeartbeatTimers timers;
+    private final SensorHeartBeat oldChannels = new SensorHeartBeat();
+    private final SensorHeartBeat newChannels = new SensorHeartBeat();
+    private final List<String> oldEvents = new ArrayList<>();
+    private final List<String> newEvents = new ArrayList<>();
+
+    @BeforeClass
+    public void init() {
+        oldEngine = newEngine("hb-parity-old", oldEvents);
+        newEngine = newEngine("hb-parity-new", newEvents);
+        timers = new HeartbeatTimers(clock::get, 15_000,
+                (manifestId, source) -> SOURCE.equals(source) ? thresholds.get(manifestId) : null,
+                newEngine.getEPRuntime()::sendEvent);
+
+        oldEngine.getEPAdministrator().createEPL(STMT_RETRIGGER_HEARTBEAT);
+        oldEngine.getEPAdministrator().createEPL(STMT_DELAY_PERF_EVENT);
+        oldEngine.getEPAdministrator().createEPL(STMT_TRIGGER_CHANNELDOWN);
+        // the pattern also fires for PerfEvents without a channel
+        oldEngine.getEPAdministrator().createEPL("select * from ChannelDownEvent(channel is not null)")
+                .addListener(channelDownListener(oldChannels));
+        newEngine.getEPAdministrator().createEPL(STMT_MISSING_HEARTBEAT);
+        newEngine.getEPAdministrator().createEPL(STMT_CHANNELDOWN).addListener(channelDownListener(newChannels));
+
+        for (long manifestId = 1; manifestId <= MANIFESTS; manifestId++) {
+            boolean isHeartbeat = manifestId % 2 == 1;
+            ThresholdStatements stmts = builder.getThresholdStatements(manifestId, SOURCE, 1, null, isHeartbeat, HB_DURATION);
+            assertTrue(stmts.getStatements().isEmpty());
+            thresholds.put(manifestId, stmts);
+            if (isHeartbeat) {
+                oldEngine.getEPAdministrator().createEPL(heartbeatStmt(manifestId));
+            }
+        }
+    }
+
+    private static String heartbeatStmt(long manifestId) {
+        return "insert into OpsEvent select lastEvent.ciId as ciId, lastEvent.manifestId as manifestId, lastEvent.channel as channel, "
+                + "lastEvent.timestamp as timestamp, 'open' as state, 'heartbeat' as type, lastEvent.source as source, "
+                + "lastEvent.source || ':Heartbeat' as name, 'unhealthy' as ciState from pattern [(every lastEvent=PerfEvent(source = '"
+                + SOURCE + "' and manifestId = " + manifestId + ")) -> (timer:interval(" + HB_DURATION
+                + " min) and not PerfEvent(ciId = lastEvent.ciId and source = lastEvent.source))]";
+    }
+
+    @AfterClass
+    public void cleanup() {
+        oldEngine.destroy();
+        newEngine.destroy();
+    }
+
+    @Test
+    public void replayProducesSameHeartbeatEvents() {
+        for (long manifestId = 1; manifestId <= MANIFESTS; manifestId++) {
+            for (int ci = 0; ci < CIS_PER_MANIFEST; ci++) {
+                long ciId = manifestId * 100 + ci;
+                if (ci == 3) {
+                    // seeded like a sensor start without open events
+                    delay(ciId, manifestId, 1 + (int) (ciId % 29));
+                } else if (ci == 2 && manifestId == 1) {
+                    // seeded like a sensor start with an open heartbeat event
+                    sendOpenHeartbeat(ciId, manifestId);
+                }
+            }
+        }
+
+        for (int second = 1; second <= MINUTES * 60; second++) {
+            advance(START + second * 1000L);
+            int minute = second / 60;
+            for (long manifestId = 1; manifestId <= MANIFESTS; manifestId++) {
+                for (int ci = 0; ci < CIS_PER_MANIFEST; ci++) {
+                    long ciId = manifestId * 100 + ci;
+                    if (second % 60 != ciId % 60) {
+                        continue;
+                    }
+                    if (ci == 1 && minute >= 10 && minute < 40) {
+                        // outage long enough for two retriggers
+                        continue;
+                    }
+                    if (ci == 2 && minute >= 20) {
+                        // gone for good
+                        continue;
+                    }
+                    if (ci == 3 && minute < 5) {
+                        continue;
+                    }
+                    send(perfEvent(ciId, manifestId, CHANNELS[(int) (ciId % CHANNELS.length)]));
+                }
+            }
+        }
+
+        assertTrue(oldEvents.stream().anyMatch(e -> e.contains("|open|")));
+        assertTrue(oldEvents.stream().anyMatch(e -> e.endsWith("|close")));
+        assertTrue(oldEvents.stream().anyMatch(e -> e.startsWith("down|")));
+        Collections.sort(oldEvents);
+        Collections.sort(newEvents);
+        assertEquals(newEvents, oldEvents);
+        for (String channel : CHANNELS) {
+            assertEquals(newChannels.isUp(channel), oldChannels.isUp(channel), channel);
+        }
+    }
+
+    private EPServiceProvider newEngine(String uri, List<String> out) {
+        Configuration cfg = new Configuration();
+        cfg.addEventType("PerfEvent", PerfEvent.class.getName());
+        cfg.addEventType("DelayedPerfEvent", DelayedPerfEvent.class.getName());
+        cfg.addEventType("MissingHeartbeatEvent", MissingHeartbeatEvent.class.getName());
+        cfg.addEventType("OpsEvent", OpsEvent.class.getName());
+        cfg.addEventType("OpsCloseEvent", OpsCloseEvent.class.getName());
+        cfg.addEventType("ChannelDownEvent", ChannelDownEvent.class.getName());
+        cfg.getEngineDefaults().getThreading().setInternalTimerEnabled(false);
+        EPServiceProvider ep = EPServiceProviderManager.getProvider(uri, cfg);
+        ep.getEPRuntime().sendEvent(new CurrentTimeEvent(START));
+        ep.getEPAdministrator().createEPL("select * from OpsEvent(type = 'heartbeat')").addListener((events, old) -> {
+            for (EventBean bean : events) {
+                OpsEvent e = (OpsEvent) bean.getUnderlying();
+                out.add(ep.getEPRuntime().getCurrentTime() + "|" + e.getCiId() + "|" + e.getManifestId() + "|" + e.getSource() + "|"
+                        + e.getName() + "|" + e.getState() + "|" + e.getCiState() + "|" + e.getChannel() + "|" + e.getTimestamp());
+            }
+        });
+        ep.getEPAdministrator().createEPL(STMT_RESET_HEARTBEAT).addListener((events, old) -> {
+            for (EventBean bean : events) {
+                OpsCloseEvent e = (OpsCloseEvent) bean.getUnderlying();
+                out.add(ep.getEPRuntime().getCurrentTime() + "|" + e.getCiId() + "|" + e.getName() + "|" + e.getState());
+            }
+        });
+        ep.getEPAdministrator().createEPL("select * from ChannelDownEvent(channel is not null)").addListener((events, old) -> {
+            for (EventBean bean : events) {
+                out.add("down|" + ep.getEPRuntime().getCurrentTime() + "|" + ((ChannelDownEvent) bean.getUnderlying()).getChannel());
+            }
+        });
+        return ep;
+    }
+
+    private ChannelDownListener channelDownListener(SensorHeartBeat channels) {
+        ChannelDownListener listener = new ChannelDownListener();
+        listener.setSensorHeartBeat(channels);
+        return listener;
+    }
+
+    private void advance(long time) {
+        clock.set(time);
+        oldEngine.getEPRuntime().sendEvent(new CurrentTimeEvent(time));
+        newEngine.getEPRuntime().sendEvent(new CurrentTimeEvent(time));
+        timers.advance();
+    }
+
+    private void send(PerfEvent event) {
+        oldChannels.timeStampIt(event.getChannel());
+        newChannels.timeStampIt(event.getChannel());
+        oldEngine.getEPRuntime().sendEvent(event);
+        newEngine.getEPRuntime().sendEvent(event);
+        timers.onPerfEvent(event);
+    }
+
+    private void delay(long ciId, long manifestId, int delaySec) {
+        PerfEvent event = perfEvent(ciId, manifestId, null);
+        DelayedPerfEvent delayed = new DelayedPerfEvent();
+        delayed.setPerfEvent(event);
+        delayed.setDelay(delaySec);
+        oldEngine.getEPRuntime().sendEvent(delayed);
+        timers.delay(event, delaySec);
+    }
+
+    private void sendOpenHeartbeat(long ciId, long manifestId) {
+        OpsEvent event = new OpsEvent();
+        event.setCiId(ciId);
+        event.setManifestId(manifestId);
+        event.setSource(SOURCE);
+        event.setName(SOURCE + ":Heartbeat");
+        event.setTimestamp(clock.get());
+        event.setState("open");
+        event.setType("heartbeat");
+        event.setCiState("unhealthy");
+        oldEngine.getEPRuntime().sendEvent(event);
+        newEngine.getEPRuntime().sendEvent(event);
+        timers.onOpenHeartbeat(event);
+    }
+
+    private PerfEvent perfEvent(long ciId, long manifestId, String channel) {
+        PerfEvent event = new PerfEvent();
+        event.setCiId(ciId);
+        event.setManifestId(manifestId);
+        event.setSource(SOURCE);
+        event.setChannel(channel);
+        event.setTimestamp(clock.get());
+        return event;
+    }
+}
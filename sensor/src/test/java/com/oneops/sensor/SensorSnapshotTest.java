@@ -0,0 +1,491 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor;
+
+import com.espertech.esper.client.UpdateListener;
+import com.google.gson.Gson;
+import com.oneops.ops.CiOpsProcessor;
+import com.oneops.ops.dao.OpsEventDao;
+import com.oneops.ops.events.CiOpenEvent;
+import com.oneops.ops.events.OpsEvent;
+import com.oneops.sensor.thresholds.Threshold;
+import com.oneops.sensor.thresholds.ThresholdDef;
+import com.oneops.sensor.thresholds.ThresholdDef.StmtParams;
+import com.oneops.sensor.thresholds.ThresholdsDao;
+import com.oneops.sensor.util.OpenEventRegistry;
+import com.oneops.sensor.util.SensorSnapshot;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+import rx.Observable;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Restarts a sensor from cassandra and from its snapshot. The daos are served from memory and every
+ * cassandra read costs a simulated round trip, so the restart times compare the reads of both paths.
+ */
+public class SensorSnapshotTest {
+
+    private static final Logger logger = Logger.getLogger(SensorSnapshotTest.class);
+
+    private static final long ROUND_TRIP_NANOS = 200_000;
+    private static final int MANIFESTS = 2000;
+    private static final int CIS_PER_MANIFEST = 50;
+    private static final String CPU = "compute-cpu";
+    private static final String HEARTBEAT = "compute-hb";
+
+    private final Gson gson = new Gson();
+
+    @Test
+    public void restartFromSnapshotBenchmark() throws Exception {
+        File dir = Files.createTempDirectory("sensor-snapshot").toFile();
+        FakeCassandra db = new FakeCassandra();
+        String cpuJson = cpuThresholds();
+        long eventId = 1_500_000_000_000L;
+        for (long manifestId = 1; manifestId <= MANIFESTS; manifestId++) {
+            db.addThreshold(threshold(manifestId, CPU, 100, cpuJson, false));
+            if (manifestId % 10 == 0) {
+                db.addThreshold(threshold(manifestId, HEARTBEAT, 200, "n", true));
+            }
+            for (int i = 0; i < CIS_PER_MANIFEST; i++) {
+                long ciId = manifestId * 1000 + i;
+                db.addCi(manifestId, ciId);
+                if (ciId % 20 == 0) {
+                    db.addOpenEvent(openEvent(ciId, CPU, "HighCpuUtil", "metric", eventId++));
+                } else if (manifestId % 10 == 0 && ciId % 50 == 1) {
+                    db.addOpenEvent(openEvent(ciId, HEARTBEAT, "Heartbeat", "heartbeat", eventId++));
+                }
+            }
+        }
+        assertEquals(db.ciCount(), MANIFESTS * CIS_PER_MANIFEST);
+
+        Sensor cold = sensor("snapshot-bench-cold", db, dir, true);
+        db.roundTrips.set(0);
+        long start = System.nanoTime();
+        cold.init(1, 1);
+        long coldMs = (System.nanoTime() - start) / 1_000_000;
+        int coldReads = db.roundTrips.get();
+        cold.writeSnapshot();
+        SensorSnapshot first = SensorSnapshot.read(cold.getSnapshotFile());
+        Set<String> coldStmts = cold.getAllLoadedStmts().keySet();
+        cold.stop();
+
+        assertNotNull(first);
+        assertEquals(first.getThresholds().size(), MANIFESTS + MANIFESTS / 10);
+        assertEquals(first.getOpenEvents().size(), db.openEventCount());
+
+        Sensor warm = sensor("snapshot-bench-warm", db, dir, true);
+        db.roundTrips.set(0);
+        start = System.nanoTime();
+        warm.init(1, 1);
+        long warmMs = (System.nanoTime() - start) / 1_000_000;
+        int warmReads = db.roundTrips.get();
+        assertEquals(new TreeSet<>(warm.getAllLoadedStmts().keySet()), new TreeSet<>(coldStmts));
+        warm.writeSnapshot();
+        SensorSnapshot second = SensorSnapshot.read(warm.getSnapshotFile());
+        warm.stop();
+
+        assertEquals(thresholds(second), thresholds(first));
+        assertEquals(events(second), events(first));
+        logger.info("restart of " + db.ciCount() + " cis: from cassandra " + coldMs + " ms, " + coldReads
+                + " reads; from snapshot " + warmMs + " ms, " + warmReads + " reads");
+        assertTrue(warmReads * 100 < coldReads, "reads from snapshot " + warmReads + " vs " + coldReads);
+        assertTrue(warmMs < coldMs, "restart from snapshot " + warmMs + " ms vs " + coldMs + " ms");
+    }
+
+    @Test
+    public void restoreReconcilesWithCassandra() throws Exception {
+        File dir = Files.createTempDirectory("sensor-snapshot").toFile();
+        FakeCassandra db = new FakeCassandra();
+        String cpuJson = cpuThresholds();
+        for (long manifestId = 1; manifestId <= 3; manifestId++) {
+            db.addThreshold(threshold(manifestId, CPU, 100, cpuJson, false));
+            db.addCi(manifestId, manifestId * 10 + 1);
+        }
+        db.addCi(4, 41);
+        db.addOpenEvent(openEvent(11, CPU, "HighCpuUtil", "metric", 1000));
+        db.addOpenEvent(openEvent(21, CPU, "HighCpuUtil", "metric", 1001));
+
+        Sensor cold = sensor("snapshot-reconcile-cold", db, dir, false);
+        cold.init(1, 1);
+        cold.writeSnapshot();
+        cold.stop();
+
+        // changes made after the snapshot
+        db.addThreshold(threshold(1, CPU, 101, cpuJson, false));
+        db.thresholds.remove(key(2, CPU));
+        db.addThreshold(threshold(4, CPU, 100, cpuJson, false));
+        db.removeOpenEvent(11, CPU + ":HighCpuUtil");
+        db.addOpenEvent(openEvent(31, CPU, "HighCpuUtil", "metric", 1002));
+        db.eventReads.set(0);
+
+        Sensor warm = sensor("snapshot-reconcile-warm", db, dir, false);
+        warm.init(1, 1);
+        // only the event opened after the snapshot is read
+        assertEquals(db.eventReads.get(), 1);
+        // only the open events of the cis of the restored manifests
+        assertEquals(db.ciReads.get(), 3);
+
+        String added = CPU + ":HighCpuUtil-4-trigger";
+        String removed = CPU + ":HighCpuUtil-2-trigger";
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline
+                && !(warm.getAllLoadedStmts().containsKey(added) && !warm.getAllLoadedStmts().containsKey(removed))) {
+            Thread.sleep(50);
+        }
+        assertTrue(warm.getAllLoadedStmts().containsKey(added));
+        assertFalse(warm.getAllLoadedStmts().containsKey(removed));
+
+        warm.writeSnapshot();
+        SensorSnapshot snapshot = SensorSnapshot.read(warm.getSnapshotFile());
+        warm.stop();
+        Map<String, Long> crcs = thresholds(snapshot);
+        assertEquals(crcs.get(key(1, CPU)), Long.valueOf(101));
+        assertFalse(crcs.containsKey(key(2, CPU)));
+        assertEquals(crcs.get(key(3, CPU)), Long.valueOf(100));
+        assertEquals(crcs.get(key(4, CPU)), Long.valueOf(100));
+        assertEquals(events(snapshot), new TreeSet<>(java.util.Arrays.asList(
+                "21" + CPU + ":HighCpuUtil@1001", "31" + CPU + ":HighCpuUtil@1002")));
+    }
+
+    @Test
+    public void snapshotFromMemory() throws Exception {
+        File dir = Files.createTempDirectory("sensor-snapshot").toFile();
+        FakeCassandra db = new FakeCassandra();
+        String cpuJson = cpuThresholds();
+        for (long manifestId = 1; manifestId <= 3; manifestId++) {
+            db.addThreshold(threshold(manifestId, CPU, 100, cpuJson, false));
+            db.addCi(manifestId, manifestId * 10 + 1);
+        }
+        db.addOpenEvent(openEvent(11, CPU, "HighCpuUtil", "metric", 1000));
+        db.addOpenEvent(openEvent(21, CPU, "HighCpuUtil", "metric", 1001));
+
+        OpenEventRegistry registry = new OpenEventRegistry();
+        Sensor sensor = sensor("snapshot-memory", db, dir, false);
+        sensor.setOpenEventRegistry(registry);
+        sensor.init(1, 1);
+        assertEquals(registry.size(), 2);
+
+        // events handled by the listeners after the load
+        registry.closed(11, CPU + ":HighCpuUtil");
+        OpsEvent opened = openEvent(31, CPU, "HighCpuUtil", "metric", 1002);
+        opened.setManifestId(3);
+        registry.opened(opened, true);
+        registry.opened(openEvent(21, CPU, "HighCpuUtil", "metric", 1003), false);
+
+        db.roundTrips.set(0);
+        sensor.writeSnapshot();
+        assertEquals(db.roundTrips.get(), 0);
+        SensorSnapshot snapshot = SensorSnapshot.read(sensor.getSnapshotFile());
+        sensor.stop();
+        assertEquals(events(snapshot), new TreeSet<>(java.util.Arrays.asList(
+                "21" + CPU + ":HighCpuUtil@1001", "31" + CPU + ":HighCpuUtil@1002")));
+    }
+
+    @Test
+    public void sharedStatementsDestroyedWithLastThreshold() throws Exception {
+        File dir = Files.createTempDirectory("sensor-snapshot").toFile();
+        FakeCassandra db = new FakeCassandra();
+        String cpuJson = cpuThresholds();
+        for (long manifestId = 1; manifestId <= 2; manifestId++) {
+            db.addThreshold(threshold(manifestId, CPU, 100, cpuJson, false));
+            db.addCi(manifestId, manifestId * 10 + 1);
+        }
+        Sensor sensor = sensor("snapshot-shared", db, dir, true);
+        CiOpsProcessor coProcessor = mock(CiOpsProcessor.class);
+        when(coProcessor.removeManifestMap4CiRemoval(anyLong(), anyLong())).thenReturn(0);
+        sensor.setCoProcessor(coProcessor);
+        sensor.init(1, 1);
+        int shared = sensor.getSharedStmtCount();
+        assertTrue(shared > 0);
+        Set<String> shapeStmts = shapeStmts(sensor);
+        assertEquals(shapeStmts.size(), shared);
+
+        // still used by the other manifest
+        sensor.removeCi(11, 1);
+        assertEquals(sensor.getSharedStmtCount(), shared);
+        assertEquals(shapeStmts(sensor), shapeStmts);
+
+        sensor.removeCi(21, 2);
+        assertEquals(sensor.getSharedStmtCount(), 0);
+        assertTrue(shapeStmts(sensor).isEmpty());
+        sensor.stop();
+    }
+
+    private static Set<String> shapeStmts(Sensor sensor) {
+        Set<String> names = new TreeSet<>();
+        for (String name : sensor.getEpService().getEPAdministrator().getStatementNames()) {
+            if (name.startsWith("shape-")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private Sensor sensor(String uri, FakeCassandra db, File dir, boolean sharedStatements) {
+        StmtBuilder stmtBuilder = new StmtBuilder();
+        stmtBuilder.setSharedStatements(sharedStatements);
+        Map<String, UpdateListener> listeners = new HashMap<>();
+        listeners.put("OpsEventListener", mock(UpdateListener.class));
+        listeners.put("CloseEventListener", mock(UpdateListener.class));
+        listeners.put("ChannelDownListener", mock(UpdateListener.class));
+
+        Sensor sensor = new Sensor();
+        sensor.setEngineUri(uri);
+        sensor.setStmtBuilder(stmtBuilder);
+        sensor.setListeners(listeners);
+        sensor.setTsDao(db.tsDao());
+        sensor.setOpsEventDao(db.opsEventDao());
+        sensor.setCiStateProcessor(mock(CiStateProcessor.class));
+        sensor.setLoadStatementTimeOut(1);
+        sensor.setHeartbeatRandomDelay(30);
+        sensor.setSnapshotDir(dir.getAbsolutePath());
+        return sensor;
+    }
+
+    private static Map<String, Long> thresholds(SensorSnapshot snapshot) {
+        Map<String, Long> crcs = new TreeMap<>();
+        for (Threshold tr : snapshot.getThresholds()) {
+            crcs.put(key(tr.getManifestId(), tr.getSource()), tr.getCrc());
+        }
+        return crcs;
+    }
+
+    private static Set<String> events(SensorSnapshot snapshot) {
+        Set<String> events = new TreeSet<>();
+        for (OpsEvent event : snapshot.getOpenEvents()) {
+            events.add(event.getCiId() + event.getName() + "@" + event.getTimestamp());
+        }
+        return events;
+    }
+
+    private static String key(long manifestId, String source) {
+        return manifestId + ":" + source;
+    }
+
+    private static Threshold threshold(long manifestId, String source, long crc, String json, boolean isHeartbeat) {
+        Threshold tr = new Threshold();
+        tr.setManifestId(manifestId);
+        tr.setSource(source);
+        tr.setCrc(crc);
+        tr.setThresholdJson(json);
+        tr.setHeartbeat(isHeartbeat);
+        tr.setHbDuration(isHeartbeat ? "3" : null);
+        return tr;
+    }
+
+    private static OpsEvent openEvent(long ciId, String source, String threshold, String type, long timestamp) {
+        OpsEvent event = new OpsEvent();
+        event.setCiId(ciId);
+        event.setSource(source);
+        event.setName(source + ":" + threshold);
+        event.setType(type);
+        event.setState("open");
+        event.setCiState("notify");
+        event.setTimestamp(timestamp);
+        return event;
+    }
+
+    private String cpuThresholds() {
+        Map<String, ThresholdDef> defs = new HashMap<>();
+        ThresholdDef def = new ThresholdDef();
+        def.setBucket("1m");
+        def.setStat("avg");
+        def.setMetric("CpuIdle");
+        def.setState("notify");
+        def.setCooloff("15");
+        def.setTrigger(params("<=", 20, 2, 5));
+        def.setReset(params(">", 30, 1, 5));
+        defs.put("HighCpuUtil", def);
+        return gson.toJson(defs);
+    }
+
+    private static StmtParams params(String operator, double value, int numocc, int duration) {
+        StmtParams params = new ThresholdDef().new StmtParams();
+        params.setOperator(operator);
+        params.setValue(value);
+        params.setNumocc(numocc);
+        params.setDuration(duration);
+        return params;
+    }
+
+    /**
+     * Thresholds, manifest maps and open events served from memory by mocked daos.
+     */
+    private static class FakeCassandra {
+
+        private final Map<String, Threshold> thresholds = new ConcurrentHashMap<>();
+        private final Map<Long, List<Long>> manifestCis = new TreeMap<>();
+        private final Map<Long, Long> ciManifests = new HashMap<>();
+        private final Map<Long, Map<String, OpsEvent>> openEvents = new TreeMap<>();
+        private final AtomicInteger roundTrips = new AtomicInteger();
+        private final AtomicInteger eventReads = new AtomicInteger();
+        private final AtomicInteger ciReads = new AtomicInteger();
+
+        void addThreshold(Threshold tr) {
+            thresholds.put(key(tr.getManifestId(), tr.getSource()), tr);
+        }
+
+        void addCi(long manifestId, long ciId) {
+            manifestCis.computeIfAbsent(manifestId, k -> new ArrayList<>()).add(ciId);
+            ciManifests.put(ciId, manifestId);
+        }
+
+        void addOpenEvent(OpsEvent event) {
+            openEvents.computeIfAbsent(event.getCiId(), k -> new TreeMap<>()).put(event.getName(), event);
+        }
+
+        void removeOpenEvent(long ciId, String name) {
+            openEvents.get(ciId).remove(name);
+            if (openEvents.get(ciId).isEmpty()) {
+                openEvents.remove(ciId);
+            }
+        }
+
+        int ciCount() {
+            return ciManifests.size();
+        }
+
+        int openEventCount() {
+            return openEvents.values().stream().mapToInt(Map::size).sum();
+        }
+
+        private void roundTrip() {
+            roundTrips.incrementAndGet();
+            LockSupport.parkNanos(ROUND_TRIP_NANOS);
+        }
+
+        private OpsEvent readEvent(long ciId, String name) {
+            roundTrip();
+            eventReads.incrementAndGet();
+            Map<String, OpsEvent> events = openEvents.get(ciId);
+            OpsEvent event = events == null ? null : events.get(name);
+            // the dao deserializes a new event on every read
+            return event == null ? null : new Gson().fromJson(new Gson().toJson(event), OpsEvent.class);
+        }
+
+        ThresholdsDao tsDao() {
+            ThresholdsDao tsDao = mock(ThresholdsDao.class);
+            when(tsDao.getAllThreshold(anyInt())).thenAnswer(inv -> {
+                int batchSize = (Integer) inv.getArguments()[0];
+                List<Threshold> all = new ArrayList<>(new TreeMap<>(thresholds).values());
+                return Observable.create(sub -> {
+                    for (int i = 0; i < all.size(); i++) {
+                        if (i % batchSize == 0) {
+                            roundTrip();
+                        }
+                        sub.onNext(all.get(i));
+                    }
+                    sub.onCompleted();
+                });
+            });
+            when(tsDao.getThreshold(anyLong(), anyString())).thenAnswer(inv -> {
+                roundTrip();
+                return thresholds.get(key((Long) inv.getArguments()[0], (String) inv.getArguments()[1]));
+            });
+            when(tsDao.getManifestId(anyLong())).thenAnswer(inv -> {
+                roundTrip();
+                return ciManifests.get((Long) inv.getArguments()[0]);
+            });
+            when(tsDao.getManifestCiIds(anyLong())).thenAnswer(inv -> {
+                roundTrip();
+                List<Long> ciIds = manifestCis.get((Long) inv.getArguments()[0]);
+                return ciIds == null ? new ArrayList<Long>() : new ArrayList<>(ciIds);
+            });
+            when(tsDao.getManifestCiIds(anyListOf(Long.class))).thenAnswer(inv -> {
+                roundTrip();
+                Map<Long, List<Long>> result = new HashMap<>();
+                for (Object manifestId : (List<?>) inv.getArguments()[0]) {
+                    List<Long> ciIds = manifestCis.get(manifestId);
+                    if (ciIds != null) {
+                        result.put((Long) manifestId, new ArrayList<>(ciIds));
+                    }
+                }
+                return result;
+            });
+            return tsDao;
+        }
+
+        OpsEventDao opsEventDao() {
+            OpsEventDao opsEventDao = mock(OpsEventDao.class);
+            when(opsEventDao.getOpenEvents(anyInt())).thenAnswer(inv -> Observable.create(sub -> {
+                for (Map.Entry<Long, Map<String, OpsEvent>> entry : openEvents.entrySet()) {
+                    for (String name : entry.getValue().keySet()) {
+                        sub.onNext(readEvent(entry.getKey(), name));
+                    }
+                }
+                sub.onCompleted();
+            }));
+            when(opsEventDao.getCiOpenEvents(anyListOf(Long.class))).thenAnswer(inv -> {
+                roundTrip();
+                Map<Long, List<CiOpenEvent>> result = new HashMap<>();
+                for (Object ciId : (List<?>) inv.getArguments()[0]) {
+                    ciReads.incrementAndGet();
+                    Map<String, OpsEvent> events = openEvents.get(ciId);
+                    if (events == null) {
+                        continue;
+                    }
+                    List<CiOpenEvent> ciEvents = new ArrayList<>();
+                    for (OpsEvent event : events.values()) {
+                        CiOpenEvent ciEvent = new CiOpenEvent();
+                        ciEvent.setName(event.getName());
+                        ciEvent.setState(event.getCiState());
+                        ciEvent.setTimestamp(event.getTimestamp());
+                        ciEvents.add(ciEvent);
+                    }
+                    result.put((Long) ciId, ciEvents);
+                }
+                return result;
+            });
+            when(opsEventDao.getOpsEvent(anyString(), anyLong())).thenAnswer(inv -> {
+                String key = (String) inv.getArguments()[0];
+                for (Map.Entry<Long, Map<String, OpsEvent>> entry : openEvents.entrySet()) {
+                    String ciId = String.valueOf(entry.getKey());
+                    if (key.startsWith(ciId) && entry.getValue().containsKey(key.substring(ciId.length()))) {
+                        return readEvent(entry.getKey(), key.substring(ciId.length()));
+                    }
+                }
+                roundTrip();
+                return null;
+            });
+            return opsEventDao;
+        }
+    }
+}
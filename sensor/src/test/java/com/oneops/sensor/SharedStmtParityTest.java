@@ -0,0 +1,254 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor;
+
+import com.espertech.esper.client.Configuration;
+import com.espertech.esper.client.EPServiceProvider;
+import com.espertech.esper.client.EPServiceProviderManager;
+import com.espertech.esper.client.EventBean;
+import com.espertech.esper.client.time.CurrentTimeEvent;
+import com.google.gson.Gson;
+import com.oneops.ops.events.OpsEvent;
+import com.oneops.sensor.domain.SensorStatement;
+import com.oneops.sensor.domain.ThresholdRow;
+import com.oneops.sensor.domain.ThresholdStatements;
+import com.oneops.sensor.events.PerfEvent;
+import com.oneops.sensor.thresholds.ThresholdDef;
+import com.oneops.sensor.thresholds.ThresholdDef.StmtParams;
+import com.oneops.sensor.util.MetricStats;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.oneops.sensor.StmtBuilder.STMT_THRESHOLD_DELETE;
+import static com.oneops.sensor.StmtBuilder.STMT_THRESHOLD_INSERT;
+import static com.oneops.sensor.StmtBuilder.STMT_THRESHOLD_WINDOW;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Replays the same synthetic PerfEvents through the per manifest statements and
+ * the shared (per threshold shape) statements and compares the emitted OpsEvents.
+ */
+public class SharedStmtParityTest {
+
+    private static final long START = 1_500_000_000_000L;
+    private static final int MANIFESTS = 20;
+    private static final int CIS_PER_MANIFEST = 3;
+    private static final int MINUTES = 90;
+    private static final String CPU = "compute-cpu";
+    private static final String MEM = "compute-mem";
+
+    private final Gson gson = new Gson();
+    private final StmtBuilder perManifest = new StmtBuilder();
+    private final StmtBuilder shared = new StmtBuilder();
+
+    private EPServiceProvider oldEngine;
+    private EPServiceProvider newEngine;
+    private final List<String> oldEvents = new ArrayList<>();
+    private final List<String> newEvents = new ArrayList<>();
+
+    @BeforeClass
+    public void init() {
+        perManifest.setSharedStatements(false);
+        shared.setSharedStatements(true);
+        oldEngine = newEngine("parity-old", oldEvents);
+        newEngine = newEngine("parity-new", newEvents);
+        newEngine.getEPAdministrator().createEPL(STMT_THRESHOLD_WINDOW, "thresholdWindow");
+        newEngine.getEPAdministrator().createEPL(STMT_THRESHOLD_INSERT, "thresholdInsert");
+        newEngine.getEPAdministrator().createEPL(STMT_THRESHOLD_DELETE, "thresholdDelete");
+    }
+
+    @AfterClass
+    public void cleanup() {
+        oldEngine.destroy();
+        newEngine.destroy();
+    }
+
+    @Test
+    public void replayProducesSameOpsEvents() {
+        String cpuJson = cpuThresholds();
+        String memJson = memThresholds();
+        for (long manifestId = 1; manifestId <= MANIFESTS; manifestId++) {
+            loadOld(perManifest.getThresholdStatements(manifestId, CPU, 1, cpuJson, false, null));
+            loadOld(perManifest.getThresholdStatements(manifestId, MEM, 1, memJson, false, null));
+            loadNew(shared.getThresholdStatements(manifestId, CPU, 1, cpuJson, false, null));
+            loadNew(shared.getThresholdStatements(manifestId, MEM, 1, memJson, false, null));
+        }
+
+        int oldStmts = oldEngine.getEPAdministrator().getStatementNames().length;
+        int newStmts = newEngine.getEPAdministrator().getStatementNames().length;
+        assertTrue(newStmts < oldStmts, "shared statements " + newStmts + " vs per manifest " + oldStmts);
+
+        Random random = new Random(42);
+        for (int minute = 0; minute < MINUTES; minute++) {
+            if (minute == MINUTES / 2) {
+                // Drop the cpu thresholds of one manifest half way through
+                removeOld(1, CPU, cpuJson);
+                newEngine.getEPRuntime().sendEvent(shared.buildDeleteRow(1, CPU));
+            }
+            for (int tick = 0; tick < 4; tick++) {
+                advance(START + minute * 60_000L + tick * 15_000L);
+            }
+            for (long manifestId = 1; manifestId <= MANIFESTS; manifestId++) {
+                for (int ci = 0; ci < CIS_PER_MANIFEST; ci++) {
+                    long ciId = manifestId * 100 + ci;
+                    send(cpuEvent(ciId, manifestId, random));
+                    if (minute % 5 == 0) {
+                        send(memEvent(ciId, manifestId, random));
+                    }
+                }
+            }
+        }
+        advance(START + MINUTES * 60_000L);
+
+        assertTrue(oldEvents.stream().anyMatch(e -> e.contains("|open|")));
+        assertTrue(oldEvents.stream().anyMatch(e -> e.contains("|reset|")));
+        Collections.sort(oldEvents);
+        Collections.sort(newEvents);
+        assertEquals(newEvents, oldEvents);
+    }
+
+    private EPServiceProvider newEngine(String uri, List<String> out) {
+        Configuration cfg = new Configuration();
+        cfg.addEventType("PerfEvent", PerfEvent.class.getName());
+        cfg.addEventType("OpsEvent", OpsEvent.class.getName());
+        cfg.addEventType("ThresholdRow", ThresholdRow.class.getName());
+        cfg.addImport(MetricStats.class.getName());
+        cfg.getEngineDefaults().getThreading().setInternalTimerEnabled(false);
+        EPServiceProvider ep = EPServiceProviderManager.getProvider(uri, cfg);
+        ep.getEPRuntime().sendEvent(new CurrentTimeEvent(START));
+        ep.getEPAdministrator().createEPL("select * from OpsEvent").addListener((events, old) -> {
+            for (EventBean bean : events) {
+                OpsEvent e = (OpsEvent) bean.getUnderlying();
+                out.add(ep.getEPRuntime().getCurrentTime() + "|" + e.getCiId() + "|" + e.getName() + "|" + e.getState() + "|"
+                        + e.getCiState() + "|" + e.getCount() + "|" + e.getCoolOff() + "|" + e.getTimestamp() + "|" + e.getBucket());
+            }
+        });
+        return ep;
+    }
+
+    private void loadOld(ThresholdStatements stmts) {
+        for (SensorStatement stmt : stmts.getStatements().values()) {
+            oldEngine.getEPAdministrator().createEPL(stmt.getStmtText(), stmt.getStmtName());
+        }
+    }
+
+    private void removeOld(long manifestId, String source, String json) {
+        for (String name : perManifest.getThresholdStatements(manifestId, source, 1, json, false, null).getStmtNames()) {
+            oldEngine.getEPAdministrator().getStatement(name).destroy();
+        }
+    }
+
+    private void loadNew(ThresholdStatements stmts) {
+        assertTrue(stmts.getStatements().isEmpty());
+        for (SensorStatement stmt : stmts.getSharedStatements().values()) {
+            if (newEngine.getEPAdministrator().getStatement(stmt.getStmtName()) == null) {
+                newEngine.getEPAdministrator().createEPL(stmt.getStmtText(), stmt.getStmtName());
+            }
+        }
+        for (ThresholdRow row : stmts.getRows()) {
+            newEngine.getEPRuntime().sendEvent(row);
+        }
+    }
+
+    private void advance(long time) {
+        oldEngine.getEPRuntime().sendEvent(new CurrentTimeEvent(time));
+        newEngine.getEPRuntime().sendEvent(new CurrentTimeEvent(time));
+    }
+
+    private void send(PerfEvent event) {
+        oldEngine.getEPRuntime().sendEvent(event);
+        newEngine.getEPRuntime().sendEvent(event);
+    }
+
+    private PerfEvent cpuEvent(long ciId, long manifestId, Random random) {
+        PerfEvent event = perfEvent(ciId, manifestId, CPU, "1m");
+        double idle = random.nextInt(50);
+        event.getMetrics().addAvg("CpuIdle", idle);
+        event.getMetrics().addMin("CpuIdle", idle - random.nextInt(5));
+        event.getMetrics().addAvg("Iowait", (double) random.nextInt(40));
+        return event;
+    }
+
+    private PerfEvent memEvent(long ciId, long manifestId, Random random) {
+        PerfEvent event = perfEvent(ciId, manifestId, MEM, "5m");
+        event.getMetrics().addMax("free", (double) random.nextInt(300));
+        return event;
+    }
+
+    private PerfEvent perfEvent(long ciId, long manifestId, String source, String bucket) {
+        PerfEvent event = new PerfEvent();
+        event.setCiId(ciId);
+        event.setManifestId(manifestId);
+        event.setSource(source);
+        event.setBucket(bucket);
+        event.setTimestamp(oldEngine.getEPRuntime().getCurrentTime());
+        return event;
+    }
+
+    private String cpuThresholds() {
+        Map<String, ThresholdDef> defs = new HashMap<>();
+        // HighCpuUtil and HighIowait share a trigger shape on different metrics
+        defs.put("HighCpuUtil", threshold("1m", "avg", "CpuIdle", "notify", "15",
+                params("<=", 20, 2, 5), params(">", 30, 1, 5)));
+        defs.put("HighIowait", threshold("1m", "avg", "Iowait", "notify", "15",
+                params(">=", 30, 2, 5), params("<", 10, 1, 5)));
+        defs.put("CpuCritical", threshold("1m", "min", "CpuIdle", "unhealthy", "5",
+                params("<", 3, 1, 3), params(">=", 10, 1, 1)));
+        defs.put("NoCooloff", threshold("1m", "avg", "Iowait", "notify", null,
+                params("<=", 20, 2, 5), null));
+        return gson.toJson(defs);
+    }
+
+    private String memThresholds() {
+        Map<String, ThresholdDef> defs = new HashMap<>();
+        defs.put("LowMemory", threshold("5m", "max", "free", "notify", "15",
+                params("<", 100, 2, 10), params(">", 200, 1, 10)));
+        return gson.toJson(defs);
+    }
+
+    private ThresholdDef threshold(String bucket, String stat, String metric, String state, String coolOff,
+                                   StmtParams trigger, StmtParams reset) {
+        ThresholdDef def = new ThresholdDef();
+        def.setBucket(bucket);
+        def.setStat(stat);
+        def.setMetric(metric);
+        def.setState(state);
+        def.setCooloff(coolOff);
+        def.setTrigger(trigger);
+        def.setReset(reset);
+        return def;
+    }
+
+    private StmtParams params(String operator, double value, int numocc, int duration) {
+        StmtParams params = new ThresholdDef().new StmtParams();
+        params.setOperator(operator);
+        params.setValue(value);
+        params.setNumocc(numocc);
+        params.setDuration(duration);
+        return params;
+    }
+}
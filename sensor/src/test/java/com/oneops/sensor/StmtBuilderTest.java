@@ -146,21 +146,6 @@ public class StmtBuilderTest {
 
     }
 
-    @Test
-    public void buildHeartbeatStmtTest() {
-
-        String hbStmt = "insert into OpsEvent select lastEvent.ciId as ciId, lastEvent.manifestId as manifestId, lastEvent.channel "
-                + "as channel, lastEvent.timestamp as timestamp, 'open' as state, 'heartbeat' as type, lastEvent.source as source, "
-                + "lastEvent.source || ':Heartbeat' as name, 'unhealthy' as ciState from pattern [(every lastEvent=PerfEvent(source = "
-                + "'inductor-compute-load' and manifestId = 4815892)) -> (timer:interval(5 min) and not PerfEvent(ciId = lastEvent.ciId"
-                + " and source = lastEvent.source))]";
-
-        StmtBuilder builder = new StmtBuilder();
-        String stmt = builder.buildHeartbeatStmt(4815892, "inductor-compute-load", "5");
-
-        assertEquals(hbStmt, stmt);
-    }
-
     private String showJson() {
         Gson gson = new Gson();
         setupParams();
@@ -17,16 +17,24 @@
  *******************************************************************************/
 package com.oneops.sensor.jms;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.jms.JMSException;
 import javax.jms.ObjectMessage;
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.mockito.ArgumentCaptor;
 import org.testng.annotations.*;
 
 import com.oneops.sensor.Sensor;
 import com.oneops.sensor.events.BasicEvent;
+import com.oneops.sensor.events.PerfEvent;
+import com.oneops.sensor.events.PerfEventBatchCodec;
 import com.oneops.sensor.jms.SensorListener;
 import com.oneops.sensor.util.SensorHeartBeat;
 
 import static org.mockito.Mockito.*;
+import static org.testng.Assert.assertEquals;
 
 
 public class SensorListenerTest {
@@ -63,4 +71,35 @@ public class SensorListenerTest {
 		
 		listen.onMessage(msg);
 	}
+
+	@Test
+	/* a batch message from the daq collector is unpacked into one cep event per event */
+	public void testOnBatchMessage() throws Exception{
+		SensorListener listen = new SensorListener();
+		Sensor sensor = mock(Sensor.class);
+		SensorHeartBeat heartBeat = mock(SensorHeartBeat.class);
+		listen.setSensor(sensor);
+		listen.setSensorHeartBeat(heartBeat);
+
+		List<BasicEvent> events = new ArrayList<BasicEvent>();
+		for (int i = 0; i < 3; i++) {
+			PerfEvent event = new PerfEvent();
+			event.setCiId(100 + i);
+			event.setSource("cpu");
+			event.setChannel("channel");
+			events.add(event);
+		}
+		ActiveMQBytesMessage msg = new ActiveMQBytesMessage();
+		msg.setStringProperty(PerfEventBatchCodec.FORMAT_PROPERTY, PerfEventBatchCodec.FORMAT);
+		msg.writeBytes(PerfEventBatchCodec.encode(events));
+		msg.reset();
+
+		listen.onMessage(msg);
+
+		ArgumentCaptor<BasicEvent> captor = ArgumentCaptor.forClass(BasicEvent.class);
+		verify(sensor, times(3)).sendCEPEvent(captor.capture());
+		assertEquals(captor.getAllValues().get(2).getCiId(), 102);
+		verify(heartBeat, times(3)).timeStampIt("channel");
+	}
 }
+
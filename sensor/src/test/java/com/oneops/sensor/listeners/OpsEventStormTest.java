@@ -0,0 +1,320 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor.listeners;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import com.espertech.esper.client.EventBean;
+import com.espertech.esper.event.bean.BeanEventBean;
+import com.oneops.ops.CiOpsProcessor;
+import com.oneops.ops.dao.OpsCiStateDao;
+import com.oneops.ops.dao.OpsEventDao;
+import com.oneops.ops.events.CiChangeStateEvent;
+import com.oneops.ops.events.CiOpenEvent;
+import com.oneops.ops.events.OpsCloseEvent;
+import com.oneops.ops.events.OpsEvent;
+import com.oneops.sensor.CiStateProcessor;
+import com.oneops.sensor.jms.OpsEventPublisher;
+import com.oneops.sensor.thresholds.ThresholdsDao;
+import com.oneops.sensor.util.ReplacedInstances;
+
+/**
+ * Replays an alert storm of open and close events through the listener handling every event
+ * on its own and through the batching listener, every cassandra call costs a simulated round
+ * trip. The final open events, ci states and manifest state counters must be the same.
+ */
+public class OpsEventStormTest {
+
+	private static final Logger logger = Logger.getLogger(OpsEventStormTest.class);
+
+	private static final long ROUND_TRIP_NANOS = 200_000;
+	private static final int MANIFESTS = 10;
+	private static final int CIS_PER_MANIFEST = 20;
+	private static final int EVENTS = 4000;
+	private static final String[] NAMES = {"cpu:HighCpu", "cpu:CpuCritical", "mem:LowMemory", "disk:DiskFull"};
+	private static final String[] STATES = {"notify", "unhealthy", "overutilized", "underutilized"};
+
+	@Test
+	public void stormReplayKeepsFinalStates() throws Exception {
+		Store single = new Store();
+		OpsEventListener singleListener = listener(single, 0);
+		long singleNanos = replay(singleListener, single.closeListener);
+
+		Store batched = new Store();
+		OpsEventListener batchedListener = listener(batched, 20);
+		long start = System.nanoTime();
+		replay(batchedListener, batched.closeListener);
+		// waits for the pending batches
+		batchedListener.cleanup();
+		long batchedNanos = System.nanoTime() - start;
+
+		logger.info("storm of " + EVENTS + " events, one by one: " + rate(singleNanos) + " events/sec, "
+				+ single.roundTrips.get() + " round trips; batched: " + rate(batchedNanos) + " events/sec, "
+				+ batched.roundTrips.get() + " round trips");
+
+		assertEquals(batched.published.get(), single.published.get());
+		assertEquals(batched.orphans.get(), single.orphans.get());
+		assertEquals(batched.openEventStates(), single.openEventStates());
+		assertEquals(batched.ciStates(), single.ciStates());
+		assertEquals(batched.counters(), single.counters());
+		// close events cost the same round trips in both runs
+		assertTrue(batched.roundTrips.get() < single.roundTrips.get() / 3,
+				batched.roundTrips.get() + " vs " + single.roundTrips.get());
+	}
+
+	private long replay(OpsEventListener listener, CloseEventListener closeListener) {
+		Random random = new Random(7);
+		long start = System.nanoTime();
+		for (int i = 0; i < EVENTS; i++) {
+			// a few flapping cis get most of the events
+			int ci = random.nextInt(4) == 0 ? random.nextInt(MANIFESTS * CIS_PER_MANIFEST) : random.nextInt(8);
+			long manifestId = 1 + ci / CIS_PER_MANIFEST;
+			if (random.nextInt(10) == 0) {
+				// a close right behind the open events of the ci that may still wait for their batch
+				OpsCloseEvent close = new OpsCloseEvent();
+				close.setCiId(manifestId * 1000 + ci % CIS_PER_MANIFEST);
+				close.setManifestId(manifestId);
+				close.setType("metric");
+				close.setState("close");
+				int name = random.nextInt(NAMES.length);
+				close.setName(NAMES[name]);
+				close.setSource(NAMES[name].split(":")[0]);
+				closeListener.update(new EventBean[]{new BeanEventBean(close, null)}, null);
+				continue;
+			}
+			OpsEvent event = new OpsEvent();
+			event.setCiId(manifestId * 1000 + ci % CIS_PER_MANIFEST);
+			event.setManifestId(manifestId);
+			event.setType("metric");
+			event.setState("open");
+			int name = random.nextInt(NAMES.length);
+			event.setName(NAMES[name]);
+			event.setSource(NAMES[name].split(":")[0]);
+			event.setCiState(STATES[random.nextInt(STATES.length)]);
+			listener.update(new EventBean[]{new BeanEventBean(event, null)}, null);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long rate(long nanos) {
+		return EVENTS * 1_000_000_000L / Math.max(1, nanos);
+	}
+
+	private OpsEventListener listener(Store store, long batchWindowMs) {
+		OpsEventDao opsEventDao = store.opsEventDao();
+		OpsCiStateDao opsCiStateDao = store.opsCiStateDao();
+		ThresholdsDao tsDao = store.tsDao();
+
+		CiOpsProcessor coProcessor = new CiOpsProcessor();
+		coProcessor.setOeDao(opsEventDao);
+		coProcessor.setOpsCiStateDao(opsCiStateDao);
+		coProcessor.setTrDao(tsDao);
+
+		CiStateProcessor ciStateProcessor = new CiStateProcessor();
+		ciStateProcessor.setOpsEventDao(opsEventDao);
+		ciStateProcessor.setOpsCiStateDao(opsCiStateDao);
+		ciStateProcessor.setTsDao(tsDao);
+		ciStateProcessor.setCoProcessor(coProcessor);
+
+		OpsEventPublisher publisher = mock(OpsEventPublisher.class);
+		doAnswer(inv -> store.published.incrementAndGet()).when(publisher).publishCiStateMessage(any(CiChangeStateEvent.class));
+
+		OpsEventListener listener = new OpsEventListener();
+		listener.setOpsEventDao(opsEventDao);
+		listener.setCoProcessor(coProcessor);
+		listener.setCiStateProcessor(ciStateProcessor);
+		listener.setOpsEventPub(publisher);
+		listener.setReplacedInstances(mock(ReplacedInstances.class));
+		listener.setBatchWindowMs(batchWindowMs);
+		listener.setBatchMaxSize(200);
+		listener.setBatchThreads(4);
+
+		CloseEventListener closeListener = new CloseEventListener();
+		closeListener.setOpsEventDao(opsEventDao);
+		closeListener.setCoProcessor(coProcessor);
+		closeListener.setCiStateProcessor(ciStateProcessor);
+		closeListener.setOpsEventPub(publisher);
+		closeListener.setOpsEventListener(listener);
+		listener.setCloseEventListener(closeListener);
+		store.closeListener = closeListener;
+
+		listener.init();
+		return listener;
+	}
+
+	private static class Store {
+
+		private final Map<Long, Map<String, CiOpenEvent>> openEvents = new ConcurrentHashMap<>();
+		private final Map<Long, Map<String, Long>> counters = new ConcurrentHashMap<>();
+		private final AtomicInteger roundTrips = new AtomicInteger();
+		private final AtomicInteger published = new AtomicInteger();
+		private final AtomicInteger orphans = new AtomicInteger();
+		private CloseEventListener closeListener;
+
+		private void roundTrip() {
+			roundTrips.incrementAndGet();
+			LockSupport.parkNanos(ROUND_TRIP_NANOS);
+		}
+
+		private List<CiOpenEvent> read(long ciId) {
+			Map<String, CiOpenEvent> events = openEvents.get(ciId);
+			return events == null ? new ArrayList<>() : new ArrayList<>(events.values());
+		}
+
+		private void put(long ciId, String name, long eventId, String ciState) {
+			CiOpenEvent event = new CiOpenEvent();
+			event.setName(name);
+			event.setState(ciState);
+			event.setTimestamp(eventId);
+			openEvents.computeIfAbsent(ciId, k -> new ConcurrentHashMap<>()).put(name, event);
+		}
+
+		Map<Long, Map<String, String>> openEventStates() {
+			Map<Long, Map<String, String>> states = new TreeMap<>();
+			openEvents.forEach((ciId, events) -> {
+				Map<String, String> byName = new TreeMap<>();
+				events.forEach((name, event) -> byName.put(name, event.getState()));
+				states.put(ciId, byName);
+			});
+			return states;
+		}
+
+		Map<Long, String> ciStates() {
+			Map<Long, String> states = new TreeMap<>();
+			CiOpsProcessor coProcessor = new CiOpsProcessor();
+			openEvents.keySet().forEach(ciId -> states.put(ciId, coProcessor.getState(read(ciId))));
+			return states;
+		}
+
+		Map<Long, Map<String, Long>> counters() {
+			Map<Long, Map<String, Long>> result = new TreeMap<>();
+			counters.forEach((manifestId, delta) -> {
+				Map<String, Long> nonZero = new TreeMap<>();
+				delta.forEach((state, count) -> {
+					if (count != 0) {
+						nonZero.put(state, count);
+					}
+				});
+				result.put(manifestId, nonZero);
+			});
+			return result;
+		}
+
+		@SuppressWarnings("unchecked")
+		OpsEventDao opsEventDao() {
+			OpsEventDao dao = mock(OpsEventDao.class);
+			when(dao.getCiOpenEvents(anyLong())).thenAnswer(inv -> {
+				roundTrip();
+				return read((Long) inv.getArguments()[0]);
+			});
+			when(dao.getCiOpenEvents(anyListOf(Long.class))).thenAnswer(inv -> {
+				roundTrip();
+				Map<Long, List<CiOpenEvent>> result = new HashMap<>();
+				for (Long ciId : (List<Long>) inv.getArguments()[0]) {
+					result.put(ciId, read(ciId));
+				}
+				return result;
+			});
+			when(dao.addOpenEventForCi(anyLong(), anyString(), anyLong(), anyString())).thenAnswer(inv -> {
+				roundTrip();
+				long ciId = (Long) inv.getArguments()[0];
+				String name = (String) inv.getArguments()[1];
+				Map<String, CiOpenEvent> events = openEvents.get(ciId);
+				if (events != null && events.containsKey(name)) {
+					return false;
+				}
+				put(ciId, name, (Long) inv.getArguments()[2], (String) inv.getArguments()[3]);
+				return true;
+			});
+			doAnswer(inv -> {
+				put((Long) inv.getArguments()[0], (String) inv.getArguments()[1], (Long) inv.getArguments()[2],
+						(String) inv.getArguments()[3]);
+				return null;
+			}).when(dao).putOpenEventForCi(anyLong(), anyString(), anyLong(), anyString());
+			when(dao.getCiOpenEventId(anyLong(), anyString())).thenAnswer(inv -> {
+				roundTrip();
+				Map<String, CiOpenEvent> events = openEvents.get((Long) inv.getArguments()[0]);
+				CiOpenEvent event = events == null ? null : events.get((String) inv.getArguments()[1]);
+				return event == null ? 0L : event.getTimestamp();
+			});
+			doAnswer(inv -> {
+				roundTrip();
+				Map<String, CiOpenEvent> events = openEvents.get((Long) inv.getArguments()[0]);
+				if (events != null) {
+					events.remove((String) inv.getArguments()[1]);
+				}
+				return null;
+			}).when(dao).removeOpenEventForCi(anyLong(), anyString());
+			doAnswer(inv -> orphans.incrementAndGet()).when(dao).addOrphanCloseEventForCi(anyLong(), anyString(), anyLong(), anyString());
+			return dao;
+		}
+
+		@SuppressWarnings("unchecked")
+		OpsCiStateDao opsCiStateDao() {
+			OpsCiStateDao dao = mock(OpsCiStateDao.class);
+			doAnswer(inv -> {
+				roundTrip();
+				return null;
+			}).when(dao).persistCiStateChange(anyLong(), anyLong(), any(CiChangeStateEvent.class), anyLong());
+			doAnswer(inv -> {
+				roundTrip();
+				Map<String, Long> manifestCounters = counters.computeIfAbsent((Long) inv.getArguments()[0], k -> new ConcurrentHashMap<>());
+				((Map<String, Long>) inv.getArguments()[1]).forEach((state, delta) -> manifestCounters.merge(state, delta, Long::sum));
+				return null;
+			}).when(dao).changeComponentsStateCounter(anyLong(), anyMapOf(String.class, Long.class));
+			return dao;
+		}
+
+		ThresholdsDao tsDao() {
+			ThresholdsDao dao = mock(ThresholdsDao.class);
+			when(dao.getManifestId(anyLong())).thenAnswer(inv -> (Long) inv.getArguments()[0] / 1000);
+			when(dao.getManifestCiIds(anyLong())).thenAnswer(inv -> {
+				roundTrip();
+				List<Long> ciIds = new ArrayList<>();
+				long manifestId = (Long) inv.getArguments()[0];
+				for (int ci = 0; ci < CIS_PER_MANIFEST; ci++) {
+					ciIds.add(manifestId * 1000 + ci);
+				}
+				return ciIds;
+			});
+			return dao;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor.util;
+
+import static org.testng.Assert.assertEquals;
+
+import com.oneops.ops.events.OpsEvent;
+import com.oneops.sensor.domain.MissingHeartbeatEvent;
+import com.oneops.sensor.events.PerfEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.annotations.Test;
+
+public class HeartbeatTimersTest {
+
+	private final AtomicLong clock = new AtomicLong(1_000_000);
+
+	@Test
+	public void timersOfCiAndSourceDoNotCollide() {
+		List<Object> sent = new ArrayList<>();
+		HeartbeatTimers timers = new HeartbeatTimers(clock::get, 15_000, (manifestId, source) -> null, sent::add);
+		OpsEvent open = new OpsEvent();
+		open.setCiId(12);
+		open.setSource("3x");
+		open.setName("3x:Heartbeat");
+		open.setState("open");
+		timers.onOpenHeartbeat(open);
+
+		// ends the retrigger of ci 123 and source x only
+		PerfEvent event = new PerfEvent();
+		event.setCiId(123);
+		event.setSource("x");
+		timers.onPerfEvent(event);
+
+		clock.addAndGet(HeartbeatTimers.RETRIGGER_MS);
+		timers.advance();
+		List<Object> retriggered = new ArrayList<>();
+		for (Object e : sent) {
+			if (e instanceof MissingHeartbeatEvent) {
+				retriggered.add(e);
+			}
+		}
+		assertEquals(retriggered.size(), 1);
+		assertEquals(((MissingHeartbeatEvent) retriggered.get(0)).getOpsEvent().getCiId(), 12);
+	}
+}
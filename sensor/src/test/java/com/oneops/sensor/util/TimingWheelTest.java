@@ -0,0 +1,126 @@
+/*******************************************************************************
+ *  
+ *   Copyright 2015 Walmart, Inc.
+ *  
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  
+ *******************************************************************************/
+package com.oneops.sensor.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.annotations.Test;
+
+public class TimingWheelTest {
+
+	private final AtomicLong clock = new AtomicLong(1_000_000);
+
+	@Test
+	public void expiresOnDeadlineTick() {
+		TimingWheel wheel = new TimingWheel(1000, 8, 2, clock::get);
+		List<String> fired = new ArrayList<>();
+		wheel.schedule("a", 3000, () -> fired.add("a"));
+		// longer than a rotation of the wheel
+		wheel.schedule("b", 20_000, () -> fired.add("b"));
+		assertEquals(wheel.size(), 2);
+
+		tick(2);
+		wheel.advance();
+		assertTrue(fired.isEmpty());
+		tick(1);
+		wheel.advance();
+		assertEquals(fired, list("a"));
+		tick(16);
+		wheel.advance();
+		assertEquals(fired, list("a"));
+		tick(1);
+		wheel.advance();
+		assertEquals(fired, list("a", "b"));
+		assertEquals(wheel.size(), 0);
+	}
+
+	@Test
+	public void keyedTimerIsReplacedAndCancelled() {
+		TimingWheel wheel = new TimingWheel(1000, 8, 2, clock::get);
+		List<String> fired = new ArrayList<>();
+		wheel.schedule("a", 2000, () -> fired.add("first"));
+		wheel.schedule("a", 5000, () -> fired.add("second"));
+		wheel.schedule(null, 1000, () -> fired.add("unkeyed"));
+		wheel.schedule(null, 1000, () -> fired.add("unkeyed"));
+		assertEquals(wheel.size(), 3);
+
+		tick(3);
+		wheel.advance();
+		assertEquals(fired, list("unkeyed", "unkeyed"));
+		assertTrue(wheel.cancel("a"));
+		assertFalse(wheel.cancel("a"));
+		tick(10);
+		wheel.advance();
+		assertEquals(fired, list("unkeyed", "unkeyed"));
+		assertEquals(wheel.size(), 0);
+	}
+
+	@Test
+	public void runsExpiredInDeadlineOrderAfterGap() {
+		TimingWheel wheel = new TimingWheel(1000, 4, 4, clock::get);
+		List<String> fired = new ArrayList<>();
+		for (int i = 10; i > 0; i--) {
+			String key = "t" + i;
+			wheel.schedule(key, i * 1000, () -> fired.add(key));
+		}
+		// a failing task does not stop the others
+		wheel.schedule("fail", 5500, () -> {
+			throw new IllegalStateException("failed");
+		});
+		tick(30);
+		wheel.advance();
+		assertEquals(fired, list("t1", "t2", "t3", "t4", "t5", "t6", "t7", "t8", "t9", "t10"));
+	}
+
+	@Test
+	public void timerScheduledFromTaskRunsLater() {
+		TimingWheel wheel = new TimingWheel(1000, 8, 1, clock::get);
+		List<Long> fired = new ArrayList<>();
+		wheel.schedule("a", 1000, new Runnable() {
+			@Override
+			public void run() {
+				fired.add(clock.get());
+				wheel.schedule("a", 1000, this);
+			}
+		});
+		for (int i = 0; i < 5; i++) {
+			tick(1);
+			wheel.advance();
+		}
+		assertEquals(fired.size(), 5);
+		assertEquals(wheel.size(), 1);
+	}
+
+	private void tick(int seconds) {
+		clock.addAndGet(seconds * 1000L);
+	}
+
+	@SafeVarargs
+	private static <T> List<T> list(T... values) {
+		List<T> result = new ArrayList<>();
+		for (T value : values) {
+			result.add(value);
+		}
+		return result;
+	}
+}
@@ -60,7 +60,7 @@ public class BomAsyncProcessor {
         this.envSemaphore = envSemaphore;
     }
 
-    public void compileEnv(long envId, String userId, Set<Long> excludePlats, CmsDeployment dpmt, String desc, boolean commit) {
+    public void compileEnv(long envId, String userId, Set<Long> excludePlats, CmsDeployment dpmt, String desc, boolean commit, boolean incremental) {
         final String processId = UUID.randomUUID().toString();
         envSemaphore.lockEnv(envId, EnvSemaphore.LOCKED_STATE, processId);
 
@@ -73,10 +73,10 @@ public class BomAsyncProcessor {
                 Map bomInfo;
                 boolean deploy = (dpmt != null);
                 if (deploy) {
-                    bomInfo = bomManager.generateAndDeployBom(envId, userId, excludePlats, dpmt, commit);
+                    bomInfo = bomManager.generateAndDeployBom(envId, userId, excludePlats, dpmt, commit, incremental);
                 }
                 else {
-                    bomInfo = bomManager.generateBom(envId, userId, excludePlats, desc, commit);
+                    bomInfo = bomManager.generateBom(envId, userId, excludePlats, desc, commit, incremental);
                 }
                 Map<String, Object> bomGenerationInfo = new HashMap<>();
                 bomGenerationInfo.put("rfcCiCount", bomInfo.get("rfcCiCount"));
@@ -85,6 +85,7 @@ public class BomAsyncProcessor {
                 bomGenerationInfo.put("createdBy", userId);
                 bomGenerationInfo.put("mode", "persistent");
                 bomGenerationInfo.put("autoDeploy", deploy);
+                bomGenerationInfo.put("incremental", bomInfo.get("incremental"));
                 CmsRelease bomRelease = (CmsRelease) bomInfo.get("release");
                 if (bomRelease != null) {
                     bomGenerationInfo.put("releaseId", bomRelease.getReleaseId());
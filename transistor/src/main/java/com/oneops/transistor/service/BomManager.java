@@ -26,9 +26,9 @@ import org.springframework.transaction.annotation.Transactional;
 
 @Transactional
 public interface BomManager {
-    Map<String, Object> generateBom(long envId, String userId, Set<Long> excludePlats, String desc, boolean commit);
+    Map<String, Object> generateBom(long envId, String userId, Set<Long> excludePlats, String desc, boolean commit, boolean incremental);
 
-    Map<String, Object> generateAndDeployBom(long envId, String userId, Set<Long> excludePlats, CmsDeployment dpmt, boolean commit);
+    Map<String, Object> generateAndDeployBom(long envId, String userId, Set<Long> excludePlats, CmsDeployment dpmt, boolean commit, boolean incremental);
 
     long submitDeployment(long releaseId, String userId, String desc);
 
@@ -18,6 +18,11 @@
 package com.oneops.transistor.service;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -40,6 +45,8 @@ import com.oneops.cms.util.CmsConstants;
 import com.oneops.cms.util.CmsError;
 import com.oneops.cms.util.CmsUtil;
 import com.oneops.transistor.exceptions.TransistorException;
+import com.oneops.transistor.service.peristenceless.InMemoryDJMapper;
+import com.oneops.transistor.service.peristenceless.ThreadLocalDJMapper;
 
 import static com.oneops.cms.util.CmsConstants.*;
 import static java.lang.System.getProperty;
@@ -63,6 +70,9 @@ public class BomManagerImpl implements BomManager {
 	private CmsDpmtProcessor dpmtProcessor;
 	private CmsUtil cmsUtil;
 	private CloudUtil cloudUtil;
+	private ThreadLocalDJMapper threadLocalDJMapper;
+	private int inMemoryBomGenerationThreads = Integer.valueOf(getProperty("transistor.inMemoryBomGenerationThreads", "4"));
+	private ExecutorService bomGenerationPool;
 	Gson gson = new Gson();
 
 	public void setCloudUtil(CloudUtil cloudUtil) {
@@ -97,9 +107,25 @@ public class BomManagerImpl implements BomManager {
 		this.dpmtProcessor = dpmtProcessor;
 	}
 
+	/**
+	 * Set for the in memory bom generation only, the platforms of an exec order step are generated in parallel
+	 * when the rfcs go to the thread local in memory mapper. The db generation stays serial: the rfcs
+	 * of the other threads would be written outside of the bom transaction.
+	 */
+	public void setThreadLocalDJMapper(ThreadLocalDJMapper threadLocalDJMapper) {
+		this.threadLocalDJMapper = threadLocalDJMapper;
+	}
+
+	/**
+	 * Threads generating the platforms of an exec order step of an in memory bom, 1 generates platform by platform.
+	 */
+	public void setInMemoryBomGenerationThreads(int inMemoryBomGenerationThreads) {
+		this.inMemoryBomGenerationThreads = inMemoryBomGenerationThreads;
+	}
+
 	@Override
-	public Map<String, Object> generateAndDeployBom(long envId, String userId, Set<Long> excludePlats, CmsDeployment dpmt, boolean commit) {
-		Map<String, Object> bomInfo = generateBomForClouds(envId, userId, excludePlats, dpmt.getComments(), commit);
+	public Map<String, Object> generateAndDeployBom(long envId, String userId, Set<Long> excludePlats, CmsDeployment dpmt, boolean commit, boolean incremental) {
+		Map<String, Object> bomInfo = generateBomForClouds(envId, userId, excludePlats, dpmt.getComments(), commit, incremental);
 		CmsRelease bomRelease = (CmsRelease) bomInfo.get("release");
 		if (bomRelease != null) {
 			dpmt.setNsPath(bomRelease.getNsPath());
@@ -112,11 +138,11 @@ public class BomManagerImpl implements BomManager {
 	}
 
 	@Override
-	public Map<String, Object> generateBom(long envId, String userId, Set<Long> excludePlats, String desc, boolean commit) {
-		return generateBomForClouds(envId, userId, excludePlats, desc, commit);
+	public Map<String, Object> generateBom(long envId, String userId, Set<Long> excludePlats, String desc, boolean commit, boolean incremental) {
+		return generateBomForClouds(envId, userId, excludePlats, desc, commit, incremental);
 	}
 
-	private Map<String, Object> generateBomForClouds(long envId, String userId, Set<Long> excludePlats, String desc, boolean commit) {
+	private Map<String, Object> generateBomForClouds(long envId, String userId, Set<Long> excludePlats, String desc, boolean commit, boolean incremental) {
 		long startTime = System.currentTimeMillis();
 
 		EnvBomGenerationContext context = new EnvBomGenerationContext(envId, excludePlats, userId, cmProcessor, cmsUtil, bomRfcProcessor);
@@ -153,6 +179,13 @@ public class BomManagerImpl implements BomManager {
 
 		context.load();
 
+		int carriedForward = 0;
+		if (incremental) {
+			Set<Long> unchangedPlats = new IncrementalBomPlanner(cmProcessor, manifestRfcProcessor, dpmtProcessor).getUnchangedPlatformIds(context);
+			context.excludePlatforms(unchangedPlats);
+			carriedForward = unchangedPlats.size();
+		}
+
 		int execOrder = generateBomForActiveClouds(context);
 		generateBomForOfflineClouds(context, execOrder);
 
@@ -177,7 +210,11 @@ public class BomManagerImpl implements BomManager {
 				cmProcessor.deleteCI(localVar.getCiId(), true, userId);
 			}
 			//if there is nothing to deploy update parent release on latest closed bom release
-			updateParentReleaseId(bomNsPath, manifestNsPath, "closed");
+			CmsRelease closedRelease = updateParentReleaseId(bomNsPath, manifestNsPath, "closed");
+			if (closedRelease != null && excludePlats != null && !excludePlats.isEmpty()) {
+				// the excluded platforms were not generated up to the new parent release
+				addExcludedPlatforms(closedRelease, excludePlats);
+			}
 		}
 
 		long duration = System.currentTimeMillis() - startTime;
@@ -188,6 +225,11 @@ public class BomManagerImpl implements BomManager {
 		bomInfo.put("rfcRelationCount", rfcRelCount);
 		bomInfo.put("manifestCommit", commit);
 		bomInfo.put("generationTime", duration);
+		bomInfo.put(IncrementalBomPlanner.EXCLUDED_PLATFORMS, excludePlats == null ? Collections.emptySet() : excludePlats);
+		if (incremental) {
+			bomInfo.put("incremental", true);
+			bomInfo.put("carriedForwardPlatforms", carriedForward);
+		}
 
 		if (bomRelease != null) {
 			bomRelease.setDescription(gson.toJson(bomInfo));
@@ -213,9 +255,11 @@ public class BomManagerImpl implements BomManager {
 		return bomInfo;
 	}
 
-	private int generateBomForActiveClouds(EnvBomGenerationContext context) {
+	int generateBomForActiveClouds(EnvBomGenerationContext context) {
 		String envManifestNsPath = context.getManifestNsPath();
-		logger.info(envManifestNsPath + " >>> Starting generating BOM for active clouds... ");
+		boolean inMemoryParallel = isInMemoryParallel();
+		logger.info(envManifestNsPath + " >>> Starting generating BOM for active clouds"
+				+ (inMemoryParallel ? " in memory on " + inMemoryBomGenerationThreads + " threads" : "") + "... ");
 		long globalStartTime = System.currentTimeMillis();
 
 		Map<Integer, List<CmsCI>> platsToProcess = getOrderedPlatforms(context);
@@ -230,6 +274,11 @@ public class BomManagerImpl implements BomManager {
 		for (int i = 1; i <= maxOrder; i++) {
 			if (platsToProcess.containsKey(i)) {
 				startingExecOrder = (startingExecOrder > 1) ? startingExecOrder + 1 : startingExecOrder;
+				if (inMemoryParallel) {
+					int stepMaxOrder = generateInMemoryBomForPlatformsInParallel(context, platsToProcess.get(i), startingExecOrder, packCloudWhiteListEC);
+					startingExecOrder = (stepMaxOrder > 0) ? stepMaxOrder + 1 : startingExecOrder;
+					continue;
+				}
 				int stepMaxOrder = 0;
 				for (CmsCI platform : platsToProcess.get(i)) {
 					long platStartTime = System.currentTimeMillis();
@@ -272,7 +321,7 @@ public class BomManagerImpl implements BomManager {
 								stepMaxOrder = (maxExecOrder > stepMaxOrder) ? maxExecOrder : stepMaxOrder;
 								thisPlatMaxExecOrder = (maxExecOrder > thisPlatMaxExecOrder) ? maxExecOrder : thisPlatMaxExecOrder;
 							}
-							platExecOrder = (thisPlatMaxExecOrder > platExecOrder) ? thisPlatMaxExecOrder + 1 : platExecOrder;
+							platExecOrder = (thisPlatMaxExecOrder >= platExecOrder) ? thisPlatMaxExecOrder + 1 : platExecOrder;
 						}
 					}
 					logger.info(platform.getNsPath() + " >>> Done generating BOM for platform " + platform.getCiName() + "for all active clouds in " + (System.currentTimeMillis() - platStartTime) + " ms.");
@@ -288,6 +337,188 @@ public class BomManagerImpl implements BomManager {
 		return startingExecOrder;
 	}
 
+	private boolean isInMemoryParallel() {
+		return inMemoryBomGenerationThreads > 1 && threadLocalDJMapper != null && threadLocalDJMapper.get() != null;
+	}
+
+	private synchronized ExecutorService getBomGenerationPool() {
+		if (bomGenerationPool == null) {
+			AtomicInteger threadCount = new AtomicInteger();
+			bomGenerationPool = Executors.newFixedThreadPool(inMemoryBomGenerationThreads, r -> {
+				Thread thread = new Thread(r, "in-memory-bom-generation-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return bomGenerationPool;
+	}
+
+	/**
+	 * Stops the bom generation threads, a later parallel generation starts a new pool.
+	 */
+	public synchronized void destroy() {
+		if (bomGenerationPool != null) {
+			bomGenerationPool.shutdown();
+			bomGenerationPool = null;
+		}
+	}
+
+	/**
+	 * Generates the in memory bom of the platforms of one exec order step for their active clouds. Everything
+	 * read from the db (cloud bindings, platform contexts, bom namespaces, the release) is loaded here on the
+	 * calling thread, then every platform runs its clouds in order on a fork of the in memory mapper. The forks
+	 * are merged in platform order, so the rfcs and exec orders do not depend on the scheduling. Platforms with
+	 * deletes run on the calling thread as these can write to the db.
+	 */
+	private int generateInMemoryBomForPlatformsInParallel(EnvBomGenerationContext context, List<CmsCI> platforms, int startingExecOrder,
+														  ExceptionConsolidator<TransistorException> packCloudWhiteListEC) {
+		List<PlatformBomUnit> units = new ArrayList<>();
+		boolean needsRelease = false;
+		for (CmsCI platform : platforms) {
+			List<CmsCIRelation> platformCloudRels = cmProcessor.getFromCIRelations(platform.getCiId(), BASE_CONSUMES, "account.Cloud");
+			if (platformCloudRels.size() == 0) {
+				//if platform does not have a relation to the cloud - consider it disabled
+				continue;
+			}
+
+			if (checkSecondary) {
+				check4Secondary(context.loadPlatformContext(platform), platformCloudRels);
+			} else {
+				logger.info("check secondary not configured.");
+			}
+
+			PlatformBomUnit unit = new PlatformBomUnit(platform);
+			for (SortedMap<Integer, List<CmsCIRelation>> priorityClouds : getOrderedClouds(platformCloudRels, false).values()) {
+				for (List<CmsCIRelation> orderCloud : priorityClouds.values()) {
+					List<CloudBomStep> steps = new ArrayList<>();
+					for (CmsCIRelation platformCloudRel : orderCloud) {
+						CmsCIRelationAttribute adminstatus = platformCloudRel.getAttribute("adminstatus");
+						if (adminstatus != null && !CmsConstants.CLOUD_STATE_ACTIVE.equals(adminstatus.getDjValue())) {
+							continue;
+						}
+
+						PlatformBomGenerationContext platformContext = context.loadPlatformContext(platform);
+						boolean delete = context.getDisabledPlatformIds().contains(platform.getCiId()) || platform.getCiState().equalsIgnoreCase("pending_deletion");
+						if (!delete) {
+							TransistorException ex = packCloudWhiteListEC.invokeChecked(() -> checkPackCloudWhiteList(platform, platformCloudRel.getToCi()));
+							if (ex != null) continue;
+						}
+						if (platformContext.getComponents().size() > 0) {
+							if (delete) {
+								unit.hasDeletes = true;
+								needsRelease |= platformContext.getBomRelations().size() > 0;
+							} else {
+								platformContext.setBomNsId(trUtil.verifyAndCreateNS(platformContext.getBomNsPath()));
+								context.getCloudVariables(platformCloudRel.getToCi());
+								needsRelease = true;
+							}
+						}
+						steps.add(new CloudBomStep(platformContext, platformCloudRel, delete));
+					}
+					unit.groups.add(steps);
+				}
+			}
+			units.add(unit);
+		}
+		if (needsRelease) {
+			context.getReleaseId();
+		}
+
+		InMemoryDJMapper mapper = threadLocalDJMapper.get();
+		List<InMemoryDJMapper> forks = new ArrayList<>();
+		List<Future<Integer>> results = new ArrayList<>();
+		for (int u = 0; u < units.size(); u++) {
+			PlatformBomUnit unit = units.get(u);
+			InMemoryDJMapper fork = mapper.fork(u);
+			forks.add(fork);
+			if (!unit.hasDeletes) {
+				results.add(getBomGenerationPool().submit(() -> {
+					threadLocalDJMapper.set(fork);
+					try {
+						return generatePlatformBom(context, unit, startingExecOrder);
+					} finally {
+						threadLocalDJMapper.set(null);
+					}
+				}));
+			} else {
+				results.add(null);
+			}
+		}
+
+		int stepMaxOrder = 0;
+		try {
+			for (int u = 0; u < units.size(); u++) {
+				if (units.get(u).hasDeletes) {
+					threadLocalDJMapper.set(forks.get(u));
+					try {
+						stepMaxOrder = Math.max(stepMaxOrder, generatePlatformBom(context, units.get(u), startingExecOrder));
+					} finally {
+						threadLocalDJMapper.set(mapper);
+					}
+				}
+			}
+			for (Future<Integer> result : results) {
+				if (result != null) {
+					stepMaxOrder = Math.max(stepMaxOrder, result.get());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransistorException(CmsError.TRANSISTOR_BOM_GENERATION_FAILED, "Interrupted while generating bom for " + context.getBomNsPath());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new TransistorException(CmsError.TRANSISTOR_BOM_GENERATION_FAILED, e.getCause().getMessage());
+		} finally {
+			results.stream().filter(Objects::nonNull).forEach(result -> result.cancel(true));
+		}
+		mapper.join(forks);
+		return stepMaxOrder;
+	}
+
+	private int generatePlatformBom(EnvBomGenerationContext context, PlatformBomUnit unit, int startingExecOrder) {
+		long platStartTime = System.currentTimeMillis();
+		int platExecOrder = startingExecOrder;
+		int thisPlatMaxExecOrder = 0;
+		for (List<CloudBomStep> steps : unit.groups) {
+			for (CloudBomStep step : steps) {
+				int maxExecOrder;
+				if (step.delete) {
+					maxExecOrder = bomGenerationProcessor.deleteManifestPlatform(context, step.platformContext, step.platformCloudRel, platExecOrder);
+				} else {
+					maxExecOrder = bomGenerationProcessor.processManifestPlatform(context, step.platformContext, step.platformCloudRel, platExecOrder, true);
+				}
+				thisPlatMaxExecOrder = (maxExecOrder > thisPlatMaxExecOrder) ? maxExecOrder : thisPlatMaxExecOrder;
+			}
+			platExecOrder = (thisPlatMaxExecOrder >= platExecOrder) ? thisPlatMaxExecOrder + 1 : platExecOrder;
+		}
+		logger.info(unit.platform.getNsPath() + " >>> Done generating BOM for platform " + unit.platform.getCiName() + "for all active clouds in " + (System.currentTimeMillis() - platStartTime) + " ms.");
+		return thisPlatMaxExecOrder;
+	}
+
+	private static class PlatformBomUnit {
+		private final CmsCI platform;
+		private final List<List<CloudBomStep>> groups = new ArrayList<>();
+		private boolean hasDeletes;
+
+		private PlatformBomUnit(CmsCI platform) {
+			this.platform = platform;
+		}
+	}
+
+	private static class CloudBomStep {
+		private final PlatformBomGenerationContext platformContext;
+		private final CmsCIRelation platformCloudRel;
+		private final boolean delete;
+
+		private CloudBomStep(PlatformBomGenerationContext platformContext, CmsCIRelation platformCloudRel, boolean delete) {
+			this.platformContext = platformContext;
+			this.platformCloudRel = platformCloudRel;
+			this.delete = delete;
+		}
+	}
+
 	private Set<Long> getPlatformIds(Map<Integer, List<CmsCI>> platsToProcess) {
 		return platsToProcess.entrySet()
 				.stream()
@@ -459,6 +690,23 @@ public class BomManagerImpl implements BomManager {
 		return bomRelease;
 	}
 
+	private void addExcludedPlatforms(CmsRelease bomRelease, Set<Long> excludePlats) {
+		Map<String, Object> bomInfo = null;
+		try {
+			bomInfo = gson.fromJson(bomRelease.getDescription(), HashMap.class);
+		} catch (JsonSyntaxException ignore) {
+		}
+		Set<Long> excluded = IncrementalBomPlanner.getExcludedPlatformIds(bomRelease);
+		if (bomInfo == null || excluded == null) {
+			// not listed, the release is taken as partial anyway
+			return;
+		}
+		excluded.addAll(excludePlats);
+		bomInfo.put(IncrementalBomPlanner.EXCLUDED_PLATFORMS, excluded);
+		bomRelease.setDescription(gson.toJson(bomInfo));
+		bomRfcProcessor.updateRelease(bomRelease);
+	}
+
 	Map<Integer, List<CmsCI>> getOrderedPlatforms(EnvBomGenerationContext context) {
 		List<CmsCI> platforms = context.getPlatforms();
 		List<CmsCIRelation> allLinksToRels = context.getLinksToRelations();
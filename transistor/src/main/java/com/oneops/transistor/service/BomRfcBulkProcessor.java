@@ -102,7 +102,11 @@ public class BomRfcBulkProcessor {
 				startExecOrder = priorityMax + 1;
 			}
 
-			long nsId = trUtil.verifyAndCreateNS(bomNsPath);
+			Long nsId = pc.getBomNsId();
+			if (nsId == null) {
+				nsId = trUtil.verifyAndCreateNS(bomNsPath);
+				pc.setBomNsId(nsId);
+			}
 
 			boolean isPartial = false;
 			for (CmsCIRelation rel : pc.getDependsOns()) {
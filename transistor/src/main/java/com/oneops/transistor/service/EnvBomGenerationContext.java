@@ -9,6 +9,7 @@ import com.oneops.cms.util.CmsUtil;
 import org.apache.log4j.Logger;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -19,7 +20,7 @@ import static com.oneops.cms.util.CmsConstants.MANIFEST_LINKS_TO;
 
 class EnvBomGenerationContext {
     private static final Logger logger = Logger.getLogger(EnvBomGenerationContext.class);
-    private final Set<Long> excludedPlats;
+    private Set<Long> excludedPlats;
 
     private CmsCmProcessor cmProcessor;
     private CmsUtil cmsUtil;
@@ -113,6 +114,14 @@ class EnvBomGenerationContext {
         return excludedPlats;
     }
 
+    void excludePlatforms(Set<Long> platformIds) {
+        Set<Long> plats = new HashSet<>(platformIds);
+        if (excludedPlats != null) {
+            plats.addAll(excludedPlats);
+        }
+        excludedPlats = plats;
+    }
+
     Map<String, String> getGlobalVariables() {
         return globalVariables;
     }
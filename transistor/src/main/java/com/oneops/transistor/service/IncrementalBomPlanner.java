@@ -0,0 +1,236 @@
+package com.oneops.transistor.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.oneops.cms.cm.domain.CmsCI;
+import com.oneops.cms.cm.domain.CmsCIRelation;
+import com.oneops.cms.cm.service.CmsCmProcessor;
+import com.oneops.cms.dj.domain.CmsDeployment;
+import com.oneops.cms.dj.domain.CmsRelease;
+import com.oneops.cms.dj.domain.CmsRfcCI;
+import com.oneops.cms.dj.domain.CmsRfcRelation;
+import com.oneops.cms.dj.service.CmsDpmtProcessor;
+import com.oneops.cms.dj.service.CmsRfcProcessor;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.oneops.cms.util.CmsConstants.BASE_CONSUMES;
+import static com.oneops.cms.util.CmsConstants.BASE_PROVIDES;
+
+/**
+ * Finds the platforms of an environment whose bom can differ from the deployed one. The bom of a platform
+ * is generated from its manifest, the environment, the global variables and the clouds it consumes, so
+ * a platform is carried forward only when none of these changed since the last bom release was deployed:
+ * <ul>
+ * <li>the manifest rfcs committed since then are mapped to their platforms, any other manifest change
+ * (global variables, the environment namespace) regenerates the whole environment;</li>
+ * <li>manifest cis pending deletion and bom cis marked for replace are picked up like changes;</li>
+ * <li>the environment, the cloud bindings, the clouds, their variables and services are not versioned by
+ * releases, they count as changed when they were updated after the deployed bom release was created;</li>
+ * <li>the platforms excluded from the deployed bom release can be behind any manifest release, the bom
+ * release lists them in its description and they are always regenerated. A release without the list is
+ * taken as partial and the whole environment is regenerated.</li>
+ * </ul>
+ * The platforms linked to a changed platform are not regenerated with it: a bom only reads its own platform,
+ * the links just order the platforms, and brushing the exec orders of the release drops the steps of the
+ * platforms carried forward.
+ */
+class IncrementalBomPlanner {
+    private static final Logger logger = Logger.getLogger(IncrementalBomPlanner.class);
+
+    /**
+     * The bom info entry with the ids of the platforms a bom release was not generated for.
+     */
+    static final String EXCLUDED_PLATFORMS = "excludedPlatforms";
+
+    private static final Gson gson = new Gson();
+
+    private final CmsCmProcessor cmProcessor;
+    private final CmsRfcProcessor rfcProcessor;
+    private final CmsDpmtProcessor dpmtProcessor;
+
+    IncrementalBomPlanner(CmsCmProcessor cmProcessor, CmsRfcProcessor rfcProcessor, CmsDpmtProcessor dpmtProcessor) {
+        this.cmProcessor = cmProcessor;
+        this.rfcProcessor = rfcProcessor;
+        this.dpmtProcessor = dpmtProcessor;
+    }
+
+    /**
+     * @param context the loaded context of the environment
+     * @return the ids of the platforms to carry forward, empty when the whole environment has to be generated
+     */
+    Set<Long> getUnchangedPlatformIds(EnvBomGenerationContext context) {
+        Set<Long> affected = getAffectedPlatformIds(context);
+        if (affected == null) {
+            return Collections.emptySet();
+        }
+        Set<Long> unchanged = context.getPlatforms().stream()
+                .map(CmsCI::getCiId)
+                .filter(id -> !affected.contains(id))
+                .collect(Collectors.toSet());
+        logger.info(context.getBomNsPath() + " >>> Incremental bom: " + affected.size() + " affected platforms, " + unchanged.size() + " carried forward.");
+        return unchanged;
+    }
+
+    /**
+     * @return the ids of the platforms to generate, null when the whole environment has to be generated
+     */
+    Set<Long> getAffectedPlatformIds(EnvBomGenerationContext context) {
+        String manifestNsPath = context.getManifestNsPath();
+        String bomNsPath = context.getBomNsPath();
+
+        CmsRelease bomRelease = getDeployedBomRelease(bomNsPath);
+        if (bomRelease == null) {
+            return null;
+        }
+        Date since = bomRelease.getCreated();
+        if (updatedSince(context.getEnvironment().getUpdated(), since)) {
+            logger.info(bomNsPath + " >>> Incremental bom: the environment was updated, generating all platforms.");
+            return null;
+        }
+
+        Map<Long, CmsCI> platforms = new HashMap<>();
+        Map<String, Long> manifestPlatformNs = new HashMap<>();
+        Map<String, Long> bomPlatformNs = new HashMap<>();
+        for (CmsCI platform : context.getPlatforms()) {
+            platforms.put(platform.getCiId(), platform);
+            String nsSuffix = "/" + platform.getCiName() + "/" + platform.getAttribute("major_version").getDjValue();
+            manifestPlatformNs.put(manifestNsPath + nsSuffix, platform.getCiId());
+            bomPlatformNs.put(bomNsPath + nsSuffix, platform.getCiId());
+        }
+
+        Set<Long> excluded = getExcludedPlatformIds(bomRelease);
+        if (excluded == null) {
+            logger.info(bomNsPath + " >>> Incremental bom: the deployed bom release does not list its excluded platforms, generating all platforms.");
+            return null;
+        }
+        Set<Long> affected = new HashSet<>();
+        for (Long platformId : excluded) {
+            if (platforms.containsKey(platformId)) {
+                affected.add(platformId);
+            }
+        }
+
+        List<CmsRelease> manifestReleases = rfcProcessor.getLatestRelease(manifestNsPath, "closed");
+        long parentReleaseId = bomRelease.getParentReleaseId();
+        if (manifestReleases.size() > 0 && manifestReleases.get(0).getReleaseId() > parentReleaseId) {
+            long lastReleaseId = manifestReleases.get(0).getReleaseId();
+            for (CmsRfcCI rfc : rfcProcessor.getRfcCIsAppliedBetweenTwoReleases(manifestNsPath, parentReleaseId, lastReleaseId)) {
+                if (!addPlatform(affected, rfc.getNsPath(), manifestNsPath, manifestPlatformNs, platforms, rfc.getCiId())) {
+                    logger.info(bomNsPath + " >>> Incremental bom: " + rfc.getCiClassName() + " " + rfc.getCiName() + " changed in " + rfc.getNsPath() + ", generating all platforms.");
+                    return null;
+                }
+            }
+            for (CmsRfcRelation rfc : rfcProcessor.getRfcRelationsAppliedBetweenTwoReleases(manifestNsPath, parentReleaseId, lastReleaseId)) {
+                if (!addPlatform(affected, rfc.getNsPath(), manifestNsPath, manifestPlatformNs, platforms, rfc.getFromCiId(), rfc.getToCiId())) {
+                    logger.info(bomNsPath + " >>> Incremental bom: " + rfc.getRelationName() + " changed in " + rfc.getNsPath() + ", generating all platforms.");
+                    return null;
+                }
+            }
+        }
+
+        for (CmsCI ci : cmProcessor.getCiByNsLikeByStateNaked(manifestNsPath, null, "pending_deletion")) {
+            if (!addPlatform(affected, ci.getNsPath(), manifestNsPath, manifestPlatformNs, platforms, ci.getCiId())) {
+                logger.info(bomNsPath + " >>> Incremental bom: " + ci.getCiClassName() + " " + ci.getCiName() + " is pending deletion, generating all platforms.");
+                return null;
+            }
+        }
+        for (CmsCI ci : cmProcessor.getCiByNsLikeByStateNaked(bomNsPath, null, "replace")) {
+            Long platformId = bomPlatformNs.get(ci.getNsPath());
+            if (platformId == null) {
+                return null;
+            }
+            affected.add(platformId);
+        }
+
+        Map<Long, Boolean> changedClouds = new HashMap<>();
+        for (CmsCI platform : platforms.values()) {
+            if (affected.contains(platform.getCiId())) continue;
+            for (CmsCIRelation cloudRel : cmProcessor.getFromCIRelations(platform.getCiId(), BASE_CONSUMES, "account.Cloud")) {
+                if (updatedSince(cloudRel.getUpdated(), since)
+                        || changedClouds.computeIfAbsent(cloudRel.getToCiId(), id -> isCloudUpdated(cloudRel.getToCi(), since))) {
+                    affected.add(platform.getCiId());
+                    break;
+                }
+            }
+        }
+        return affected;
+    }
+
+    private CmsRelease getDeployedBomRelease(String bomNsPath) {
+        List<CmsDeployment> deployments = dpmtProcessor.findLatestDeployment(bomNsPath, null, false);
+        if (deployments.isEmpty() || !"complete".equals(deployments.get(0).getDeploymentState())) {
+            logger.info(bomNsPath + " >>> Incremental bom: the last deployment is not complete, generating all platforms.");
+            return null;
+        }
+        List<CmsRelease> bomReleases = rfcProcessor.getLatestRelease(bomNsPath, "closed");
+        if (bomReleases.isEmpty() || bomReleases.get(0).getReleaseId() != deployments.get(0).getReleaseId()
+                || bomReleases.get(0).getParentReleaseId() == null || bomReleases.get(0).getCreated() == null) {
+            logger.info(bomNsPath + " >>> Incremental bom: the last bom release was not deployed, generating all platforms.");
+            return null;
+        }
+        return bomReleases.get(0);
+    }
+
+    /**
+     * @return the ids of the platforms the bom release was not generated for, null when the release does not list them
+     */
+    static Set<Long> getExcludedPlatformIds(CmsRelease bomRelease) {
+        Map<?, ?> bomInfo = null;
+        try {
+            bomInfo = gson.fromJson(bomRelease.getDescription(), Map.class);
+        } catch (JsonSyntaxException ignore) {
+        }
+        Object excluded = bomInfo == null ? null : bomInfo.get(EXCLUDED_PLATFORMS);
+        if (!(excluded instanceof List)) {
+            return null;
+        }
+        return ((List<?>) excluded).stream()
+                .map(id -> ((Number) id).longValue())
+                .collect(Collectors.toSet());
+    }
+
+    private boolean addPlatform(Set<Long> affected, String nsPath, String manifestNsPath, Map<String, Long> platformNs, Map<Long, CmsCI> platforms, Long... ciIds) {
+        Long platformId = platformNs.get(nsPath);
+        if (platformId != null) {
+            affected.add(platformId);
+            return true;
+        }
+        if (manifestNsPath.equals(nsPath)) {
+            // the platforms themselves and their relations to the environment and to each other
+            boolean found = false;
+            for (Long ciId : ciIds) {
+                if (ciId != null && platforms.containsKey(ciId)) {
+                    affected.add(ciId);
+                    found = true;
+                }
+            }
+            return found;
+        }
+        return false;
+    }
+
+    private boolean isCloudUpdated(CmsCI cloud, Date since) {
+        if (updatedSince(cloud.getUpdated(), since)) {
+            return true;
+        }
+        for (CmsCIRelation varRel : cmProcessor.getToCIRelations(cloud.getCiId(), "account.ValueFor", null)) {
+            if (updatedSince(varRel.getUpdated(), since) || updatedSince(varRel.getFromCi().getUpdated(), since)) {
+                return true;
+            }
+        }
+        for (CmsCIRelation serviceRel : cmProcessor.getFromCIRelations(cloud.getCiId(), BASE_PROVIDES, null)) {
+            if (updatedSince(serviceRel.getUpdated(), since) || updatedSince(serviceRel.getToCi().getUpdated(), since)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean updatedSince(Date updated, Date since) {
+        // nothing to compare with is taken as a change
+        return updated == null || !updated.before(since);
+    }
+}
@@ -23,6 +23,7 @@ public class PlatformBomGenerationContext {
 
     private String manifestNsPath;
     private String bomNsPath;
+    private Long bomNsId;
 
     private Map<String, List<CmsCIRelation>> manifestRelationMap;
 
@@ -48,6 +49,7 @@ public class PlatformBomGenerationContext {
         platform = pc.platform;
         manifestNsPath = pc.manifestNsPath;
         bomNsPath = pc.bomNsPath;
+        bomNsId = pc.bomNsId;
         variables = pc.variables;
         manifestRelationMap = pc.manifestRelationMap;
         loadManifestCIs(cmProcessor);   // have to reload manifest CIs because they could be "dirty" after variable interpolation
@@ -147,6 +149,14 @@ public class PlatformBomGenerationContext {
         return bomNsPath;
     }
 
+    Long getBomNsId() {
+        return bomNsId;
+    }
+
+    void setBomNsId(Long bomNsId) {
+        this.bomNsId = bomNsId;
+    }
+
     CmsCI getPlatform() {
         return platform;
     }
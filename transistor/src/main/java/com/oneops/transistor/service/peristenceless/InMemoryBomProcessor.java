@@ -49,7 +49,7 @@ public class InMemoryBomProcessor {
         this.envSemaphore = envSemaphore;
     }
 
-    public BomData compileEnv(long envId, String userId, Set<Long> excludePlats, String desc, boolean commit) {
+    public BomData compileEnv(long envId, String userId, Set<Long> excludePlats, String desc, boolean commit, boolean incremental) {
         long startTime = System.currentTimeMillis();
         InMemoryDJMapper mapper = new InMemoryDJMapper();
         threadLocalDJMapper.set(mapper);
@@ -59,13 +59,14 @@ public class InMemoryBomProcessor {
             String envMsg = null;
             try {
                 envSemaphore.lockEnv(envId, EnvSemaphore.LOCKED_STATE, processId);
-                Map bomInfo = bomManager.generateBom(envId, userId, excludePlats, desc, true);
+                Map bomInfo = bomManager.generateBom(envId, userId, excludePlats, desc, true, incremental);
                 Map<String, Object> bomGenerationInfo = new HashMap<>();
                 bomGenerationInfo.put("rfcCiCount", bomInfo.get("rfcCiCount"));
                 bomGenerationInfo.put("rfcRelationCount", bomInfo.get("rfcRelationCount"));
                 bomGenerationInfo.put("manifestCommit", bomInfo.get("manifestCommit"));
                 bomGenerationInfo.put("createdBy", userId);
                 bomGenerationInfo.put("mode", "memory");
+                bomGenerationInfo.put("incremental", bomInfo.get("incremental"));
                 envMsg = EnvSemaphore.SUCCESS_PREFIX + " Generation time taken: " + ((System.currentTimeMillis() - startTime) / 1000.0) + " seconds. bomGenerationInfo=" + gson.toJson(bomGenerationInfo);
             } catch (Exception e) {
                 logger.error("Exception while generating BOM in memory: ", e);
@@ -76,7 +77,7 @@ public class InMemoryBomProcessor {
             }
         } else {
             try {
-                bomManager.generateBom(envId, userId, excludePlats, desc, false);
+                bomManager.generateBom(envId, userId, excludePlats, desc, false, incremental);
                 logger.info("Generation time taken: " + (System.currentTimeMillis() - startTime) + " ms");
             } catch (Exception e) {
                 logger.error("Exception in build bom ", e);
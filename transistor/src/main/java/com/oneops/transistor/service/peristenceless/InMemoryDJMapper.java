@@ -6,6 +6,8 @@ import com.oneops.cms.dj.domain.*;
 import com.oneops.cms.util.TimelineQueryParam;
 
 import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /*******************************************************************************
@@ -26,21 +28,38 @@ import java.util.stream.Collectors;
  *
  *******************************************************************************/
 public class InMemoryDJMapper implements DJMapper{
+    // ids handed out by one fork, a fork using more than that fails instead of reusing the ids of the next one
+    static final long FORK_ID_BLOCK = 1L << 32;
+
     private long djId = 1;
     private long ciId = 1;
+    private long djIdLimit = Long.MAX_VALUE;
+    private long ciIdLimit = Long.MAX_VALUE;
     private Map<Long, CmsRfcCI> cis = new HashMap<>();
     private Map<Long, CmsRfcRelation> relations = new HashMap<>();
     private CmsRelease release;
+    // rfcs written to a fork, merged by join even when they are the instances of this mapper changed in place
+    private Set<Long> forkWrites;
+
+    // rfc ids by the fields the lookups filter on, kept in sync with cis and relations by index(...)
+    private RfcIndex<CmsRfcCI, Long> cisByCiId = new RfcIndex<>(CmsRfcCI::getCiId);
+    private RfcIndex<CmsRfcCI, String> cisByNsPath = new RfcIndex<>(CmsRfcCI::getNsPath);
+    private RfcIndex<CmsRfcCI, String> cisByClazz = new RfcIndex<>(CmsRfcCI::getCiClassName);
+    private RfcIndex<CmsRfcRelation, Long> relationsByCiRelId = new RfcIndex<>(CmsRfcRelation::getCiRelationId);
+    private RfcIndex<CmsRfcRelation, Long> relationsByFromCiId = new RfcIndex<>(CmsRfcRelation::getFromCiId);
+    private RfcIndex<CmsRfcRelation, Long> relationsByToCiId = new RfcIndex<>(CmsRfcRelation::getToCiId);
+    private RfcIndex<CmsRfcRelation, String> relationsByName = new RfcIndex<>(CmsRfcRelation::getRelationName);
+    private RfcIndex<CmsRfcRelation, String> relationsByNsPath = new RfcIndex<>(CmsRfcRelation::getNsPath);
 
     public InMemoryDJMapper() {
     }
 
     public Map<Long, CmsRfcCI> getCis() {
-        return cis;
+        return Collections.unmodifiableMap(cis);
     }
 
     public Map<Long, CmsRfcRelation> getRelations() {
-        return relations;
+        return Collections.unmodifiableMap(relations);
     }
 
     public CmsRelease getRelease() {
@@ -49,14 +68,79 @@ public class InMemoryDJMapper implements DJMapper{
 
     @Override
     public long getNextDjId() {
+        if (djId >= djIdLimit) {
+            throw new IllegalStateException("Out of dj ids for the fork " + this);
+        }
         return djId++;
     }
 
     @Override
     public long getNextCiId() {
+        if (ciId >= ciIdLimit) {
+            throw new IllegalStateException("Out of ci ids for the fork " + this);
+        }
         return ciId++;
     }
 
+    /**
+     * Creates a copy of this mapper for one unit of work running on another thread. The fork sees the rfcs of
+     * this mapper and takes new ids from its own block, so the ids do not depend on how the units are scheduled.
+     * The forks have to be merged back with {@link #join(List)} in unit order.
+     *
+     * @param unit the index of the unit within its batch
+     * @return the fork
+     */
+    public InMemoryDJMapper fork(int unit) {
+        InMemoryDJMapper fork = new InMemoryDJMapper();
+        fork.cis = new HashMap<>(cis);
+        fork.relations = new HashMap<>(relations);
+        fork.cisByCiId = cisByCiId.copy();
+        fork.cisByNsPath = cisByNsPath.copy();
+        fork.cisByClazz = cisByClazz.copy();
+        fork.relationsByCiRelId = relationsByCiRelId.copy();
+        fork.relationsByFromCiId = relationsByFromCiId.copy();
+        fork.relationsByToCiId = relationsByToCiId.copy();
+        fork.relationsByName = relationsByName.copy();
+        fork.relationsByNsPath = relationsByNsPath.copy();
+        fork.release = release;
+        fork.forkWrites = new HashSet<>();
+        fork.djId = djId + unit * FORK_ID_BLOCK;
+        fork.djIdLimit = fork.djId + FORK_ID_BLOCK;
+        fork.ciId = ciId + unit * FORK_ID_BLOCK;
+        fork.ciIdLimit = fork.ciId + FORK_ID_BLOCK;
+        return fork;
+    }
+
+    /**
+     * Merges the rfcs created or updated by the forks of this mapper and moves the ids past the ids they used,
+     * the blocks of the forks that did not take any ids are not skipped.
+     *
+     * @param forks the forks in unit order
+     */
+    public void join(List<InMemoryDJMapper> forks) {
+        long nextDjId = djId;
+        long nextCiId = ciId;
+        for (InMemoryDJMapper fork : forks) {
+            fork.cis.forEach((rfcId, rfc) -> {
+                if (cis.get(rfcId) != rfc || fork.forkWrites.contains(rfcId)) index(rfc);
+            });
+            fork.relations.forEach((rfcId, rfc) -> {
+                if (relations.get(rfcId) != rfc || fork.forkWrites.contains(rfcId)) index(rfc);
+            });
+            if (release == null) {
+                release = fork.release;
+            }
+            if (fork.djId > fork.djIdLimit - FORK_ID_BLOCK) {
+                nextDjId = Math.max(nextDjId, fork.djId);
+            }
+            if (fork.ciId > fork.ciIdLimit - FORK_ID_BLOCK) {
+                nextCiId = Math.max(nextCiId, fork.ciId);
+            }
+        }
+        djId = nextDjId;
+        ciId = nextCiId;
+    }
+
     @Override
     public Integer getReleaseStateId(String stateName) {
         return 1;
@@ -127,7 +211,7 @@ public class InMemoryDJMapper implements DJMapper{
     @Override
     public void createRfcCI(CmsRfcCI rfcCi) {
         rfcCi.setIsActiveInRelease(true);
-        cis.put(rfcCi.getRfcId(), rfcCi);
+        index(rfcCi);
     }
 
     @Override
@@ -141,7 +225,7 @@ public class InMemoryDJMapper implements DJMapper{
 
     @Override
     public void updateRfcCI(CmsRfcCI rfcCI) {
-        cis.put(rfcCI.getRfcId(), rfcCI);
+        index(rfcCI);
     }
 
     @Override
@@ -161,10 +245,16 @@ public class InMemoryDJMapper implements DJMapper{
         return cis.get(rfcId);
     }
 
+    @Override
+    public List<CmsRfcCI> getRfcCIByIdList(List<Long> rfcIds) {
+        return rfcIds.stream().map(cis::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
     @Override
     public CmsRfcCI getOpenRfcCIByCiId(long ciId) {
-        for (CmsRfcCI rfc : cis.values()) {
-            if ((ciId == rfc.getCiId()) && rfc.getIsActiveInRelease()) return rfc;
+        for (Long rfcId : cisByCiId.get(ciId)) {
+            CmsRfcCI rfc = cis.get(rfcId);
+            if (rfc.getIsActiveInRelease()) return rfc;
         }
         return null;
     }
@@ -177,28 +267,30 @@ public class InMemoryDJMapper implements DJMapper{
 
     @Override
     public List<CmsRfcCI> getOpenRfcCIByCiIdList(List<Long> ciIds) {
-        return cis.values().stream()
-                .filter(r -> (ciIds.contains(r.getCiId())) )
-                .collect(Collectors.toList());
+        Set<Long> rfcIds = new TreeSet<>();
+        for (Long ciId : ciIds) {
+            rfcIds.addAll(cisByCiId.get(ciId));
+        }
+        return rfcIds.stream().map(cis::get).collect(Collectors.toList());
     }
 
     @Override
     public List<CmsRfcCI> getRfcCIBy3(long releaseId, Boolean isActive, Long ciId) {
-        return cis.values().stream()
-                  .filter(r -> (ciId == null || ciId.equals(r.getCiId())) &&
-                                (isActive == null || isActive == r.getIsActiveInRelease()))
-                  .collect(Collectors.toList());
+        return find(cis, ciId == null ? null : cisByCiId.get(ciId),
+                    r -> (ciId == null || ciId.equals(r.getCiId())) &&
+                                (isActive == null || isActive == r.getIsActiveInRelease()));
     }
 
     @Override
     public List<CmsRfcCI> getRfcCIByClazzAndName(String nsPath, String clazzName, String ciName, Boolean isActive, String state) {
-        return cis.values().stream()
-                  .filter(r -> (nsPath == null || nsPath.equals(r.getNsPath())) &&
+        Set<Long> rfcIds = smallest(nsPath == null ? null : cisByNsPath.get(nsPath),
+                                    clazzName == null ? null : cisByClazz.get(clazzName));
+        return find(cis, rfcIds,
+                    r -> (nsPath == null || nsPath.equals(r.getNsPath())) &&
                                 (clazzName == null || clazzName.equals(r.getCiClassName())) &&
                                 (ciName == null || ciName.equals(r.getCiName())) &&
                                 (isActive == null || isActive == r.getIsActiveInRelease()) &&
-                                (state == null || state.equals(r.getCiState())))
-                  .collect(Collectors.toList());
+                                (state == null || state.equals(r.getCiState())));
     }
 
     @Override
@@ -239,7 +331,7 @@ public class InMemoryDJMapper implements DJMapper{
     @Override
     public void createRfcRelation(CmsRfcRelation rfcRelation) {
         rfcRelation.setIsActiveInRelease(true);
-        relations.put(rfcRelation.getRfcId(), rfcRelation);
+        index(rfcRelation);
     }
 
     @Override
@@ -253,8 +345,7 @@ public class InMemoryDJMapper implements DJMapper{
 
     @Override
     public int updateRfcRelation(CmsRfcRelation rel) {
-        long rfcId = rel.getRfcId();
-        relations.put(rfcId, rel);
+        index(rel);
         return 0;
     }
 
@@ -281,8 +372,9 @@ public class InMemoryDJMapper implements DJMapper{
 
     @Override
     public CmsRfcRelation getOpenRfcRelationByCiRelId(long ciRelationId) {
-        for (CmsRfcRelation rel : relations.values()) {
-            if (rel.getCiRelationId() == ciRelationId && rel.getIsActiveInRelease()) return rel;
+        for (Long rfcId : relationsByCiRelId.get(ciRelationId)) {
+            CmsRfcRelation rel = relations.get(rfcId);
+            if (rel.getIsActiveInRelease()) return rel;
         }
         return null;
     }
@@ -299,10 +391,9 @@ public class InMemoryDJMapper implements DJMapper{
 
     @Override
     public List<CmsRfcRelation> getRfcRelationsByNs(String nsPath, Boolean isActive, String state) {
-        return relations.values().stream()
-                        .filter(r -> r.getNsPath().equals(nsPath) &&
-                                (isActive == null || r.getIsActiveInRelease()))
-                        .collect(Collectors.toList());
+        return find(relations, relationsByNsPath.get(nsPath),
+                    r -> r.getNsPath().equals(nsPath) &&
+                                (isActive == null || r.getIsActiveInRelease()));
     }
 
     @Override
@@ -312,12 +403,14 @@ public class InMemoryDJMapper implements DJMapper{
 
     @Override
     public List<CmsRfcRelation> getOpenRfcRelationBy2(Long fromCiId, Long toCiId, String relName, String shortRelName) {
-        return relations.values().stream()
-                        .filter(r -> (relName == null || r.getRelationName().equals(relName)) &&
+        Set<Long> rfcIds = smallest(fromCiId == null ? null : relationsByFromCiId.get(fromCiId),
+                                    toCiId == null ? null : relationsByToCiId.get(toCiId),
+                                    relName == null ? null : relationsByName.get(relName));
+        return find(relations, rfcIds,
+                    r -> (relName == null || r.getRelationName().equals(relName)) &&
                                      (fromCiId == null || fromCiId.equals(r.getFromCiId())) &&
                                      (toCiId == null || toCiId.equals(r.getToCiId())) &&
-                                     (shortRelName == null || r.getRelationName().endsWith(shortRelName)))
-                        .collect(Collectors.toList());
+                                     (shortRelName == null || r.getRelationName().endsWith(shortRelName)));
     }
 
     @Override
@@ -342,10 +435,9 @@ public class InMemoryDJMapper implements DJMapper{
 
     @Override
     public List<CmsRfcRelation> getRfcRelationBy3(long releaseId, Boolean isActive, Long ciRelationId) {
-        return relations.values().stream()
-                        .filter(r -> (ciRelationId == null || ciRelationId.equals(r.getCiRelationId())) &&
-                                     (isActive == null || isActive == r.getIsActiveInRelease()))
-                        .collect(Collectors.toList());
+        return find(relations, ciRelationId == null ? null : relationsByCiRelId.get(ciRelationId),
+                    r -> (ciRelationId == null || ciRelationId.equals(r.getCiRelationId())) &&
+                                     (isActive == null || isActive == r.getIsActiveInRelease()));
     }
 
     @Override
@@ -473,6 +565,89 @@ public class InMemoryDJMapper implements DJMapper{
         throw new UnsupportedOperationException();
     }
     
+    private void index(CmsRfcCI rfc) {
+        long rfcId = rfc.getRfcId();
+        if (forkWrites != null) forkWrites.add(rfcId);
+        cis.put(rfcId, rfc);
+        cisByCiId.put(rfcId, rfc);
+        cisByNsPath.put(rfcId, rfc);
+        cisByClazz.put(rfcId, rfc);
+    }
+
+    private void index(CmsRfcRelation rfc) {
+        long rfcId = rfc.getRfcId();
+        if (forkWrites != null) forkWrites.add(rfcId);
+        relations.put(rfcId, rfc);
+        relationsByCiRelId.put(rfcId, rfc);
+        relationsByFromCiId.put(rfcId, rfc);
+        relationsByToCiId.put(rfcId, rfc);
+        relationsByName.put(rfcId, rfc);
+        relationsByNsPath.put(rfcId, rfc);
+    }
+
+    // the smallest of the candidate sets, null when none of the indexed fields is part of the lookup
+    @SafeVarargs
+    private static Set<Long> smallest(Set<Long>... candidates) {
+        Set<Long> smallest = null;
+        for (Set<Long> rfcIds : candidates) {
+            if (rfcIds != null && (smallest == null || rfcIds.size() < smallest.size())) {
+                smallest = rfcIds;
+            }
+        }
+        return smallest;
+    }
+
+    private static <T> List<T> find(Map<Long, T> rfcs, Set<Long> rfcIds, Predicate<T> filter) {
+        if (rfcIds == null) {
+            return rfcs.values().stream().filter(filter).collect(Collectors.toList());
+        }
+        List<T> result = new ArrayList<>();
+        for (Long rfcId : rfcIds) {
+            T rfc = rfcs.get(rfcId);
+            if (filter.test(rfc)) result.add(rfc);
+        }
+        return result;
+    }
+
+    /**
+     * Rfc ids by the value of one field of the rfcs. The value an rfc was indexed under is kept, so an update
+     * that changes the field moves the rfc to its new bucket.
+     */
+    private static class RfcIndex<T, K> {
+        private final Function<T, K> field;
+        private final Map<K, NavigableSet<Long>> rfcIds = new HashMap<>();
+        private final Map<Long, K> keys = new HashMap<>();
+
+        RfcIndex(Function<T, K> field) {
+            this.field = field;
+        }
+
+        void put(long rfcId, T rfc) {
+            K key = field.apply(rfc);
+            if (keys.containsKey(rfcId)) {
+                K oldKey = keys.get(rfcId);
+                if (Objects.equals(oldKey, key)) return;
+                NavigableSet<Long> bucket = rfcIds.get(oldKey);
+                bucket.remove(rfcId);
+                if (bucket.isEmpty()) rfcIds.remove(oldKey);
+            }
+            keys.put(rfcId, key);
+            rfcIds.computeIfAbsent(key, k -> new TreeSet<>()).add(rfcId);
+        }
+
+        Set<Long> get(K key) {
+            NavigableSet<Long> bucket = rfcIds.get(key);
+            return bucket == null ? Collections.emptySet() : bucket;
+        }
+
+        RfcIndex<T, K> copy() {
+            RfcIndex<T, K> copy = new RfcIndex<>(field);
+            rfcIds.forEach((key, bucket) -> copy.rfcIds.put(key, new TreeSet<>(bucket)));
+            copy.keys.putAll(keys);
+            return copy;
+        }
+    }
+
     public BomData getBOM(){
         return new BomData(release, cis.values(), relations.values());
     }
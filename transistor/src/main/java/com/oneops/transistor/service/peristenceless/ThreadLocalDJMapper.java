@@ -137,6 +137,11 @@ public class ThreadLocalDJMapper implements DJMapper{
         return get().getRfcCIById(rfcId);
     }
 
+    @Override
+    public List<CmsRfcCI> getRfcCIByIdList(List<Long> rfcIds) {
+        return get().getRfcCIByIdList(rfcIds);
+    }
+
     @Override
     public CmsRfcCI getOpenRfcCIByCiId(long ciId) {
         return get().getOpenRfcCIByCiId(ciId);
@@ -464,7 +464,7 @@ public class TransistorRestController extends AbstractRestController {
 	@RequestMapping(value="environments/{envId}/deployment_cost_data", method = RequestMethod.GET)
 	@ResponseBody
 	public Map<String, List<CostData>> getDeploymentCostData(@PathVariable long envId){
-		BomData data = imBomProcessor.compileEnv(envId, "", null, null, false);
+		BomData data = imBomProcessor.compileEnv(envId, "", null, null, false, false);
 		return envManager.getEnvEstimatedCostData(envId, data);
 	}
 
@@ -484,7 +484,7 @@ public class TransistorRestController extends AbstractRestController {
 	@RequestMapping(value="environments/{envId}/deployment_capacity_data", method = RequestMethod.GET)
 	@ResponseBody
 	public Map<String, List<CapacityData>> getDeploymentCapacityData(@PathVariable long envId){
-		BomData data = imBomProcessor.compileEnv(envId, "", null, null, false);
+		BomData data = imBomProcessor.compileEnv(envId, "", null, null, false, false);
 		return envManager.getEnvCapacity(envId, data);
 	}
 
@@ -575,6 +575,7 @@ public class TransistorRestController extends AbstractRestController {
 								   (String) params.get("includeRFCs"),
 								   (Boolean) params.get("cost"),
 								   (Boolean) params.get("capacity"),
+								   (Boolean) params.get("incremental"),
 								   userId,
 								   scope);
 	}
@@ -590,11 +591,12 @@ public class TransistorRestController extends AbstractRestController {
 			@RequestParam(value = "includeRFCs", required = false) String includeRFCs,
 			@RequestParam(value = "cost", required = false) Boolean cost,
 			@RequestParam(value = "capacity", required = false) Boolean capacity,
+			@RequestParam(value = "incremental", required = false) Boolean incremental,
 			@RequestHeader(value = "X-Cms-User", required = false) String userId,
 			@RequestHeader(value = "X-Cms-Scope", required = false) String scope) {
 		try {
 			if (userId == null) userId = "oneops-system";
-			BomData bomData = imBomProcessor.compileEnv(envId, userId, toSet(excludePlatforms), description, commit == null ? false : commit);
+			BomData bomData = imBomProcessor.compileEnv(envId, userId, toSet(excludePlatforms), description, commit == null ? false : commit, incremental != null && incremental);
 			Map<String, Object> response = new HashMap<>();
 			response.put("release", bomData.getRelease());
 			if (includeRFCs != null) {
@@ -653,7 +655,10 @@ public class TransistorRestController extends AbstractRestController {
 				commit = false;
 			}
 
-			baProcessor.compileEnv(envId, userId, excludePlats, null, params.get("description"), commit);
+			// only regenerate the platforms affected by the manifest and cloud changes since the last deployment
+			boolean incremental = Boolean.valueOf(params.get("incremental"));
+
+			baProcessor.compileEnv(envId, userId, excludePlats, null, params.get("description"), commit, incremental);
 			long exitCode = 0;
 			Map<String,Long> result = new HashMap<>(1);
 			result.put("exit_code", exitCode);
@@ -755,7 +760,7 @@ public class TransistorRestController extends AbstractRestController {
 			@RequestHeader(value="X-Cms-Scope", required = true)  String scope){
 		try {
 			if (userId == null) userId = "oneops-system";
-			baProcessor.compileEnv(envId, userId, toSet(deloyRequest.getExclude()), deloyRequest.getDeployment(), null, false);
+			baProcessor.compileEnv(envId, userId, toSet(deloyRequest.getExclude()), deloyRequest.getDeployment(), null, false, false);
 			long exitCode = 0;
 			Map<String,Long> result = new HashMap<>(1);
 			result.put("exit_code", exitCode);
@@ -789,7 +794,7 @@ public class TransistorRestController extends AbstractRestController {
 			dpmt.setCreatedBy(userId);
 			dpmt.setComments(desc);
 
-			baProcessor.compileEnv(envId, userId, toSet(paramMap.get("exclude")), dpmt, null, commit);
+			baProcessor.compileEnv(envId, userId, toSet(paramMap.get("exclude")), dpmt, null, commit, Boolean.valueOf(paramMap.get("incremental")));
 
 			Map<String, Long> result = new HashMap<>(1);
 			result.put("deploymentId", 0L);
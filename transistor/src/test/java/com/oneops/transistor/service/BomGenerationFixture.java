@@ -0,0 +1,471 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.transistor.service;
+
+import com.oneops.cms.cm.dal.CIMapper;
+import com.oneops.cms.cm.domain.CmsCI;
+import com.oneops.cms.cm.domain.CmsCIAttribute;
+import com.oneops.cms.cm.domain.CmsCIRelation;
+import com.oneops.cms.cm.domain.CmsCIRelationAttribute;
+import com.oneops.cms.cm.service.CmsCmProcessor;
+import com.oneops.cms.crypto.CmsCryptoDES;
+import com.oneops.cms.dj.domain.CmsRelease;
+import com.oneops.cms.dj.domain.CmsRfcAttribute;
+import com.oneops.cms.dj.domain.CmsRfcCI;
+import com.oneops.cms.dj.domain.CmsRfcRelation;
+import com.oneops.cms.dj.service.CmsCmRfcMrgProcessor;
+import com.oneops.cms.dj.service.CmsRfcProcessor;
+import com.oneops.cms.md.domain.CmsClazz;
+import com.oneops.cms.md.domain.CmsClazzAttribute;
+import com.oneops.cms.md.domain.CmsRelation;
+import com.oneops.cms.md.domain.CmsRelationAttribute;
+import com.oneops.cms.md.service.CmsMdProcessor;
+import com.oneops.cms.ns.domain.CmsNamespace;
+import com.oneops.cms.ns.service.CmsNsManager;
+import com.oneops.cms.util.CIValidationResult;
+import com.oneops.cms.util.CmsConstants;
+import com.oneops.cms.util.CmsDJValidator;
+import com.oneops.cms.util.CmsUtil;
+import com.oneops.transistor.service.peristenceless.InMemoryDJMapper;
+import com.oneops.transistor.service.peristenceless.ThreadLocalDJMapper;
+import com.oneops.transistor.util.CloudUtil;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.oneops.cms.util.CmsConstants.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * An environment whose boms are generated by the bulk processor into an in memory mapper, with the cms
+ * reads mocked. The manifest of a platform is a chain of computes, each depending on the previous one, with
+ * a version attribute made of the version of the compute and the version variables of the cloud and of the
+ * environment. The bom of a deployed platform holds the computes of its clouds at version 0.0.0 with their
+ * relations.
+ */
+class BomGenerationFixture {
+
+    static final String ENV_NS = "/org/a1/e1";
+    static final String MANIFEST_NS = ENV_NS + "/manifest";
+    static final String BOM_NS = ENV_NS + "/bom";
+    static final Date BEFORE = new Date(500000);
+
+    private static final long CLOUD_ID_BASE = 90000;
+    private static final long BOM_ID_BASE = 10000000;
+    private static final String VERSION = "version";
+    private static final List<String> RELATIONS = Arrays.asList(BOM_DEPENDS_ON, BASE_REALIZED_AS, BASE_DEPLOYED_TO, BOM_MANAGED_VIA, BOM_SECURED_BY, BASE_ENTRYPOINT);
+
+    final CmsCmProcessor cmProcessor = mock(CmsCmProcessor.class);
+    final EnvBomGenerationContext context = mock(EnvBomGenerationContext.class);
+    final CmsCI environment = ci(1, "e1", "manifest.Environment", "/org/a1");
+    final List<CmsCI> clouds = new ArrayList<>();
+    final List<CmsCI> platforms = new ArrayList<>();
+    final Map<Long, List<CmsCIRelation>> cloudRels = new HashMap<>();
+    final Map<Long, Integer> componentVersions = new HashMap<>();
+    final Map<Long, Integer> cloudVersions = new HashMap<>();
+    final Set<Long> replaced = new HashSet<>();
+    final Set<Long> disabled = new HashSet<>();
+    int globalVersion;
+    int execOrder;
+
+    private final int componentCount;
+    private final List<CmsCIRelation> links = new ArrayList<>();
+    private final Map<Long, Set<String>> dependencies = new HashMap<>();
+    private final Set<Long> deployed = new HashSet<>();
+    private final Map<String, CmsCI> manifestNs = new HashMap<>();
+    private final Map<String, CmsCI> bomNs = new HashMap<>();
+    private final Map<Long, String> names = new HashMap<>();
+    private final ThreadLocalDJMapper threadLocalDJMapper = new ThreadLocalDJMapper();
+    private final CmsUtil cmsUtil = new CmsUtil();
+    private final TransUtil trUtil = new TransUtil();
+    private final BomRfcBulkProcessor processor = new BomRfcBulkProcessor();
+    private Set<Long> excluded = Collections.emptySet();
+
+    BomGenerationFixture(int componentCount) {
+        this.componentCount = componentCount;
+        environment.setUpdated(BEFORE);
+
+        cmsUtil.setCmsCrypto(new CmsCryptoDES());
+        cmsUtil.setCountOfErrorsToReport(5);
+        cmsUtil.setCmProcessor(cmProcessor);
+
+        CmsMdProcessor mdProcessor = mock(CmsMdProcessor.class);
+        when(mdProcessor.getClazz(anyString())).thenAnswer(i -> clazz((String) i.getArguments()[0]));
+        when(mdProcessor.getRelation(anyString())).thenAnswer(i -> relation((String) i.getArguments()[0]));
+        CmsNsManager nsManager = mock(CmsNsManager.class);
+        CmsNamespace ns = new CmsNamespace();
+        ns.setNsId(1);
+        when(nsManager.getNs(anyString())).thenReturn(ns);
+        trUtil.setCmsUtil(cmsUtil);
+        trUtil.setMdProcessor(mdProcessor);
+        trUtil.setNsManager(nsManager);
+
+        CmsDJValidator djValidator = mock(CmsDJValidator.class);
+        CIValidationResult validated = new CIValidationResult();
+        validated.setValidated(true);
+        when(djValidator.validateRfcCi(any(CmsRfcCI.class))).thenReturn(validated);
+        CIMapper ciMapper = mock(CIMapper.class);
+        when(ciMapper.getCIById(anyLong())).thenAnswer(i -> deployedCi((Long) i.getArguments()[0]));
+        CmsRfcProcessor rfcProcessor = new CmsRfcProcessor();
+        rfcProcessor.setDjMapper(threadLocalDJMapper);
+        rfcProcessor.setDjValidator(djValidator);
+        rfcProcessor.setCiMapper(ciMapper);
+
+        processor.setCmsUtil(cmsUtil);
+        processor.setTrUtil(trUtil);
+        processor.setCmProcessor(cmProcessor);
+        processor.setRfcProcessor(rfcProcessor);
+        processor.setCmRfcMrgProcessor(mock(CmsCmRfcMrgProcessor.class));
+
+        when(cmProcessor.getCIRelationsNaked(anyString(), any(), any(), any(), any())).thenAnswer(i -> manifestRelations(manifestNs.get(i.getArguments()[0])));
+        when(cmProcessor.getCIRelations(anyString(), any(), any(), any(), any())).thenAnswer(i -> bomRelations(bomNs.get(i.getArguments()[0])));
+        when(cmProcessor.getCiByIdList(any())).thenAnswer(i -> ((List<?>) i.getArguments()[0]).stream()
+                .map(id -> component((Long) id))
+                .collect(Collectors.toList()));
+        when(cmProcessor.getCmSimpleVar(anyString())).thenReturn(null);
+
+        doAnswer(i -> environment).when(context).getEnvironment();
+        doAnswer(i -> platforms).when(context).getPlatforms();
+        doAnswer(i -> links).when(context).getLinksToRelations();
+        doAnswer(i -> disabled).when(context).getDisabledPlatformIds();
+        doAnswer(i -> excluded).when(context).getExcludedPlats();
+        doAnswer(i -> MANIFEST_NS).when(context).getManifestNsPath();
+        doAnswer(i -> BOM_NS).when(context).getBomNsPath();
+        doAnswer(i -> "test").when(context).getUserId();
+        doAnswer(i -> 1L).when(context).getReleaseId();
+        doAnswer(i -> Collections.singletonMap(VERSION, String.valueOf(globalVersion))).when(context).getGlobalVariables();
+        doAnswer(i -> Collections.singletonMap(VERSION, String.valueOf(cloudVersions.get(((CmsCI) i.getArguments()[0]).getCiId()))))
+                .when(context).getCloudVariables(any(CmsCI.class));
+        doAnswer(i -> new PlatformBomGenerationContext((CmsCI) i.getArguments()[0], context, cmProcessor, cmsUtil))
+                .when(context).loadPlatformContext(any(CmsCI.class));
+    }
+
+    CmsCI addCloud() {
+        long id = CLOUD_ID_BASE + clouds.size() + 1;
+        CmsCI cloud = ci(id, "c" + (clouds.size() + 1), "account.Cloud", "/org/_clouds");
+        clouds.add(cloud);
+        cloudVersions.put(id, 0);
+        names.put(id, cloud.getCiName());
+        return cloud;
+    }
+
+    /**
+     * @param cloudOrders the clouds the platform consumes with their deployment order
+     * @param isDeployed whether the bom of the platform is deployed
+     */
+    CmsCI addPlatform(Map<CmsCI, Integer> cloudOrders, boolean isDeployed) {
+        CmsCI platform = ci(1000 + platforms.size(), "p" + platforms.size(), "manifest.Platform", MANIFEST_NS);
+        CmsCIAttribute majorVersion = new CmsCIAttribute();
+        majorVersion.setAttributeName("major_version");
+        majorVersion.setDjValue("1");
+        platform.addAttribute(majorVersion);
+        platforms.add(platform);
+        manifestNs.put(manifestNsPath(platform), platform);
+        bomNs.put(bomNsPath(platform), platform);
+        if (isDeployed) {
+            deployed.add(platform.getCiId());
+        }
+
+        List<CmsCIRelation> rels = new ArrayList<>();
+        cloudOrders.forEach((cloud, order) -> {
+            CmsCIRelation rel = new CmsCIRelation();
+            rel.setRelationName(CmsConstants.BASE_CONSUMES);
+            rel.setFromCiId(platform.getCiId());
+            rel.setToCiId(cloud.getCiId());
+            rel.setToCi(cloud);
+            rel.setUpdated(BEFORE);
+            rel.addAttribute(attribute("priority", "1"));
+            rel.addAttribute(attribute("adminstatus", CmsConstants.CLOUD_STATE_ACTIVE));
+            rel.addAttribute(attribute("dpmt_order", String.valueOf(order)));
+            rels.add(rel);
+        });
+        cloudRels.put(platform.getCiId(), rels);
+        when(cmProcessor.getFromCIRelations(eq(platform.getCiId()), eq(CmsConstants.BASE_CONSUMES), eq("account.Cloud"))).thenReturn(rels);
+
+        Set<String> dependsOn = new LinkedHashSet<>();
+        for (int i = 0; i < componentCount; i++) {
+            long componentId = componentId(platform, i);
+            componentVersions.put(componentId, 0);
+            names.put(componentId, "comp" + i);
+            if (i > 0) {
+                dependsOn.add(i + ":" + (i - 1));
+            }
+            for (CmsCIRelation rel : rels) {
+                names.put(bomCiId(componentId, rel.getToCiId()), bomCiName(i, rel.getToCiId()));
+            }
+        }
+        dependencies.put(platform.getCiId(), dependsOn);
+        return platform;
+    }
+
+    /**
+     * Links the platform to the one it depends on, the platforms are generated in the order of the links.
+     */
+    void link(CmsCI from, CmsCI to) {
+        CmsCIRelation link = new CmsCIRelation();
+        link.setFromCiId(from.getCiId());
+        link.setToCiId(to.getCiId());
+        links.add(link);
+    }
+
+    /**
+     * Adds a manifest dependency between two components of the platform, the deployed bom does not have it.
+     */
+    void addDependency(CmsCI platform, int from, int to) {
+        dependencies.get(platform.getCiId()).add(from + ":" + to);
+    }
+
+    long componentId(CmsCI platform, int index) {
+        return platform.getCiId() * 100 + index;
+    }
+
+    /**
+     * @return the deployed bom cis marked for replace
+     */
+    List<CmsCI> getReplacedBomCis() {
+        return platforms.stream()
+                .filter(p -> deployed.contains(p.getCiId()))
+                .flatMap(p -> deployedCis(p).stream())
+                .filter(ci -> "replace".equals(ci.getCiState()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Generates the bom of the active clouds of the platforms into a new mapper.
+     *
+     * @param threads bom generation threads, 1 generates platform by platform
+     * @param excludedPlats platforms to skip
+     */
+    InMemoryDJMapper generate(int threads, Set<Long> excludedPlats) {
+        excluded = excludedPlats;
+        InMemoryDJMapper mapper = new InMemoryDJMapper();
+        CmsRelease release = new CmsRelease();
+        release.setReleaseId(1);
+        release.setReleaseState("open");
+        mapper.createRelease(release);
+        threadLocalDJMapper.set(mapper);
+
+        BomManagerImpl bomManager = new BomManagerImpl();
+        bomManager.setThreadLocalDJMapper(threadLocalDJMapper);
+        bomManager.setInMemoryBomGenerationThreads(threads);
+        bomManager.setCmProcessor(cmProcessor);
+        bomManager.setCloudUtil(mock(CloudUtil.class));
+        bomManager.setTrUtil(trUtil);
+        bomManager.setBomGenerationProcessor(processor);
+        try {
+            execOrder = bomManager.generateBomForActiveClouds(context);
+        } finally {
+            bomManager.destroy();
+        }
+        return mapper;
+    }
+
+    List<String> describeCis(InMemoryDJMapper mapper, boolean withIds) {
+        return mapper.getCis().values().stream()
+                .map(rfc -> (withIds ? rfc.getRfcId() + " " + rfc.getCiId() + " " : "") + rfc.getNsPath() + " " + rfc.getCiName() + " "
+                        + rfc.getRfcAction() + " " + rfc.getExecOrder() + " " + describe(rfc.getAttributes()))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    List<String> describeRelations(InMemoryDJMapper mapper, boolean withIds) {
+        Map<Long, String> ciNames = new HashMap<>(names);
+        mapper.getCis().values().forEach(rfc -> ciNames.put(rfc.getCiId(), rfc.getCiName()));
+        return mapper.getRelations().values().stream()
+                .map(rfc -> (withIds ? rfc.getRfcId() + " " + rfc.getCiRelationId() + " " : "") + rfc.getNsPath() + " " + ciNames.get(rfc.getFromCiId()) + " "
+                        + rfc.getRelationName() + " " + ciNames.get(rfc.getToCiId()) + " " + rfc.getRfcAction() + " " + describe(rfc.getAttributes()))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static String describe(Map<String, CmsRfcAttribute> attributes) {
+        return attributes.values().stream()
+                .map(attr -> attr.getAttributeName() + "=" + attr.getOldValue() + "->" + attr.getNewValue())
+                .sorted()
+                .collect(Collectors.joining(",", "{", "}"));
+    }
+
+    private static String manifestNsPath(CmsCI platform) {
+        return MANIFEST_NS + "/" + platform.getCiName() + "/1";
+    }
+
+    private static String bomNsPath(CmsCI platform) {
+        return BOM_NS + "/" + platform.getCiName() + "/1";
+    }
+
+    private static String bomCiName(int index, long cloudId) {
+        return "comp" + index + "-" + cloudId + "-1";
+    }
+
+    private static long bomCiId(long componentId, long cloudId) {
+        return BOM_ID_BASE + componentId * 10 + (cloudId - CLOUD_ID_BASE);
+    }
+
+    private CmsCI component(long componentId) {
+        CmsCI platform = platforms.get((int) (componentId / 100 - 1000));
+        CmsCI component = ci(componentId, "comp" + componentId % 100, "manifest.Compute", manifestNsPath(platform));
+        CmsCIAttribute version = new CmsCIAttribute();
+        version.setAttributeName(VERSION);
+        version.setDfValue(componentVersions.get(componentId) + ".$OO_CLOUD{version}.$OO_GLOBAL{version}");
+        version.setDjValue(version.getDfValue());
+        component.addAttribute(version);
+        return component;
+    }
+
+    private List<CmsCIRelation> manifestRelations(CmsCI platform) {
+        List<CmsCIRelation> rels = new ArrayList<>();
+        if (platform == null) {
+            return rels;
+        }
+        for (int i = 0; i < componentCount; i++) {
+            CmsCIRelation requires = new CmsCIRelation();
+            requires.setRelationName(MANIFEST_REQUIRES);
+            requires.setFromCiId(platform.getCiId());
+            requires.setToCiId(componentId(platform, i));
+            rels.add(requires);
+        }
+        for (String dependency : dependencies.get(platform.getCiId())) {
+            String[] ends = dependency.split(":");
+            CmsCIRelation dependsOn = new CmsCIRelation();
+            dependsOn.setRelationName(MANIFEST_DEPENDS_ON);
+            dependsOn.setFromCiId(componentId(platform, Integer.valueOf(ends[0])));
+            dependsOn.setToCiId(componentId(platform, Integer.valueOf(ends[1])));
+            CmsCIRelationAttribute current = attribute("current", "1");
+            dependsOn.addAttribute(current);
+            rels.add(dependsOn);
+        }
+        return rels;
+    }
+
+    private List<CmsCI> deployedCis(CmsCI platform) {
+        List<CmsCI> cis = new ArrayList<>();
+        for (CmsCIRelation cloudRel : cloudRels.get(platform.getCiId())) {
+            for (int i = 0; i < componentCount; i++) {
+                cis.add(deployedCi(platform, i, cloudRel.getToCiId()));
+            }
+        }
+        return cis;
+    }
+
+    private CmsCI deployedCi(CmsCI platform, int index, long cloudId) {
+        long componentId = componentId(platform, index);
+        CmsCI ci = ci(bomCiId(componentId, cloudId), bomCiName(index, cloudId), "bom.Compute", bomNsPath(platform));
+        ci.setCiState(replaced.contains(componentId) ? "replace" : "default");
+        CmsCIAttribute version = new CmsCIAttribute();
+        version.setAttributeName(VERSION);
+        version.setDfValue("0.0.0");
+        version.setDjValue("0.0.0");
+        ci.addAttribute(version);
+        return ci;
+    }
+
+    private CmsCI deployedCi(long ciId) {
+        long componentId = (ciId - BOM_ID_BASE) / 10;
+        CmsCI platform = platforms.get((int) (componentId / 100 - 1000));
+        return deployedCi(platform, (int) (componentId % 100), CLOUD_ID_BASE + (ciId - BOM_ID_BASE) % 10);
+    }
+
+    private List<CmsCIRelation> bomRelations(CmsCI platform) {
+        List<CmsCIRelation> rels = new ArrayList<>();
+        if (platform == null || !deployed.contains(platform.getCiId())) {
+            return rels;
+        }
+        for (CmsCIRelation cloudRel : cloudRels.get(platform.getCiId())) {
+            CmsCI cloud = cloudRel.getToCi();
+            CmsCI previous = null;
+            for (int i = 0; i < componentCount; i++) {
+                CmsCI bomCi = deployedCi(platform, i, cloud.getCiId());
+                CmsCIRelation realizedAs = bomRelation(BASE_REALIZED_AS, component(componentId(platform, i)), bomCi, bomCi, platform);
+                realizedAs.addAttribute(attribute("priority", "1"));
+                realizedAs.addAttribute(attribute("last_manifest_rfc", "0"));
+                rels.add(realizedAs);
+                CmsCIRelation deployedTo = bomRelation(BASE_DEPLOYED_TO, bomCi, cloud, bomCi, platform);
+                deployedTo.addAttribute(attribute("priority", "1"));
+                rels.add(deployedTo);
+                if (previous != null) {
+                    rels.add(bomRelation(BOM_DEPENDS_ON, bomCi, previous, bomCi, platform));
+                }
+                previous = bomCi;
+            }
+        }
+        return rels;
+    }
+
+    /**
+     * @param bomCi the bom ci the relation belongs to, its id is the base of the relation id
+     */
+    private static CmsCIRelation bomRelation(String relationName, CmsCI from, CmsCI to, CmsCI bomCi, CmsCI platform) {
+        CmsCIRelation rel = new CmsCIRelation();
+        rel.setRelationName(relationName);
+        rel.setRelationId(RELATIONS.indexOf(relationName) + 1);
+        rel.setCiRelationId(bomCi.getCiId() * 10 + RELATIONS.indexOf(relationName));
+        rel.setFromCiId(from.getCiId());
+        rel.setFromCi(from);
+        rel.setToCiId(to.getCiId());
+        rel.setToCi(to);
+        rel.setNsPath(bomNsPath(platform));
+        rel.setRelationGoid(from.getCiId() + "-" + rel.getRelationId() + "-" + to.getCiId());
+        return rel;
+    }
+
+    private static CmsClazz clazz(String className) {
+        CmsClazz clazz = new CmsClazz();
+        clazz.setClassId(1);
+        clazz.setClassName(className);
+        CmsClazzAttribute version = new CmsClazzAttribute();
+        version.setAttributeName(VERSION);
+        clazz.setMdAttributes(Collections.singletonList(version));
+        return clazz;
+    }
+
+    private static CmsRelation relation(String relationName) {
+        CmsRelation relation = new CmsRelation();
+        relation.setRelationId(RELATIONS.indexOf(relationName) + 1);
+        relation.setRelationName(relationName);
+        List<CmsRelationAttribute> attributes = new ArrayList<>();
+        for (String name : new String[] {"priority", "last_manifest_rfc"}) {
+            CmsRelationAttribute attribute = new CmsRelationAttribute();
+            attribute.setAttributeName(name);
+            attributes.add(attribute);
+        }
+        relation.setMdAttributes(attributes);
+        return relation;
+    }
+
+    static CmsCI ci(long id, String name, String className, String nsPath) {
+        CmsCI ci = new CmsCI();
+        ci.setCiId(id);
+        ci.setCiName(name);
+        ci.setCiClassName(className);
+        ci.setNsPath(nsPath);
+        ci.setCiState("default");
+        ci.setUpdated(BEFORE);
+        return ci;
+    }
+
+    static CmsCIRelationAttribute attribute(String name, String value) {
+        CmsCIRelationAttribute attr = new CmsCIRelationAttribute();
+        attr.setAttributeName(name);
+        attr.setDfValue(value);
+        attr.setDjValue(value);
+        return attr;
+    }
+}
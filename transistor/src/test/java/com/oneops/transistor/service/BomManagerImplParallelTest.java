@@ -0,0 +1,142 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.transistor.service;
+
+import com.oneops.cms.cm.domain.CmsCI;
+import com.oneops.cms.dj.domain.CmsRfcCI;
+import com.oneops.transistor.service.peristenceless.InMemoryDJMapper;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Compares the in memory boms generated by the bulk processor platform by platform and with the platforms of an
+ * exec order step in parallel.
+ */
+public class BomManagerImplParallelTest {
+
+    private static final Logger logger = Logger.getLogger(BomManagerImplParallelTest.class);
+
+    @Test
+    public void parallelMatchesSerial() {
+        BomGenerationFixture env = environment(30, 3, 5);
+
+        InMemoryDJMapper serial = env.generate(1, Collections.emptySet());
+        int serialExecOrder = env.execOrder;
+        InMemoryDJMapper parallel = env.generate(8, Collections.emptySet());
+        InMemoryDJMapper parallelAgain = env.generate(8, Collections.emptySet());
+
+        assertEquals(env.describeCis(parallel, false), env.describeCis(serial, false));
+        assertEquals(env.describeRelations(parallel, false), env.describeRelations(serial, false));
+        assertEquals(env.execOrder, serialExecOrder);
+        Set<String> actions = serial.getCis().values().stream().map(CmsRfcCI::getRfcAction).collect(Collectors.toSet());
+        assertEquals(actions, new HashSet<>(Arrays.asList("add", "update", "replace", "delete")));
+
+        // the ids come from the blocks of the platforms, not from the order the threads get to them
+        assertEquals(env.describeCis(parallelAgain, true), env.describeCis(parallel, true));
+        assertEquals(env.describeRelations(parallelAgain, true), env.describeRelations(parallel, true));
+    }
+
+    /**
+     * A new single component platform has all the rfcs of a cloud on the step its deployment order starts on. The
+     * clouds of the next deployment order still go on a later step, also when the platform starts after a linked
+     * platform.
+     */
+    @Test
+    public void cloudDeploymentOrdersOnSeparateSteps() {
+        BomGenerationFixture env = new BomGenerationFixture(1);
+        CmsCI cloud1 = env.addCloud();
+        CmsCI cloud2 = env.addCloud();
+        CmsCI first = env.addPlatform(Collections.singletonMap(cloud1, 1), false);
+        Map<CmsCI, Integer> cloudOrders = new LinkedHashMap<>();
+        cloudOrders.put(cloud1, 1);
+        cloudOrders.put(cloud2, 2);
+        env.link(env.addPlatform(cloudOrders, false), first);
+
+        for (int threads : new int[] {1, 8}) {
+            InMemoryDJMapper mapper = env.generate(threads, Collections.emptySet());
+            Map<String, Integer> execOrders = mapper.getCis().values().stream()
+                    .collect(Collectors.toMap(rfc -> rfc.getNsPath() + " " + rfc.getCiName(), CmsRfcCI::getExecOrder));
+            int firstOrder = execOrders.get(BomGenerationFixture.BOM_NS + "/p1/1 comp0-" + cloud1.getCiId() + "-1");
+            int secondOrder = execOrders.get(BomGenerationFixture.BOM_NS + "/p1/1 comp0-" + cloud2.getCiId() + "-1");
+            assertTrue(secondOrder > firstOrder, execOrders.toString());
+        }
+    }
+
+    @Test
+    public void forkJoin() {
+        InMemoryDJMapper mapper = new InMemoryDJMapper();
+        long firstId = mapper.getNextDjId();
+        InMemoryDJMapper fork0 = mapper.fork(0);
+        InMemoryDJMapper fork1 = mapper.fork(1);
+        InMemoryDJMapper fork2 = mapper.fork(2);
+        CmsRfcCI rfc = new CmsRfcCI();
+        rfc.setRfcId(fork1.getNextDjId());
+        fork1.createRfcCI(rfc);
+        assertEquals(fork0.getNextDjId(), firstId + 1);
+        assertTrue(mapper.getCis().isEmpty());
+
+        mapper.join(Arrays.asList(fork0, fork1, fork2));
+        assertEquals(mapper.getCis().get(rfc.getRfcId()), rfc);
+        assertEquals(mapper.getNextDjId(), rfc.getRfcId() + 1);
+    }
+
+    @Test
+    public void benchmark() {
+        BomGenerationFixture env = environment(50, 2, 10);
+        env.generate(1, Collections.emptySet());
+        long t1 = System.currentTimeMillis();
+        InMemoryDJMapper serial = env.generate(1, Collections.emptySet());
+        long t2 = System.currentTimeMillis();
+        InMemoryDJMapper parallel = env.generate(8, Collections.emptySet());
+        long t3 = System.currentTimeMillis();
+        assertEquals(env.describeCis(parallel, false), env.describeCis(serial, false));
+        logger.info("bom for 50 platforms, 2 clouds: serial " + (t2 - t1) + " ms, 8 threads " + (t3 - t2) + " ms, " + serial.getCis().size() + " rfcs");
+    }
+
+    /**
+     * Platforms linked in chains of ten (one exec order step per link), each consuming the same clouds in two
+     * deployment orders. A quarter of the platforms is new, the others are deployed with a component changed, a
+     * component replaced or nothing changed, the last platform is disabled.
+     */
+    private static BomGenerationFixture environment(int platformCount, int cloudCount, int componentCount) {
+        BomGenerationFixture env = new BomGenerationFixture(componentCount);
+        Map<CmsCI, Integer> cloudOrders = new LinkedHashMap<>();
+        for (int c = 0; c < cloudCount; c++) {
+            cloudOrders.put(env.addCloud(), c % 2 + 1);
+        }
+        for (int p = 0; p < platformCount; p++) {
+            CmsCI platform = env.addPlatform(cloudOrders, p % 4 != 0 || p == platformCount - 1);
+            if (p >= 10) {
+                env.link(platform, env.platforms.get(p - 10));
+            }
+            if (p % 4 == 1) {
+                env.componentVersions.put(env.componentId(platform, componentCount - 1), 1);
+            } else if (p % 4 == 2) {
+                env.replaced.add(env.componentId(platform, 0));
+            }
+        }
+        env.disabled.add(env.platforms.get(platformCount - 1).getCiId());
+        return env;
+    }
+}
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ *
+ *   Copyright 2015 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+package com.oneops.transistor.service;
+
+import com.oneops.cms.cm.domain.CmsCI;
+import com.oneops.cms.cm.domain.CmsCIRelation;
+import com.oneops.cms.cm.service.CmsCmProcessor;
+import com.oneops.cms.dj.domain.CmsDeployment;
+import com.oneops.cms.dj.domain.CmsRelease;
+import com.oneops.cms.dj.domain.CmsRfcCI;
+import com.oneops.cms.dj.domain.CmsRfcRelation;
+import com.oneops.cms.dj.service.CmsDpmtProcessor;
+import com.oneops.cms.dj.service.CmsRfcProcessor;
+import com.oneops.cms.util.CmsConstants;
+import com.oneops.transistor.service.peristenceless.InMemoryDJMapper;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.oneops.transistor.service.BomGenerationFixture.BOM_NS;
+import static com.oneops.transistor.service.BomGenerationFixture.MANIFEST_NS;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+/**
+ * Generates boms of random designs after random changes, once for all platforms and once for the platforms
+ * the planner finds affected, and compares the rfcs.
+ */
+public class IncrementalBomPlannerTest {
+
+    private static final Date DEPLOYED = new Date(1000000);
+    private static final Date AFTER = new Date(2000000);
+
+    @Test
+    public void incrementalMatchesFull() {
+        Random random = new Random(7);
+        int carriedForward = 0;
+        Set<String> tokens = new HashSet<>();
+        for (int round = 0; round < 40; round++) {
+            Design design = new Design(random, 5 + random.nextInt(20), 1 + random.nextInt(3), 1 + random.nextInt(6));
+            design.change(random);
+
+            List<String> full = design.generate(Collections.emptySet());
+            Set<Long> unchanged = design.planner().getUnchangedPlatformIds(design.env.context);
+            List<String> incremental = design.generate(unchanged);
+
+            assertEquals(incremental, full, "round " + round);
+            carriedForward += unchanged.size();
+            full.forEach(rfc -> tokens.addAll(Arrays.asList(rfc.split(" "))));
+        }
+        assertTrue(carriedForward > 0);
+        assertTrue(tokens.containsAll(Arrays.asList("update", "replace", "add")));
+    }
+
+    @Test
+    public void unchangedDesignHasNoRfcs() {
+        Design design = new Design(new Random(1), 10, 2, 3);
+        assertEquals(design.generate(Collections.emptySet()), Collections.emptyList());
+        assertEquals(design.planner().getAffectedPlatformIds(design.env.context), Collections.emptySet());
+    }
+
+    @Test
+    public void localChangeRegeneratesItsPlatformOnly() {
+        Design design = new Design(new Random(1), 10, 2, 3);
+        design.changeComponent(design.env.platforms.get(3), 1);
+        assertEquals(design.planner().getAffectedPlatformIds(design.env.context), Collections.singleton(design.env.platforms.get(3).getCiId()));
+    }
+
+    @Test
+    public void cloudChangeRegeneratesItsConsumers() {
+        Design design = new Design(new Random(1), 10, 2, 3);
+        long cloudId = design.env.clouds.get(1).getCiId();
+        design.env.cloudVersions.put(cloudId, 1);
+        Set<Long> consumers = design.env.platforms.stream()
+                .filter(p -> design.consumes(p, cloudId))
+                .map(CmsCI::getCiId)
+                .collect(Collectors.toSet());
+        assertEquals(design.planner().getAffectedPlatformIds(design.env.context), consumers);
+    }
+
+    @Test
+    public void globalChangeRegeneratesAll() {
+        Design design = new Design(new Random(1), 10, 2, 3);
+        design.changeGlobalVar();
+        assertNull(design.planner().getAffectedPlatformIds(design.env.context));
+        assertEquals(design.planner().getUnchangedPlatformIds(design.env.context), Collections.emptySet());
+    }
+
+    @Test
+    public void incompleteDeploymentRegeneratesAll() {
+        Design design = new Design(new Random(1), 10, 2, 3);
+        design.deploymentState = "failed";
+        assertNull(design.planner().getAffectedPlatformIds(design.env.context));
+    }
+
+    @Test
+    public void excludedPlatformsOfTheDeployedReleaseAreRegenerated() {
+        Design design = new Design(new Random(1), 10, 2, 3);
+        long excluded = design.env.platforms.get(4).getCiId();
+        design.bomRelease.setDescription("{\"rfcCiCount\":12.0,\"" + IncrementalBomPlanner.EXCLUDED_PLATFORMS + "\":[" + excluded + ",99999]}");
+        assertEquals(design.planner().getAffectedPlatformIds(design.env.context), Collections.singleton(excluded));
+    }
+
+    @Test
+    public void releaseNotListingExcludedPlatformsRegeneratesAll() {
+        Design design = new Design(new Random(1), 10, 2, 3);
+        design.bomRelease.setDescription("{\"rfcCiCount\":12.0}");
+        assertNull(design.planner().getAffectedPlatformIds(design.env.context));
+        design.bomRelease.setDescription(null);
+        assertNull(design.planner().getAffectedPlatformIds(design.env.context));
+    }
+
+    private static String platformNs(CmsCI platform) {
+        return MANIFEST_NS + "/" + platform.getCiName() + "/1";
+    }
+
+    /**
+     * Deployed platforms linked in chains of five consuming some of the clouds, with the manifest rfcs, releases
+     * and deployment the planner reads. The changes are made to the design and recorded as the rfcs committed
+     * since the deployment.
+     */
+    private class Design {
+        private final BomGenerationFixture env;
+        private final CmsRfcProcessor rfcProcessor = mock(CmsRfcProcessor.class);
+        private final CmsDpmtProcessor dpmtProcessor = mock(CmsDpmtProcessor.class);
+        private final List<CmsRfcCI> manifestRfcs = new ArrayList<>();
+        private final List<CmsRfcRelation> manifestRelationRfcs = new ArrayList<>();
+        private final List<CmsCI> pendingDeletion = new ArrayList<>();
+        private final CmsRelease bomRelease = new CmsRelease();
+        private final int componentCount;
+        private String deploymentState = "complete";
+
+        Design(Random random, int platformCount, int cloudCount, int componentCount) {
+            this.componentCount = componentCount;
+            env = new BomGenerationFixture(componentCount);
+            CmsCmProcessor cmProcessor = env.cmProcessor;
+            for (int c = 0; c < cloudCount; c++) {
+                CmsCI cloud = env.addCloud();
+                when(cmProcessor.getToCIRelations(eq(cloud.getCiId()), eq("account.ValueFor"), isNull(String.class))).thenAnswer(i -> cloudVars(cloud));
+            }
+            when(cmProcessor.getFromCIRelations(anyLong(), eq(CmsConstants.BASE_PROVIDES), isNull(String.class))).thenReturn(new ArrayList<>());
+
+            for (int p = 0; p < platformCount; p++) {
+                Map<CmsCI, Integer> cloudOrders = new LinkedHashMap<>();
+                for (CmsCI cloud : env.clouds) {
+                    if (cloudOrders.isEmpty() || random.nextBoolean()) {
+                        cloudOrders.put(cloud, random.nextInt(2) + 1);
+                    }
+                }
+                CmsCI platform = env.addPlatform(cloudOrders, true);
+                if (p >= 5) {
+                    env.link(platform, env.platforms.get(p - 5));
+                }
+            }
+
+            bomRelease.setReleaseId(20);
+            bomRelease.setParentReleaseId(10L);
+            bomRelease.setCreated(DEPLOYED);
+            bomRelease.setDescription("{\"" + IncrementalBomPlanner.EXCLUDED_PLATFORMS + "\":[]}");
+            CmsRelease manifestRelease = new CmsRelease();
+            manifestRelease.setReleaseId(12);
+            when(rfcProcessor.getLatestRelease(BOM_NS, "closed")).thenReturn(Collections.singletonList(bomRelease));
+            when(rfcProcessor.getLatestRelease(MANIFEST_NS, "closed")).thenReturn(Collections.singletonList(manifestRelease));
+            when(rfcProcessor.getRfcCIsAppliedBetweenTwoReleases(MANIFEST_NS, 10L, 12L)).thenReturn(manifestRfcs);
+            when(rfcProcessor.getRfcRelationsAppliedBetweenTwoReleases(MANIFEST_NS, 10L, 12L)).thenReturn(manifestRelationRfcs);
+            when(dpmtProcessor.findLatestDeployment(BOM_NS, null, false)).thenAnswer(i -> {
+                CmsDeployment deployment = new CmsDeployment();
+                deployment.setReleaseId(20);
+                deployment.setDeploymentState(deploymentState);
+                return Collections.singletonList(deployment);
+            });
+            when(cmProcessor.getCiByNsLikeByStateNaked(MANIFEST_NS, null, "pending_deletion")).thenReturn(pendingDeletion);
+            when(cmProcessor.getCiByNsLikeByStateNaked(BOM_NS, null, "replace")).thenAnswer(i -> env.getReplacedBomCis());
+        }
+
+        void change(Random random) {
+            int changes = random.nextInt(4);
+            for (int i = 0; i < changes; i++) {
+                CmsCI platform = env.platforms.get(random.nextInt(env.platforms.size()));
+                switch (random.nextInt(8)) {
+                    case 0:
+                        changeGlobalVar();
+                        break;
+                    case 1:
+                        env.cloudVersions.compute(env.clouds.get(random.nextInt(env.clouds.size())).getCiId(), (id, v) -> v + 1);
+                        break;
+                    case 2:
+                        env.replaced.add(env.componentId(platform, 0));
+                        break;
+                    case 3:
+                        if (componentCount > 2) {
+                            // a dependency between two components of the platform
+                            int from = 2 + random.nextInt(componentCount - 2);
+                            int to = random.nextInt(from - 1);
+                            env.addDependency(platform, from, to);
+                            CmsRfcRelation rel = new CmsRfcRelation();
+                            rel.setNsPath(platformNs(platform));
+                            rel.setRelationName("manifest.DependsOn");
+                            rel.setFromCiId(env.componentId(platform, from));
+                            rel.setToCiId(env.componentId(platform, to));
+                            manifestRelationRfcs.add(rel);
+                            break;
+                        }
+                    case 4:
+                        CmsCIRelation cloudRel = env.cloudRels.get(platform.getCiId()).get(0);
+                        cloudRel.setUpdated(AFTER);
+                        env.cloudVersions.compute(cloudRel.getToCiId(), (id, v) -> v + 1);
+                        break;
+                    default:
+                        changeComponent(platform, random.nextInt(componentCount));
+                }
+            }
+        }
+
+        void changeComponent(CmsCI platform, int index) {
+            long componentId = env.componentId(platform, index);
+            env.componentVersions.compute(componentId, (id, v) -> v + 1);
+            CmsRfcCI rfc = new CmsRfcCI();
+            rfc.setCiId(componentId);
+            rfc.setNsPath(platformNs(platform));
+            rfc.setCiClassName("manifest.Compute");
+            rfc.setCiName("comp" + index);
+            manifestRfcs.add(rfc);
+        }
+
+        void changeGlobalVar() {
+            env.globalVersion++;
+            CmsRfcCI rfc = new CmsRfcCI();
+            rfc.setCiId(5);
+            rfc.setNsPath(MANIFEST_NS);
+            rfc.setCiClassName("manifest.Globalvar");
+            rfc.setCiName("version");
+            manifestRfcs.add(rfc);
+        }
+
+        boolean consumes(CmsCI platform, long cloudId) {
+            return env.cloudRels.get(platform.getCiId()).stream().anyMatch(r -> r.getToCiId() == cloudId);
+        }
+
+        IncrementalBomPlanner planner() {
+            return new IncrementalBomPlanner(env.cmProcessor, rfcProcessor, dpmtProcessor);
+        }
+
+        /**
+         * @return the rfcs with the exec orders brushed as for the release
+         */
+        List<String> generate(Set<Long> excludedPlats) {
+            InMemoryDJMapper mapper = env.generate(1, excludedPlats);
+            mapper.brushReleaseExecOrder(1);
+            List<String> rfcs = env.describeCis(mapper, false);
+            rfcs.addAll(env.describeRelations(mapper, false));
+            Collections.sort(rfcs);
+            return rfcs;
+        }
+
+        private List<CmsCIRelation> cloudVars(CmsCI cloud) {
+            CmsCIRelation rel = new CmsCIRelation();
+            rel.setUpdated(BomGenerationFixture.BEFORE);
+            CmsCI var = BomGenerationFixture.ci(cloud.getCiId() + 100, "var", "account.Cloudvar", "/org/_clouds/" + cloud.getCiName());
+            var.setUpdated(env.cloudVersions.get(cloud.getCiId()) > 0 ? AFTER : BomGenerationFixture.BEFORE);
+            rel.setFromCi(var);
+            return Collections.singletonList(rel);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.oneops.transistor.service.peristenceless;
+
+import com.oneops.cms.dj.domain.CmsRfcCI;
+import com.oneops.cms.dj.domain.CmsRfcRelation;
+import com.oneops.transistor.service.BomManager;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+/*******************************************************************************
+ *
+ *   Copyright 2016 Walmart, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *******************************************************************************/
+public class InMemoryDJMapperIndexTest {
+    private static final String[] NS_PATHS = {"/org/a/e/bom/p1/1", "/org/a/e/bom/p2/1", "/org/a/e/bom/p3/1"};
+    private static final String[] CLASSES = {"bom.Compute", "bom.Os", "bom.Tomcat", "bom.main.2.Artifact"};
+    private static final String[] REL_NAMES = {"bom.DependsOn", "bom.ManagedVia", "base.DeployedTo", "bom.main.2.DependsOn"};
+
+    @Test
+    public void lookupsMatchFullScans() {
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            InMemoryDJMapper mapper = new InMemoryDJMapper();
+            for (int i = 0; i < 300; i++) {
+                mutate(mapper, random, true);
+            }
+            // forks share the rfc instances, so only the last one changes them in place before the join
+            List<InMemoryDJMapper> forks = new ArrayList<>();
+            for (int unit = 0; unit < 3; unit++) {
+                forks.add(mapper.fork(unit));
+            }
+            for (InMemoryDJMapper fork : forks) {
+                for (int i = 0; i < 50; i++) {
+                    mutate(fork, random, fork == forks.get(forks.size() - 1));
+                }
+                assertLookupsMatch(fork, random);
+            }
+            mapper.join(forks);
+            assertLookupsMatch(mapper, random);
+        }
+    }
+
+    @Test
+    public void updateMovesRfcToItsNewBuckets() {
+        InMemoryDJMapper mapper = new InMemoryDJMapper();
+        CmsRfcCI rfc = ci(1, 10, NS_PATHS[0], CLASSES[0]);
+        mapper.createRfcCI(rfc);
+        rfc.setCiId(11);
+        rfc.setNsPath(NS_PATHS[1]);
+        mapper.updateRfcCI(rfc);
+        assertEquals(mapper.getOpenRfcCIByCiId(10), null);
+        assertSame(mapper.getOpenRfcCIByCiId(11), rfc);
+        assertEquals(mapper.getRfcCIByClazzAndName(NS_PATHS[0], null, null, null, null).size(), 0);
+        assertEquals(mapper.getRfcCIByClazzAndName(NS_PATHS[1], CLASSES[0], null, true, null).size(), 1);
+
+        CmsRfcRelation rel = relation(2, 20, 10, 11, REL_NAMES[0]);
+        mapper.createRfcRelation(rel);
+        CmsRfcRelation replacement = relation(2, 20, 10, 12, REL_NAMES[1]);
+        replacement.setIsActiveInRelease(true);
+        mapper.updateRfcRelation(replacement);
+        assertEquals(mapper.getOpenRfcRelationBy2(10L, 11L, null, null).size(), 0);
+        assertEquals(mapper.getOpenRfcRelationBy2(10L, 12L, REL_NAMES[1], null), Collections.singletonList(replacement));
+        assertSame(mapper.getOpenRfcRelationByCiRelId(20), replacement);
+    }
+
+    @Test
+    public void compileEnvBenchmark() {
+        // the lookups a bom generation does for every ci and relation of a 10k rfc environment
+        int cis = 5000;
+        compileEnv(new InMemoryDJMapper(), 500);
+        long t1 = System.currentTimeMillis();
+        BomData scanned = compileEnv(new ScanningDJMapper(), cis);
+        long t2 = System.currentTimeMillis();
+        BomData indexed = compileEnv(new InMemoryDJMapper(), cis);
+        long t3 = System.currentTimeMillis();
+        assertEquals(indexed.getCis().size(), cis);
+        assertEquals(indexed.getRelations().size(), cis);
+        assertEquals(describe(indexed), describe(scanned));
+        System.out.println("compileEnv of " + (indexed.getCis().size() + indexed.getRelations().size()) + " rfcs: full scans " + (t2 - t1) + " ms, indexed " + (t3 - t2) + " ms");
+    }
+
+    private static BomData compileEnv(InMemoryDJMapper mapper, int cis) {
+        ThreadLocalDJMapper threadLocalDJMapper = new ThreadLocalDJMapper() {
+            @Override
+            public void set(InMemoryDJMapper ignored) {
+                super.set(mapper);
+            }
+        };
+        BomManager bomManager = mock(BomManager.class);
+        doAnswer(invocation -> {
+            generate(threadLocalDJMapper, cis);
+            return new HashMap<>();
+        }).when(bomManager).generateBom(anyLong(), anyString(), any(), anyString(), anyBoolean(), anyBoolean());
+        InMemoryBomProcessor processor = new InMemoryBomProcessor();
+        processor.setBomManager(bomManager);
+        processor.setThreadLocalDJMapper(threadLocalDJMapper);
+        processor.compileEnv(1, "user", Collections.emptySet(), "", false, false);
+        return mapper.getBOM();
+    }
+
+    private static void generate(ThreadLocalDJMapper mapper, int cis) {
+        int perPlatform = cis / 10;
+        for (int i = 0; i < cis; i++) {
+            long ciId = 1000 + i;
+            String nsPath = "/org/a/e/bom/p" + (i / perPlatform) + "/1";
+            String clazz = CLASSES[i % CLASSES.length];
+            if (mapper.getOpenRfcCIByCiId(ciId) != null || !mapper.getRfcCIByClazzAndName(nsPath, clazz, "ci" + i, true, null).isEmpty()) {
+                throw new IllegalStateException("duplicate ci " + ciId);
+            }
+            CmsRfcCI rfc = ci(mapper.getNextDjId(), ciId, nsPath, clazz);
+            rfc.setCiName("ci" + i);
+            mapper.createRfcCI(rfc);
+        }
+        for (int i = 0; i < cis; i++) {
+            long fromCiId = 1000 + i;
+            long toCiId = 1000 + (i + 1) % cis;
+            String relName = REL_NAMES[i % REL_NAMES.length];
+            if (!mapper.getOpenRfcRelationBy2(fromCiId, toCiId, relName, null).isEmpty()) {
+                throw new IllegalStateException("duplicate relation " + fromCiId);
+            }
+            mapper.getOpenRfcRelationBy2(fromCiId, null, null, "DependsOn");
+            CmsRfcRelation rel = relation(mapper.getNextDjId(), 100000 + i, fromCiId, toCiId, relName);
+            rel.setNsPath(mapper.getOpenRfcCIByCiId(fromCiId).getNsPath());
+            mapper.createRfcRelation(rel);
+        }
+        List<Long> ciIds = new ArrayList<>();
+        for (int i = 0; i < cis; i += 10) {
+            ciIds.add(1000L + i);
+        }
+        mapper.getOpenRfcCIByCiIdList(ciIds);
+    }
+
+    private static List<String> describe(BomData bom) {
+        List<String> rfcs = bom.getCis().stream()
+                .map(r -> r.getRfcId() + " " + r.getCiId() + " " + r.getNsPath() + " " + r.getCiName())
+                .collect(Collectors.toList());
+        bom.getRelations().stream()
+                .map(r -> r.getRfcId() + " " + r.getFromCiId() + " " + r.getRelationName() + " " + r.getToCiId())
+                .forEach(rfcs::add);
+        Collections.sort(rfcs);
+        return rfcs;
+    }
+
+    private static void mutate(InMemoryDJMapper mapper, Random random, boolean inPlace) {
+        int op = random.nextInt(inPlace ? 6 : 5);
+        if (!inPlace && op == 2) op = 1;
+        List<CmsRfcCI> cis = new ArrayList<>(mapper.getCis().values());
+        List<CmsRfcRelation> relations = new ArrayList<>(mapper.getRelations().values());
+        if (op == 0 || cis.isEmpty()) {
+            mapper.createRfcCI(ci(mapper.getNextDjId(), random.nextInt(40), pick(NS_PATHS, random), pick(CLASSES, random)));
+        } else if (op == 1) {
+            // an update of a changed copy, as CmsRfcProcessor does with rfcs read from the mapper
+            CmsRfcCI rfc = ci(pick(cis, random).getRfcId(), random.nextInt(40), pick(NS_PATHS, random), pick(CLASSES, random));
+            rfc.setIsActiveInRelease(random.nextBoolean());
+            mapper.updateRfcCI(rfc);
+        } else if (op == 2) {
+            // an update of the same instance changed in place
+            CmsRfcCI rfc = pick(cis, random);
+            rfc.setCiId(random.nextInt(40));
+            rfc.setCiClassName(pick(CLASSES, random));
+            rfc.setCiState(random.nextBoolean() ? "open" : "closed");
+            mapper.updateRfcCI(rfc);
+        } else if (op == 3 || relations.isEmpty()) {
+            mapper.createRfcRelation(relation(mapper.getNextDjId(), random.nextInt(40), random.nextInt(20), random.nextInt(20), pick(REL_NAMES, random)));
+        } else if (op == 4) {
+            CmsRfcRelation rel = relation(pick(relations, random).getRfcId(), random.nextInt(40), random.nextInt(20), random.nextInt(20), pick(REL_NAMES, random));
+            rel.setIsActiveInRelease(random.nextBoolean());
+            mapper.updateRfcRelation(rel);
+        } else {
+            CmsRfcRelation rel = pick(relations, random);
+            rel.setFromCiId((long) random.nextInt(20));
+            rel.setRelationName(pick(REL_NAMES, random));
+            rel.setNsPath(pick(NS_PATHS, random));
+            mapper.updateRfcRelation(rel);
+        }
+    }
+
+    private static void assertLookupsMatch(InMemoryDJMapper mapper, Random random) {
+        ScanningDJMapper scan = new ScanningDJMapper(mapper);
+        for (int i = 0; i < 50; i++) {
+            long ciId = random.nextInt(45);
+            assertSame(mapper.getOpenRfcCIByCiId(ciId), scan.getOpenRfcCIByCiId(ciId));
+            List<Long> ciIds = Arrays.asList((long) random.nextInt(45), (long) random.nextInt(45), (long) random.nextInt(45));
+            assertSameRfcs(mapper.getOpenRfcCIByCiIdList(ciIds), scan.getOpenRfcCIByCiIdList(ciIds), CmsRfcCI::getRfcId);
+            Boolean isActive = random.nextBoolean() ? null : random.nextBoolean();
+            Long optionalCiId = random.nextBoolean() ? null : ciId;
+            assertSameRfcs(mapper.getRfcCIBy3(0, isActive, optionalCiId), scan.getRfcCIBy3(0, isActive, optionalCiId), CmsRfcCI::getRfcId);
+            String nsPath = random.nextBoolean() ? null : pick(NS_PATHS, random);
+            String clazz = random.nextBoolean() ? null : pick(CLASSES, random);
+            String state = random.nextBoolean() ? null : "open";
+            assertSameRfcs(mapper.getRfcCIByClazzAndName(nsPath, clazz, null, isActive, state),
+                           scan.getRfcCIByClazzAndName(nsPath, clazz, null, isActive, state), CmsRfcCI::getRfcId);
+
+            long ciRelId = random.nextInt(45);
+            assertSame(mapper.getOpenRfcRelationByCiRelId(ciRelId), scan.getOpenRfcRelationByCiRelId(ciRelId));
+            Long optionalCiRelId = random.nextBoolean() ? null : ciRelId;
+            assertSameRfcs(mapper.getRfcRelationBy3(0, isActive, optionalCiRelId), scan.getRfcRelationBy3(0, isActive, optionalCiRelId), CmsRfcRelation::getRfcId);
+            String relNsPath = pick(NS_PATHS, random);
+            assertSameRfcs(mapper.getRfcRelationsByNs(relNsPath, isActive, null), scan.getRfcRelationsByNs(relNsPath, isActive, null), CmsRfcRelation::getRfcId);
+            Long fromCiId = random.nextBoolean() ? null : (long) random.nextInt(22);
+            Long toCiId = random.nextBoolean() ? null : (long) random.nextInt(22);
+            String relName = random.nextBoolean() ? null : pick(REL_NAMES, random);
+            String shortRelName = random.nextBoolean() ? null : "DependsOn";
+            assertSameRfcs(mapper.getOpenRfcRelationBy2(fromCiId, toCiId, relName, shortRelName),
+                           scan.getOpenRfcRelationBy2(fromCiId, toCiId, relName, shortRelName), CmsRfcRelation::getRfcId);
+        }
+    }
+
+    private static <T> void assertSameRfcs(List<T> actual, List<T> expected, Function<T, Long> rfcId) {
+        assertEquals(actual.size(), expected.size());
+        assertEquals(actual.stream().map(rfcId).collect(Collectors.toSet()), expected.stream().map(rfcId).collect(Collectors.toSet()));
+    }
+
+    private static <T> T pick(T[] values, Random random) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static <T> T pick(List<T> values, Random random) {
+        return values.get(random.nextInt(values.size()));
+    }
+
+    private static CmsRfcCI ci(long rfcId, long ciId, String nsPath, String clazz) {
+        CmsRfcCI rfc = new CmsRfcCI();
+        rfc.setRfcId(rfcId);
+        rfc.setCiId(ciId);
+        rfc.setNsPath(nsPath);
+        rfc.setCiClassName(clazz);
+        rfc.setCiName("ci" + ciId);
+        rfc.setCiState("open");
+        return rfc;
+    }
+
+    private static CmsRfcRelation relation(long rfcId, long ciRelId, long fromCiId, long toCiId, String relName) {
+        CmsRfcRelation rfc = new CmsRfcRelation();
+        rfc.setRfcId(rfcId);
+        rfc.setCiRelationId(ciRelId);
+        rfc.setFromCiId(fromCiId);
+        rfc.setToCiId(toCiId);
+        rfc.setRelationName(relName);
+        rfc.setNsPath(NS_PATHS[0]);
+        return rfc;
+    }
+
+    /**
+     * The lookups as they were before the indexes, a full scan of the rfcs of the mapper for every call.
+     */
+    private static class ScanningDJMapper extends InMemoryDJMapper {
+        private final InMemoryDJMapper rfcs;
+
+        ScanningDJMapper() {
+            this.rfcs = this;
+        }
+
+        ScanningDJMapper(InMemoryDJMapper rfcs) {
+            this.rfcs = rfcs;
+        }
+
+        @Override
+        public CmsRfcCI getOpenRfcCIByCiId(long ciId) {
+            return rfcs.getCis().values().stream()
+                    .filter(rfc -> ciId == rfc.getCiId() && rfc.getIsActiveInRelease())
+                    .min(Comparator.comparingLong(CmsRfcCI::getRfcId))
+                    .orElse(null);
+        }
+
+        @Override
+        public List<CmsRfcCI> getOpenRfcCIByCiIdList(List<Long> ciIds) {
+            return rfcs.getCis().values().stream()
+                    .filter(r -> (ciIds.contains(r.getCiId())))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public List<CmsRfcCI> getRfcCIBy3(long releaseId, Boolean isActive, Long ciId) {
+            return rfcs.getCis().values().stream()
+                    .filter(r -> (ciId == null || ciId.equals(r.getCiId())) &&
+                                 (isActive == null || isActive == r.getIsActiveInRelease()))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public List<CmsRfcCI> getRfcCIByClazzAndName(String nsPath, String clazzName, String ciName, Boolean isActive, String state) {
+            return rfcs.getCis().values().stream()
+                    .filter(r -> (nsPath == null || nsPath.equals(r.getNsPath())) &&
+                                 (clazzName == null || clazzName.equals(r.getCiClassName())) &&
+                                 (ciName == null || ciName.equals(r.getCiName())) &&
+                                 (isActive == null || isActive == r.getIsActiveInRelease()) &&
+                                 (state == null || state.equals(r.getCiState())))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public CmsRfcRelation getOpenRfcRelationByCiRelId(long ciRelationId) {
+            return rfcs.getRelations().values().stream()
+                    .filter(rel -> rel.getCiRelationId() == ciRelationId && rel.getIsActiveInRelease())
+                    .min(Comparator.comparingLong(CmsRfcRelation::getRfcId))
+                    .orElse(null);
+        }
+
+        @Override
+        public List<CmsRfcRelation> getRfcRelationsByNs(String nsPath, Boolean isActive, String state) {
+            return rfcs.getRelations().values().stream()
+                    .filter(r -> r.getNsPath().equals(nsPath) &&
+                                 (isActive == null || r.getIsActiveInRelease()))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public List<CmsRfcRelation> getOpenRfcRelationBy2(Long fromCiId, Long toCiId, String relName, String shortRelName) {
+            return rfcs.getRelations().values().stream()
+                    .filter(r -> (relName == null || r.getRelationName().equals(relName)) &&
+                                 (fromCiId == null || fromCiId.equals(r.getFromCiId())) &&
+                                 (toCiId == null || toCiId.equals(r.getToCiId())) &&
+                                 (shortRelName == null || r.getRelationName().endsWith(shortRelName)))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public List<CmsRfcRelation> getRfcRelationBy3(long releaseId, Boolean isActive, Long ciRelationId) {
+            return rfcs.getRelations().values().stream()
+                    .filter(r -> (ciRelationId == null || ciRelationId.equals(r.getCiRelationId())) &&
+                                 (isActive == null || isActive == r.getIsActiveInRelease()))
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -132,6 +132,7 @@ public class CIEventReader extends BaseEventReader {
                 event.addHeaders("sourceId", String.valueOf(record.getSourcePk()));
             } else {
                 event.addHeaders("source", "cm_ci_new");
+                event.addHeaders("sourceId", String.valueOf(record.getSourcePk()));
                 CIMapper ciMapper = session.getMapper(CIMapper.class);
                 CmsCI ci = ciMapper.getCIById(record.getSourcePk());
                 if (ci != null) {